@@ -0,0 +1,40 @@
+package de.upb.ddi.lejos.com.bench;
+
+
+import java.io.OutputStream;
+
+
+/**
+ * Ausgabestrom, der alle Daten verwirft und nur die Anzahl der geschriebenen
+ * Bytes und der Leervorgänge zählt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class DiscardOutputStream extends OutputStream {
+
+	/**
+	 * Anzahl der geschriebenen Bytes
+	 */
+	public long bytes = 0;
+
+	/**
+	 * Anzahl der Leervorgänge
+	 */
+	public long flushes = 0;
+
+	@Override
+	public void write( int b ) {
+		this.bytes++;
+	}
+
+	@Override
+	public void write( byte[] b, int off, int len ) {
+		this.bytes += len;
+	}
+
+	@Override
+	public void flush() {
+		this.flushes++;
+	}
+
+}
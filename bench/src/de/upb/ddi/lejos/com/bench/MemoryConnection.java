@@ -0,0 +1,62 @@
+package de.upb.ddi.lejos.com.bench;
+
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import de.upb.ddi.lejos.com.BluetoothConnection;
+
+
+/**
+ * Ersatz für eine {@link lejos.nxt.comm.NXTConnection} mit Strömen im
+ * Speicher. Die Klasse durchläuft beim Senden und Empfangen exakt den Code der
+ * {@link BluetoothConnection}, ersetzt aber den Bluetooth-Verbindungsaufbau
+ * durch die übergebenen Ströme.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class MemoryConnection extends BluetoothConnection {
+
+	/**
+	 * Eingabestrom für den nächsten Verbindungsaufbau
+	 */
+	private final InputStream source;
+
+	/**
+	 * Ausgabestrom für den nächsten Verbindungsaufbau
+	 */
+	private final OutputStream sink;
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param source Quelle der empfangenen Daten
+	 * @param sink Ziel der gesendeten Daten
+	 */
+	public MemoryConnection( InputStream source, OutputStream sink ) {
+		super("bench", "00:00:00:00:00:00");
+		this.source = source;
+		this.sink = sink;
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return this.isConnected() ? "memory" : null;
+	}
+
+	@Override
+	protected void closeConnection() {
+	}
+
+	@Override
+	public void connect( int timeout ) {
+		this.connectionAttempts++;
+		this.open(this.source, this.sink);
+	}
+
+	@Override
+	public void connect( String identifier ) {
+		this.connect(0);
+	}
+
+}
@@ -0,0 +1,152 @@
+package de.upb.ddi.lejos.com.bench;
+
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.upb.ddi.lejos.com.ComException;
+import de.upb.ddi.lejos.com.RemoteConnection;
+
+
+/**
+ * Benchmarks für das Senden und Empfangen von Integer- und Long-Werten. Die
+ * Werte entsprechen typischen Sensorwerten und Zählern, also betragsmäßig
+ * kleinen Zahlen.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveBenchmark {
+
+	/**
+	 * Anzahl der aufgezeichneten Werte für die Empfangs-Benchmarks.
+	 */
+	private static final int RECORDED = 1024;
+
+	/**
+	 * Anzahl der Werte pro Aufruf der Array-Methoden.
+	 */
+	private static final int BULK = 64;
+
+
+	/**
+	 * Übertragungsformat (siehe {@link RemoteConnection#setEncoding(int)})
+	 */
+	@Param( { "0", "2" } )
+	public int encoding;
+
+	private MemoryConnection sender;
+
+	private MemoryConnection intReceiver;
+
+	private MemoryConnection longReceiver;
+
+	private final int[] ints = new int[BULK];
+
+	private int counter = 0;
+
+	/**
+	 * Erzeugt einen typischen Wert.
+	 *
+	 * @param i
+	 * @return
+	 */
+	private static int value( int i ) {
+		return (i * 37) % 1000 - 500;
+	}
+
+	@Setup
+	public void setup() throws ComException {
+		this.sender = new MemoryConnection(new RepeatingInputStream(
+				new byte[1]), new DiscardOutputStream());
+		this.sender.connect();
+		this.sender.setEncoding(this.encoding);
+
+		for( int i = 0; i < BULK; i++ ) {
+			this.ints[i] = value(i);
+		}
+
+		// Empfangene Daten vorab im gewählten Format aufzeichnen
+		ByteArrayOutputStream ints = new ByteArrayOutputStream();
+		ByteArrayOutputStream longs = new ByteArrayOutputStream();
+		MemoryConnection rec = new MemoryConnection(null, ints);
+		rec.connect();
+		rec.setEncoding(this.encoding);
+		for( int i = 0; i < RECORDED; i++ ) {
+			rec.sendInt(value(i));
+		}
+		rec = new MemoryConnection(null, longs);
+		rec.connect();
+		rec.setEncoding(this.encoding);
+		for( int i = 0; i < RECORDED; i++ ) {
+			rec.sendLong(value(i));
+		}
+
+		this.intReceiver = new MemoryConnection(new RepeatingInputStream(
+				ints.toByteArray()), new DiscardOutputStream());
+		this.intReceiver.connect();
+		this.intReceiver.setEncoding(this.encoding);
+		this.longReceiver = new MemoryConnection(new RepeatingInputStream(
+				longs.toByteArray()), new DiscardOutputStream());
+		this.longReceiver.connect();
+		this.longReceiver.setEncoding(this.encoding);
+	}
+
+	@Benchmark
+	public void sendInt() throws ComException {
+		this.sender.sendInt(value(this.counter++));
+	}
+
+	@Benchmark
+	public void sendLong() throws ComException {
+		this.sender.sendLong(value(this.counter++));
+	}
+
+	@Benchmark
+	public void sendInts() throws ComException {
+		this.sender.sendInts(this.ints, 0, BULK);
+	}
+
+	@Benchmark
+	public void sendIntsBatched() throws ComException {
+		this.sender.beginBatch();
+		for( int i = 0; i < BULK; i++ ) {
+			this.sender.sendInt(this.ints[i]);
+		}
+		this.sender.endBatch();
+	}
+
+	@Benchmark
+	public int receiveInt() throws ComException {
+		return this.intReceiver.receiveInt();
+	}
+
+	@Benchmark
+	public long receiveLong() throws ComException {
+		return this.longReceiver.receiveLong();
+	}
+
+	@Benchmark
+	public int receiveInts() throws ComException {
+		this.intReceiver.receiveInts(this.ints, 0, BULK);
+		return this.ints[BULK - 1];
+	}
+
+}
@@ -0,0 +1,60 @@
+package de.upb.ddi.lejos.com.bench;
+
+
+import java.io.InputStream;
+
+
+/**
+ * Eingabestrom, der eine aufgezeichnete Bytefolge endlos wiederholt. Die
+ * Folge muss aus vollständigen Werten bestehen, damit der Empfänger an den
+ * Wiederholungsgrenzen synchron bleibt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class RepeatingInputStream extends InputStream {
+
+	/**
+	 * Die wiederholte Bytefolge
+	 */
+	private final byte[] data;
+
+	/**
+	 * Aktuelle Position in der Folge
+	 */
+	private int position = 0;
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param data Die zu wiederholende Bytefolge
+	 */
+	public RepeatingInputStream( byte[] data ) {
+		this.data = data;
+	}
+
+	@Override
+	public int available() {
+		return this.data.length - this.position;
+	}
+
+	@Override
+	public int read() {
+		int b = this.data[this.position++] & 0xFF;
+		if( this.position == this.data.length ) {
+			this.position = 0;
+		}
+		return b;
+	}
+
+	@Override
+	public int read( byte[] dst, int off, int len ) {
+		int n = Math.min(len, this.data.length - this.position);
+		System.arraycopy(this.data, this.position, dst, off, n);
+		this.position += n;
+		if( this.position == this.data.length ) {
+			this.position = 0;
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,106 @@
+package de.upb.ddi.lejos.com.bench;
+
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.upb.ddi.lejos.com.ComException;
+import de.upb.ddi.lejos.com.RemoteConnection;
+
+
+/**
+ * Benchmarks für das Senden und Empfangen von Strings verschiedener Länge.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringBenchmark {
+
+	/**
+	 * Anzahl der aufgezeichneten Strings für die Empfangs-Benchmarks.
+	 */
+	private static final int RECORDED = 64;
+
+
+	/**
+	 * Länge der Strings in Zeichen
+	 */
+	@Param( { "8", "32", "128" } )
+	public int length;
+
+	/**
+	 * Übertragungsformat (siehe {@link RemoteConnection#setEncoding(int)})
+	 */
+	@Param( { "0", "1" } )
+	public int encoding;
+
+	private String value;
+
+	private MemoryConnection sender;
+
+	private MemoryConnection receiver;
+
+	private final StringBuilder buffer = new StringBuilder();
+
+	@Setup
+	public void setup() throws ComException {
+		StringBuilder sb = new StringBuilder();
+		for( int i = 0; i < this.length; i++ ) {
+			sb.append((char) ('a' + i % 26));
+		}
+		this.value = sb.toString();
+
+		this.sender = new MemoryConnection(new RepeatingInputStream(
+				new byte[1]), new DiscardOutputStream());
+		this.sender.connect();
+		this.sender.setEncoding(this.encoding);
+
+		// Empfangene Daten vorab im gewählten Format aufzeichnen
+		ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+		MemoryConnection rec = new MemoryConnection(null, recorded);
+		rec.connect();
+		rec.setEncoding(this.encoding);
+		for( int i = 0; i < RECORDED; i++ ) {
+			rec.sendString(this.value);
+		}
+
+		this.receiver = new MemoryConnection(new RepeatingInputStream(
+				recorded.toByteArray()), new DiscardOutputStream());
+		this.receiver.connect();
+		this.receiver.setEncoding(this.encoding);
+	}
+
+	@Benchmark
+	public void sendString() throws ComException {
+		this.sender.sendString(this.value);
+	}
+
+	@Benchmark
+	public String receiveString() throws ComException {
+		return this.receiver.receiveString();
+	}
+
+	@Benchmark
+	public int receiveStringInto() throws ComException {
+		this.buffer.setLength(0);
+		return this.receiver.receiveString(this.buffer);
+	}
+
+}
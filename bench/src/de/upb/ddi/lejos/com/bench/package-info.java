@@ -0,0 +1,14 @@
+/**
+ * JMH Benchmarks für die Sende- und Empfangsmethoden aus
+ * {@link de.upb.ddi.lejos.com}. Die Benchmarks laufen auf dem PC gegen eine
+ * {@link de.upb.ddi.lejos.com.bench.MemoryConnection}, die den Code der
+ * {@link de.upb.ddi.lejos.com.BluetoothConnection} mit Strömen im Speicher
+ * statt einer echten Bluetooth-Verbindung ausführt.
+ * <p/>
+ * Durchsatz und Latenz-Verteilung werden von den Benchmarks selbst gemessen,
+ * die Allokationen pro Operation liefert der GC-Profiler von JMH
+ * (<code>-prof gc</code>, Wert <code>gc.alloc.rate.norm</code>).
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+package de.upb.ddi.lejos.com.bench;
@@ -0,0 +1,57 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Erweiterung von {@link RemoteConnection} für Verbindungen auf dem PC, die
+ * ganze {@link ByteBuffer} in einem Schritt senden und empfangen können.
+ * Statt eine Nachricht in einzelne <code>send*</code>-Aufrufe zu zerlegen,
+ * übergeben Rahmen-, Kompressions- und Kodierungsschichten den fertigen
+ * Puffer, der ohne weitere Kopie an den Kanal der Verbindung geht.
+ * <p/>
+ * Die Schnittstelle ist nur auf dem PC verfügbar, da die NXT-Laufzeit kein
+ * <code>java.nio</code> kennt. Auf dem NXT bleiben
+ * {@link RemoteConnection#sendBytes(byte[], int, int)} und
+ * {@link RemoteConnection#receiveBytes(byte[], int, int)} der schnellste
+ * Weg.
+ * <p/>
+ * Puffer sollten mit {@link #allocate(int)} erzeugt werden, damit sie zur
+ * Verbindung passen (z.B. direkte Puffer für Sockets).
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public interface BufferConnection extends RemoteConnection {
+
+	/**
+	 * Erzeugt einen Puffer, der ohne Zwischenkopie gesendet und empfangen
+	 * werden kann.
+	 *
+	 * @param capacity Größe in Bytes
+	 * @return
+	 */
+	public ByteBuffer allocate( int capacity );
+
+	/**
+	 * Empfängt so viele Bytes, wie im Puffer zwischen Position und Limit Platz
+	 * haben. Die Methode blockiert, bis der Puffer gefüllt ist; die Position
+	 * steht danach auf dem Limit.
+	 *
+	 * @param dst Zielpuffer
+	 * @throws ComException
+	 */
+	public void receive( ByteBuffer dst ) throws ComException;
+
+	/**
+	 * Sendet die Bytes des Puffers zwischen Position und Limit. Außerhalb
+	 * eines Stapels (siehe {@link #beginBatch()}) werden vorher gepufferte
+	 * Daten und der Puffer sofort verschickt. Die Position steht danach auf
+	 * dem Limit.
+	 *
+	 * @param src Quellpuffer
+	 * @throws ComException
+	 */
+	public void send( ByteBuffer src ) throws ComException;
+
+}
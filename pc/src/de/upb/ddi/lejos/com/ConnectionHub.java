@@ -0,0 +1,587 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Bedient viele TCP-Verbindungen aus einem einzigen Thread mit einem
+ * {@link Selector}. Gedacht für Basisstationen, die mit vielen NXTs (oder
+ * deren Simulation über {@link SocketConnection}) gleichzeitig sprechen,
+ * ohne für jede Verbindung einen blockierenden Thread zu benötigen.
+ * <p/>
+ * Der Hub spricht das Frame-Format des {@link MessageChannel}. Auf der
+ * Gegenseite genügt also ein {@link MessageChannel} über einer beliebigen
+ * {@link RemoteConnection}. Eingehende Frames und Zustandsänderungen der
+ * Verbindungen werden an einen {@link HubListener} gemeldet, gesendet wird
+ * mit {@link HubPeer#send(Frame)}. Fehler werden wie bei den übrigen
+ * Verbindungen als {@link ComException} mit passendem Fehlercode gemeldet.
+ * <p/>
+ * <pre>
+ * ConnectionHub hub = new ConnectionHub(listener);
+ * hub.listen(SocketConnection.DEFAULT_PORT);
+ * hub.start();
+ * </pre>
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectionHub implements Runnable {
+
+	/**
+	 * Standard-Obergrenze des Sendepuffers je Verbindung in Bytes.
+	 */
+	public static final int DEFAULT_MAX_PENDING = 256 * 1024;
+
+	/**
+	 * Größe des gemeinsamen Lesepuffers in Bytes
+	 */
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+
+	/**
+	 * Empfänger der Benachrichtigungen
+	 */
+	private final HubListener listener;
+
+	/**
+	 * Größe eingehender Frames
+	 */
+	private final int capacity;
+
+	/**
+	 * Obergrenze des Sendepuffers je Verbindung
+	 */
+	private final int maxPending;
+
+	/**
+	 * Der Selector aller Kanäle
+	 */
+	private final Selector selector;
+
+	/**
+	 * Gemeinsamer Lesepuffer aller Verbindungen
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer
+			.allocateDirect(READ_BUFFER_SIZE);
+
+	/**
+	 * Alle offenen Verbindungen
+	 */
+	private final ArrayList<HubPeer> peers = new ArrayList<HubPeer>();
+
+	/**
+	 * Neue Kanäle, die noch beim Selector registriert werden müssen
+	 */
+	private final ArrayList<Object> registrations = new ArrayList<Object>();
+
+	/**
+	 * Verbindungen, die geschlossen werden sollen
+	 */
+	private final ArrayList<HubPeer> closing = new ArrayList<HubPeer>();
+
+	/**
+	 * Fehler zu den Einträgen in {@link #closing}
+	 */
+	private final ArrayList<ComException> closingCauses = new ArrayList<ComException>();
+
+	/**
+	 * Der Thread des Hubs
+	 */
+	private volatile Thread thread = null;
+
+	/**
+	 * Ob der Hub beendet wurde
+	 */
+	private volatile boolean stopped = false;
+
+	/**
+	 * Erzeugt einen Hub für Frames bis zur {@link Frame#DEFAULT_CAPACITY
+	 * Standardgröße}.
+	 *
+	 * @param listener Empfänger der Benachrichtigungen
+	 * @throws ComException Falls kein Selector geöffnet werden kann
+	 */
+	public ConnectionHub( HubListener listener ) throws ComException {
+		this(listener, Frame.DEFAULT_CAPACITY, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Erzeugt einen Hub.
+	 *
+	 * @param listener Empfänger der Benachrichtigungen
+	 * @param capacity Größe eingehender Frames; größere Frames werden
+	 *        verworfen und in den {@link HubPeer#getStats() Messwerten}
+	 *        gezählt
+	 * @param maxPending Obergrenze des Sendepuffers je Verbindung in Bytes
+	 * @throws ComException Falls kein Selector geöffnet werden kann
+	 */
+	public ConnectionHub( HubListener listener, int capacity, int maxPending )
+			throws ComException {
+		this.listener = listener;
+		this.capacity = capacity;
+		// Platz für den größten Frame, den HubPeer.send() annimmt; die
+		// Kanalnummer zählt dabei zur Länge im Header
+		this.maxPending = Math.max(maxPending, MessageChannel.HEADER_SIZE
+				+ MessageChannel.MAX_PAYLOAD);
+		try {
+			this.selector = Selector.open();
+		} catch( IOException ex ) {
+			throw new ComException("Failed to open selector",
+					ComException.CONN);
+		}
+	}
+
+	/**
+	 * Nimmt Verbindungen auf einem Port an. Kann mehrfach für verschiedene
+	 * Ports aufgerufen werden.
+	 *
+	 * @param port
+	 * @throws ComException Falls der Port nicht geöffnet werden kann
+	 */
+	public void listen( int port ) throws ComException {
+		try {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.configureBlocking(false);
+			server.socket().bind(new InetSocketAddress(port));
+			this.register(server);
+		} catch( IOException ex ) {
+			Console.err.println("hub: listen failed");
+			throw new ComException("Failed to listen", ComException.CONN);
+		}
+	}
+
+	/**
+	 * Baut eine Verbindung auf. Die Methode blockiert nicht; der
+	 * {@link HubListener} wird benachrichtigt, sobald die Verbindung steht oder
+	 * fehlschlägt. Frames können sofort verschickt werden und werden bis
+	 * dahin gepuffert.
+	 *
+	 * @param address Adresse in der Form <code>host:port</code> oder
+	 *        <code>host</code>
+	 * @return Die neue Verbindung
+	 * @throws ComException Falls die Adresse ungültig ist
+	 */
+	public HubPeer connect( String address ) throws ComException {
+		try {
+			SocketChannel ch = SocketChannel.open();
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			boolean done = ch.connect(new InetSocketAddress(
+					SocketConnection.parseHost(address),
+					SocketConnection.parsePort(address)));
+			HubPeer peer = new HubPeer(this, ch, address, this.capacity,
+					this.maxPending, !done);
+			this.register(peer);
+			return peer;
+		} catch( IOException ex ) {
+			Console.err.println("hub: conn failed");
+			throw new ComException("Failed to connect", ComException.CONN);
+		} catch( IllegalArgumentException ex ) {
+			throw new ComException("Invalid address", ComException.CONN);
+		}
+	}
+
+	/**
+	 * Startet den Thread des Hubs.
+	 */
+	public synchronized void start() {
+		if( this.thread == null ) {
+			Thread t = new Thread(this, "hub");
+			t.setDaemon(true);
+			this.thread = t;
+			t.start();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> solange der Thread des Hubs läuft
+	 */
+	public boolean isRunning() {
+		Thread t = this.thread;
+		return (t != null && t.isAlive());
+	}
+
+	/**
+	 * Beendet den Hub und schließt alle Verbindungen.
+	 */
+	public void close() {
+		this.stopped = true;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * @return Anzahl der offenen Verbindungen
+	 */
+	public int size() {
+		synchronized( this.peers ) {
+			return this.peers.size();
+		}
+	}
+
+	/**
+	 * @return Kopie der Liste aller offenen Verbindungen
+	 */
+	public HubPeer[] getPeers() {
+		synchronized( this.peers ) {
+			return this.peers.toArray(new HubPeer[this.peers.size()]);
+		}
+	}
+
+	/**
+	 * Übergibt einen neuen Kanal an den Thread des Hubs.
+	 *
+	 * @param channel Ein {@link ServerSocketChannel} oder {@link HubPeer}
+	 */
+	private void register( Object channel ) {
+		synchronized( this.registrations ) {
+			this.registrations.add(channel);
+		}
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Veranlasst das Schließen einer Verbindung durch den Thread des Hubs.
+	 *
+	 * @param peer
+	 * @param ex Der Fehler oder <code>null</code>
+	 */
+	void requestClose( HubPeer peer, ComException ex ) {
+		synchronized( this.closing ) {
+			this.closing.add(peer);
+			this.closingCauses.add(ex);
+		}
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Setzt oder löscht das Interesse an Schreibbereitschaft einer
+	 * Verbindung.
+	 *
+	 * @param peer
+	 * @param write
+	 */
+	void setWriteInterest( HubPeer peer, boolean write ) {
+		SelectionKey key = peer.key;
+		if( key == null || !key.isValid() ) {
+			return;
+		}
+		key.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+				: SelectionKey.OP_READ);
+		if( Thread.currentThread() != this.thread ) {
+			this.selector.wakeup();
+		}
+	}
+
+	public void run() {
+		if( this.thread == null ) {
+			this.thread = Thread.currentThread();
+		}
+
+		try {
+			while( !this.stopped ) {
+				this.processRegistrations();
+				this.processClosing();
+
+				try {
+					this.selector.select();
+				} catch( IOException ex ) {
+					Console.err.println("hub: select failed");
+					break;
+				}
+
+				Iterator<SelectionKey> it = this.selector.selectedKeys()
+						.iterator();
+				while( it.hasNext() ) {
+					SelectionKey key = it.next();
+					it.remove();
+					this.process(key);
+				}
+			}
+		} finally {
+			this.shutdown();
+		}
+	}
+
+	/**
+	 * Bearbeitet einen bereiten Kanal.
+	 *
+	 * @param key
+	 */
+	private void process( SelectionKey key ) {
+		if( !key.isValid() ) {
+			return;
+		}
+
+		if( key.isAcceptable() ) {
+			this.accept((ServerSocketChannel) key.channel());
+			return;
+		}
+
+		HubPeer peer = (HubPeer) key.attachment();
+		try {
+			if( key.isConnectable() ) {
+				this.finishConnect(peer);
+				return;
+			}
+			if( key.isReadable() ) {
+				this.read(peer);
+			}
+			if( key.isValid() && key.isWritable() ) {
+				peer.flushOutput();
+			}
+		} catch( IOException ex ) {
+			Console.dbg.println("hub: conn lost");
+			this.disconnect(peer, new ComException("Connection lost",
+					ComException.RECV));
+		} catch( RuntimeException ex ) {
+			Console.err.println("hub: listener failed");
+			this.disconnect(peer, new ComException(ex.toString(),
+					ComException.RECV));
+		}
+	}
+
+	/**
+	 * Nimmt eine neue Verbindung an.
+	 *
+	 * @param server
+	 */
+	private void accept( ServerSocketChannel server ) {
+		SocketChannel ch;
+		try {
+			ch = server.accept();
+			if( ch == null ) {
+				return;
+			}
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+		} catch( IOException ex ) {
+			Console.err.println("hub: accept failed");
+			return;
+		}
+
+		String address = ch.socket().getInetAddress().getHostAddress() + ":"
+				+ ch.socket().getPort();
+		HubPeer peer = new HubPeer(this, ch, address, this.capacity,
+				this.maxPending, false);
+		this.add(peer, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Registriert eine Verbindung beim Selector und meldet sie, sofern sie
+	 * bereits aufgebaut ist.
+	 *
+	 * @param peer
+	 * @param ops
+	 */
+	private void add( HubPeer peer, int ops ) {
+		try {
+			peer.key = peer.channel.register(this.selector, ops, peer);
+		} catch( IOException ex ) {
+			this.disconnect(peer, new ComException("Failed to register",
+					ComException.CONN));
+			return;
+		}
+
+		synchronized( this.peers ) {
+			this.peers.add(peer);
+		}
+		if( !peer.connecting ) {
+			// Vor der Registrierung gepufferte Frames nachschicken
+			peer.updateInterest();
+			this.notifyConnected(peer);
+		}
+	}
+
+	/**
+	 * Schließt einen ausgehenden Verbindungsaufbau ab.
+	 *
+	 * @param peer
+	 */
+	private void finishConnect( HubPeer peer ) {
+		try {
+			peer.channel.finishConnect();
+		} catch( IOException ex ) {
+			Console.dbg.println("hub: conn failed");
+			this.disconnect(peer, new ComException("Failed to connect",
+					ComException.CONN));
+			return;
+		}
+
+		peer.key.interestOps(SelectionKey.OP_READ);
+		synchronized( peer ) {
+			peer.connecting = false;
+		}
+		if( !this.notifyConnected(peer) ) {
+			return;
+		}
+		try {
+			peer.flushOutput();
+		} catch( IOException ex ) {
+			this.disconnect(peer, new ComException("Failed to send frame",
+					ComException.SEND));
+		}
+	}
+
+	/**
+	 * Liest verfügbare Bytes einer Verbindung.
+	 *
+	 * @param peer
+	 * @throws IOException
+	 */
+	private void read( HubPeer peer ) throws IOException {
+		this.readBuffer.clear();
+		int n = peer.channel.read(this.readBuffer);
+		if( n < 0 ) {
+			// Gegenseite hat regulär geschlossen
+			this.disconnect(peer, null);
+			return;
+		}
+		this.readBuffer.flip();
+		peer.receive(this.readBuffer, this.listener);
+	}
+
+	/**
+	 * Schließt eine Verbindung und benachrichtigt den Listener.
+	 *
+	 * @param peer
+	 * @param ex Der Fehler oder <code>null</code>
+	 */
+	private void disconnect( HubPeer peer, ComException ex ) {
+		if( !peer.markClosed() ) {
+			return;
+		}
+
+		if( ex == null ) {
+			// Noch gepufferte Frames nach Möglichkeit verschicken
+			try {
+				peer.flushOutput();
+			} catch( IOException e ) {
+				/* Verbindung ist bereits unterbrochen */
+			}
+		} else {
+			peer.getStats().addFailure(ex.getType());
+		}
+
+		try {
+			peer.channel.close();
+		} catch( IOException e ) {
+			/* Kanal ist bereits geschlossen */
+		}
+
+		synchronized( this.peers ) {
+			this.peers.remove(peer);
+		}
+		try {
+			this.listener.disconnected(peer, ex);
+		} catch( RuntimeException e ) {
+			Console.err.println("hub: listener failed");
+		}
+	}
+
+	/**
+	 * Meldet eine aufgebaute Verbindung dem Listener. Wirft der Listener eine
+	 * Exception, wird die Verbindung getrennt, damit der Hub-Thread
+	 * weiterläuft.
+	 *
+	 * @param peer
+	 * @return <code>false</code> wenn die Verbindung getrennt wurde
+	 */
+	private boolean notifyConnected( HubPeer peer ) {
+		try {
+			this.listener.connected(peer);
+			return true;
+		} catch( RuntimeException ex ) {
+			Console.err.println("hub: listener failed");
+			this.disconnect(peer, new ComException(ex.toString(),
+					ComException.CONN));
+			return false;
+		}
+	}
+
+	/**
+	 * Registriert neue Kanäle beim Selector.
+	 */
+	private void processRegistrations() {
+		Object[] pending;
+		synchronized( this.registrations ) {
+			if( this.registrations.isEmpty() ) {
+				return;
+			}
+			pending = this.registrations.toArray();
+			this.registrations.clear();
+		}
+
+		for( int i = 0; i < pending.length; i++ ) {
+			if( pending[i] instanceof HubPeer ) {
+				HubPeer peer = (HubPeer) pending[i];
+				this.add(peer, peer.connecting ? SelectionKey.OP_CONNECT
+						: SelectionKey.OP_READ);
+			} else {
+				try {
+					((ServerSocketChannel) pending[i]).register(this.selector,
+							SelectionKey.OP_ACCEPT);
+				} catch( IOException ex ) {
+					Console.err.println("hub: listen failed");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Schließt angeforderte Verbindungen.
+	 */
+	private void processClosing() {
+		HubPeer[] peers;
+		ComException[] causes;
+		synchronized( this.closing ) {
+			if( this.closing.isEmpty() ) {
+				return;
+			}
+			peers = this.closing.toArray(new HubPeer[this.closing.size()]);
+			causes = this.closingCauses
+					.toArray(new ComException[peers.length]);
+			this.closing.clear();
+			this.closingCauses.clear();
+		}
+
+		for( int i = 0; i < peers.length; i++ ) {
+			this.disconnect(peers[i], causes[i]);
+		}
+	}
+
+	/**
+	 * Schließt alle Verbindungen und den Selector.
+	 */
+	private void shutdown() {
+		HubPeer[] all = this.getPeers();
+		for( int i = 0; i < all.length; i++ ) {
+			this.disconnect(all[i], null);
+		}
+
+		Object[] keys = this.selector.keys().toArray();
+		for( int i = 0; i < keys.length; i++ ) {
+			try {
+				((SelectionKey) keys[i]).channel().close();
+			} catch( IOException ex ) {
+				/* Kanal ist bereits geschlossen */
+			}
+		}
+		try {
+			this.selector.close();
+		} catch( IOException ex ) {
+			/* Nicht schlimm ... */
+		}
+		Console.dbg.println("hub: closed");
+	}
+
+}
@@ -0,0 +1,40 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Wird von einem {@link ConnectionHub} über Verbindungen und eingehende
+ * Frames benachrichtigt. Alle Methoden werden aus dem Thread des Hubs
+ * aufgerufen und dürfen nicht blockieren, da sonst alle übrigen Verbindungen
+ * warten. Längere Arbeiten sollten an einen eigenen Thread übergeben werden.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public interface HubListener {
+
+	/**
+	 * Eine Verbindung wurde aufgebaut, entweder von der Gegenseite oder mit
+	 * {@link ConnectionHub#connect(String)}.
+	 *
+	 * @param peer
+	 */
+	public void connected( HubPeer peer );
+
+	/**
+	 * Ein Frame ist eingetroffen. Der Frame gehört dem Hub und wird nach der
+	 * Rückkehr wiederverwendet; sein Inhalt muss bei Bedarf kopiert werden.
+	 *
+	 * @param peer
+	 * @param frame
+	 */
+	public void received( HubPeer peer, Frame frame );
+
+	/**
+	 * Eine Verbindung wurde getrennt oder konnte nicht aufgebaut werden.
+	 *
+	 * @param peer
+	 * @param ex Der Fehler oder <code>null</code>, falls die Verbindung
+	 *        regulär geschlossen wurde
+	 */
+	public void disconnected( HubPeer peer, ComException ex );
+
+}
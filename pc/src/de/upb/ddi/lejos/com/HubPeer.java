@@ -0,0 +1,549 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Eine Verbindung eines {@link ConnectionHub}. Frames werden im selben Format
+ * wie beim {@link MessageChannel} übertragen, sodass auf der Gegenseite ein
+ * gewöhnlicher {@link MessageChannel} über einer {@link RemoteConnection}
+ * benutzt werden kann.
+ * <p/>
+ * {@link #send(Frame)} darf aus beliebigen Threads aufgerufen werden und
+ * blockiert nie: Was der Socket nicht sofort annimmt, wird gepuffert und vom
+ * Thread des Hubs nachgeschickt. Läuft der Puffer über, wird eine
+ * {@link ComException} geworfen.
+ * <p/>
+ * Pings der Gegenseite (siehe {@link Heartbeat}) werden selbstständig
+ * beantwortet.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class HubPeer {
+
+	/**
+	 * Anfangsgröße des Sendepuffers in Bytes
+	 */
+	private static final int INITIAL_SEND_BUFFER = 1024;
+
+
+	/**
+	 * Der zugehörige Hub
+	 */
+	private final ConnectionHub hub;
+
+	/**
+	 * Der Kanal der Verbindung
+	 */
+	final SocketChannel channel;
+
+	/**
+	 * Registrierung beim Selector des Hubs
+	 */
+	SelectionKey key;
+
+	/**
+	 * Messwerte der Verbindung
+	 */
+	private final ConnectionStats stats = new ConnectionStats();
+
+	/**
+	 * Header des aktuell gelesenen Frames, mit Platz für die Kanalnummer
+	 */
+	private final byte[] header = new byte[MessageChannel.HEADER_SIZE + 1];
+
+	/**
+	 * Anzahl der gelesenen Header-Bytes
+	 */
+	private int headerPos = 0;
+
+	/**
+	 * Länge des Headers des aktuell gelesenen Frames
+	 */
+	private int headerSize = MessageChannel.HEADER_SIZE;
+
+	/**
+	 * Flags des aktuell gelesenen Frames
+	 */
+	private int flags;
+
+	/**
+	 * Virtueller Kanal des aktuell gelesenen Frames
+	 */
+	private int frameChannel;
+
+	/**
+	 * Länge des Inhalts des aktuell gelesenen Frames
+	 */
+	private int length;
+
+	/**
+	 * Anzahl der gelesenen Bytes des Inhalts
+	 */
+	private int pos;
+
+	/**
+	 * Ziel des Inhalts oder <code>null</code>, wenn er verworfen wird
+	 */
+	private byte[] target;
+
+	/**
+	 * Position des Inhalts im Ziel
+	 */
+	private int targetOff;
+
+	/**
+	 * Beginn des Empfangs des aktuellen Frames
+	 */
+	private long frameStart;
+
+	/**
+	 * Frame für eingehende Nachrichten
+	 */
+	private final Frame incoming;
+
+	/**
+	 * Puffer für komprimierte Inhalte
+	 */
+	private byte[] inflated = null;
+
+	/**
+	 * Puffer für das Zusammensetzen von Teilstücken
+	 */
+	private byte[] assembly = null;
+
+	/**
+	 * Anzahl der bereits zusammengesetzten Bytes
+	 */
+	private int assembled = 0;
+
+	/**
+	 * Ob die Teilstücke nicht in den Frame passen
+	 */
+	private boolean assemblyOverflow = false;
+
+	/**
+	 * Noch nicht verschickte Bytes, im Schreibmodus
+	 */
+	private ByteBuffer output;
+
+	/**
+	 * Maximale Größe des Sendepuffers in Bytes
+	 */
+	private final int maxPending;
+
+	/**
+	 * Ob der Hub auf Schreibbereitschaft wartet
+	 */
+	private boolean writing = false;
+
+	/**
+	 * Ob der Verbindungsaufbau noch läuft
+	 */
+	boolean connecting;
+
+	/**
+	 * Ob die Verbindung geschlossen wurde
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Zeitpunkt des letzten eingegangenen Frames
+	 */
+	private volatile long lastReceived;
+
+	/**
+	 * Beliebige Daten der Anwendung
+	 */
+	private volatile Object attachment = null;
+
+	/**
+	 * Adresse der Gegenseite
+	 */
+	private final String remoteAddress;
+
+	/**
+	 * @param hub Der zugehörige Hub
+	 * @param channel Der Kanal der Verbindung
+	 * @param remoteAddress Adresse der Gegenseite
+	 * @param capacity Größe eingehender Frames
+	 * @param maxPending Maximale Größe des Sendepuffers
+	 * @param connecting Ob der Verbindungsaufbau noch läuft
+	 */
+	HubPeer( ConnectionHub hub, SocketChannel channel, String remoteAddress,
+			int capacity, int maxPending, boolean connecting ) {
+		this.hub = hub;
+		this.channel = channel;
+		this.remoteAddress = remoteAddress;
+		this.incoming = new Frame(capacity);
+		this.maxPending = maxPending;
+		this.connecting = connecting;
+		this.output = ByteBuffer.allocateDirect(Math.min(INITIAL_SEND_BUFFER,
+				maxPending));
+		this.lastReceived = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return Adresse der Gegenseite in der Form <code>host:port</code>
+	 */
+	public String getRemoteAddress() {
+		return this.remoteAddress;
+	}
+
+	/**
+	 * @return Messwerte der Verbindung
+	 */
+	public ConnectionStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * @return <code>true</code> solange die Verbindung aufgebaut ist oder
+	 *         wird
+	 */
+	public boolean isConnected() {
+		return !this.closed;
+	}
+
+	/**
+	 * @return Zeit in Millisekunden seit dem letzten eingegangenen Frame
+	 */
+	public int getIdleTime() {
+		return (int) (System.currentTimeMillis() - this.lastReceived);
+	}
+
+	/**
+	 * @return Die mit {@link #setAttachment(Object)} gesetzten Daten
+	 */
+	public Object getAttachment() {
+		return this.attachment;
+	}
+
+	/**
+	 * Hängt beliebige Daten der Anwendung an die Verbindung, z.B. den Zustand
+	 * des verbundenen NXT.
+	 *
+	 * @param attachment
+	 */
+	public void setAttachment( Object attachment ) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * @return Anzahl der noch nicht verschickten Bytes
+	 */
+	public synchronized int getPending() {
+		return this.output.position();
+	}
+
+	/**
+	 * Schließt die Verbindung. Der {@link HubListener} wird aus dem Thread des
+	 * Hubs benachrichtigt.
+	 */
+	public void close() {
+		this.hub.requestClose(this, null);
+	}
+
+	/**
+	 * Verschickt einen Frame. Die Methode blockiert nicht. Anders als beim
+	 * {@link MessageChannel} werden Frames nicht zerlegt; der Inhalt darf
+	 * samt Kanalnummer höchstens {@link MessageChannel#MAX_PAYLOAD} Bytes
+	 * lang sein.
+	 *
+	 * @param frame
+	 * @throws ComException Falls die Verbindung geschlossen ist, der Frame zu
+	 *         groß ist oder der Sendepuffer überläuft
+	 */
+	public void send( Frame frame ) throws ComException {
+		long start = System.nanoTime();
+		this.write(frame.type, frame.flags
+				& ~(MessageChannel.FLAG_RAW | MessageChannel.FLAG_COMPRESSED
+						| MessageChannel.FLAG_FRAGMENT | MessageChannel.FLAG_MORE),
+				frame.channel, frame.data, frame.length);
+		this.stats.recordSend(start);
+	}
+
+	/**
+	 * Hängt einen Frame an den Sendepuffer an und versucht, ihn sofort zu
+	 * verschicken.
+	 *
+	 * @param type
+	 * @param flags
+	 * @param channel Virtueller Kanal oder <code>0</code>
+	 * @param data
+	 * @param length
+	 * @throws ComException
+	 */
+	private synchronized void write( int type, int flags, int channel,
+			byte[] data, int length ) throws ComException {
+		if( this.closed ) {
+			this.stats.addFailure(ComException.CONN);
+			throw new ComException();
+		}
+
+		flags &= ~MessageChannel.FLAG_CHANNEL;
+		int wireLength = length;
+		if( channel != 0 ) {
+			flags |= MessageChannel.FLAG_CHANNEL;
+			wireLength++;
+		}
+		if( wireLength > MessageChannel.MAX_PAYLOAD ) {
+			// Die Kanalnummer zählt zur Länge im Header
+			this.stats.addFailure(ComException.SEND);
+			throw new ComException("Frame too large", ComException.SEND);
+		}
+
+		int n = MessageChannel.HEADER_SIZE + wireLength;
+		if( this.output.remaining() < n && !this.grow(n) ) {
+			this.stats.addDropped();
+			this.stats.addFailure(ComException.SEND);
+			throw new ComException("Send buffer full", ComException.SEND);
+		}
+
+		this.output.put((byte) type);
+		this.output.put((byte) flags);
+		this.output.put((byte) (wireLength >>> 8));
+		this.output.put((byte) wireLength);
+		if( channel != 0 ) {
+			this.output.put((byte) channel);
+		}
+		this.output.put(data, 0, length);
+
+		if( this.writing || this.connecting ) {
+			return;
+		}
+
+		try {
+			this.flushOutput();
+		} catch( IOException ex ) {
+			ComException cex = new ComException("Failed to send frame",
+					ComException.SEND);
+			this.stats.addFailure(ComException.SEND);
+			this.hub.requestClose(this, cex);
+			throw cex;
+		}
+	}
+
+	/**
+	 * Vergrößert den Sendepuffer.
+	 *
+	 * @param n Benötigter freier Platz
+	 * @return <code>false</code> wenn die maximale Größe überschritten würde
+	 */
+	private boolean grow( int n ) {
+		int needed = this.output.position() + n;
+		if( needed > this.maxPending ) {
+			return false;
+		}
+
+		int size = this.output.capacity();
+		while( size < needed ) {
+			size *= 2;
+		}
+		ByteBuffer larger = ByteBuffer.allocateDirect(Math.min(size,
+				this.maxPending));
+		this.output.flip();
+		larger.put(this.output);
+		this.output = larger;
+		return true;
+	}
+
+	/**
+	 * Schreibt so viel des Sendepuffers, wie der Socket annimmt. Bleibt ein
+	 * Rest, wartet der Hub auf Schreibbereitschaft.
+	 *
+	 * @throws IOException
+	 */
+	synchronized void flushOutput() throws IOException {
+		this.output.flip();
+		int n = this.channel.write(this.output);
+		this.output.compact();
+		this.stats.addBytesSent(n);
+		if( n > 0 ) {
+			this.stats.addFlush();
+		}
+
+		boolean pending = (this.output.position() > 0);
+		if( pending != this.writing ) {
+			this.writing = pending;
+			this.hub.setWriteInterest(this, pending);
+		}
+	}
+
+	/**
+	 * Überträgt den Schreibzustand auf die Registrierung beim Selector.
+	 */
+	synchronized void updateInterest() {
+		this.hub.setWriteInterest(this, this.writing);
+	}
+
+	/**
+	 * Verarbeitet empfangene Bytes. Wird nur aus dem Thread des Hubs
+	 * aufgerufen.
+	 *
+	 * @param src
+	 * @param listener
+	 */
+	void receive( ByteBuffer src, HubListener listener ) {
+		this.stats.addBytesReceived(src.remaining());
+
+		while( src.hasRemaining() ) {
+			if( this.headerPos < this.headerSize ) {
+				this.header[this.headerPos++] = src.get();
+				if( this.headerPos == MessageChannel.HEADER_SIZE
+						&& (this.header[1] & MessageChannel.FLAG_CHANNEL) != 0
+						&& (this.header[2] | this.header[3]) != 0 ) {
+					// Kanalnummer folgt
+					this.headerSize++;
+				} else if( this.headerPos == this.headerSize ) {
+					this.beginFrame();
+					if( this.length == 0 ) {
+						this.endFrame(listener);
+					}
+				}
+				continue;
+			}
+
+			int n = Math.min(src.remaining(), this.length - this.pos);
+			if( this.target != null ) {
+				src.get(this.target, this.targetOff + this.pos, n);
+			} else {
+				src.position(src.position() + n);
+			}
+			this.pos += n;
+
+			if( this.pos == this.length ) {
+				this.endFrame(listener);
+			}
+		}
+	}
+
+	/**
+	 * Wertet den Header aus und legt das Ziel des Inhalts fest.
+	 */
+	private void beginFrame() {
+		this.frameStart = System.nanoTime();
+		this.flags = this.header[1] & ~MessageChannel.FLAG_CHANNEL & 0xFF;
+		this.length = ((this.header[2] & 0xFF) << 8) | (this.header[3] & 0xFF);
+		this.pos = 0;
+
+		this.frameChannel = 0;
+		if( this.headerSize > MessageChannel.HEADER_SIZE ) {
+			this.frameChannel = this.header[MessageChannel.HEADER_SIZE] & 0xFF;
+			this.length--;
+		}
+
+		byte[] data = this.incoming.data;
+		boolean fragment = (this.flags & MessageChannel.FLAG_FRAGMENT) != 0;
+		if( fragment && this.assembly == null ) {
+			this.assembly = new byte[data.length];
+		}
+
+		this.targetOff = 0;
+		if( this.length > data.length || (fragment && this.assemblyOverflow) ) {
+			// Inhalt überspringen, damit der Strom synchron bleibt
+			this.target = null;
+		} else if( (this.flags & MessageChannel.FLAG_COMPRESSED) != 0 ) {
+			if( this.inflated == null ) {
+				this.inflated = new byte[data.length];
+			}
+			this.target = this.inflated;
+		} else if( fragment ) {
+			if( this.length > data.length - this.assembled ) {
+				this.target = null;
+			} else {
+				this.target = this.assembly;
+				this.targetOff = this.assembled;
+			}
+		} else {
+			this.target = data;
+		}
+	}
+
+	/**
+	 * Schließt einen Frame ab und gibt ihn weiter.
+	 *
+	 * @param listener
+	 */
+	private void endFrame( HubListener listener ) {
+		this.headerPos = 0;
+		this.headerSize = MessageChannel.HEADER_SIZE;
+		this.lastReceived = System.currentTimeMillis();
+
+		int type = this.header[0] & 0xFF;
+		Frame frame = this.incoming;
+		boolean fragment = (this.flags & MessageChannel.FLAG_FRAGMENT) != 0;
+		byte[] dst = fragment ? this.assembly : frame.data;
+		int dstOff = fragment ? this.assembled : 0;
+
+		int n = this.length;
+		if( this.target == null ) {
+			n = -1;
+		} else if( this.target == this.inflated ) {
+			n = Lzss.decompress(this.inflated, 0, this.length, dst, dstOff,
+					frame.data.length - dstOff);
+		}
+
+		if( fragment ) {
+			if( n < 0 ) {
+				this.assemblyOverflow = true;
+			} else {
+				this.assembled += n;
+			}
+			if( (this.flags & MessageChannel.FLAG_MORE) != 0 ) {
+				return;
+			}
+
+			// Letztes Teilstück
+			n = this.assemblyOverflow ? -1 : this.assembled;
+			if( n > 0 ) {
+				System.arraycopy(this.assembly, 0, frame.data, 0, n);
+			}
+			this.assembled = 0;
+			this.assemblyOverflow = false;
+		}
+
+		if( n < 0 ) {
+			this.stats.addDropped();
+			this.stats.addFailure(ComException.RECV);
+			return;
+		}
+		frame.setReceived(type, this.flags & ~(MessageChannel.FLAG_COMPRESSED
+				| MessageChannel.FLAG_FRAGMENT | MessageChannel.FLAG_MORE),
+				this.frameChannel, n);
+
+		if( type == MessageChannel.TYPE_PING && frame.length == 8 ) {
+			try {
+				this.write(MessageChannel.TYPE_PONG, 0, 0, frame.data, 8);
+			} catch( ComException ex ) {
+				/* Verbindung wird bereits geschlossen */
+			}
+		} else if( type != MessageChannel.TYPE_PONG ) {
+			this.stats.recordReceive(this.frameStart);
+			listener.received(this, frame);
+		}
+	}
+
+	/**
+	 * Markiert die Verbindung als geschlossen.
+	 *
+	 * @return <code>false</code> wenn sie bereits geschlossen war
+	 */
+	synchronized boolean markClosed() {
+		if( this.closed ) {
+			return false;
+		}
+		this.closed = true;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "peer " + this.remoteAddress;
+	}
+
+}
@@ -0,0 +1,370 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * TCP Verbindung über {@link java.net.Socket}. Die Klasse verhält sich wie die
+ * übrigen Verbindungen, läuft aber auf dem PC ohne NXT-Hardware. Sie eignet
+ * sich zum Testen und Vermessen von Protokollen und für Simulationen.
+ * <p/>
+ * Adressen haben die Form <code>host:port</code>. Beim Warten auf eine
+ * Verbindung mit {@link #connect(int)} wird auf dem Port der eigenen Adresse
+ * gelauscht. Fehlt beim Verbindungsaufbau mit {@link #connect(String)} der
+ * Port, wird {@link #DEFAULT_PORT} benutzt.
+ * <p/>
+ * Die Sockets werden über {@link SocketChannel} geöffnet, sodass ganze
+ * {@link ByteBuffer} ohne Umweg über die Datenströme übertragen werden können
+ * (siehe {@link BufferConnection}).
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class SocketConnection extends AbstractConnection implements
+		BufferConnection {
+
+	/**
+	 * Standard-Port für Verbindungen.
+	 */
+	public static final int DEFAULT_PORT = 6081;
+
+
+	/**
+	 * Port, auf dem auf Verbindungen gewartet wird
+	 */
+	protected final int port;
+
+	/**
+	 * Referenz zum Verbindungsobjekt
+	 */
+	protected volatile Socket socket;
+
+	/**
+	 * Kanal des Sockets für {@link #send(ByteBuffer)} und
+	 * {@link #receive(ByteBuffer)}
+	 */
+	protected volatile SocketChannel channel;
+
+	/**
+	 * Konstruktor mit automatischer Bestimmung des Rechnernamens und dem
+	 * {@link #DEFAULT_PORT}.
+	 */
+	public SocketConnection() {
+		this(DEFAULT_PORT);
+	}
+
+	/**
+	 * Konstruktor mit automatischer Bestimmung des Rechnernamens.
+	 *
+	 * @param port Port, auf dem auf Verbindungen gewartet wird
+	 */
+	public SocketConnection( int port ) {
+		this(localHostName(), localHostName() + ":" + port);
+	}
+
+	/**
+	 * Konstruktor mit manueller Zuweisung von Name und Adresse. Wird von
+	 * {@link #clone()} benutzt.
+	 *
+	 * @param name Name des Rechners
+	 * @param address Adresse in der Form <code>host:port</code>
+	 */
+	public SocketConnection( String name, String address ) {
+		super("tcp", name, address);
+		this.port = parsePort(address);
+	}
+
+	/**
+	 * Bestimmt den Namen des lokalen Rechners.
+	 *
+	 * @return
+	 */
+	private static String localHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch( IOException ex ) {
+			return "localhost";
+		}
+	}
+
+	/**
+	 * Liest den Port aus einer Adresse.
+	 *
+	 * @param address Adresse in der Form <code>host:port</code> oder
+	 *        <code>host</code>
+	 * @return Der Port oder {@link #DEFAULT_PORT}
+	 */
+	static int parsePort( String address ) {
+		int i = address.lastIndexOf(':');
+		if( i < 0 ) {
+			return DEFAULT_PORT;
+		}
+		return Integer.parseInt(address.substring(i + 1));
+	}
+
+	/**
+	 * Liest den Rechnernamen aus einer Adresse.
+	 *
+	 * @param address Adresse in der Form <code>host:port</code> oder
+	 *        <code>host</code>
+	 * @return Der Rechnername
+	 */
+	static String parseHost( String address ) {
+		int i = address.lastIndexOf(':');
+		if( i < 0 ) {
+			return address;
+		}
+		return address.substring(0, i);
+	}
+
+	public String getRemoteAddress() {
+		Socket s = this.socket;
+		if( this.isConnected() && s != null ) {
+			return s.getInetAddress().getHostAddress() + ":" + s.getPort();
+		} else {
+			return null;
+		}
+	}
+
+	protected void closeConnection() {
+		try {
+			this.socket.close();
+		} catch( IOException ex ) {
+			/* Socket ist bereits geschlossen */
+		}
+		this.socket = null;
+		this.channel = null;
+	}
+
+	public void connect( int timeout ) {
+		this.connectionAttempts++;
+
+		Console.dbg.println("tcp: waiting ...");
+		ServerSocket server = null;
+		try {
+			server = ServerSocketChannel.open().socket();
+			server.bind(new InetSocketAddress(this.port));
+			server.setSoTimeout(timeout);
+			this.socket = server.accept();
+		} catch( SocketTimeoutException ex ) {
+			this.socket = null;
+		} catch( IOException ex ) {
+			Console.err.println("tcp: listen failed");
+			this.socket = null;
+		} finally {
+			if( server != null ) {
+				try {
+					server.close();
+				} catch( IOException ex ) {
+					/* Nicht schlimm ... */
+				}
+			}
+		}
+
+		if( this.socket == null ) {
+			Console.dbg.println("tcp: no conn req");
+		} else {
+			this.openSocket();
+		}
+	}
+
+	public void connect( String identifier ) {
+		this.connectionAttempts++;
+
+		Console.dbg.println("tcp: connecting ...");
+		try {
+			this.socket = SocketChannel.open().socket();
+			this.socket.connect(new InetSocketAddress(parseHost(identifier),
+					parsePort(identifier)), CONNECT_TIMEOUT);
+		} catch( IOException ex ) {
+			if( this.socket != null ) {
+				this.closeConnection();
+			}
+		}
+
+		if( this.socket == null ) {
+			Console.dbg.println("tcp: conn failed");
+		} else {
+			this.openSocket();
+		}
+	}
+
+	/**
+	 * Übernimmt die Ströme des verbundenen Sockets. Die Ströme werden
+	 * gepuffert, sodass wie bei einer {@link lejos.nxt.comm.NXTConnection}
+	 * erst beim Leeren des Ausgabestroms gesendet wird.
+	 * <p/>
+	 * Das Schließen des Ausgabestroms schließt nur die Senderichtung des
+	 * Sockets, damit beim {@link #disconnect()} noch auf das Schließen der
+	 * Gegenseite gewartet werden kann.
+	 */
+	private void openSocket() {
+		final Socket s = this.socket;
+		this.channel = s.getChannel();
+		try {
+			s.setTcpNoDelay(true);
+			OutputStream out = new FilterOutputStream(s.getOutputStream()) {
+
+				@Override
+				public void write( byte[] b, int off, int len )
+						throws IOException {
+					this.out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					this.flush();
+					s.shutdownOutput();
+				}
+			};
+			this.open(new BufferedInputStream(s.getInputStream()),
+					new BufferedOutputStream(out));
+		} catch( IOException ex ) {
+			Console.dbg.println("tcp: conn failed");
+			this.closeConnection();
+			return;
+		}
+
+		Console.dbg.println("tcp: connected to");
+		Console.dbg.println("  " + this.getRemoteAddress());
+	}
+
+	public ByteBuffer allocate( int capacity ) {
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	public void send( ByteBuffer src ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+		SocketChannel channel = this.channel;
+		if( channel == null ) {
+			throw this.notConnected();
+		}
+
+		try {
+			if( this.isBatching() || this.isSendingAsync() ) {
+				// Reihenfolge im Ausgabestrom einhalten
+				this.writeStream(out, src);
+				this.flushUnlessBatching(out);
+			} else {
+				out.flush();
+				int n = src.remaining();
+				while( src.hasRemaining() ) {
+					channel.write(src);
+				}
+				this.stats.addBytesSent(n);
+			}
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send buffer", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	public void receive( ByteBuffer dst ) throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+		SocketChannel channel = this.channel;
+		if( channel == null ) {
+			throw this.notConnected();
+		}
+
+		try {
+			while( dst.hasRemaining() ) {
+				// Bereits gepufferte Bytes zuerst aus dem Eingabestrom lesen
+				int n = dst.remaining();
+				if( !this.isReceivingAsync() ) {
+					n = Math.min(n, in.available());
+				}
+
+				if( n > 0 ) {
+					this.readStream(in, dst, n);
+				} else {
+					n = channel.read(dst);
+					if( n < 0 ) {
+						throw new EOFException();
+					}
+					this.stats.addBytesReceived(n);
+				}
+			}
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive buffer",
+					ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+	}
+
+	/**
+	 * Schreibt einen Puffer in den Ausgabestrom.
+	 *
+	 * @param out Ausgabestrom der Verbindung
+	 * @param src
+	 * @throws IOException
+	 */
+	private void writeStream( DataOutputStream out, ByteBuffer src )
+			throws IOException {
+		if( src.hasArray() ) {
+			out.write(src.array(), src.arrayOffset() + src.position(),
+					src.remaining());
+			src.position(src.limit());
+			return;
+		}
+
+		while( src.hasRemaining() ) {
+			int n = Math.min(src.remaining(), this.sendBuffer.length);
+			src.get(this.sendBuffer, 0, n);
+			out.write(this.sendBuffer, 0, n);
+		}
+	}
+
+	/**
+	 * Liest Bytes aus dem Eingabestrom in einen Puffer.
+	 *
+	 * @param in Eingabestrom der Verbindung
+	 * @param dst
+	 * @param len Anzahl der Bytes
+	 * @throws IOException
+	 */
+	private void readStream( DataInputStream in, ByteBuffer dst, int len )
+			throws IOException {
+		if( dst.hasArray() ) {
+			in.readFully(dst.array(), dst.arrayOffset() + dst.position(),
+					len);
+			dst.position(dst.position() + len);
+			return;
+		}
+
+		while( len > 0 ) {
+			int n = Math.min(len, this.receiveBuffer.length);
+			in.readFully(this.receiveBuffer, 0, n);
+			dst.put(this.receiveBuffer, 0, n);
+			len -= n;
+		}
+	}
+
+	@Override
+	public RemoteConnection clone() {
+		return new SocketConnection(this.deviceName, this.deviceAddress);
+	}
+
+}
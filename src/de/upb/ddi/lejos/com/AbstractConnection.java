@@ -0,0 +1,909 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Gemeinsame Basis aller Verbindungen, die über ein Paar aus Ein- und
+ * Ausgabestrom kommunizieren. Die Klasse implementiert den Versand und Empfang
+ * der Daten, die Verwaltung des Verbindungsstatus und das Trennen der
+ * Verbindung. Unterklassen kümmern sich nur noch um den Aufbau der Verbindung
+ * über die jeweilige Kommunikationsart und übergeben die Ströme mit
+ * {@link #open(InputStream, OutputStream)}.
+ * <p/>
+ * Für weitere Informationen siehe {@link RemoteConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public abstract class AbstractConnection implements RemoteConnection {
+
+	/**
+	 * Maximale Wartezeit beim disconnect auf das Schließen der Gegenseite in
+	 * Millisekunden.
+	 */
+	protected static final int DISCONNECT_TIMEOUT = 80;
+
+	/**
+	 * Größe des Puffers zum Kodieren von Arrays in Bytes. Muss ein Vielfaches
+	 * von 8 sein.
+	 */
+	protected static final int BUFFER_SIZE = 128;
+
+
+	/**
+	 * Kürzel der Verbindungsart für Konsolenausgaben (z.B. <code>bt</code>).
+	 */
+	protected final String tag;
+
+	/**
+	 * Name des NXT Bausteins.
+	 */
+	protected String deviceName;
+
+	/**
+	 * Adresse des Bausteins.
+	 */
+	protected String deviceAddress;
+
+	/**
+	 * Eingabestrom (Empfang von Daten). Methoden, die den Strom benutzen,
+	 * holen ihn über {@link #input()} in eine lokale Variable, da er beim
+	 * {@link #disconnect()} aus einem anderen Thread entfernt werden kann.
+	 */
+	protected volatile DataInputStream in;
+
+	/**
+	 * Ausgabestrom (Versand von Daten), siehe {@link #in}.
+	 */
+	protected volatile DataOutputStream out;
+
+	/**
+	 * Ob momentan eine Verbindung besteht
+	 */
+	protected volatile boolean isConnected = false;
+
+	/**
+	 * Anzahl durchgeführter Verbindungsversuche (seit dem letzten Aufruf von
+	 * {@link #resetConnectionAttempts()}).
+	 */
+	protected int connectionAttempts = 0;
+
+	/**
+	 * Verschachtelungstiefe offener Stapel (siehe {@link #beginBatch()}).
+	 * Solange der Wert größer Null ist, wird der Ausgabestrom nach dem Senden
+	 * nicht geleert.
+	 */
+	protected int batchDepth = 0;
+
+	/**
+	 * Puffer zum Kodieren von Arrays, damit diese blockweise statt Wert für
+	 * Wert über den Ausgabestrom laufen. Getrennt vom
+	 * {@link #receiveBuffer}, damit gleichzeitig gesendet und empfangen werden
+	 * kann.
+	 */
+	protected final byte[] sendBuffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * Puffer zum Dekodieren von Arrays, die blockweise aus dem Eingabestrom
+	 * gelesen werden.
+	 */
+	protected final byte[] receiveBuffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * Aktuelles Übertragungsformat (siehe {@link #setEncoding(int)}).
+	 */
+	protected int encoding = ENCODING_DEFAULT;
+
+	/**
+	 * Messwerte der Verbindung
+	 */
+	protected final ConnectionStats stats = new ConnectionStats();
+
+	/**
+	 * Strom des Lese-Threads, falls der asynchrone Empfang aktiv ist (siehe
+	 * {@link #enableAsyncReceive(int)}).
+	 */
+	private AsyncInputStream receiver = null;
+
+	/**
+	 * Strom des Schreib-Threads, falls der asynchrone Versand aktiv ist
+	 * (siehe {@link #enableAsyncSend(int, int)}).
+	 */
+	private AsyncOutputStream sender = null;
+
+	/**
+	 * Wiederverwendeter Puffer für {@link #receiveString()}.
+	 */
+	private StringBuilder stringBuffer;
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param tag Kürzel der Verbindungsart für Konsolenausgaben
+	 * @param name Name des Geräts
+	 * @param address Adresse des Geräts
+	 */
+	protected AbstractConnection( String tag, String name, String address ) {
+		this.tag = tag;
+		this.deviceName = name;
+		this.deviceAddress = address;
+	}
+
+	/**
+	 * Übernimmt die Ströme einer neu aufgebauten Verbindung. Muss von
+	 * Unterklassen nach einem erfolgreichen Verbindungsaufbau aufgerufen
+	 * werden.
+	 *
+	 * @param in Eingabestrom der Verbindung
+	 * @param out Ausgabestrom der Verbindung
+	 */
+	protected void open( InputStream in, OutputStream out ) {
+		this.in = new DataInputStream(new CountingInputStream(in, this.stats));
+		this.out = new DataOutputStream(new CountingOutputStream(out,
+				this.stats));
+		this.batchDepth = 0;
+		this.receiver = null;
+		this.sender = null;
+
+		this.isConnected = true;
+	}
+
+	/**
+	 * Schließt die zugrundeliegende Verbindung, nachdem die Ströme bereits
+	 * geschlossen wurden. Wird von {@link #disconnect()} aufgerufen.
+	 */
+	protected abstract void closeConnection();
+
+	/**
+	 * Zählt einen Fehler und erzeugt die zugehörige Exception.
+	 *
+	 * @param message Fehlermeldung
+	 * @param type Fehlercode
+	 * @return Die zu werfende Exception
+	 */
+	protected ComException failure( String message, int type ) {
+		this.stats.addFailure(type);
+		return new ComException(message, type);
+	}
+
+	/**
+	 * Zählt einen Fehler wegen fehlender Verbindung und erzeugt die
+	 * zugehörige Exception.
+	 *
+	 * @return Die zu werfende Exception
+	 */
+	protected ComException notConnected() {
+		this.stats.addFailure(ComException.CONN);
+		return new ComException();
+	}
+
+	/**
+	 * Liefert den aktuellen Eingabestrom. Der Aufrufer arbeitet nur mit dem
+	 * zurückgegebenen Strom weiter, sodass ein gleichzeitiges
+	 * {@link #disconnect()} höchstens zu einer {@link IOException} führt.
+	 *
+	 * @return Eingabestrom der Verbindung
+	 * @throws ComException Wenn keine Verbindung besteht
+	 */
+	protected DataInputStream input() throws ComException {
+		DataInputStream in = this.in;
+		if( !this.isConnected || in == null ) {
+			throw this.notConnected();
+		}
+		return in;
+	}
+
+	/**
+	 * Liefert den aktuellen Ausgabestrom, siehe {@link #input()}.
+	 *
+	 * @return Ausgabestrom der Verbindung
+	 * @throws ComException Wenn keine Verbindung besteht
+	 */
+	protected DataOutputStream output() throws ComException {
+		DataOutputStream out = this.out;
+		if( !this.isConnected || out == null ) {
+			throw this.notConnected();
+		}
+		return out;
+	}
+
+	public ConnectionStats getStats() {
+		return this.stats;
+	}
+
+	public String getName() {
+		return this.deviceName;
+	}
+
+	public String getAddress() {
+		return this.deviceAddress;
+	}
+
+	public int getConnectionAttempts() {
+		return this.connectionAttempts;
+	}
+
+	public void resetConnectionAttempts() {
+		this.connectionAttempts = 0;
+	}
+
+	public boolean isConnected() {
+		return this.isConnected;
+	}
+
+	public void connect() {
+		this.connect(CONNECT_TIMEOUT);
+	}
+
+	public ConnectFuture connectAsync( String identifier, int timeout ) {
+		return this.connectAsync(identifier, timeout, null);
+	}
+
+	public ConnectFuture connectAsync( String identifier, int timeout,
+			ConnectListener listener ) {
+		ConnectFuture future = new ConnectFuture(this, identifier, timeout,
+				listener);
+		future.start();
+		return future;
+	}
+
+	/**
+	 * Trennt die Verbindung mit einem Abschluss-Handshake: Zuerst werden alle
+	 * ausstehenden Daten verschickt und der Ausgabestrom geschlossen, sodass
+	 * die Gegenseite das Ende des Datenstroms liest. Dann wird gewartet, bis
+	 * auch die Gegenseite ihren Strom geschlossen hat, höchstens aber
+	 * {@link #DISCONNECT_TIMEOUT} Millisekunden. Erst danach wird die
+	 * Verbindung selbst geschlossen.
+	 * <p/>
+	 * Die Methode darf aus mehreren Threads gleichzeitig aufgerufen werden,
+	 * z.B. von einem {@link Heartbeat} oder {@link ReliableChannel}.
+	 */
+	public synchronized void disconnect() {
+		if( this.isConnected() ) {
+			// Zuerst als getrennt markieren, damit keine neuen Sende- und
+			// Empfangsvorgänge mehr beginnen. Laufende arbeiten auf ihrer
+			// lokalen Kopie der Ströme und scheitern mit einer IOException.
+			this.isConnected = false;
+			DataInputStream in = this.in;
+			DataOutputStream out = this.out;
+
+			try {
+				out.close();
+			} catch( IOException ex ) {
+				// Exceptions.dispose(ex);
+			}
+
+			if( !this.awaitRemoteClose(in, DISCONNECT_TIMEOUT) ) {
+				Console.dbg.println(this.tag + ": close timeout");
+			}
+
+			try {
+				in.close();
+			} catch( IOException ex ) {
+				// Exceptions.dispose(ex);
+			}
+			this.closeConnection();
+
+			this.in = null;
+			this.out = null;
+			this.batchDepth = 0;
+			this.receiver = null;
+			this.sender = null;
+		}
+	}
+
+	/**
+	 * Wartet, bis die Gegenseite ihren Ausgabestrom geschlossen hat. Noch
+	 * eintreffende Daten werden verworfen.
+	 *
+	 * @param in Eingabestrom der Verbindung
+	 * @param timeout Maximale Wartezeit in Millisekunden
+	 * @return <code>true</code> wenn das Ende des Eingabestroms erreicht wurde
+	 */
+	private boolean awaitRemoteClose( DataInputStream in, int timeout ) {
+		if( this.receiver != null ) {
+			// Der Lese-Thread liest ohnehin bis zum Ende des Stroms
+			return this.receiver.awaitFinished(timeout);
+		}
+
+		return StreamDrainer.drain(in, timeout);
+	}
+
+	public int getEncoding() {
+		return this.encoding;
+	}
+
+	public void setEncoding( int encoding ) {
+		this.encoding = encoding;
+	}
+
+	public int negotiateEncoding( int supported ) throws ComException {
+		DataOutputStream out = this.output();
+		DataInputStream in = this.input();
+
+		try {
+			// Eigene Formate senden und die der Gegenseite empfangen. Die
+			// Verständigung selbst läuft immer im Standard-Format.
+			out.writeByte(supported);
+			out.flush();
+			int remote = in.readUnsignedByte();
+
+			this.encoding = supported & remote;
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": negotiation failed");
+			throw this.failure("Failed to negotiate encoding",
+					ComException.CONN);
+		}
+
+		return this.encoding;
+	}
+
+	public void enableAsyncReceive( int capacity ) throws ComException {
+		DataInputStream in = this.input();
+
+		if( this.receiver == null ) {
+			this.receiver = new AsyncInputStream(in, capacity);
+			this.in = new DataInputStream(this.receiver);
+			this.receiver.start();
+		}
+	}
+
+	public void enableAsyncSend( int capacity, int policy )
+			throws ComException {
+		DataOutputStream out = this.output();
+
+		if( this.sender == null ) {
+			try {
+				out.flush();
+			} catch( IOException e ) {
+				Console.err.println(this.tag + ": send failed");
+				throw this.failure("Failed to flush", ComException.SEND);
+			}
+
+			this.sender = new AsyncOutputStream(out, capacity, policy,
+					this.stats);
+			this.out = new DataOutputStream(this.sender);
+			this.sender.start();
+		}
+	}
+
+	public int available() throws ComException {
+		DataInputStream in = this.input();
+
+		try {
+			return in.available();
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to query input", ComException.RECV);
+		}
+	}
+
+	public int poll( byte[] dst, int off, int len ) throws ComException {
+		DataInputStream in = this.input();
+
+		try {
+			if( this.receiver != null ) {
+				return this.receiver.poll(dst, off, len);
+			}
+
+			int n = Math.min(len, in.available());
+			if( n > 0 ) {
+				in.readFully(dst, off, n);
+			}
+			return n;
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive bytes",
+					ComException.RECV);
+		}
+	}
+
+	public void beginBatch() {
+		this.batchDepth++;
+	}
+
+	public void endBatch() throws ComException {
+		if( this.batchDepth > 0 ) {
+			this.batchDepth--;
+			if( this.batchDepth == 0 ) {
+				this.flush();
+			}
+		}
+	}
+
+	public boolean isBatching() {
+		return (this.batchDepth > 0);
+	}
+
+	/**
+	 * @return <code>true</code> wenn der Eingabestrom von einem Lese-Thread
+	 *         gelesen wird
+	 */
+	protected boolean isReceivingAsync() {
+		return (this.receiver != null);
+	}
+
+	/**
+	 * @return <code>true</code> wenn der Ausgabestrom von einem Schreib-Thread
+	 *         geschrieben wird
+	 */
+	protected boolean isSendingAsync() {
+		return (this.sender != null);
+	}
+
+	public void flush() throws ComException {
+		DataOutputStream out = this.output();
+
+		try {
+			out.flush();
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to flush", ComException.SEND);
+		}
+	}
+
+	/**
+	 * Leert den Ausgabestrom, falls gerade kein Stapel offen ist.
+	 *
+	 * @param out Ausgabestrom der Verbindung
+	 * @throws IOException
+	 */
+	protected void flushUnlessBatching( DataOutputStream out )
+			throws IOException {
+		if( this.batchDepth == 0 ) {
+			out.flush();
+		}
+	}
+
+	public void sendByte( byte value ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+
+		try {
+			out.writeByte(value);
+			this.flushUnlessBatching(out);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send byte", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	public void sendInt( int value ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+
+		try {
+			if( (this.encoding & ENCODING_VARINT) != 0 ) {
+				int pos = Encoding.putVarInt(this.sendBuffer, 0,
+						Encoding.zigzag(value));
+				out.write(this.sendBuffer, 0, pos);
+			} else {
+				out.writeInt(value);
+			}
+			this.flushUnlessBatching(out);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send int", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	public void sendLong( long value ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+
+		try {
+			if( (this.encoding & ENCODING_VARINT) != 0 ) {
+				int pos = Encoding.putVarLong(this.sendBuffer, 0,
+						Encoding.zigzag(value));
+				out.write(this.sendBuffer, 0, pos);
+			} else {
+				out.writeLong(value);
+			}
+			this.flushUnlessBatching(out);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send long", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	public void sendString( String value ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+
+		try {
+			if( (this.encoding & ENCODING_COMPACT_STRINGS) != 0 ) {
+				this.writeCompactString(out, value);
+			} else {
+				out.writeInt(value.length()); // Länge des String senden
+				out.writeChars(value);
+			}
+			this.flushUnlessBatching(out);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send string", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	/**
+	 * Schreibt einen String im kompakten Format: Die Anzahl der Bytes als
+	 * Varint gefolgt vom UTF-8 kodierten Inhalt. Die Kodierung läuft
+	 * blockweise über den {@link #sendBuffer}.
+	 *
+	 * @param out Ausgabestrom der Verbindung
+	 * @param value
+	 * @throws IOException
+	 */
+	private void writeCompactString( DataOutputStream out, String value )
+			throws IOException {
+		int pos = Encoding.putVarInt(this.sendBuffer, 0,
+				Encoding.utf8Length(value));
+		for( int i = 0; i < value.length(); i++ ) {
+			if( pos > BUFFER_SIZE - 3 ) {
+				out.write(this.sendBuffer, 0, pos);
+				pos = 0;
+			}
+			pos = Encoding.putUTF8(this.sendBuffer, pos, value.charAt(i));
+		}
+		out.write(this.sendBuffer, 0, pos);
+	}
+
+	public void sendBytes( byte[] buf, int off, int len ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+
+		try {
+			out.write(buf, off, len);
+			this.flushUnlessBatching(out);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send bytes", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	public void sendInts( int[] buf, int off, int len ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+
+		try {
+			boolean varint = (this.encoding & ENCODING_VARINT) != 0;
+
+			int end = off + len;
+			while( off < end ) {
+				int pos = 0;
+				while( off < end && pos <= BUFFER_SIZE - 5 ) {
+					if( varint ) {
+						pos = Encoding.putVarInt(this.sendBuffer, pos,
+								Encoding.zigzag(buf[off++]));
+					} else {
+						pos = Encoding.putInt(this.sendBuffer, pos, buf[off++]);
+					}
+				}
+				out.write(this.sendBuffer, 0, pos);
+			}
+			this.flushUnlessBatching(out);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send ints", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	public void sendLongs( long[] buf, int off, int len ) throws ComException {
+		long start = System.nanoTime();
+		DataOutputStream out = this.output();
+
+		try {
+			boolean varint = (this.encoding & ENCODING_VARINT) != 0;
+
+			int end = off + len;
+			while( off < end ) {
+				int pos = 0;
+				while( off < end && pos <= BUFFER_SIZE - 10 ) {
+					if( varint ) {
+						pos = Encoding.putVarLong(this.sendBuffer, pos,
+								Encoding.zigzag(buf[off++]));
+					} else {
+						pos = Encoding.putLong(this.sendBuffer, pos, buf[off++]);
+					}
+				}
+				out.write(this.sendBuffer, 0, pos);
+			}
+			this.flushUnlessBatching(out);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": send failed");
+			throw this.failure("Failed to send longs", ComException.SEND);
+		}
+
+		this.stats.recordSend(start);
+	}
+
+	public byte receiveByte() throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+
+		byte value = -1;
+		try {
+			value = in.readByte();
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive byte",
+					ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+		return value;
+	}
+
+	public int receiveInt() throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+
+		int value = -1;
+		try {
+			if( (this.encoding & ENCODING_VARINT) != 0 ) {
+				value = Encoding.unzigzag(this.readVarInt(in));
+			} else {
+				value = in.readInt();
+			}
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive int", ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+		return value;
+	}
+
+	public long receiveLong() throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+
+		long value = -1;
+		try {
+			if( (this.encoding & ENCODING_VARINT) != 0 ) {
+				value = Encoding.unzigzag(this.readVarLong(in));
+			} else {
+				value = in.readLong();
+			}
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive long",
+					ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+		return value;
+	}
+
+	public void receiveBytes( byte[] dst, int off, int len )
+			throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+
+		try {
+			in.readFully(dst, off, len);
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive bytes",
+					ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+	}
+
+	public void receiveInts( int[] dst, int off, int len ) throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+
+		try {
+			int end = off + len;
+			if( (this.encoding & ENCODING_VARINT) != 0 ) {
+				while( off < end ) {
+					dst[off++] = Encoding.unzigzag(this.readVarInt(in));
+				}
+			}
+			while( off < end ) {
+				int n = Math.min(end - off, BUFFER_SIZE / 4);
+				in.readFully(this.receiveBuffer, 0, n * 4);
+				for( int pos = 0; pos < n * 4; pos += 4 ) {
+					dst[off++] = Encoding.getInt(this.receiveBuffer, pos);
+				}
+			}
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive ints",
+					ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+	}
+
+	public void receiveLongs( long[] dst, int off, int len )
+			throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+
+		try {
+			int end = off + len;
+			if( (this.encoding & ENCODING_VARINT) != 0 ) {
+				while( off < end ) {
+					dst[off++] = Encoding.unzigzag(this.readVarLong(in));
+				}
+			}
+			while( off < end ) {
+				int n = Math.min(end - off, BUFFER_SIZE / 8);
+				in.readFully(this.receiveBuffer, 0, n * 8);
+				for( int pos = 0; pos < n * 8; pos += 8 ) {
+					dst[off++] = Encoding.getLong(this.receiveBuffer, pos);
+				}
+			}
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive longs",
+					ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+	}
+
+	public String receiveString() throws ComException {
+		if( this.stringBuffer == null ) {
+			this.stringBuffer = new StringBuilder();
+		}
+		this.stringBuffer.setLength(0);
+
+		this.receiveString(this.stringBuffer);
+		return this.stringBuffer.toString();
+	}
+
+	public int receiveString( StringBuilder dst ) throws ComException {
+		long start = System.nanoTime();
+		DataInputStream in = this.input();
+
+		int count = 0;
+		try {
+			if( (this.encoding & ENCODING_COMPACT_STRINGS) != 0 ) {
+				count = this.readCompactString(in, dst);
+			} else {
+				count = in.readInt(); // Länge des String empfangen
+				for( int i = 0; i < count; i++ ) {
+					dst.append(in.readChar());
+				}
+			}
+		} catch( IOException e ) {
+			Console.err.println(this.tag + ": recv failed");
+			throw this.failure("Failed to receive string",
+					ComException.RECV);
+		}
+
+		this.stats.recordReceive(start);
+		return count;
+	}
+
+	/**
+	 * Liest einen String im kompakten Format (siehe
+	 * {@link #writeCompactString(DataOutputStream, String)}) und hängt die Zeichen an den
+	 * Puffer an. Die Bytes werden blockweise über den {@link #receiveBuffer} gelesen,
+	 * Zeichen dürfen dabei über Blockgrenzen hinweg kodiert sein.
+	 * <p/>
+	 * Ungültige oder am Ende abgeschnittene UTF-8 Folgen werden erst nach dem
+	 * Lesen aller angekündigten Bytes gemeldet, damit der Strom synchron
+	 * bleibt. Der Puffer wird dann auf seine alte Länge zurückgesetzt.
+	 *
+	 * @param in Eingabestrom der Verbindung
+	 * @param dst Zielpuffer
+	 * @return Anzahl der angehängten Zeichen
+	 * @throws IOException Auch falls der String ungültig kodiert ist
+	 */
+	private int readCompactString( DataInputStream in, StringBuilder dst )
+			throws IOException {
+		int remaining = this.readVarInt(in);
+		if( remaining < 0 ) {
+			throw new IOException("Malformed string");
+		}
+		int start = dst.length(), count = 0;
+
+		int c = 0, pending = 0;
+		boolean malformed = false;
+		while( remaining > 0 ) {
+			int n = Math.min(remaining, BUFFER_SIZE);
+			in.readFully(this.receiveBuffer, 0, n);
+			remaining -= n;
+
+			for( int i = 0; i < n && !malformed; i++ ) {
+				int b = this.receiveBuffer[i] & 0xFF;
+				if( pending > 0 ) {
+					if( (b & 0xC0) != 0x80 ) {
+						malformed = true;
+					}
+					c = (c << 6) | (b & 0x3F);
+					pending--;
+				} else if( b < 0x80 ) {
+					c = b;
+				} else if( b < 0xC0 || b >= 0xF0 ) {
+					// Folgebyte ohne Startbyte oder Zeichen mit vier Bytes
+					malformed = true;
+				} else if( b < 0xE0 ) {
+					c = b & 0x1F;
+					pending = 1;
+				} else {
+					c = b & 0x0F;
+					pending = 2;
+				}
+
+				if( pending == 0 && !malformed ) {
+					dst.append((char) c);
+					count++;
+				}
+			}
+		}
+
+		if( malformed || pending > 0 ) {
+			dst.setLength(start);
+			throw new IOException("Malformed string");
+		}
+		return count;
+	}
+
+	/**
+	 * Liest einen vorzeichenlosen Varint (siehe
+	 * {@link Encoding#putVarInt(byte[], int, int)}) aus dem Eingabestrom.
+	 *
+	 * @param in Eingabestrom der Verbindung
+	 * @return Der gelesene Wert
+	 * @throws IOException
+	 */
+	protected int readVarInt( DataInputStream in ) throws IOException {
+		int value = 0;
+		for( int shift = 0; shift < 35; shift += 7 ) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if( b < 0x80 ) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Liest einen vorzeichenlosen Varint (siehe
+	 * {@link Encoding#putVarLong(byte[], int, long)}) aus dem Eingabestrom.
+	 *
+	 * @param in Eingabestrom der Verbindung
+	 * @return Der gelesene Wert
+	 * @throws IOException
+	 */
+	protected long readVarLong( DataInputStream in ) throws IOException {
+		long value = 0;
+		for( int shift = 0; shift < 70; shift += 7 ) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if( b < 0x80 ) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	@Override
+	public abstract RemoteConnection clone();
+
+}
@@ -0,0 +1,309 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Eingabestrom, der einen anderen Strom in einem eigenen Thread in einen
+ * {@link RingBuffer} ausliest. Lesende Zugriffe blockieren nur, solange der
+ * Puffer leer ist; mit {@link #available()} und
+ * {@link #poll(byte[], int, int)} kann ohne Blockieren geprüft und gelesen
+ * werden.
+ * <p/>
+ * Ist der Puffer leer (für den Leser) oder voll (für den Lese-Thread), wird
+ * zunächst einige Male mit {@link Thread#yield()} gewartet und danach
+ * geschlafen, bis die Gegenseite weckt. So kostet ein wartender Strom keine
+ * Rechenzeit, die z.B. einer Regelschleife auf dem NXT fehlen würde.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+class AsyncInputStream extends InputStream implements Runnable {
+
+	/**
+	 * Größe der Blöcke, in denen der Quellstrom gelesen wird.
+	 */
+	private static final int CHUNK_SIZE = 64;
+
+	/**
+	 * Anzahl der Versuche mit {@link Thread#yield()}, bevor ein wartender
+	 * Thread schlafen gelegt wird.
+	 */
+	private static final int SPIN_LIMIT = 8;
+
+	/**
+	 * Maximale Schlafdauer in Millisekunden, bevor erneut geprüft wird.
+	 */
+	private static final int PARK_TIMEOUT = 20;
+
+
+	/**
+	 * Der ausgelesene Strom
+	 */
+	private final InputStream source;
+
+	/**
+	 * Puffer zwischen Lese-Thread und Leser
+	 */
+	private final RingBuffer ring;
+
+	/**
+	 * Fehler des Lese-Threads, wird nach dem Leeren des Puffers gemeldet.
+	 */
+	private volatile IOException failure = null;
+
+	/**
+	 * Objekt, an dem Leser und Lese-Thread schlafen
+	 */
+	private final Object signal = new Object();
+
+	/**
+	 * Ob der Leser auf Daten wartet
+	 */
+	private volatile boolean readerParked = false;
+
+	/**
+	 * Ob der Lese-Thread auf freien Platz wartet
+	 */
+	private volatile boolean writerParked = false;
+
+	/**
+	 * Der Lese-Thread
+	 */
+	private final Thread thread;
+
+	/**
+	 * Erzeugt den Strom. Der Lese-Thread wird mit {@link #start()} gestartet.
+	 *
+	 * @param source Der auszulesende Strom
+	 * @param capacity Größe des Puffers in Bytes
+	 */
+	AsyncInputStream( InputStream source, int capacity ) {
+		this.source = source;
+		this.ring = new RingBuffer(capacity);
+
+		this.thread = new Thread(this);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Startet den Lese-Thread.
+	 */
+	void start() {
+		this.thread.start();
+	}
+
+	public void run() {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		try {
+			while( !this.ring.isClosed() ) {
+				int n = this.source.read(chunk, 0,
+						Math.min(CHUNK_SIZE, Math.max(1, this.ring.free())));
+				if( n < 0 ) {
+					break;
+				}
+
+				int off = 0;
+				int spins = 0;
+				while( off < n && !this.ring.isClosed() ) {
+					int written = this.ring.write(chunk, off, n - off);
+					off += written;
+					if( written > 0 ) {
+						spins = 0;
+						this.wakeReader();
+					} else if( spins++ < SPIN_LIMIT ) {
+						Thread.yield();
+					} else {
+						// Puffer voll: schlafen, bis der Leser aufholt
+						this.parkWriter();
+					}
+				}
+			}
+		} catch( IOException ex ) {
+			this.failure = ex;
+		}
+		this.ring.close();
+		synchronized( this.signal ) {
+			// Leser und awaitFinished() wecken
+			this.signal.notifyAll();
+		}
+	}
+
+	/**
+	 * Legt den Lese-Thread schlafen, solange der Puffer voll ist.
+	 */
+	private void parkWriter() {
+		synchronized( this.signal ) {
+			this.writerParked = true;
+			try {
+				if( this.ring.free() == 0 && !this.ring.isClosed() ) {
+					this.signal.wait(PARK_TIMEOUT);
+				}
+			} catch( InterruptedException ex ) {
+				this.ring.close();
+			} finally {
+				this.writerParked = false;
+			}
+		}
+	}
+
+	/**
+	 * Legt den Leser schlafen, solange der Puffer leer ist.
+	 *
+	 * @throws IOException Falls der Leser unterbrochen wird
+	 */
+	private void parkReader() throws IOException {
+		synchronized( this.signal ) {
+			this.readerParked = true;
+			try {
+				if( this.ring.available() == 0 && !this.ring.isClosed() ) {
+					this.signal.wait(PARK_TIMEOUT);
+				}
+			} catch( InterruptedException ex ) {
+				throw new IOException("Interrupted");
+			} finally {
+				this.readerParked = false;
+			}
+		}
+	}
+
+	/**
+	 * Weckt den Leser, falls er schläft.
+	 */
+	private void wakeReader() {
+		if( this.readerParked ) {
+			synchronized( this.signal ) {
+				this.signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Weckt den Lese-Thread, falls er schläft.
+	 */
+	private void wakeWriter() {
+		if( this.writerParked ) {
+			synchronized( this.signal ) {
+				this.signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> wenn der Lese-Thread beendet ist, weil der
+	 *         Quellstrom geschlossen wurde oder fehlerhaft ist
+	 */
+	boolean isFinished() {
+		return this.ring.isClosed();
+	}
+
+	/**
+	 * Wartet, bis der Lese-Thread beendet ist.
+	 *
+	 * @param timeout Maximale Wartezeit in Millisekunden
+	 * @return <code>true</code> wenn der Lese-Thread beendet ist
+	 */
+	boolean awaitFinished( int timeout ) {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized( this.signal ) {
+			while( !this.ring.isClosed() ) {
+				long remaining = end - System.currentTimeMillis();
+				if( remaining <= 0 ) {
+					return false;
+				}
+				try {
+					this.signal.wait(remaining);
+				} catch( InterruptedException ex ) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int available() {
+		return this.ring.available();
+	}
+
+	/**
+	 * Liest die bereits gepufferten Bytes ohne zu blockieren.
+	 *
+	 * @param dst Zielpuffer
+	 * @param off Position im Zielpuffer
+	 * @param len Maximale Anzahl zu lesender Bytes
+	 * @return Anzahl der gelesenen Bytes, eventuell 0
+	 * @throws IOException Falls der Lese-Thread fehlgeschlagen ist und der
+	 *         Puffer leer ist
+	 */
+	int poll( byte[] dst, int off, int len ) throws IOException {
+		int n = this.ring.read(dst, off, len);
+		if( n > 0 ) {
+			this.wakeWriter();
+		} else if( this.ring.isClosed() && this.failure != null ) {
+			throw this.failure;
+		}
+		return n;
+	}
+
+	/**
+	 * Wartet, bis Daten im Puffer liegen oder der Lese-Thread beendet ist.
+	 *
+	 * @return <code>false</code> wenn keine Daten mehr kommen werden
+	 * @throws IOException Falls der Lese-Thread fehlgeschlagen ist
+	 */
+	private boolean await() throws IOException {
+		int spins = 0;
+		while( this.ring.available() == 0 ) {
+			if( this.ring.isClosed() ) {
+				// Nach dem Schließen erneut prüfen, da der Lese-Thread
+				// zwischenzeitlich noch geschrieben haben kann.
+				if( this.ring.available() > 0 ) {
+					return true;
+				}
+				if( this.failure != null ) {
+					throw this.failure;
+				}
+				return false;
+			}
+			if( spins++ < SPIN_LIMIT ) {
+				Thread.yield();
+			} else {
+				this.parkReader();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if( !this.await() ) {
+			return -1;
+		}
+		int b = this.ring.read();
+		this.wakeWriter();
+		return b;
+	}
+
+	@Override
+	public int read( byte[] dst, int off, int len ) throws IOException {
+		if( len == 0 ) {
+			return 0;
+		}
+		if( !this.await() ) {
+			return -1;
+		}
+		int n = this.ring.read(dst, off, len);
+		this.wakeWriter();
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.ring.close();
+		this.wakeWriter();
+		this.source.close();
+	}
+
+}
@@ -0,0 +1,350 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Ausgabestrom, der Daten über einen eigenen Thread in einen anderen Strom
+ * schreibt. Geschriebene Bytes werden zunächst gesammelt und bei
+ * {@link #flush()} als eine Nachricht in eine Warteschlange fester Größe
+ * kopiert. Der Schreib-Thread fasst alle wartenden Nachrichten zusammen und
+ * verschickt sie mit einem einzigen Leervorgang des Zielstroms.
+ * <p/>
+ * Ist die Warteschlange voll, entscheidet die eingestellte Strategie (siehe
+ * {@link RemoteConnection#QUEUE_BLOCK}, {@link RemoteConnection#QUEUE_DROP_OLDEST}
+ * und {@link RemoteConnection#QUEUE_FAIL}), was mit der neuen Nachricht
+ * passiert. Nachrichten werden immer vollständig verworfen, nie teilweise.
+ * <p/>
+ * Eine Nachricht, die größer als die Warteschlange ist, muss in mehreren
+ * Teilen übergeben werden. Für ihren ersten Teil gilt die eingestellte
+ * Strategie. Ist er angenommen, wird für alle weiteren Teile gewartet, bis
+ * Platz frei ist, und keiner der Teile wird später zugunsten neuer
+ * Nachrichten verworfen. Sonst käme beim Empfänger nur ein Teil der
+ * Nachricht an.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+class AsyncOutputStream extends OutputStream implements Runnable {
+
+	/**
+	 * Der Zielstrom
+	 */
+	private final OutputStream target;
+
+	/**
+	 * Messwerte der Verbindung
+	 */
+	private final ConnectionStats stats;
+
+	/**
+	 * Strategie bei voller Warteschlange
+	 */
+	private final int policy;
+
+	/**
+	 * Puffer für die aktuelle, noch nicht abgeschlossene Nachricht. Wird nur
+	 * vom sendenden Thread benutzt.
+	 */
+	private final byte[] staging;
+
+	/**
+	 * Anzahl der Bytes in {@link #staging}
+	 */
+	private int staged = 0;
+
+	/**
+	 * Ringpuffer der Warteschlange
+	 */
+	private final byte[] queue;
+
+	/**
+	 * Längen der Nachrichten in der Warteschlange
+	 */
+	private final int[] lengths;
+
+	/**
+	 * Position der ältesten Nachricht in {@link #queue}
+	 */
+	private int queueStart = 0;
+
+	/**
+	 * Anzahl der Bytes in der Warteschlange
+	 */
+	private int queueSize = 0;
+
+	/**
+	 * Index der ältesten Nachricht in {@link #lengths}
+	 */
+	private int messageStart = 0;
+
+	/**
+	 * Anzahl der Nachrichten in der Warteschlange
+	 */
+	private int messageCount = 0;
+
+	/**
+	 * Ob die Einträge in {@link #lengths} Teile einer zerlegten Nachricht
+	 * sind und daher nicht verworfen werden dürfen
+	 */
+	private final boolean[] pinned;
+
+	/**
+	 * Ob bereits Teile der aktuellen Nachricht in der Warteschlange liegen.
+	 * Wird nur vom sendenden Thread benutzt.
+	 */
+	private boolean continuing = false;
+
+	/**
+	 * Ob der Schreib-Thread gerade Daten verschickt
+	 */
+	private boolean writing = false;
+
+	/**
+	 * Ob der Strom geschlossen wurde
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Fehler des Schreib-Threads
+	 */
+	private IOException failure = null;
+
+	/**
+	 * Der Schreib-Thread
+	 */
+	private final Thread thread;
+
+	/**
+	 * Erzeugt den Strom. Der Schreib-Thread wird mit {@link #start()}
+	 * gestartet.
+	 *
+	 * @param target Der Zielstrom
+	 * @param capacity Größe der Warteschlange in Bytes. Größere Nachrichten
+	 *        werden in mehreren Teilen übergeben, auf die dann gewartet wird.
+	 * @param policy Strategie bei voller Warteschlange
+	 * @param stats Messwerte der Verbindung für verworfene Nachrichten
+	 */
+	AsyncOutputStream( OutputStream target, int capacity, int policy,
+			ConnectionStats stats ) {
+		this.target = target;
+		this.policy = policy;
+		this.stats = stats;
+
+		this.staging = new byte[capacity];
+		this.queue = new byte[capacity];
+		this.lengths = new int[Math.max(4, capacity / 4)];
+		this.pinned = new boolean[this.lengths.length];
+
+		this.thread = new Thread(this);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Startet den Schreib-Thread.
+	 */
+	void start() {
+		this.thread.start();
+	}
+
+	@Override
+	public void write( int b ) throws IOException {
+		if( this.staged == this.staging.length ) {
+			this.enqueue(false);
+		}
+		this.staging[this.staged++] = (byte) b;
+	}
+
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException {
+		while( len > 0 ) {
+			if( this.staged == this.staging.length ) {
+				this.enqueue(false);
+			}
+			int n = Math.min(len, this.staging.length - this.staged);
+			System.arraycopy(b, off, this.staging, this.staged, n);
+			this.staged += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Schließt die aktuelle Nachricht ab und übergibt sie dem Schreib-Thread.
+	 * Kehrt zurück, sobald die Nachricht in der Warteschlange liegt.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if( this.staged > 0 ) {
+			this.enqueue(true);
+		} else {
+			this.continuing = false;
+		}
+	}
+
+	/**
+	 * Kopiert die gesammelten Bytes als eine Nachricht oder einen Teil einer
+	 * Nachricht in die Warteschlange. Folgeteile einer bereits begonnenen
+	 * Nachricht warten immer auf freien Platz.
+	 *
+	 * @param last Ob die Nachricht mit diesem Teil abgeschlossen ist
+	 * @throws IOException Falls die Warteschlange voll ist und die Strategie
+	 *         {@link RemoteConnection#QUEUE_FAIL} gewählt wurde oder der
+	 *         Schreib-Thread fehlgeschlagen ist
+	 */
+	private synchronized void enqueue( boolean last ) throws IOException {
+		int len = this.staged;
+		this.staged = 0;
+
+		boolean started = this.continuing;
+		boolean piece = started || !last;
+		this.continuing = false;
+
+		while( true ) {
+			if( this.failure != null ) {
+				throw this.failure;
+			}
+			if( this.closed ) {
+				throw new IOException("Stream closed");
+			}
+			if( this.queue.length - this.queueSize >= len
+					&& this.messageCount < this.lengths.length ) {
+				break;
+			}
+
+			if( this.policy == RemoteConnection.QUEUE_FAIL && !started ) {
+				throw new IOException("Send queue full");
+			} else if( this.policy == RemoteConnection.QUEUE_DROP_OLDEST
+					&& !started && this.messageCount > 0
+					&& !this.pinned[this.messageStart] ) {
+				this.queueStart = (this.queueStart
+						+ this.lengths[this.messageStart]) % this.queue.length;
+				this.queueSize -= this.lengths[this.messageStart];
+				this.messageStart = (this.messageStart + 1)
+						% this.lengths.length;
+				this.messageCount--;
+				this.stats.addDropped();
+			} else {
+				try {
+					this.wait();
+				} catch( InterruptedException ex ) {
+					throw new IOException("Interrupted");
+				}
+			}
+		}
+
+		int pos = (this.queueStart + this.queueSize) % this.queue.length;
+		int first = Math.min(len, this.queue.length - pos);
+		System.arraycopy(this.staging, 0, this.queue, pos, first);
+		System.arraycopy(this.staging, first, this.queue, 0, len - first);
+		this.queueSize += len;
+
+		int index = (this.messageStart + this.messageCount)
+				% this.lengths.length;
+		this.lengths[index] = len;
+		this.pinned[index] = piece;
+		this.messageCount++;
+		this.continuing = !last;
+
+		this.notifyAll();
+	}
+
+	/**
+	 * Entnimmt alle wartenden Nachrichten. Blockiert, bis mindestens eine
+	 * Nachricht vorliegt oder der Strom geschlossen wurde.
+	 *
+	 * @param dst Zielpuffer, mindestens so groß wie die Warteschlange
+	 * @return Anzahl der entnommenen Bytes oder <code>-1</code> wenn der
+	 *         Strom geschlossen und die Warteschlange leer ist
+	 * @throws InterruptedException
+	 */
+	private synchronized int take( byte[] dst ) throws InterruptedException {
+		this.writing = false;
+		this.notifyAll();
+
+		while( this.messageCount == 0 ) {
+			if( this.closed ) {
+				return -1;
+			}
+			this.wait();
+		}
+
+		int len = this.queueSize;
+		int first = Math.min(len, this.queue.length - this.queueStart);
+		System.arraycopy(this.queue, this.queueStart, dst, 0, first);
+		System.arraycopy(this.queue, 0, dst, first, len - first);
+
+		this.queueStart = (this.queueStart + len) % this.queue.length;
+		this.queueSize = 0;
+		this.messageStart = (this.messageStart + this.messageCount)
+				% this.lengths.length;
+		this.messageCount = 0;
+
+		this.writing = true;
+		this.notifyAll();
+		return len;
+	}
+
+	public void run() {
+		byte[] buf = new byte[this.queue.length];
+		try {
+			int n;
+			while( (n = this.take(buf)) >= 0 ) {
+				this.target.write(buf, 0, n);
+				this.target.flush();
+			}
+		} catch( IOException ex ) {
+			synchronized( this ) {
+				this.failure = ex;
+				this.writing = false;
+				this.notifyAll();
+			}
+		} catch( InterruptedException ex ) {
+			/* Thread wird beendet */
+		}
+	}
+
+	/**
+	 * Wartet höchstens die angegebene Zeit, bis alle Nachrichten verschickt
+	 * wurden.
+	 *
+	 * @param timeout Maximale Wartezeit in Millisekunden
+	 * @return <code>true</code> wenn die Warteschlange leer ist
+	 */
+	synchronized boolean drain( int timeout ) {
+		long end = System.currentTimeMillis() + timeout;
+		while( (this.messageCount > 0 || this.writing )
+				&& this.failure == null ) {
+			long remaining = end - System.currentTimeMillis();
+			if( remaining <= 0 ) {
+				return false;
+			}
+			try {
+				this.wait(remaining);
+			} catch( InterruptedException ex ) {
+				return false;
+			}
+		}
+		return (this.failure == null);
+	}
+
+	/**
+	 * Verschickt die restlichen Nachrichten, beendet den Schreib-Thread und
+	 * schließt den Zielstrom.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.flush();
+		} finally {
+			this.drain(AbstractConnection.DISCONNECT_TIMEOUT * 10);
+			synchronized( this ) {
+				this.closed = true;
+				this.notifyAll();
+			}
+			this.target.close();
+		}
+	}
+
+}
@@ -1,9 +1,6 @@
 package de.upb.ddi.lejos.com;
 
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 
 import javax.bluetooth.RemoteDevice;
@@ -20,31 +17,24 @@ import de.upb.ddi.lejos.util.Console;
  * 
  * @author Jonas Neugebauer <jneug@mail.upb.de>
  */
-// TODO: Abstract to all device connections
-public class BluetoothConnection implements RemoteConnection {
+public class BluetoothConnection extends AbstractConnection {
 
 	/**
 	 * Timeout für Inquire-Vorgänge in 1.28 Sekunden (
 	 * <code>INQUIRE_TIMEOUT * 1.28</code>).
 	 */
-	private static final int INQUIRE_TIMEOUT = 5;
+	protected static final int INQUIRE_TIMEOUT = 5;
 
 	/**
-	 * Timeout beim disconnect damit die Streams erfolgreich geschlossen werden
-	 * in Millisekunden.
+	 * Standardwert für die maximale Anzahl der Geräte eines Inquire-Vorgangs.
 	 */
-	private static final int DISCONNECT_TIMEOUT = 80;
-
-
-	/**
-	 * Name des NXT Bausteins.
-	 */
-	protected String deviceName;
+	public static final int DEFAULT_MAX_DEVICES = 10;
 
 	/**
-	 * Bluetooth-Adresse des Bausteins.
+	 * Standardwert für die gesuchte Geräteklasse eines Inquire-Vorgangs
+	 * (NXT-Bausteine).
 	 */
-	protected String deviceAddress;
+	public static final int DEFAULT_DEVICE_CLASS = 0x84;
 
 	/**
 	 * Referenz zum Verbindungsobjekt
@@ -52,25 +42,24 @@ public class BluetoothConnection implements RemoteConnection {
 	protected NXTConnection connection;
 
 	/**
-	 * Eingabestrom (Empfang von Daten)
+	 * Zwischenspeicher für aufgelöste Geräte oder <code>null</code>
 	 */
-	protected DataInputStream in;
+	protected BluetoothDeviceCache deviceCache = null;
 
 	/**
-	 * Ausgabestrom (Versand von Daten)
+	 * Hintergrundsuche nach Geräten oder <code>null</code>
 	 */
-	protected DataOutputStream out;
+	protected BluetoothDiscovery discovery = null;
 
 	/**
-	 * Ob momentan eine Verbindung besteht
+	 * Maximale Anzahl der Geräte eines Inquire-Vorgangs
 	 */
-	protected boolean isConnected = false;
+	protected int maxDevices = DEFAULT_MAX_DEVICES;
 
 	/**
-	 * Anzahl durchgeführter Verbindungsversuche (seit dem letzten Aufruf von
-	 * {@link #resetConnectionAttempts()}).
+	 * Gesuchte Geräteklasse eines Inquire-Vorgangs
 	 */
-	protected int connectionAttempts = 0;
+	protected int deviceClass = DEFAULT_DEVICE_CLASS;
 
 	/**
 	 * Konstruktor mit automatischer Bestimmung der Bluetooth-Adresse. Die
@@ -83,8 +72,7 @@ public class BluetoothConnection implements RemoteConnection {
 	 * weiteren mit {@link clone()} aus der ersten erzeugt werden.
 	 */
 	public BluetoothConnection() {
-		this.deviceName = Bluetooth.getFriendlyName();
-		this.deviceAddress = Bluetooth.getAddress();
+		this(Bluetooth.getFriendlyName(), Bluetooth.getAddress());
 	}
 
 	/**
@@ -101,26 +89,7 @@ public class BluetoothConnection implements RemoteConnection {
 	 * @param address
 	 */
 	public BluetoothConnection( String name, String address ) {
-		this.deviceName = name;
-		this.deviceAddress = address;
-	}
-
-	/**
-	 * Gibt den Bluetooth Gerätenamen des NXTs zurück
-	 * 
-	 * @return
-	 */
-	public String getName() {
-		return this.deviceName;
-	}
-
-	/**
-	 * Gibt dei Bluetooth Adresse des NXTs zurück
-	 * 
-	 * @return
-	 */
-	public String getAddress() {
-		return this.deviceAddress;
+		super("bt", name, address);
 	}
 
 	/**
@@ -136,42 +105,51 @@ public class BluetoothConnection implements RemoteConnection {
 		}
 	}
 
-	public int getConnectionAttempts() {
-		return this.connectionAttempts;
+	/**
+	 * Setzt den Zwischenspeicher, in dem {@link #connect(String)} gefundene
+	 * Geräte ablegt und nachschlägt. Mehrere Verbindungen können sich einen
+	 * Zwischenspeicher teilen; {@link #clone()} übernimmt ihn.
+	 *
+	 * @param cache Der Zwischenspeicher oder <code>null</code>
+	 */
+	public void setDeviceCache( BluetoothDeviceCache cache ) {
+		this.deviceCache = cache;
 	}
 
-	public void resetConnectionAttempts() {
-		this.connectionAttempts = 0;
+	/**
+	 * @return Der Zwischenspeicher für aufgelöste Geräte oder
+	 *         <code>null</code>
+	 */
+	public BluetoothDeviceCache getDeviceCache() {
+		return this.deviceCache;
 	}
 
-	public boolean isConnected() {
-		return this.isConnected;
+	/**
+	 * Setzt die Hintergrundsuche, deren Ergebnisse {@link #connect(String)}
+	 * benutzt, bevor selbst gesucht wird. {@link #clone()} übernimmt sie.
+	 *
+	 * @param discovery Die Suche oder <code>null</code>
+	 */
+	public void setDiscovery( BluetoothDiscovery discovery ) {
+		this.discovery = discovery;
 	}
 
-	public void disconnect() {
-		if( this.isConnected() ) {
-			try {
-				this.in.close();
-				this.out.close();
-
-				Thread.sleep(DISCONNECT_TIMEOUT);
-			} catch( IOException ex ) {
-				// Exceptions.dispose(ex);
-			} catch( InterruptedException ex ) {
-				/* Interrupt ist nicht schlimm ... */
-			}
-			this.connection.close();
-
-			this.connection = null;
-			this.in = null;
-			this.out = null;
-
-			this.isConnected = false;
-		}
+	/**
+	 * Stellt die Suche nach unbekannten Geräten in {@link #connect(String)}
+	 * ein. {@link #clone()} übernimmt die Einstellungen.
+	 *
+	 * @param maxDevices Maximale Anzahl zu findender Geräte
+	 * @param deviceClass Gesuchte Geräteklasse oder <code>0</code> für alle
+	 *        Geräte, z.B. auch PCs und Smartphones
+	 */
+	public void setInquiry( int maxDevices, int deviceClass ) {
+		this.maxDevices = maxDevices;
+		this.deviceClass = deviceClass;
 	}
 
-	public void connect() {
-		this.connect(CONNECT_TIMEOUT);
+	protected void closeConnection() {
+		this.connection.close();
+		this.connection = null;
 	}
 
 	public void connect( int timeout ) {
@@ -186,27 +164,50 @@ public class BluetoothConnection implements RemoteConnection {
 			// TODO: Sollte hier eine Exception geworfen werden?
 			// throw new CommException(CommException.TIMEOUT);
 		} else {
-			this.isConnected = true;
+			this.open(this.connection.openInputStream(),
+					this.connection.openOutputStream());
 
 			Console.dbg.println("bt: connected to");
 			Console.dbg.println("  " + this.getRemoteAddress());
-
-			this.in = this.connection.openDataInputStream();
-			this.out = this.connection.openDataOutputStream();
 		}
 	}
 
 	public void connect( String identifier ) {
 		this.connectionAttempts++;
 
-		Console.dbg.println("bt: lookup knwn dev");
-		RemoteDevice device = this.getKnownDevice(identifier);
+		RemoteDevice device = null;
+		boolean cached = false;
+		if( this.deviceCache != null ) {
+			device = this.deviceCache.get(identifier);
+			cached = (device != null);
+		}
 
 		if( device == null ) {
+			Console.dbg.println("bt: lookup knwn dev");
+			device = this.getKnownDevice(identifier);
+		}
+
+		boolean searched = false;
+		if( device == null && this.discovery != null ) {
+			Console.dbg.println("bt: discovery ...");
+			device = this.discovery.await(identifier, 0);
+			if( device != null ) {
+				Bluetooth.addDevice(device);
+			} else {
+				// Eine eigene Suche direkt danach fände nichts Neues
+				searched = this.discovery.isRecent(INQUIRE_TIMEOUT * 1280);
+			}
+		}
+
+		if( device == null && !searched ) {
 			Console.dbg.println("bt: inquire ...");
 			device = this.inquire(identifier);
 		}
 
+		if( device != null && !cached && this.deviceCache != null ) {
+			this.deviceCache.put(identifier, device);
+		}
+
 		if( device == null ) {
 			Console.dbg.println("bt: dev not found");
 			// TODO: Sollte hier eine Exception geworfen werden?
@@ -217,16 +218,16 @@ public class BluetoothConnection implements RemoteConnection {
 			this.connection = Bluetooth.connect(device);
 			if( this.connection == null ) {
 				Console.dbg.println("bt: conn failed");
+				// Der Eintrag bleibt erhalten: Meist ist das Gerät nur
+				// ausgeschaltet, und jedes Entfernen schreibt den Flash neu
 				// TODO: Sollte hier eine Exception geworfen werden?
 				// throw new CommException(CommException.TIMEOUT);
 			} else {
-				this.isConnected = true;
+				this.open(this.connection.openInputStream(),
+						this.connection.openOutputStream());
 
 				Console.dbg.println("bt: connected to");
 				Console.dbg.println("  " + this.getRemoteAddress());
-
-				this.in = this.connection.openDataInputStream();
-				this.out = this.connection.openDataOutputStream();
 			}
 		}
 	}
@@ -272,9 +273,10 @@ public class BluetoothConnection implements RemoteConnection {
 	/**
 	 * Der Inquire-Prozess versucht unbekannte Bluetooth Geräte zu finden und zu
 	 * pairen (der Liste der bekannten Geräte hinzuzufügen).
+	 * <p/>
+	 * Anzahl der Geräte und Geräteklasse werden mit
+	 * {@link #setInquiry(int, int)} eingestellt.
 	 * 
-	 * @todo Findet momentan nur andere NXTs und keine PCs und Smartphones. (->
-	 *       Anpassen der cod)
 	 * @param identifier Name oder Adresse des anderen Geräts
 	 * @return Das Gerät als <code>RemoteDevice</code>, falls es gefunden wurde.
 	 *         Sonst <code>NULL</code>.
@@ -282,8 +284,8 @@ public class BluetoothConnection implements RemoteConnection {
 	protected RemoteDevice inquire( String identifier ) {
 		boolean inquire_address = Bluetooth.isAddress(identifier);
 
-		ArrayList<RemoteDevice> inquireDevices = Bluetooth.inquire(10,
-				INQUIRE_TIMEOUT, 0x84);
+		ArrayList<RemoteDevice> inquireDevices = Bluetooth.inquire(
+				this.maxDevices, INQUIRE_TIMEOUT, this.deviceClass);
 		for( int i = 0; i < inquireDevices.size(); i++ ) {
 			RemoteDevice btrd = inquireDevices.get(i);
 
@@ -304,138 +306,15 @@ public class BluetoothConnection implements RemoteConnection {
 		return null;
 	}
 
-	public void sendByte( byte value ) throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		try {
-			this.out.writeByte(value);
-			this.out.flush();
-		} catch( IOException e ) {
-			Console.err.println("bt: send failed");
-			throw new ComException("Failed to send byte", ComException.SEND);
-		}
-	}
-
-	public void sendInt( int value ) throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		try {
-			this.out.writeInt(value);
-			this.out.flush();
-		} catch( IOException e ) {
-			Console.err.println("bt: send failed");
-			throw new ComException("Failed to send int", ComException.SEND);
-		}
-	}
-
-	public void sendLong( long value ) throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		try {
-			this.out.writeLong(value);
-			this.out.flush();
-		} catch( IOException e ) {
-			Console.err.println("bt: send failed");
-			throw new ComException("Failed to send long", ComException.SEND);
-		}
-	}
-
-	public void sendString( String value ) throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		try {
-			this.out.writeInt(value.length()); // Länge des String senden
-			this.out.writeChars(value);
-			this.out.flush();
-		} catch( IOException e ) {
-			Console.err.println("bt: send failed");
-			throw new ComException("Failed to send string", ComException.SEND);
-		}
-	}
-
-	public byte receiveByte() throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		byte value = -1;
-		try {
-			value = this.in.readByte();
-		} catch( IOException e ) {
-			Console.err.println("bt: recv failed");
-			throw new ComException("Failed to receive byte",
-					ComException.RECV);
-		}
-
-		return value;
-	}
-
-	public int receiveInt() throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		int value = -1;
-		try {
-			value = this.in.readInt();
-		} catch( IOException e ) {
-			Console.err.println("bt: recv failed");
-			throw new ComException("Failed to receive int", ComException.RECV);
-		}
-
-		return value;
-	}
-
-	public long receiveLong() throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		long value = -1;
-		try {
-			value = this.in.readLong();
-		} catch( IOException e ) {
-			Console.err.println("bt: recv failed");
-			throw new ComException("Failed to receive long",
-					ComException.RECV);
-		}
-
-		return value;
-	}
-
-	public String receiveString() throws ComException {
-		if( !this.isConnected() ) {
-			throw new ComException();
-		}
-
-		char[] str = new char[] { 0 };
-		try {
-			int len = this.in.readInt(); // Länge des String empfangen
-
-			str = new char[len];
-			for( int i = 0; i < len; i++ ) {
-				str[i] = this.in.readChar();
-			}
-		} catch( IOException e ) {
-			Console.err.println("bt: recv failed");
-			throw new ComException("Failed to receive string",
-					ComException.RECV);
-		}
-
-		return new String(str);
-	}
-
 	@Override
 	public RemoteConnection clone() {
-		return new BluetoothConnection(this.deviceName, this.deviceAddress);
+		BluetoothConnection conn = new BluetoothConnection(this.deviceName,
+				this.deviceAddress);
+		conn.deviceCache = this.deviceCache;
+		conn.discovery = this.discovery;
+		conn.maxDevices = this.maxDevices;
+		conn.deviceClass = this.deviceClass;
+		return conn;
 	}
 
 }
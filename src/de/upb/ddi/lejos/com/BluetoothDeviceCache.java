@@ -0,0 +1,301 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import javax.bluetooth.RemoteDevice;
+
+import lejos.nxt.comm.Bluetooth;
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Zwischenspeicher für aufgelöste Bluetooth-Geräte. Die Suche eines Geräts
+ * über seinen Namen kostet in {@link BluetoothConnection#connect(String)} den
+ * Durchlauf aller bekannten Geräte und, falls das Gerät dort fehlt, einen
+ * mehrere Sekunden dauernden Inquire-Vorgang. Der Zwischenspeicher merkt sich
+ * zu jedem Bezeichner das gefundene Gerät, sodass ein erneuter
+ * Verbindungsaufbau nur noch eine Nachschlageoperation kostet.
+ * <p/>
+ * Einträge verfallen nach einer einstellbaren Zeit. Wird eine Datei
+ * angegeben, werden Bezeichner und Adressen dort gespeichert und beim
+ * Erzeugen wieder geladen, sodass sie einen Neustart des NXT überstehen. Da
+ * der NXT keine Uhrzeit kennt, beginnt die Gültigkeit geladener Einträge neu.
+ * Die Datei wird nur geschrieben, wenn ein Bezeichner hinzukommt, wegfällt
+ * oder seine Adresse ändert. Verfallene Einträge bleiben deshalb bis zum
+ * nächsten {@link #put(String, RemoteDevice)} stehen, werden aber nicht mehr
+ * herausgegeben.
+ * <p/>
+ * <pre>
+ * BluetoothConnection conn = new BluetoothConnection();
+ * conn.setDeviceCache(new BluetoothDeviceCache(
+ *         BluetoothDeviceCache.DEFAULT_TTL, "devices.dat"));
+ * </pre>
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class BluetoothDeviceCache {
+
+	/**
+	 * Standard-Gültigkeit eines Eintrags in Millisekunden (10 Minuten).
+	 */
+	public static final int DEFAULT_TTL = 10 * 60 * 1000;
+
+
+	/**
+	 * Eintrag des Zwischenspeichers
+	 */
+	private static class Entry {
+
+		String identifier;
+
+		String address;
+
+		/**
+		 * Das Gerät oder <code>null</code>, falls der Eintrag aus der Datei
+		 * geladen und noch nicht aufgelöst wurde
+		 */
+		RemoteDevice device;
+
+		/**
+		 * Zeitpunkt, an dem der Eintrag verfällt
+		 */
+		long expires;
+	}
+
+
+	/**
+	 * Gültigkeit eines Eintrags in Millisekunden
+	 */
+	private final int ttl;
+
+	/**
+	 * Datei zum Speichern der Einträge oder <code>null</code>
+	 */
+	private final File file;
+
+	/**
+	 * Die Einträge
+	 */
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Erzeugt einen Zwischenspeicher, der nur im Speicher gehalten wird.
+	 *
+	 * @param ttl Gültigkeit eines Eintrags in Millisekunden oder
+	 *        <code>0</code> für unbegrenzte Gültigkeit
+	 */
+	public BluetoothDeviceCache( int ttl ) {
+		this(ttl, null);
+	}
+
+	/**
+	 * Erzeugt einen Zwischenspeicher, der in einer Datei gesichert wird.
+	 * Vorhandene Einträge werden sofort geladen.
+	 *
+	 * @param ttl Gültigkeit eines Eintrags in Millisekunden oder
+	 *        <code>0</code> für unbegrenzte Gültigkeit
+	 * @param fileName Name der Datei oder <code>null</code>
+	 */
+	public BluetoothDeviceCache( int ttl, String fileName ) {
+		this.ttl = ttl;
+		this.file = (fileName != null) ? new File(fileName) : null;
+		this.load();
+	}
+
+	/**
+	 * Sucht das Gerät zu einem Bezeichner.
+	 *
+	 * @param identifier Name oder Adresse des Geräts
+	 * @return Das Gerät oder <code>null</code>, falls kein gültiger Eintrag
+	 *         existiert
+	 */
+	public synchronized RemoteDevice get( String identifier ) {
+		int i = this.indexOf(identifier);
+		if( i < 0 ) {
+			return null;
+		}
+
+		Entry e = this.entries.get(i);
+		if( this.ttl > 0 && System.currentTimeMillis() > e.expires ) {
+			// Bei gleicher Adresse erneuert put() den Eintrag ohne Schreiben
+			e.device = null;
+			return null;
+		}
+
+		if( e.device == null ) {
+			e.device = findKnownDevice(e.address);
+			if( e.device == null ) {
+				// Gerät wurde aus der Liste bekannter Geräte gelöscht
+				this.entries.remove(i);
+				this.save();
+			}
+		}
+		return e.device;
+	}
+
+	/**
+	 * Speichert das Gerät zu einem Bezeichner.
+	 *
+	 * @param identifier Name oder Adresse des Geräts
+	 * @param device
+	 */
+	public synchronized void put( String identifier, RemoteDevice device ) {
+		int i = this.indexOf(identifier);
+		Entry e;
+		if( i < 0 ) {
+			e = new Entry();
+			e.identifier = identifier;
+			this.entries.add(e);
+		} else {
+			e = this.entries.get(i);
+		}
+
+		String address = device.getBluetoothAddress();
+		boolean changed = (i < 0 || !address.equals(e.address));
+		e.address = address;
+		e.device = device;
+		e.expires = System.currentTimeMillis() + this.ttl;
+
+		if( changed ) {
+			this.save();
+		}
+	}
+
+	/**
+	 * Entfernt den Eintrag zu einem Bezeichner, z.B. wenn das Gerät nicht
+	 * mehr benutzt wird. Ein fehlgeschlagener Verbindungsaufbau ist dafür
+	 * kein Grund, da das Gerät meist nur vorübergehend nicht erreichbar ist.
+	 *
+	 * @param identifier
+	 */
+	public synchronized void remove( String identifier ) {
+		int i = this.indexOf(identifier);
+		if( i >= 0 ) {
+			this.entries.remove(i);
+			this.save();
+		}
+	}
+
+	/**
+	 * Entfernt alle Einträge.
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+		this.save();
+	}
+
+	/**
+	 * @return Anzahl der Einträge, einschließlich verfallener
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @param identifier
+	 * @return Index des Eintrags oder <code>-1</code>
+	 */
+	private int indexOf( String identifier ) {
+		for( int i = 0; i < this.entries.size(); i++ ) {
+			if( this.entries.get(i).identifier.equals(identifier) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Sucht ein Gerät anhand seiner Adresse in der Liste bekannter Geräte.
+	 * Anders als bei der Suche über den Namen muss dabei nicht der Name jedes
+	 * Geräts abgefragt werden.
+	 *
+	 * @param address
+	 * @return
+	 */
+	private static RemoteDevice findKnownDevice( String address ) {
+		ArrayList<RemoteDevice> knownDevices = Bluetooth.getKnownDevicesList();
+		for( int i = 0; i < knownDevices.size(); i++ ) {
+			RemoteDevice btrd = knownDevices.get(i);
+			if( btrd.getBluetoothAddress().equals(address) ) {
+				return btrd;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lädt die Einträge aus der Datei.
+	 */
+	private void load() {
+		if( this.file == null || !this.file.exists() ) {
+			return;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(this.file));
+			long expires = System.currentTimeMillis() + this.ttl;
+			int n = in.readInt();
+			for( int i = 0; i < n; i++ ) {
+				Entry e = new Entry();
+				e.identifier = in.readUTF();
+				e.address = in.readUTF();
+				e.expires = expires;
+				this.entries.add(e);
+			}
+		} catch( IOException ex ) {
+			Console.err.println("btc: load failed");
+			this.entries.clear();
+		} finally {
+			if( in != null ) {
+				try {
+					in.close();
+				} catch( IOException ex ) {
+					/* Nicht schlimm ... */
+				}
+			}
+		}
+	}
+
+	/**
+	 * Schreibt die Einträge in die Datei.
+	 */
+	private void save() {
+		if( this.file == null ) {
+			return;
+		}
+
+		DataOutputStream out = null;
+		try {
+			if( this.file.exists() ) {
+				this.file.delete();
+			}
+			out = new DataOutputStream(new FileOutputStream(this.file));
+			out.writeInt(this.entries.size());
+			for( int i = 0; i < this.entries.size(); i++ ) {
+				Entry e = this.entries.get(i);
+				out.writeUTF(e.identifier);
+				out.writeUTF(e.address);
+			}
+			out.flush();
+		} catch( IOException ex ) {
+			Console.err.println("btc: save failed");
+		} finally {
+			if( out != null ) {
+				try {
+					out.close();
+				} catch( IOException ex ) {
+					/* Nicht schlimm ... */
+				}
+			}
+		}
+	}
+
+}
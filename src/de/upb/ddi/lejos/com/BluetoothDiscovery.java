@@ -0,0 +1,246 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.util.ArrayList;
+
+import javax.bluetooth.RemoteDevice;
+
+import lejos.nxt.comm.Bluetooth;
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Sucht im Hintergrund nach Bluetooth-Geräten. Ein Inquire-Vorgang dauert
+ * mehrere Sekunden; wird er zu Programmbeginn gestartet, kann das Programm
+ * währenddessen weiterlaufen und eine spätere Verbindung mit
+ * {@link BluetoothConnection#connect(String)} die bereits gefundenen Geräte
+ * benutzen, statt selbst zu suchen.
+ * <p/>
+ * <pre>
+ * BluetoothDiscovery discovery = new BluetoothDiscovery();
+ * discovery.start();
+ * ...
+ * BluetoothConnection conn = new BluetoothConnection();
+ * conn.setDiscovery(discovery);
+ * conn.connect("NXT2");
+ * </pre>
+ * Ein Inquire-Vorgang liefert die gefundenen Geräte erst an seinem Ende.
+ * Läuft die Suche beim Verbindungsaufbau noch, wartet dieser daher auf das
+ * Ende der Suche, statt eine eigene zu beginnen. Ist das Gerät bereits aus
+ * einer früheren Suche bekannt, wird nicht gewartet. Hat eine gerade beendete
+ * Suche das Gerät nicht gefunden, sucht auch der Verbindungsaufbau nicht noch
+ * einmal (siehe {@link #isRecent(int)}).
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class BluetoothDiscovery implements Runnable {
+
+	/**
+	 * Maximale Anzahl zu findender Geräte
+	 */
+	private final int maxDevices;
+
+	/**
+	 * Dauer der Suche in 1.28 Sekunden
+	 */
+	private final int duration;
+
+	/**
+	 * Gesuchte Geräteklasse
+	 */
+	private final int deviceClass;
+
+	/**
+	 * Gefundene Geräte
+	 */
+	private final ArrayList<RemoteDevice> devices = new ArrayList<RemoteDevice>();
+
+	/**
+	 * Namen der gefundenen Geräte in gleicher Reihenfolge wie
+	 * {@link #devices}
+	 */
+	private final ArrayList<String> names = new ArrayList<String>();
+
+	/**
+	 * Ob gerade gesucht wird
+	 */
+	private boolean running = false;
+
+	/**
+	 * Zeitpunkt, an dem die letzte Suche endete, oder <code>-1</code>
+	 */
+	private long finished = -1;
+
+	/**
+	 * Erzeugt eine Suche mit den Standardwerten von
+	 * {@link BluetoothConnection}.
+	 */
+	public BluetoothDiscovery() {
+		this(BluetoothConnection.DEFAULT_MAX_DEVICES,
+				BluetoothConnection.INQUIRE_TIMEOUT,
+				BluetoothConnection.DEFAULT_DEVICE_CLASS);
+	}
+
+	/**
+	 * Erzeugt eine Suche.
+	 *
+	 * @param maxDevices Maximale Anzahl zu findender Geräte
+	 * @param duration Dauer der Suche in 1.28 Sekunden
+	 * @param deviceClass Gesuchte Geräteklasse oder <code>0</code> für alle
+	 *        Geräte
+	 */
+	public BluetoothDiscovery( int maxDevices, int duration, int deviceClass ) {
+		this.maxDevices = maxDevices;
+		this.duration = duration;
+		this.deviceClass = deviceClass;
+	}
+
+	/**
+	 * Startet die Suche in einem eigenen Thread. Geräte aus früheren Suchen
+	 * bleiben erhalten. Läuft bereits eine Suche, passiert nichts.
+	 */
+	public synchronized void start() {
+		if( this.running ) {
+			return;
+		}
+		this.running = true;
+
+		Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return <code>true</code> wenn gerade gesucht wird
+	 */
+	public synchronized boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * Prüft, ob die Ergebnisse der Suche aktuell sind. Eine erneute Suche
+	 * innerhalb dieser Zeit würde kaum andere Geräte finden.
+	 *
+	 * @param maxAge Maximales Alter der Ergebnisse in Millisekunden
+	 * @return <code>true</code> wenn gerade gesucht wird oder die letzte Suche
+	 *         höchstens <code>maxAge</code> Millisekunden zurückliegt
+	 */
+	public synchronized boolean isRecent( int maxAge ) {
+		return this.running
+				|| (this.finished >= 0 && System.currentTimeMillis()
+						- this.finished <= maxAge);
+	}
+
+	public void run() {
+		Console.dbg.println("btd: inquire ...");
+		ArrayList<RemoteDevice> found = null;
+		String[] foundNames = null;
+		try {
+			found = Bluetooth.inquire(this.maxDevices, this.duration,
+					this.deviceClass);
+
+			// Namen ohne Sperre abfragen, damit find() und await() solange
+			// nicht blockieren
+			String[] n = new String[found.size()];
+			for( int i = 0; i < n.length; i++ ) {
+				n[i] = found.get(i).getFriendlyName(false);
+			}
+			foundNames = n;
+		} finally {
+			synchronized( this ) {
+				if( foundNames != null ) {
+					for( int i = 0; i < foundNames.length; i++ ) {
+						RemoteDevice btrd = found.get(i);
+						if( this.indexOf(btrd.getBluetoothAddress()) < 0 ) {
+							this.devices.add(btrd);
+							this.names.add(foundNames[i]);
+						}
+					}
+				}
+				this.running = false;
+				this.finished = System.currentTimeMillis();
+				this.notifyAll();
+			}
+		}
+		Console.dbg.println("btd: " + this.devices.size() + " dev");
+	}
+
+	/**
+	 * Sucht ein gefundenes Gerät, ohne zu warten.
+	 *
+	 * @param identifier Name oder Adresse des Geräts
+	 * @return Das Gerät oder <code>null</code>
+	 */
+	public synchronized RemoteDevice find( String identifier ) {
+		int i = this.indexOf(identifier);
+		return (i < 0) ? null : this.devices.get(i);
+	}
+
+	/**
+	 * Sucht ein Gerät und wartet dazu gegebenenfalls auf das Ende der
+	 * laufenden Suche. Da die Suche ihre Geräte erst am Ende meldet, kehrt die
+	 * Methode für ein noch unbekanntes Gerät frühestens dann zurück.
+	 *
+	 * @param identifier Name oder Adresse des Geräts
+	 * @param timeout Maximale Wartezeit in Millisekunden oder <code>0</code>
+	 *        für unbegrenztes Warten
+	 * @return Das Gerät oder <code>null</code>, falls es bis zum Ende der Suche
+	 *         nicht gefunden wurde
+	 */
+	public synchronized RemoteDevice await( String identifier, int timeout ) {
+		long end = System.currentTimeMillis() + timeout;
+		while( true ) {
+			int i = this.indexOf(identifier);
+			if( i >= 0 ) {
+				return this.devices.get(i);
+			}
+
+			long remaining = end - System.currentTimeMillis();
+			if( !this.running || (timeout > 0 && remaining <= 0) ) {
+				return null;
+			}
+			try {
+				this.wait(timeout > 0 ? remaining : 0);
+			} catch( InterruptedException ex ) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Gibt eine Kopie der Liste aller bisher gefundenen Geräte zurück.
+	 *
+	 * @return
+	 */
+	public synchronized ArrayList<RemoteDevice> getDevices() {
+		ArrayList<RemoteDevice> copy = new ArrayList<RemoteDevice>();
+		for( int i = 0; i < this.devices.size(); i++ ) {
+			copy.add(this.devices.get(i));
+		}
+		return copy;
+	}
+
+	/**
+	 * Entfernt alle gefundenen Geräte.
+	 */
+	public synchronized void clear() {
+		this.devices.clear();
+		this.names.clear();
+	}
+
+	/**
+	 * @param identifier Name oder Adresse
+	 * @return Index des Geräts oder <code>-1</code>
+	 */
+	private int indexOf( String identifier ) {
+		for( int i = 0; i < this.devices.size(); i++ ) {
+			if( identifier.equals(this.names.get(i))
+					|| identifier.equals(this.devices.get(i)
+							.getBluetoothAddress()) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
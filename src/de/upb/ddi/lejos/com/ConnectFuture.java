@@ -0,0 +1,228 @@
+package de.upb.ddi.lejos.com;
+
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Ein laufender asynchroner Verbindungsaufbau, erzeugt von
+ * {@link RemoteConnection#connectAsync(String, int)}. Der Verbindungsaufbau
+ * läuft in einem eigenen Thread; mit {@link #isDone()} kann ohne Blockieren
+ * nach dem Ergebnis gefragt und mit {@link #await()} darauf gewartet werden.
+ * <p/>
+ * <pre>
+ * ConnectFuture a = connA.connectAsync("NXT2", 5000);
+ * ConnectFuture b = connB.connectAsync("NXT3", 5000);
+ * a.await();
+ * b.await();
+ * </pre>
+ * Die Zeitbegrenzung gilt unabhängig davon, wie lange die Gerätesuche und
+ * der Verbindungsaufbau tatsächlich blockieren. Gelingt der Aufbau erst nach
+ * Ablauf der Zeit, wird die Verbindung sofort wieder getrennt.
+ * <p/>
+ * Ein {@link ConnectListener} wird nur vom Thread des Verbindungsaufbaus oder
+ * von einem eigenen Thread für den Ablauf der Zeit benachrichtigt, nie von
+ * einem Thread, der {@link #isDone()} oder {@link #await()} aufruft.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectFuture implements Runnable {
+
+	/**
+	 * Die aufzubauende Verbindung
+	 */
+	private final RemoteConnection connection;
+
+	/**
+	 * Name oder Adresse des Geräts
+	 */
+	private final String identifier;
+
+	/**
+	 * Zeitpunkt, zu dem der Aufbau abgebrochen wird, oder <code>0</code>
+	 */
+	private final long deadline;
+
+	/**
+	 * Empfänger der Benachrichtigung oder <code>null</code>
+	 */
+	private final ConnectListener listener;
+
+	/**
+	 * Ob der Aufbau abgeschlossen ist
+	 */
+	private boolean done = false;
+
+	/**
+	 * Fehler des Aufbaus
+	 */
+	private ComException failure = null;
+
+	/**
+	 * Erzeugt den Aufbau. Gestartet wird er mit {@link #start()}.
+	 *
+	 * @param connection
+	 * @param identifier Name oder Adresse des Geräts
+	 * @param timeout Maximale Dauer in Millisekunden oder <code>0</code>
+	 * @param listener Empfänger der Benachrichtigung oder <code>null</code>
+	 */
+	ConnectFuture( RemoteConnection connection, String identifier,
+			int timeout, ConnectListener listener ) {
+		this.connection = connection;
+		this.identifier = identifier;
+		this.deadline = (timeout > 0) ? System.currentTimeMillis() + timeout
+				: 0;
+		this.listener = listener;
+	}
+
+	/**
+	 * Startet den Verbindungsaufbau. Mit Empfänger und Zeitbegrenzung wird
+	 * ein zweiter Thread gestartet, der den Empfänger bei Ablauf der Zeit
+	 * benachrichtigt.
+	 */
+	void start() {
+		Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.start();
+
+		if( this.listener != null && this.deadline > 0 ) {
+			Thread watchdog = new Thread() {
+				@Override
+				public void run() {
+					ConnectFuture.this.expire();
+				}
+			};
+			watchdog.setDaemon(true);
+			watchdog.start();
+		}
+	}
+
+	/**
+	 * @return Die aufzubauende Verbindung
+	 */
+	public RemoteConnection getConnection() {
+		return this.connection;
+	}
+
+	/**
+	 * Prüft ohne zu blockieren, ob der Aufbau abgeschlossen ist.
+	 *
+	 * @return <code>true</code> wenn die Verbindung aufgebaut wurde, der
+	 *         Aufbau fehlgeschlagen oder die Zeit abgelaufen ist
+	 */
+	public synchronized boolean isDone() {
+		return this.done || this.isExpired();
+	}
+
+	/**
+	 * Wartet auf das Ende des Verbindungsaufbaus.
+	 *
+	 * @return Die aufgebaute Verbindung
+	 * @throws ComException Falls der Aufbau fehlschlägt oder die Zeit
+	 *         abläuft ({@link ComException#TIMEOUT})
+	 */
+	public synchronized RemoteConnection await() throws ComException {
+		while( !this.done && !this.isExpired() ) {
+			try {
+				if( this.deadline > 0 ) {
+					this.wait(Math.max(1, this.deadline
+							- System.currentTimeMillis()));
+				} else {
+					this.wait();
+				}
+			} catch( InterruptedException ex ) {
+				throw new ComException("Interrupted", ComException.CONN);
+			}
+		}
+
+		if( !this.done ) {
+			// Den Empfänger benachrichtigt der Thread für den Ablauf der Zeit
+			throw new ComException("Connect timeout", ComException.TIMEOUT);
+		}
+		if( this.failure != null ) {
+			throw this.failure;
+		}
+		return this.connection;
+	}
+
+	/**
+	 * Muss mit gehaltener Sperre aufgerufen werden.
+	 *
+	 * @return <code>true</code> wenn die Zeit abgelaufen ist
+	 */
+	private boolean isExpired() {
+		return this.deadline > 0 && System.currentTimeMillis() >= this.deadline;
+	}
+
+	/**
+	 * Setzt das Ergebnis und benachrichtigt Wartende und Empfänger. Nur der
+	 * erste Aufruf hat eine Wirkung. Ist die Zeit bereits abgelaufen, gilt der
+	 * Aufbau unabhängig vom übergebenen Ergebnis als abgebrochen.
+	 *
+	 * @param ex Der Fehler oder <code>null</code> bei Erfolg
+	 * @return <code>false</code> wenn das Ergebnis bereits feststand oder die
+	 *         Zeit abgelaufen ist
+	 */
+	private boolean complete( ComException ex ) {
+		boolean expired;
+		synchronized( this ) {
+			if( this.done ) {
+				return false;
+			}
+			expired = this.isExpired();
+			if( expired ) {
+				ex = new ComException("Connect timeout", ComException.TIMEOUT);
+			}
+			this.done = true;
+			this.failure = ex;
+			this.notifyAll();
+		}
+
+		if( this.listener != null ) {
+			if( ex == null ) {
+				this.listener.connected(this.connection);
+			} else {
+				this.listener.failed(this.connection, ex);
+			}
+		}
+		return !expired;
+	}
+
+	/**
+	 * Wartet bis zum Ablauf der Zeit und bricht den Aufbau dann ab.
+	 */
+	private void expire() {
+		synchronized( this ) {
+			while( !this.done ) {
+				long remaining = this.deadline - System.currentTimeMillis();
+				if( remaining <= 0 ) {
+					break;
+				}
+				try {
+					this.wait(remaining);
+				} catch( InterruptedException ex ) {
+					return;
+				}
+			}
+		}
+		// Nach Ablauf der Zeit setzt complete() den Fehler selbst
+		this.complete(null);
+	}
+
+	public void run() {
+		this.connection.connect(this.identifier);
+
+		ComException ex = null;
+		if( !this.connection.isConnected() ) {
+			ex = new ComException("Connection failed", ComException.CONN);
+		}
+
+		if( !this.complete(ex) && this.connection.isConnected() ) {
+			// Zeit ist bereits abgelaufen, der Aufrufer rechnet nicht mehr
+			// mit der Verbindung
+			Console.dbg.println("conn: late, closing");
+			this.connection.disconnect();
+		}
+	}
+
+}
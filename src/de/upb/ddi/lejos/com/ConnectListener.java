@@ -0,0 +1,29 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Wird über das Ergebnis eines asynchronen Verbindungsaufbaus mit
+ * {@link RemoteConnection#connectAsync(String, int, ConnectListener)}
+ * benachrichtigt. Die Methoden werden aus einem eigenen Thread aufgerufen.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public interface ConnectListener {
+
+	/**
+	 * Die Verbindung wurde aufgebaut.
+	 *
+	 * @param connection
+	 */
+	public void connected( RemoteConnection connection );
+
+	/**
+	 * Der Verbindungsaufbau ist fehlgeschlagen oder hat zu lange gedauert.
+	 *
+	 * @param connection
+	 * @param ex Der Fehler, bei Zeitüberschreitung vom Typ
+	 *        {@link ComException#TIMEOUT}
+	 */
+	public void failed( RemoteConnection connection, ComException ex );
+
+}
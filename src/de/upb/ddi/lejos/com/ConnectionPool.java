@@ -0,0 +1,495 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.util.ArrayList;
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Verwaltet mehrere aufgebaute Verbindungen und gibt sie zur
+ * Wiederverwendung heraus. Der Verbindungsaufbau, z.B. über Bluetooth, dauert
+ * mehrere Sekunden; der Pool hält Verbindungen deshalb nach der Benutzung
+ * offen und gibt sie bei der nächsten Anfrage an dasselbe Gerät erneut
+ * heraus.
+ * <p/>
+ * Verbindungen werden über den Bezeichner, mit dem sie aufgebaut wurden, und
+ * über {@link RemoteConnection#getRemoteAddress()} gefunden. Neue Verbindungen
+ * werden mit {@link RemoteConnection#clone()} aus einer Vorlage erzeugt.
+ * <p/>
+ * <pre>
+ * ConnectionPool pool = new ConnectionPool(new BluetoothConnection(), 3, 30000);
+ * RemoteConnection c = pool.acquire("NXT2");
+ * try {
+ *     c.sendInt(CMD_GO);
+ * } finally {
+ *     pool.release(c);
+ * }
+ * </pre>
+ * Verbindungen, die länger als die eingestellte Zeit unbenutzt waren, werden
+ * beim nächsten Zugriff auf den Pool getrennt. Ist der Pool voll, wird die am
+ * längsten unbenutzte Verbindung getrennt, sobald die neue Verbindung steht;
+ * schlägt der Aufbau fehl, bleibt sie erhalten. Getrennt wird immer außerhalb
+ * der Sperre des Pools, damit ein langsames Trennen andere Threads nicht
+ * aufhält.
+ * <p/>
+ * Fordern mehrere Threads gleichzeitig eine neue Verbindung zum selben Gerät
+ * an, baut nur der erste sie auf. Die anderen warten auf das Ergebnis; danach
+ * benutzen sie eine freie Verbindung aus dem Pool oder bauen selbst eine auf.
+ * Schlägt der Aufbau fehl, erhalten sie denselben Fehler.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectionPool {
+
+	/**
+	 * Eintrag des Pools
+	 */
+	private static class Entry {
+
+		RemoteConnection connection;
+
+		/**
+		 * Bezeichner, mit dem die Verbindung aufgebaut wurde
+		 */
+		String identifier;
+
+		/**
+		 * Adresse der Gegenseite
+		 */
+		String address;
+
+		boolean inUse;
+
+		/**
+		 * Zeitpunkt der letzten Freigabe
+		 */
+		long lastUsed;
+
+		boolean matches( String id ) {
+			return id.equals(this.identifier) || id.equals(this.address);
+		}
+	}
+
+	/**
+	 * Laufender Verbindungsaufbau
+	 */
+	private static class Dial {
+
+		/**
+		 * Bezeichner, zu dem die Verbindung aufgebaut wird
+		 */
+		String identifier;
+
+		boolean done;
+
+		boolean failed;
+	}
+
+
+	/**
+	 * Vorlage für neue Verbindungen
+	 */
+	private final RemoteConnection prototype;
+
+	/**
+	 * Maximale Anzahl gleichzeitiger Verbindungen
+	 */
+	private final int maxConnections;
+
+	/**
+	 * Zeit in Millisekunden, nach der unbenutzte Verbindungen getrennt werden
+	 */
+	private final int idleTimeout;
+
+	/**
+	 * Die Einträge des Pools
+	 */
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Laufende Verbindungsaufbauten. Sie belegen bereits einen Platz des
+	 * Pools.
+	 */
+	private final ArrayList<Dial> dials = new ArrayList<Dial>();
+
+	/**
+	 * Erzeugt einen Pool.
+	 *
+	 * @param prototype Vorlage für neue Verbindungen
+	 * @param maxConnections Maximale Anzahl gleichzeitiger Verbindungen
+	 * @param idleTimeout Zeit in Millisekunden, nach der unbenutzte
+	 *        Verbindungen getrennt werden, oder <code>0</code> um sie bis
+	 *        {@link #close()} offen zu halten
+	 */
+	public ConnectionPool( RemoteConnection prototype, int maxConnections,
+			int idleTimeout ) {
+		this.prototype = prototype;
+		this.maxConnections = maxConnections;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Gibt eine Verbindung zum angegebenen Gerät heraus. Liegt im Pool eine
+	 * freie Verbindung zum Gerät, wird diese benutzt, sonst wird eine neue
+	 * aufgebaut.
+	 * <p/>
+	 * Die Verbindung muss nach der Benutzung mit
+	 * {@link #release(RemoteConnection)} zurückgegeben werden.
+	 *
+	 * @param identifier Name oder Adresse des Geräts
+	 * @return Eine aufgebaute Verbindung
+	 * @throws ComException Falls die Verbindung nicht aufgebaut werden kann
+	 *         oder alle Plätze des Pools belegt sind
+	 */
+	public RemoteConnection acquire( String identifier ) throws ComException {
+		ArrayList<RemoteConnection> closing = null;
+		Dial dial = new Dial();
+		dial.identifier = identifier;
+		try {
+			synchronized( this.entries ) {
+				while( true ) {
+					closing = this.evictIdle(closing);
+
+					for( int i = 0; i < this.entries.size(); i++ ) {
+						Entry e = this.entries.get(i);
+						if( !e.inUse && e.matches(identifier) ) {
+							e.inUse = true;
+							return e.connection;
+						}
+					}
+
+					Dial pending = this.findDial(identifier);
+					if( pending == null ) {
+						break;
+					}
+					// Auf den Verbindungsaufbau des anderen Threads warten
+					while( !pending.done ) {
+						try {
+							this.entries.wait();
+						} catch( InterruptedException ex ) {
+							throw new ComException("Interrupted",
+									ComException.CONN);
+						}
+					}
+					if( pending.failed ) {
+						throw new ComException("Connection failed",
+								ComException.CONN);
+					}
+				}
+
+				// Freie Verbindungen werden erst nach dem Aufbau getrennt
+				if( this.entries.size() + this.dials.size()
+						- this.countFree() >= this.maxConnections ) {
+					throw new ComException("Pool exhausted", ComException.CONN);
+				}
+				this.dials.add(dial);
+			}
+		} finally {
+			disconnect(closing);
+		}
+
+		// Verbindungsaufbau ohne Sperre, damit andere Threads den Pool
+		// weiter benutzen können
+		RemoteConnection conn = null;
+		Entry e = null;
+		try {
+			conn = this.prototype.clone();
+			conn.connect(identifier);
+			if( conn.isConnected() ) {
+				e = new Entry();
+				e.connection = conn;
+				e.identifier = identifier;
+				e.address = conn.getRemoteAddress();
+				e.inUse = true;
+			}
+		} finally {
+			synchronized( this.entries ) {
+				this.dials.remove(dial);
+				dial.failed = (e == null);
+				dial.done = true;
+				this.entries.notifyAll();
+
+				// Erst jetzt Platz für die neue Verbindung schaffen
+				if( e != null ) {
+					closing = this.makeRoom(closing);
+					if( !this.isFull() ) {
+						this.entries.add(e);
+					} else {
+						closing = collect(closing, conn);
+						e = null;
+					}
+				}
+			}
+			disconnect(closing);
+		}
+
+		if( dial.failed ) {
+			throw new ComException("Connection failed", ComException.CONN);
+		} else if( e == null ) {
+			throw new ComException("Pool exhausted", ComException.CONN);
+		}
+		return conn;
+	}
+
+	/**
+	 * Nimmt eine bereits aufgebaute Verbindung in den Pool auf, z.B. eine mit
+	 * {@link RemoteConnection#connect(int)} angenommene. Die Verbindung gilt
+	 * danach als benutzt und muss mit {@link #release(RemoteConnection)}
+	 * freigegeben werden.
+	 *
+	 * @param connection
+	 * @throws ComException Falls alle Plätze des Pools belegt sind
+	 */
+	public void add( RemoteConnection connection ) throws ComException {
+		Entry e = new Entry();
+		e.connection = connection;
+		e.address = connection.getRemoteAddress();
+		e.identifier = e.address;
+		e.inUse = true;
+
+		ArrayList<RemoteConnection> closing = null;
+		try {
+			synchronized( this.entries ) {
+				closing = this.evictIdle(closing);
+				closing = this.makeRoom(closing);
+				if( this.isFull() ) {
+					throw new ComException("Pool exhausted", ComException.CONN);
+				}
+				this.entries.add(e);
+			}
+		} finally {
+			disconnect(closing);
+		}
+	}
+
+	/**
+	 * Gibt eine Verbindung zur Wiederverwendung frei. Getrennte Verbindungen
+	 * werden aus dem Pool entfernt.
+	 *
+	 * @param connection
+	 */
+	public void release( RemoteConnection connection ) {
+		ArrayList<RemoteConnection> closing = null;
+		synchronized( this.entries ) {
+			for( int i = 0; i < this.entries.size(); i++ ) {
+				Entry e = this.entries.get(i);
+				if( e.connection == connection ) {
+					if( connection.isConnected() ) {
+						e.inUse = false;
+						e.lastUsed = System.currentTimeMillis();
+					} else {
+						this.entries.remove(i);
+					}
+					break;
+				}
+			}
+			closing = this.evictIdle(closing);
+		}
+		disconnect(closing);
+	}
+
+	/**
+	 * Entfernt eine Verbindung aus dem Pool und trennt sie, z.B. nach einem
+	 * Übertragungsfehler.
+	 *
+	 * @param connection
+	 */
+	public void discard( RemoteConnection connection ) {
+		synchronized( this.entries ) {
+			for( int i = 0; i < this.entries.size(); i++ ) {
+				if( this.entries.get(i).connection == connection ) {
+					this.entries.remove(i);
+					break;
+				}
+			}
+		}
+		if( connection.isConnected() ) {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * @return Anzahl der Verbindungen im Pool
+	 */
+	public int size() {
+		ArrayList<RemoteConnection> closing = null;
+		try {
+			synchronized( this.entries ) {
+				closing = this.evictIdle(closing);
+				return this.entries.size();
+			}
+		} finally {
+			disconnect(closing);
+		}
+	}
+
+	/**
+	 * Trennt alle Verbindungen im Pool, auch benutzte.
+	 */
+	public void close() {
+		ArrayList<RemoteConnection> closing = null;
+		synchronized( this.entries ) {
+			for( int i = 0; i < this.entries.size(); i++ ) {
+				closing = collect(closing, this.entries.get(i).connection);
+			}
+			this.entries.clear();
+		}
+		disconnect(closing);
+	}
+
+	/**
+	 * Entfernt freie Verbindungen, die länger als die eingestellte Zeit
+	 * unbenutzt waren oder von der Gegenseite getrennt wurden. Muss mit
+	 * gehaltener Sperre aufgerufen werden.
+	 *
+	 * @param closing Nimmt die nach dem Freigeben der Sperre zu trennenden
+	 *        Verbindungen auf oder <code>null</code>
+	 * @return <code>closing</code> oder eine neue Liste, falls
+	 *         <code>closing</code> <code>null</code> war und eine Verbindung
+	 *         entfernt wurde
+	 */
+	private ArrayList<RemoteConnection> evictIdle(
+			ArrayList<RemoteConnection> closing ) {
+		long now = System.currentTimeMillis();
+		for( int i = this.entries.size() - 1; i >= 0; i-- ) {
+			Entry e = this.entries.get(i);
+			if( e.inUse ) {
+				continue;
+			}
+			if( !e.connection.isConnected() ) {
+				this.entries.remove(i);
+			} else if( this.idleTimeout > 0
+					&& now - e.lastUsed > this.idleTimeout ) {
+				Console.dbg.println("pool: evict");
+				this.entries.remove(i);
+				closing = collect(closing, e.connection);
+			}
+		}
+		return closing;
+	}
+
+	/**
+	 * Entfernt die am längsten unbenutzte freie Verbindung. Muss mit
+	 * gehaltener Sperre aufgerufen werden.
+	 *
+	 * @return Die nach dem Freigeben der Sperre zu trennende Verbindung oder
+	 *         <code>null</code>, wenn keine Verbindung frei ist
+	 */
+	private RemoteConnection evictOldest() {
+		int oldest = -1;
+		for( int i = 0; i < this.entries.size(); i++ ) {
+			Entry e = this.entries.get(i);
+			if( !e.inUse && (oldest < 0
+					|| e.lastUsed < this.entries.get(oldest).lastUsed) ) {
+				oldest = i;
+			}
+		}
+		if( oldest < 0 ) {
+			return null;
+		}
+
+		Console.dbg.println("pool: evict");
+		return this.entries.remove(oldest).connection;
+	}
+
+	/**
+	 * Entfernt die am längsten unbenutzten freien Verbindungen, bis ein Platz
+	 * für eine weitere Verbindung frei ist. Ob das gelungen ist, zeigt
+	 * anschließend {@link #isFull()}. Muss mit gehaltener Sperre aufgerufen
+	 * werden.
+	 *
+	 * @param closing Nimmt die nach dem Freigeben der Sperre zu trennenden
+	 *        Verbindungen auf oder <code>null</code>
+	 * @return <code>closing</code> oder eine neue Liste, falls
+	 *         <code>closing</code> <code>null</code> war und eine Verbindung
+	 *         entfernt wurde
+	 */
+	private ArrayList<RemoteConnection> makeRoom(
+			ArrayList<RemoteConnection> closing ) {
+		while( this.isFull() ) {
+			RemoteConnection oldest = this.evictOldest();
+			if( oldest == null ) {
+				break;
+			}
+			closing = collect(closing, oldest);
+		}
+		return closing;
+	}
+
+	/**
+	 * @return <code>true</code> wenn alle Plätze des Pools belegt sind. Muss
+	 *         mit gehaltener Sperre aufgerufen werden.
+	 */
+	private boolean isFull() {
+		return this.entries.size() + this.dials.size() >= this.maxConnections;
+	}
+
+	/**
+	 * @return Anzahl der freien Verbindungen. Muss mit gehaltener Sperre
+	 *         aufgerufen werden.
+	 */
+	private int countFree() {
+		int free = 0;
+		for( int i = 0; i < this.entries.size(); i++ ) {
+			if( !this.entries.get(i).inUse ) {
+				free++;
+			}
+		}
+		return free;
+	}
+
+	/**
+	 * Sucht den laufenden Verbindungsaufbau zum Bezeichner. Muss mit
+	 * gehaltener Sperre aufgerufen werden.
+	 *
+	 * @param identifier
+	 * @return <code>null</code> wenn keiner läuft
+	 */
+	private Dial findDial( String identifier ) {
+		for( int i = 0; i < this.dials.size(); i++ ) {
+			Dial d = this.dials.get(i);
+			if( d.identifier.equals(identifier) ) {
+				return d;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fügt eine zu trennende Verbindung hinzu. Die Liste wird erst angelegt,
+	 * wenn tatsächlich eine Verbindung getrennt werden muss.
+	 *
+	 * @param closing Die bisherige Liste oder <code>null</code>
+	 * @param conn
+	 * @return Die Liste mit der Verbindung
+	 */
+	private static ArrayList<RemoteConnection> collect(
+			ArrayList<RemoteConnection> closing, RemoteConnection conn ) {
+		if( closing == null ) {
+			closing = new ArrayList<RemoteConnection>(2);
+		}
+		closing.add(conn);
+		return closing;
+	}
+
+	/**
+	 * Trennt die Verbindungen. Darf nur ohne gehaltene Sperre aufgerufen
+	 * werden.
+	 *
+	 * @param closing Die zu trennenden Verbindungen oder <code>null</code>
+	 */
+	private static void disconnect( ArrayList<RemoteConnection> closing ) {
+		if( closing == null ) {
+			return;
+		}
+		for( int i = 0; i < closing.size(); i++ ) {
+			RemoteConnection conn = closing.get(i);
+			if( conn.isConnected() ) {
+				conn.disconnect();
+			}
+		}
+		closing.clear();
+	}
+
+}
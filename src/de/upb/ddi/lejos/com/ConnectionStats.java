@@ -0,0 +1,187 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Laufende Messwerte einer Verbindung. Gezählt werden Nachrichten, also
+ * Aufrufe der <code>send*</code>- und <code>receive*</code>-Methoden, und die
+ * tatsächlich übertragenen Bytes je Richtung, die Leervorgänge der
+ * Verbindung und die aufgetretenen Fehler nach
+ * {@link ComException#getType() Fehlercode}. Zusätzlich wird die Dauer jedes
+ * Sende- und Empfangsvorgangs in einem {@link LatencyHistogram} erfasst.
+ * <p/>
+ * Alle Zähler werden ohne Speicheranforderung aktualisiert und können daher
+ * im normalen Betrieb aktiv bleiben. Die Werte bleiben über mehrere
+ * Verbindungen desselben Objekts erhalten, bis {@link #reset()} aufgerufen
+ * wird.
+ * <p/>
+ * Die Zähler werden von mehreren Threads der Verbindung erhöht, z.B. die
+ * Bytes vom Sende- und Lese-Thread der asynchronen Ströme. Jede Änderung
+ * geschieht daher unter einer kurzen Sperre auf dem Objekt, sodass kein
+ * Schritt verloren geht. Mehrere nacheinander gelesene Werte bilden aber
+ * keinen zusammenhängenden Schnappschuss.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectionStats {
+
+	/**
+	 * Anzahl der unterschiedenen Fehlercodes.
+	 */
+	private static final int FAILURE_TYPES = 4;
+
+
+	private int messagesSent = 0;
+
+	private int messagesReceived = 0;
+
+	private long bytesSent = 0;
+
+	private long bytesReceived = 0;
+
+	private int flushes = 0;
+
+	private int dropped = 0;
+
+	private final int[] failures = new int[FAILURE_TYPES];
+
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+
+	private final LatencyHistogram receiveLatency = new LatencyHistogram();
+
+	/**
+	 * Erfasst einen abgeschlossenen Sendevorgang.
+	 *
+	 * @param start Startzeit aus {@link System#nanoTime()}
+	 */
+	void recordSend( long start ) {
+		synchronized( this ) {
+			this.messagesSent++;
+		}
+		this.sendLatency.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Erfasst einen abgeschlossenen Empfangsvorgang.
+	 *
+	 * @param start Startzeit aus {@link System#nanoTime()}
+	 */
+	void recordReceive( long start ) {
+		synchronized( this ) {
+			this.messagesReceived++;
+		}
+		this.receiveLatency.record(System.nanoTime() - start);
+	}
+
+	synchronized void addBytesSent( int n ) {
+		this.bytesSent += n;
+	}
+
+	synchronized void addBytesReceived( int n ) {
+		this.bytesReceived += n;
+	}
+
+	synchronized void addFlush() {
+		this.flushes++;
+	}
+
+	synchronized void addDropped() {
+		this.dropped++;
+	}
+
+	synchronized void addFailure( int type ) {
+		if( type >= 0 && type < FAILURE_TYPES ) {
+			this.failures[type]++;
+		}
+	}
+
+	/**
+	 * @return Anzahl der gesendeten Nachrichten
+	 */
+	public synchronized int getMessagesSent() {
+		return this.messagesSent;
+	}
+
+	/**
+	 * @return Anzahl der empfangenen Nachrichten
+	 */
+	public synchronized int getMessagesReceived() {
+		return this.messagesReceived;
+	}
+
+	/**
+	 * @return Anzahl der an die Verbindung übergebenen Bytes
+	 */
+	public synchronized long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	/**
+	 * @return Anzahl der von der Verbindung gelesenen Bytes
+	 */
+	public synchronized long getBytesReceived() {
+		return this.bytesReceived;
+	}
+
+	/**
+	 * @return Anzahl der Leervorgänge der Verbindung, also in der Regel der
+	 *         versendeten Pakete
+	 */
+	public synchronized int getFlushes() {
+		return this.flushes;
+	}
+
+	/**
+	 * @return Anzahl der beim asynchronen Versand wegen voller Warteschlange
+	 *         verworfenen Nachrichten
+	 */
+	public synchronized int getDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * Gibt die Anzahl der Fehler eines Typs zurück.
+	 *
+	 * @param type Fehlercode, z.B. {@link ComException#SEND}
+	 * @return
+	 */
+	public synchronized int getFailures( int type ) {
+		if( type >= 0 && type < FAILURE_TYPES ) {
+			return this.failures[type];
+		}
+		return 0;
+	}
+
+	/**
+	 * @return Dauer der Sendevorgänge
+	 */
+	public LatencyHistogram getSendLatency() {
+		return this.sendLatency;
+	}
+
+	/**
+	 * @return Dauer der Empfangsvorgänge
+	 */
+	public LatencyHistogram getReceiveLatency() {
+		return this.receiveLatency;
+	}
+
+	/**
+	 * Setzt alle Werte zurück.
+	 */
+	public void reset() {
+		synchronized( this ) {
+			this.messagesSent = 0;
+			this.messagesReceived = 0;
+			this.bytesSent = 0;
+			this.bytesReceived = 0;
+			this.flushes = 0;
+			this.dropped = 0;
+			for( int i = 0; i < FAILURE_TYPES; i++ ) {
+				this.failures[i] = 0;
+			}
+		}
+		this.sendLatency.reset();
+		this.receiveLatency.reset();
+	}
+
+}
@@ -0,0 +1,65 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Eingabestrom, der die gelesenen Bytes in den {@link ConnectionStats}
+ * einer Verbindung zählt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+class CountingInputStream extends InputStream {
+
+	/**
+	 * Der gezählte Strom
+	 */
+	private final InputStream source;
+
+	/**
+	 * Ziel der Zählung
+	 */
+	private final ConnectionStats stats;
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param source Der gezählte Strom
+	 * @param stats Ziel der Zählung
+	 */
+	CountingInputStream( InputStream source, ConnectionStats stats ) {
+		this.source = source;
+		this.stats = stats;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return this.source.available();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = this.source.read();
+		if( b >= 0 ) {
+			this.stats.addBytesReceived(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read( byte[] dst, int off, int len ) throws IOException {
+		int n = this.source.read(dst, off, len);
+		if( n > 0 ) {
+			this.stats.addBytesReceived(n);
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.source.close();
+	}
+
+}
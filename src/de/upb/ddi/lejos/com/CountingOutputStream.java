@@ -0,0 +1,60 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Ausgabestrom, der die geschriebenen Bytes und die Leervorgänge in den
+ * {@link ConnectionStats} einer Verbindung zählt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+class CountingOutputStream extends OutputStream {
+
+	/**
+	 * Der gezählte Strom
+	 */
+	private final OutputStream target;
+
+	/**
+	 * Ziel der Zählung
+	 */
+	private final ConnectionStats stats;
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param target Der gezählte Strom
+	 * @param stats Ziel der Zählung
+	 */
+	CountingOutputStream( OutputStream target, ConnectionStats stats ) {
+		this.target = target;
+		this.stats = stats;
+	}
+
+	@Override
+	public void write( int b ) throws IOException {
+		this.target.write(b);
+		this.stats.addBytesSent(1);
+	}
+
+	@Override
+	public void write( byte[] src, int off, int len ) throws IOException {
+		this.target.write(src, off, len);
+		this.stats.addBytesSent(len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.target.flush();
+		this.stats.addFlush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.target.close();
+	}
+
+}
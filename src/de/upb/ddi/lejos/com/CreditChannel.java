@@ -0,0 +1,487 @@
+package de.upb.ddi.lejos.com;
+
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Nachrichtenkanal mit Flusskontrolle über Sendeerlaubnisse (Credits). Ein
+ * schneller Sender kann so einen langsamen Empfänger, z.B. einen NXT mit
+ * seinen kleinen Puffern, nicht überfahren.
+ * <p/>
+ * Der Empfänger legt eingehende Frames in einer Warteschlange fester Länge ab
+ * und erteilt der Gegenseite zu Beginn so viele Credits, wie die Warteschlange
+ * Frames fasst. Jeder gesendete Frame verbraucht einen Credit. Holt die
+ * Anwendung Frames mit {@link #receive(Frame)} ab, werden die freien Plätze
+ * gesammelt und als neue Credits zurückgemeldet, sobald die Hälfte der
+ * Warteschlange frei ist. Die Warteschlange kann daher nie überlaufen, und der
+ * Sender muss nicht mit festen Pausen gebremst werden.
+ * <p/>
+ * <pre>
+ * CreditChannel cc = new CreditChannel(new MessageChannel(conn));
+ * cc.start();
+ * cc.send(frame);
+ * </pre>
+ * <p/>
+ * Sind alle Credits verbraucht, blockiert {@link #send(Frame)}, bis die
+ * Gegenseite neue erteilt. Wer nicht warten möchte, benutzt
+ * {@link #trySend(Frame)} oder {@link #send(Frame, int)} mit einer Wartezeit.
+ * <p/>
+ * Credits werden mit {@link MessageChannel#TYPE_CREDIT} und der Anzahl
+ * zusätzlicher Frames als 16-Bit-Zahl erteilt. Die Größe der Warteschlange
+ * muss auf beiden Seiten nicht übereinstimmen.
+ * <p/>
+ * Die Flusskontrolle setzt voraus, dass unterhalb kein Frame verloren geht:
+ * Ein verlorener Frame würde seinen Credit nie zurückgeben, ein verlorener
+ * Credit das Fenster dauerhaft verkleinern. Ein {@link VirtualChannel} muss
+ * deshalb {@link VirtualChannel#isBlocking() blockierend} geöffnet sein;
+ * seine eigene Flusskontrolle verhindert dann, dass der {@link Multiplexer}
+ * Frames verwirft. Frames, die unterwegs als zu groß übersprungen werden,
+ * geben ihren Credit an die Gegenseite zurück. Gemeldet wird er wie jeder
+ * andere Credit von {@link #receive(Frame)}, denn der Empfangs-Thread selbst
+ * sendet nie: Würde er beim Senden blockieren, könnte er die Credits der
+ * Gegenseite nicht mehr lesen.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class CreditChannel implements Runnable {
+
+	/**
+	 * Standardlänge der Warteschlange und damit der anfänglichen Credits.
+	 */
+	public static final int DEFAULT_WINDOW = 8;
+
+	/**
+	 * Höchstzahl der Credits in einer einzelnen Nachricht
+	 */
+	private static final int MAX_GRANT = 0xFFFF;
+
+
+	/**
+	 * Der zugrundeliegende Kanal
+	 */
+	protected final MessageChannel channel;
+
+	/**
+	 * Warteschlange empfangener Frames
+	 */
+	private final Frame[] received;
+
+	/**
+	 * Index des ältesten Frames in {@link #received}
+	 */
+	private int receivedStart = 0;
+
+	/**
+	 * Anzahl der Frames in {@link #received}
+	 */
+	private int receivedCount = 0;
+
+	/**
+	 * Verbleibende Credits für das Senden
+	 */
+	private int credits = 0;
+
+	/**
+	 * Freigewordene, der Gegenseite noch nicht gemeldete Plätze
+	 */
+	private int ungranted = 0;
+
+	/**
+	 * Anzahl verworfener Frames, für die die Gegenseite keinen Credit hatte
+	 */
+	private int dropped = 0;
+
+	/**
+	 * Anzahl der Sendevorgänge, die auf Credits warten mussten
+	 */
+	private int stalls = 0;
+
+	/**
+	 * Fehler, mit dem der Kanal beendet wurde
+	 */
+	private ComException failure = null;
+
+	/**
+	 * Frame für Credits
+	 */
+	private final Frame control = new Frame(2);
+
+	/**
+	 * Frame für eingehende Nachrichten, wird nur vom Empfangs-Thread benutzt
+	 */
+	private final Frame incoming;
+
+	/**
+	 * Der Empfangs-Thread
+	 */
+	private Thread thread = null;
+
+	/**
+	 * Erzeugt einen Kanal mit einer Warteschlange von {@link #DEFAULT_WINDOW}
+	 * Frames der {@link Frame#DEFAULT_CAPACITY Standardgröße}.
+	 *
+	 * @param channel
+	 */
+	public CreditChannel( MessageChannel channel ) {
+		this(channel, DEFAULT_WINDOW, Frame.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Erzeugt einen Kanal.
+	 *
+	 * @param channel Ein {@link VirtualChannel} muss blockierend sein
+	 * @param window Länge der Warteschlange, entspricht den anfänglichen
+	 *        Credits der Gegenseite
+	 * @param capacity Maximale Länge eines Frames in Bytes
+	 */
+	public CreditChannel( MessageChannel channel, int window, int capacity ) {
+		if( channel instanceof VirtualChannel
+				&& !((VirtualChannel) channel).isBlocking() ) {
+			throw new IllegalArgumentException("Lossy channel");
+		}
+		this.channel = channel;
+		this.received = new Frame[Math.max(1, Math.min(window, MAX_GRANT))];
+		for( int i = 0; i < this.received.length; i++ ) {
+			this.received[i] = new Frame(capacity);
+		}
+		this.incoming = new Frame(capacity);
+	}
+
+	/**
+	 * @return Der zugrundeliegende Kanal
+	 */
+	public MessageChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * @return Anzahl der Frames, die ohne Warten verschickt werden können
+	 */
+	public synchronized int getCredits() {
+		return this.credits;
+	}
+
+	/**
+	 * @return Anzahl der empfangenen, noch nicht abgeholten Frames
+	 */
+	public synchronized int available() {
+		return this.receivedCount;
+	}
+
+	/**
+	 * @return Anzahl der Sendevorgänge, die auf Credits warten mussten oder
+	 *         abgewiesen wurden
+	 */
+	public synchronized int getStalls() {
+		return this.stalls;
+	}
+
+	/**
+	 * @return Anzahl verworfener Frames, die die Gegenseite ohne Credit
+	 *         geschickt hat oder die zu groß waren
+	 */
+	public synchronized int getDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * Startet den Empfangs-Thread. Dieser erteilt der Gegenseite die
+	 * anfänglichen Credits. Die Verbindung muss dazu aufgebaut sein.
+	 */
+	public synchronized void start() {
+		if( this.thread == null ) {
+			this.thread = new Thread(this);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+	}
+
+	/**
+	 * Verschickt einen Frame. Sind keine Credits vorhanden, wird gewartet,
+	 * bis die Gegenseite neue erteilt.
+	 *
+	 * @param frame Frame mit einem Typ bis {@link MessageChannel#MAX_TYPE}
+	 * @throws ComException Falls ein Verbindungsfehler auftritt oder der Kanal
+	 *         geschlossen wurde
+	 */
+	public void send( Frame frame ) throws ComException {
+		this.send(frame, 0);
+	}
+
+	/**
+	 * Verschickt einen Frame und wartet höchstens die angegebene Zeit auf
+	 * einen Credit.
+	 *
+	 * @param frame Frame mit einem Typ bis {@link MessageChannel#MAX_TYPE}
+	 * @param timeout Maximale Wartezeit in Millisekunden oder <code>0</code>
+	 *        für unbegrenztes Warten
+	 * @throws ComException Falls ein Verbindungsfehler auftritt, der Kanal
+	 *         geschlossen wurde oder die Wartezeit abgelaufen ist
+	 */
+	public void send( Frame frame, int timeout ) throws ComException {
+		this.checkType(frame);
+		synchronized( this ) {
+			long end = System.currentTimeMillis() + timeout;
+			if( this.credits == 0 ) {
+				this.stalls++;
+			}
+			while( this.credits == 0 ) {
+				this.checkFailure();
+
+				long remaining = end - System.currentTimeMillis();
+				if( timeout > 0 && remaining <= 0 ) {
+					throw new ComException("Send timed out",
+							ComException.TIMEOUT);
+				}
+				try {
+					this.wait(timeout > 0 ? remaining : 0);
+				} catch( InterruptedException ex ) {
+					throw new ComException("Interrupted", ComException.SEND);
+				}
+			}
+			this.checkFailure();
+			this.credits--;
+		}
+		this.channel.send(frame);
+	}
+
+	/**
+	 * Verschickt einen Frame, sofern ein Credit vorhanden ist. Blockiert nicht
+	 * auf die Gegenseite.
+	 *
+	 * @param frame Frame mit einem Typ bis {@link MessageChannel#MAX_TYPE}
+	 * @return <code>false</code> wenn keine Credits vorhanden sind und der
+	 *         Frame nicht verschickt wurde
+	 * @throws ComException Falls ein Verbindungsfehler auftritt oder der Kanal
+	 *         geschlossen wurde
+	 */
+	public boolean trySend( Frame frame ) throws ComException {
+		this.checkType(frame);
+		synchronized( this ) {
+			this.checkFailure();
+			if( this.credits == 0 ) {
+				this.stalls++;
+				return false;
+			}
+			this.credits--;
+		}
+		this.channel.send(frame);
+		return true;
+	}
+
+	/**
+	 * Holt den nächsten Frame aus der Warteschlange. Die Methode blockiert,
+	 * bis ein Frame eingetroffen ist.
+	 *
+	 * @param frame Frame, in den die Nachricht kopiert wird
+	 * @return Typ der Nachricht
+	 * @throws ComException Falls die Verbindung abgebrochen oder der Kanal
+	 *         geschlossen wurde oder der Frame zu klein ist
+	 */
+	public int receive( Frame frame ) throws ComException {
+		return this.receive(frame, 0);
+	}
+
+	/**
+	 * Holt den nächsten Frame aus der Warteschlange und meldet den frei
+	 * gewordenen Platz bei Bedarf als Credit an die Gegenseite.
+	 *
+	 * @param frame Frame, in den die Nachricht kopiert wird
+	 * @param timeout Maximale Wartezeit in Millisekunden oder <code>0</code>
+	 *        für unbegrenztes Warten
+	 * @return Typ der Nachricht
+	 * @throws ComException Falls die Verbindung abgebrochen oder der Kanal
+	 *         geschlossen wurde, die Wartezeit abgelaufen ist oder der Frame
+	 *         zu klein ist
+	 */
+	public int receive( Frame frame, int timeout ) throws ComException {
+		boolean tooLarge;
+		long end = System.currentTimeMillis() + timeout;
+		while( true ) {
+			// Credits übersprungener Frames nachreichen
+			this.grant(false);
+
+			synchronized( this ) {
+				if( this.receivedCount > 0 ) {
+					Frame next = this.received[this.receivedStart];
+					this.receivedStart = (this.receivedStart + 1)
+							% this.received.length;
+					this.receivedCount--;
+					this.ungranted++;
+
+					tooLarge = (next.length > frame.data.length);
+					if( !tooLarge ) {
+						frame.copyFrom(next);
+					}
+					break;
+				}
+				this.checkFailure();
+				if( this.isGrantDue() ) {
+					continue;
+				}
+
+				long remaining = end - System.currentTimeMillis();
+				if( timeout > 0 && remaining <= 0 ) {
+					throw new ComException("Receive timed out",
+							ComException.TIMEOUT);
+				}
+				try {
+					this.wait(timeout > 0 ? remaining : 0);
+				} catch( InterruptedException ex ) {
+					throw new ComException("Interrupted", ComException.RECV);
+				}
+			}
+		}
+
+		this.grant(false);
+		if( tooLarge ) {
+			throw new ComException("Frame too large", ComException.RECV);
+		}
+		return frame.type;
+	}
+
+	/**
+	 * Schließt den Kanal. Wartende Sender und Empfänger erhalten eine
+	 * {@link ComException}. Die Verbindung bleibt bestehen.
+	 */
+	public void close() {
+		this.fail(new ComException("Channel closed", ComException.CONN));
+	}
+
+	/**
+	 * @param frame
+	 * @throws ComException Falls der Typ für Steuer-Nachrichten reserviert
+	 *         ist
+	 */
+	private void checkType( Frame frame ) throws ComException {
+		if( frame.type > MessageChannel.MAX_TYPE ) {
+			throw new ComException("Reserved type", ComException.SEND);
+		}
+	}
+
+	/**
+	 * @throws ComException Falls der Kanal beendet wurde
+	 */
+	private void checkFailure() throws ComException {
+		if( this.failure != null ) {
+			throw this.failure;
+		}
+	}
+
+	/**
+	 * Beendet den Kanal mit einem Fehler. Bereits empfangene Frames können
+	 * noch abgeholt werden.
+	 *
+	 * @param ex
+	 */
+	private synchronized void fail( ComException ex ) {
+		if( this.failure == null ) {
+			this.failure = ex;
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Meldet frei gewordene Plätze als Credits an die Gegenseite. Gesammelt
+	 * wird, bis die Hälfte der Warteschlange frei ist, damit nicht jeder
+	 * abgeholte Frame eine eigene Nachricht kostet.
+	 *
+	 * @param force Ob auch weniger Plätze gemeldet werden
+	 */
+	private void grant( boolean force ) {
+		synchronized( this.control ) {
+			int n;
+			synchronized( this ) {
+				n = this.ungranted;
+				if( n == 0 || (!force && !this.isGrantDue())
+						|| this.failure != null ) {
+					return;
+				}
+				this.ungranted = 0;
+			}
+
+			this.control.reset(MessageChannel.TYPE_CREDIT);
+			this.control.putByte(n >>> 8);
+			this.control.putByte(n);
+			try {
+				this.channel.send(this.control, MessageChannel.PRIORITY_HIGH);
+			} catch( ComException ex ) {
+				this.fail(ex);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> wenn die Hälfte der Warteschlange frei ist
+	 *         und der Gegenseite gemeldet werden sollte. Muss mit gehaltener
+	 *         Sperre aufgerufen werden.
+	 */
+	private boolean isGrantDue() {
+		return this.ungranted >= (this.received.length + 1) / 2
+				&& this.failure == null;
+	}
+
+	/**
+	 * Legt einen empfangenen Frame in die Warteschlange oder verwirft ihn,
+	 * falls die Gegenseite ohne Credit gesendet hat.
+	 *
+	 * @param f
+	 */
+	private synchronized void deliver( Frame f ) {
+		if( this.receivedCount == this.received.length ) {
+			this.dropped++;
+			return;
+		}
+
+		this.received[(this.receivedStart + this.receivedCount)
+				% this.received.length].copyFrom(f);
+		this.receivedCount++;
+		this.notifyAll();
+	}
+
+	/**
+	 * Fügt von der Gegenseite erteilte Credits hinzu.
+	 *
+	 * @param n
+	 */
+	private synchronized void addCredits( int n ) {
+		this.credits += n;
+		this.notifyAll();
+	}
+
+	public void run() {
+		synchronized( this ) {
+			this.ungranted = this.received.length;
+		}
+		this.grant(true);
+
+		Frame f = this.incoming;
+		while( true ) {
+			try {
+				this.channel.receive(f);
+			} catch( ComException ex ) {
+				if( this.channel.wasSkipped() ) {
+					// Zu großer Frame, sein Credit geht beim nächsten
+					// receive() an die Gegenseite zurück
+					synchronized( this ) {
+						this.dropped++;
+						this.ungranted++;
+						this.notifyAll();
+					}
+					continue;
+				}
+				this.fail(ex);
+				break;
+			}
+
+			if( f.type == MessageChannel.TYPE_CREDIT && f.length >= 2 ) {
+				this.addCredits(((f.data[0] & 0xFF) << 8) | (f.data[1] & 0xFF));
+			} else if( f.type <= MessageChannel.MAX_TYPE ) {
+				this.deliver(f);
+			}
+		}
+		Console.dbg.println("credit: stopped");
+	}
+
+}
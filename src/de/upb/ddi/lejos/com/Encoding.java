@@ -0,0 +1,218 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Hilfsklasse zum Kodieren primitiver Werte in Byte-Arrays und zurück. Die
+ * Methoden arbeiten direkt auf vom Aufrufer bereitgestellten Puffern und
+ * erzeugen keine neuen Objekte. Mehrbyte-Werte werden wie bei
+ * {@link java.io.DataOutputStream} in Big-Endian Reihenfolge abgelegt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public final class Encoding {
+
+	/**
+	 * Privater Konstruktor.
+	 */
+	private Encoding() {
+	}
+
+	/**
+	 * Schreibt einen Integer in einen Puffer.
+	 *
+	 * @param buf Zielpuffer
+	 * @param off Position im Puffer
+	 * @param value
+	 * @return Position hinter dem geschriebenen Wert
+	 */
+	public static int putInt( byte[] buf, int off, int value ) {
+		buf[off] = (byte) (value >>> 24);
+		buf[off + 1] = (byte) (value >>> 16);
+		buf[off + 2] = (byte) (value >>> 8);
+		buf[off + 3] = (byte) value;
+		return off + 4;
+	}
+
+	/**
+	 * Liest einen Integer aus einem Puffer.
+	 *
+	 * @param buf Quellpuffer
+	 * @param off Position im Puffer
+	 * @return Der gelesene Wert
+	 */
+	public static int getInt( byte[] buf, int off ) {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+				| ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+	}
+
+	/**
+	 * Schreibt einen Long-Wert in einen Puffer.
+	 *
+	 * @param buf Zielpuffer
+	 * @param off Position im Puffer
+	 * @param value
+	 * @return Position hinter dem geschriebenen Wert
+	 */
+	public static int putLong( byte[] buf, int off, long value ) {
+		putInt(buf, off, (int) (value >>> 32));
+		return putInt(buf, off + 4, (int) value);
+	}
+
+	/**
+	 * Liest einen Long-Wert aus einem Puffer.
+	 *
+	 * @param buf Quellpuffer
+	 * @param off Position im Puffer
+	 * @return Der gelesene Wert
+	 */
+	public static long getLong( byte[] buf, int off ) {
+		return ((long) getInt(buf, off) << 32)
+				| (getInt(buf, off + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Schreibt einen vorzeichenlosen Integer als Varint (LEB128) in einen
+	 * Puffer. Jedes Byte trägt sieben Bit des Werts, das höchste Bit zeigt an,
+	 * ob weitere Bytes folgen. Werte unter 128 belegen so nur ein Byte,
+	 * höchstens werden fünf Bytes benötigt.
+	 *
+	 * @param buf Zielpuffer
+	 * @param off Position im Puffer
+	 * @param value
+	 * @return Position hinter dem geschriebenen Wert
+	 */
+	public static int putVarInt( byte[] buf, int off, int value ) {
+		while( (value & ~0x7F) != 0 ) {
+			buf[off++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[off++] = (byte) value;
+		return off;
+	}
+
+	/**
+	 * Berechnet die Anzahl der Bytes, die ein vorzeichenloser Integer als
+	 * Varint belegt.
+	 *
+	 * @param value
+	 * @return Anzahl der Bytes (1 bis 5)
+	 */
+	public static int varIntSize( int value ) {
+		int size = 1;
+		while( (value & ~0x7F) != 0 ) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Schreibt einen vorzeichenlosen Long-Wert als Varint (LEB128) in einen
+	 * Puffer. Es werden höchstens zehn Bytes benötigt.
+	 *
+	 * @param buf Zielpuffer
+	 * @param off Position im Puffer
+	 * @param value
+	 * @return Position hinter dem geschriebenen Wert
+	 * @see #putVarInt(byte[], int, int)
+	 */
+	public static int putVarLong( byte[] buf, int off, long value ) {
+		while( (value & ~0x7FL) != 0 ) {
+			buf[off++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[off++] = (byte) value;
+		return off;
+	}
+
+	/**
+	 * ZigZag-Kodierung eines vorzeichenbehafteten Integers. Betragsmäßig
+	 * kleine Werte werden unabhängig vom Vorzeichen auf kleine
+	 * vorzeichenlose Werte abgebildet (0, -1, 1, -2, ... auf 0, 1, 2, 3,
+	 * ...), sodass sie als Varint nur wenige Bytes belegen.
+	 *
+	 * @param value
+	 * @return Der kodierte Wert
+	 */
+	public static int zigzag( int value ) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	/**
+	 * Umkehrung von {@link #zigzag(int)}.
+	 *
+	 * @param value
+	 * @return Der dekodierte Wert
+	 */
+	public static int unzigzag( int value ) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * ZigZag-Kodierung eines vorzeichenbehafteten Long-Werts.
+	 *
+	 * @param value
+	 * @return Der kodierte Wert
+	 * @see #zigzag(int)
+	 */
+	public static long zigzag( long value ) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Umkehrung von {@link #zigzag(long)}.
+	 *
+	 * @param value
+	 * @return Der dekodierte Wert
+	 */
+	public static long unzigzag( long value ) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Berechnet die Länge eines Strings in UTF-8 kodierter Form. Zeichen
+	 * außerhalb der Basic Multilingual Plane werden als zwei Surrogate mit je
+	 * drei Bytes gezählt.
+	 *
+	 * @param value
+	 * @return Anzahl der benötigten Bytes
+	 */
+	public static int utf8Length( String value ) {
+		int len = 0;
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if( c < 0x80 ) {
+				len += 1;
+			} else if( c < 0x800 ) {
+				len += 2;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Kodiert ein Zeichen in UTF-8 und schreibt es in einen Puffer. Im Puffer
+	 * müssen mindestens drei Bytes frei sein.
+	 *
+	 * @param buf Zielpuffer
+	 * @param off Position im Puffer
+	 * @param c
+	 * @return Position hinter dem geschriebenen Zeichen
+	 */
+	public static int putUTF8( byte[] buf, int off, char c ) {
+		if( c < 0x80 ) {
+			buf[off++] = (byte) c;
+		} else if( c < 0x800 ) {
+			buf[off++] = (byte) (0xC0 | (c >> 6));
+			buf[off++] = (byte) (0x80 | (c & 0x3F));
+		} else {
+			buf[off++] = (byte) (0xE0 | (c >> 12));
+			buf[off++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[off++] = (byte) (0x80 | (c & 0x3F));
+		}
+		return off;
+	}
+
+}
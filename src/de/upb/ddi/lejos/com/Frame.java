@@ -0,0 +1,400 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Eine typisierte Nachricht für den {@link MessageChannel}. Ein Frame besteht
+ * aus einem Typ und einem Puffer fester Größe für den Inhalt. Werte werden mit
+ * den <code>put*</code>-Methoden nacheinander in den Puffer geschrieben und
+ * auf der Gegenseite in gleicher Reihenfolge mit den <code>get*</code>-Methoden
+ * gelesen.
+ * <p/>
+ * Frames sollten wiederverwendet werden: Mit {@link #reset(int)} wird ein
+ * Frame für eine neue Nachricht geleert, ohne neuen Speicher anzufordern.
+ * <p/>
+ * <pre>
+ * Frame f = new Frame();
+ * f.reset(TYPE_POSITION);
+ * f.putInt(x);
+ * f.putInt(y);
+ * channel.send(f);
+ * </pre>
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class Frame {
+
+	/**
+	 * Standardgröße des Inhalts in Bytes.
+	 */
+	public static final int DEFAULT_CAPACITY = 128;
+
+
+	/**
+	 * Typ der Nachricht
+	 */
+	protected int type;
+
+	/**
+	 * Flags aus dem Frame-Header
+	 */
+	protected int flags;
+
+	/**
+	 * Virtueller Kanal, <code>0</code> ohne Kanal
+	 */
+	protected int channel;
+
+	/**
+	 * Puffer für den Inhalt
+	 */
+	protected final byte[] data;
+
+	/**
+	 * Länge des Inhalts in Bytes
+	 */
+	protected int length;
+
+	/**
+	 * Lese-Position im Inhalt
+	 */
+	protected int position;
+
+	/**
+	 * Erzeugt einen Frame mit der {@link #DEFAULT_CAPACITY Standardgröße}.
+	 */
+	public Frame() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Erzeugt einen Frame mit fester Größe.
+	 *
+	 * @param capacity Maximale Länge des Inhalts in Bytes
+	 */
+	public Frame( int capacity ) {
+		this.data = new byte[Math.min(capacity, MessageChannel.MAX_PAYLOAD)];
+	}
+
+	/**
+	 * Leert den Frame für eine neue Nachricht.
+	 *
+	 * @param type Typ der Nachricht
+	 */
+	public void reset( int type ) {
+		this.type = type;
+		this.flags = 0;
+		this.channel = 0;
+		this.length = 0;
+		this.position = 0;
+	}
+
+	/**
+	 * Setzt die Lese-Position zurück an den Anfang des Inhalts.
+	 */
+	public void rewind() {
+		this.position = 0;
+	}
+
+	/**
+	 * Übernimmt Typ, Kanal und Inhalt eines anderen Frames.
+	 *
+	 * @param other
+	 */
+	public void copyFrom( Frame other ) {
+		this.reset(other.type);
+		this.flags = other.flags;
+		this.channel = other.channel;
+		this.putBytes(other.data, 0, other.length);
+	}
+
+	/**
+	 * @return Typ der Nachricht
+	 */
+	public int getType() {
+		return this.type;
+	}
+
+	/**
+	 * @return Flags aus dem Frame-Header
+	 */
+	public int getFlags() {
+		return this.flags;
+	}
+
+	/**
+	 * Setzt die Flags für den Frame-Header, z.B.
+	 * {@link MessageChannel#FLAG_RAW}. {@link #reset(int)} löscht sie.
+	 *
+	 * @param flags
+	 */
+	public void setFlags( int flags ) {
+		this.flags = flags;
+	}
+
+	/**
+	 * @return Virtueller Kanal der Nachricht oder <code>0</code>
+	 */
+	public int getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Setzt den virtuellen Kanal der Nachricht (siehe {@link Multiplexer}).
+	 * {@link #reset(int)} setzt ihn auf <code>0</code> zurück.
+	 *
+	 * @param channel Kanal von <code>0</code> bis <code>255</code>
+	 */
+	public void setChannel( int channel ) {
+		this.channel = channel & 0xFF;
+	}
+
+	/**
+	 * Gibt den Puffer des Inhalts zurück. Gültig sind die ersten
+	 * {@link #getLength()} Bytes.
+	 *
+	 * @return
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * @return Länge des Inhalts in Bytes
+	 */
+	public int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return Maximale Länge des Inhalts in Bytes
+	 */
+	public int getCapacity() {
+		return this.data.length;
+	}
+
+	/**
+	 * @return Anzahl der noch nicht gelesenen Bytes
+	 */
+	public int remaining() {
+		return this.length - this.position;
+	}
+
+	/**
+	 * Setzt Typ, Flags, Kanal und Länge eines empfangenen Frames, nachdem der
+	 * Inhalt direkt in den Puffer gelesen wurde.
+	 *
+	 * @param type
+	 * @param flags
+	 * @param channel
+	 * @param length
+	 */
+	void setReceived( int type, int flags, int channel, int length ) {
+		this.type = type;
+		this.flags = flags;
+		this.channel = channel;
+		this.length = length;
+		this.position = 0;
+	}
+
+	/**
+	 * Prüft ob noch genug Platz für weitere Bytes ist.
+	 *
+	 * @param n Anzahl der zu schreibenden Bytes
+	 */
+	private void ensureCapacity( int n ) {
+		if( this.length + n > this.data.length ) {
+			throw new IndexOutOfBoundsException("Frame overflow");
+		}
+	}
+
+	/**
+	 * Prüft ob noch genug Bytes zum Lesen vorhanden sind.
+	 *
+	 * @param n Anzahl der zu lesenden Bytes
+	 */
+	private void ensureRemaining( int n ) {
+		if( this.position + n > this.length ) {
+			throw new IndexOutOfBoundsException("Frame underflow");
+		}
+	}
+
+	public void putByte( int value ) {
+		this.ensureCapacity(1);
+		this.data[this.length++] = (byte) value;
+	}
+
+	public void putInt( int value ) {
+		this.ensureCapacity(4);
+		this.length = Encoding.putInt(this.data, this.length, value);
+	}
+
+	public void putLong( long value ) {
+		this.ensureCapacity(8);
+		this.length = Encoding.putLong(this.data, this.length, value);
+	}
+
+	/**
+	 * Schreibt einen Integer ZigZag-kodiert als Varint (siehe
+	 * {@link Encoding#zigzag(int)}). Betragsmäßig kleine Werte belegen so nur
+	 * ein oder zwei Bytes.
+	 *
+	 * @param value
+	 */
+	public void putVarInt( int value ) {
+		value = Encoding.zigzag(value);
+		this.ensureCapacity(Encoding.varIntSize(value));
+		this.length = Encoding.putVarInt(this.data, this.length, value);
+	}
+
+	public void putBytes( byte[] buf, int off, int len ) {
+		this.ensureCapacity(len);
+		System.arraycopy(buf, off, this.data, this.length, len);
+		this.length += len;
+	}
+
+	public void putInts( int[] buf, int off, int len ) {
+		this.ensureCapacity(len * 4);
+		for( int i = off; i < off + len; i++ ) {
+			this.length = Encoding.putInt(this.data, this.length, buf[i]);
+		}
+	}
+
+	/**
+	 * Schreibt einen String im kompakten Format: die Anzahl der Bytes als
+	 * Varint gefolgt vom UTF-8 kodierten Inhalt.
+	 *
+	 * @param value
+	 */
+	public void putString( String value ) {
+		int len = Encoding.utf8Length(value);
+		this.ensureCapacity(Encoding.varIntSize(len) + len);
+		this.length = Encoding.putVarInt(this.data, this.length, len);
+		for( int i = 0; i < value.length(); i++ ) {
+			this.length = Encoding.putUTF8(this.data, this.length,
+					value.charAt(i));
+		}
+	}
+
+	public byte getByte() {
+		this.ensureRemaining(1);
+		return this.data[this.position++];
+	}
+
+	public int getInt() {
+		this.ensureRemaining(4);
+		int value = Encoding.getInt(this.data, this.position);
+		this.position += 4;
+		return value;
+	}
+
+	public long getLong() {
+		this.ensureRemaining(8);
+		long value = Encoding.getLong(this.data, this.position);
+		this.position += 8;
+		return value;
+	}
+
+	/**
+	 * Liest einen mit {@link #putVarInt(int)} geschriebenen Integer.
+	 *
+	 * @return
+	 */
+	public int getVarInt() {
+		return Encoding.unzigzag(this.getUnsignedVarInt());
+	}
+
+	/**
+	 * Liest einen vorzeichenlosen Varint.
+	 *
+	 * @return
+	 */
+	private int getUnsignedVarInt() {
+		int value = 0;
+		for( int shift = 0; shift < 35; shift += 7 ) {
+			int b = this.getByte() & 0xFF;
+			value |= (b & 0x7F) << shift;
+			if( b < 0x80 ) {
+				return value;
+			}
+		}
+		throw new IndexOutOfBoundsException("Malformed varint");
+	}
+
+	public void getBytes( byte[] dst, int off, int len ) {
+		this.ensureRemaining(len);
+		System.arraycopy(this.data, this.position, dst, off, len);
+		this.position += len;
+	}
+
+	public void getInts( int[] dst, int off, int len ) {
+		this.ensureRemaining(len * 4);
+		for( int i = off; i < off + len; i++ ) {
+			dst[i] = Encoding.getInt(this.data, this.position);
+			this.position += 4;
+		}
+	}
+
+	/**
+	 * Liest einen mit {@link #putString(String)} geschriebenen String.
+	 *
+	 * @return
+	 */
+	public String getString() {
+		StringBuilder sb = new StringBuilder();
+		this.getString(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Liest einen mit {@link #putString(String)} geschriebenen String und
+	 * hängt die Zeichen an einen vorhandenen Puffer an. Ungültige oder
+	 * abgeschnittene UTF-8 Folgen werden nicht über die angegebene Länge
+	 * hinaus gelesen; der Puffer wird dann auf seine alte Länge
+	 * zurückgesetzt und der Frame steht hinter dem String.
+	 *
+	 * @param dst Zielpuffer
+	 * @return Anzahl der angehängten Zeichen
+	 * @throws IndexOutOfBoundsException Falls der String ungültig kodiert ist
+	 */
+	public int getString( StringBuilder dst ) {
+		int len = this.getUnsignedVarInt();
+		if( len < 0 ) {
+			throw new IndexOutOfBoundsException("Malformed string");
+		}
+		this.ensureRemaining(len);
+
+		int end = this.position + len, start = dst.length(), count = 0;
+		while( this.position < end ) {
+			int b = this.data[this.position++] & 0xFF, more;
+			if( b < 0x80 ) {
+				more = 0;
+			} else if( b >= 0xC0 && b < 0xE0 ) {
+				b &= 0x1F;
+				more = 1;
+			} else if( b >= 0xE0 && b < 0xF0 ) {
+				b &= 0x0F;
+				more = 2;
+			} else {
+				more = -1;
+			}
+			for( int i = 0; i < more; i++ ) {
+				if( this.position >= end
+						|| (this.data[this.position] & 0xC0) != 0x80 ) {
+					more = -1;
+					break;
+				}
+				b = (b << 6) | (this.data[this.position++] & 0x3F);
+			}
+			if( more < 0 ) {
+				this.position = end;
+				dst.setLength(start);
+				throw new IndexOutOfBoundsException("Malformed string");
+			}
+			dst.append((char) b);
+			count++;
+		}
+
+		return count;
+	}
+
+}
@@ -0,0 +1,243 @@
+package de.upb.ddi.lejos.com;
+
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Überwacht eine Verbindung mit regelmäßigen Pings und misst dabei die
+ * Umlaufzeit. Gestartet wird die Überwachung mit
+ * {@link MessageChannel#startHeartbeat(int, int)}.
+ * <p/>
+ * Ein Ping enthält den Zeitstempel des Senders und wird von der Gegenseite
+ * unverändert zurückgeschickt; die Umlaufzeit ergibt sich aus der Differenz
+ * zur Empfangszeit. Aus den Messungen werden wie bei TCP (RFC 6298) eine
+ * geglättete Umlaufzeit und deren mittlere Abweichung berechnet. Höhere
+ * Schichten können daraus Timeouts und Sammelgrößen ableiten, z.B. mit
+ * {@link #getTimeout()}.
+ * <p/>
+ * Trifft innerhalb des eingestellten Zeitfensters kein Frame ein, gilt die
+ * Gegenseite als tot: Die Verbindung wird getrennt, sodass blockierte
+ * <code>receive*</code>-Aufrufe mit einer {@link ComException} abbrechen.
+ * Gezählt werden alle Frames, die über {@link MessageChannel#receive(Frame)}
+ * eintreffen; der Kanal muss also laufend gelesen werden, z.B. von einem
+ * {@link RpcChannel}. Bei einem {@link ReliableChannel} wird der Heartbeat
+ * auf {@link ReliableChannel#getChannel()} gestartet; er wird bei jeder
+ * Wiederverbindung auf den neuen Kanal übertragen, und das Trennen durch den
+ * Heartbeat löst dort die Wiederverbindung aus.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class Heartbeat implements Runnable {
+
+	/**
+	 * Der überwachte Kanal
+	 */
+	private final MessageChannel channel;
+
+	/**
+	 * Abstand der Pings in Millisekunden
+	 */
+	private final int interval;
+
+	/**
+	 * Zeit in Millisekunden, nach der die Verbindung als tot gilt
+	 */
+	private final int window;
+
+	/**
+	 * Zeitpunkt des letzten eingegangenen Frames
+	 */
+	private volatile long lastReceived;
+
+	/**
+	 * Geglättete Umlaufzeit in Mikrosekunden
+	 */
+	private long srtt = 0;
+
+	/**
+	 * Mittlere Abweichung der Umlaufzeit in Mikrosekunden
+	 */
+	private long rttvar = 0;
+
+	/**
+	 * Zuletzt gemessene Umlaufzeit in Mikrosekunden
+	 */
+	private long lastRtt = 0;
+
+	/**
+	 * Anzahl der Messungen
+	 */
+	private int samples = 0;
+
+	/**
+	 * Ob die Gegenseite noch antwortet
+	 */
+	private volatile boolean alive = true;
+
+	/**
+	 * Ob die Überwachung beendet wurde
+	 */
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param channel Der überwachte Kanal
+	 * @param interval Abstand der Pings in Millisekunden
+	 * @param window Zeit in Millisekunden, nach der die Verbindung ohne
+	 *        eingehende Frames als tot gilt
+	 */
+	Heartbeat( MessageChannel channel, int interval, int window ) {
+		this.channel = channel;
+		this.interval = interval;
+		this.window = window;
+	}
+
+	/**
+	 * Startet den Thread, der die Pings verschickt.
+	 */
+	void start() {
+		this.lastReceived = System.currentTimeMillis();
+
+		Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return Abstand der Pings in Millisekunden
+	 */
+	int getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * @return Zeit in Millisekunden, nach der die Verbindung als tot gilt
+	 */
+	int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * Beendet die Überwachung.
+	 */
+	public void stop() {
+		this.stopped = true;
+	}
+
+	/**
+	 * Vermerkt den Eingang eines Frames.
+	 */
+	void received() {
+		this.lastReceived = System.currentTimeMillis();
+	}
+
+	/**
+	 * Wertet einen Pong aus.
+	 *
+	 * @param sent Zeitstempel des zugehörigen Pings in Nanosekunden
+	 */
+	synchronized void pong( long sent ) {
+		long rtt = (System.nanoTime() - sent) / 1000;
+		if( rtt < 0 ) {
+			return;
+		}
+
+		this.lastRtt = rtt;
+		if( this.samples == 0 ) {
+			this.srtt = rtt;
+			this.rttvar = rtt / 2;
+		} else {
+			this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - rtt)) / 4;
+			this.srtt = (7 * this.srtt + rtt) / 8;
+		}
+		this.samples++;
+	}
+
+	public void run() {
+		while( !this.stopped ) {
+			try {
+				Thread.sleep(this.interval);
+			} catch( InterruptedException ex ) {
+				break;
+			}
+			if( this.stopped ) {
+				break;
+			}
+
+			if( System.currentTimeMillis() - this.lastReceived > this.window ) {
+				Console.dbg.println("hb: peer dead");
+				this.alive = false;
+				RemoteConnection conn = this.channel.getConnection();
+				if( conn.isConnected() ) {
+					conn.disconnect();
+				}
+				break;
+			}
+
+			try {
+				this.channel.ping();
+			} catch( ComException ex ) {
+				this.alive = false;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>false</code> wenn die Gegenseite nicht mehr antwortet
+	 */
+	public boolean isAlive() {
+		return this.alive;
+	}
+
+	/**
+	 * @return Zeit in Millisekunden seit dem letzten eingegangenen Frame
+	 */
+	public int getIdleTime() {
+		return (int) (System.currentTimeMillis() - this.lastReceived);
+	}
+
+	/**
+	 * @return Geglättete Umlaufzeit in Mikrosekunden oder <code>0</code>, falls
+	 *         noch nicht gemessen wurde
+	 */
+	public synchronized long getRtt() {
+		return this.srtt;
+	}
+
+	/**
+	 * @return Mittlere Abweichung der Umlaufzeit (Jitter) in Mikrosekunden
+	 */
+	public synchronized long getRttVariation() {
+		return this.rttvar;
+	}
+
+	/**
+	 * @return Zuletzt gemessene Umlaufzeit in Mikrosekunden
+	 */
+	public synchronized long getLastRtt() {
+		return this.lastRtt;
+	}
+
+	/**
+	 * @return Anzahl der Messungen
+	 */
+	public synchronized int getSamples() {
+		return this.samples;
+	}
+
+	/**
+	 * Empfohlene Wartezeit auf eine Antwort der Gegenseite: die geglättete
+	 * Umlaufzeit zuzüglich der vierfachen Abweichung.
+	 *
+	 * @return Wartezeit in Millisekunden oder <code>0</code>, falls noch nicht
+	 *         gemessen wurde
+	 */
+	public synchronized int getTimeout() {
+		if( this.samples == 0 ) {
+			return 0;
+		}
+		return (int) ((this.srtt + 4 * this.rttvar) / 1000) + 1;
+	}
+
+}
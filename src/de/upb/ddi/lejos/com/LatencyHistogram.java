@@ -0,0 +1,148 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Histogramm für Laufzeiten mit festen, logarithmisch wachsenden Klassen. Die
+ * Klasse <code>i</code> zählt alle Zeiten unter <code>2^(i+1)</code>
+ * Mikrosekunden, die nicht bereits in eine kleinere Klasse fallen. Die letzte
+ * Klasse nimmt alle längeren Zeiten auf.
+ * <p/>
+ * Das Erfassen einer Zeit kommt ohne Speicheranforderung aus und kostet nur
+ * wenige Rechenschritte, sodass das Histogramm dauerhaft mitlaufen kann. Wie
+ * bei den {@link ConnectionStats} werden die Zähler unter einer kurzen Sperre
+ * auf dem Objekt geändert; Zeiten aus mehreren Threads gehen so nicht
+ * verloren.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Anzahl der Klassen. Die vorletzte Klasse reicht bis etwa 8 Sekunden.
+	 */
+	public static final int BUCKETS = 24;
+
+
+	/**
+	 * Anzahl der Einträge je Klasse
+	 */
+	private final int[] counts = new int[BUCKETS];
+
+	/**
+	 * Gesamtzahl der Einträge
+	 */
+	private int count = 0;
+
+	/**
+	 * Summe aller Zeiten in Mikrosekunden
+	 */
+	private long total = 0;
+
+	/**
+	 * Längste erfasste Zeit in Mikrosekunden
+	 */
+	private long max = 0;
+
+	/**
+	 * Erfasst eine Zeit.
+	 *
+	 * @param nanos Dauer in Nanosekunden
+	 */
+	public void record( long nanos ) {
+		long micros = nanos / 1000;
+
+		int bucket = 0;
+		for( long v = micros >>> 1; v != 0 && bucket < BUCKETS - 1; v >>>= 1 ) {
+			bucket++;
+		}
+
+		synchronized( this ) {
+			this.counts[bucket]++;
+			this.count++;
+			this.total += micros;
+			if( micros > this.max ) {
+				this.max = micros;
+			}
+		}
+	}
+
+	/**
+	 * @return Anzahl der erfassten Zeiten
+	 */
+	public synchronized int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Gibt die Anzahl der Einträge einer Klasse zurück.
+	 *
+	 * @param bucket Index der Klasse
+	 * @return
+	 */
+	public synchronized int getBucketCount( int bucket ) {
+		return this.counts[bucket];
+	}
+
+	/**
+	 * Gibt die obere Grenze einer Klasse zurück.
+	 *
+	 * @param bucket Index der Klasse
+	 * @return Grenze in Mikrosekunden (exklusiv) oder
+	 *         <code>Long.MAX_VALUE</code> für die letzte Klasse
+	 */
+	public static long getBucketLimit( int bucket ) {
+		if( bucket >= BUCKETS - 1 ) {
+			return Long.MAX_VALUE;
+		}
+		return 2L << bucket;
+	}
+
+	/**
+	 * @return Mittlere Zeit in Mikrosekunden
+	 */
+	public synchronized long getMean() {
+		if( this.count == 0 ) {
+			return 0;
+		}
+		return this.total / this.count;
+	}
+
+	/**
+	 * @return Längste Zeit in Mikrosekunden
+	 */
+	public synchronized long getMax() {
+		return this.max;
+	}
+
+	/**
+	 * Schätzt ein Perzentil anhand der Klassengrenzen.
+	 *
+	 * @param percent Perzentil zwischen 0 und 100
+	 * @return Obere Grenze der Klasse, in die das Perzentil fällt, in
+	 *         Mikrosekunden
+	 */
+	public synchronized long getPercentile( int percent ) {
+		int target = (int) (((long) this.count * percent + 99) / 100);
+		int sum = 0;
+		for( int i = 0; i < BUCKETS - 1; i++ ) {
+			sum += this.counts[i];
+			if( sum >= target ) {
+				return Math.min(getBucketLimit(i), this.max);
+			}
+		}
+		return this.max;
+	}
+
+	/**
+	 * Setzt das Histogramm zurück.
+	 */
+	public synchronized void reset() {
+		for( int i = 0; i < BUCKETS; i++ ) {
+			this.counts[i] = 0;
+		}
+		this.count = 0;
+		this.total = 0;
+		this.max = 0;
+	}
+
+}
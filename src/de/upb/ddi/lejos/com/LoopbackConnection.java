@@ -0,0 +1,170 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.util.ArrayList;
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Verbindung im Speicher innerhalb derselben VM. Zwei Instanzen werden wie bei
+ * einer {@link BluetoothConnection} verbunden: Eine wartet mit
+ * {@link #connect(int)} auf eine Verbindung, die andere verbindet sich mit
+ * {@link #connect(String)} über Namen oder Adresse der ersten. Die Daten
+ * laufen anschließend über zwei Datenleitungen im Speicher.
+ * <p/>
+ * Die Klasse braucht keine Hardware und eignet sich daher zum Testen und
+ * Vermessen von Protokollen, z.B. auf dem PC.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class LoopbackConnection extends AbstractConnection {
+
+	/**
+	 * Größe der Datenleitungen in Bytes.
+	 */
+	private static final int PIPE_SIZE = 1024;
+
+	/**
+	 * Instanzen, die gerade auf eine Verbindung warten.
+	 */
+	private static final ArrayList<LoopbackConnection> listeners = new ArrayList<LoopbackConnection>();
+
+	/**
+	 * Zähler zur Vergabe eindeutiger Adressen.
+	 */
+	private static int nextAddress = 1;
+
+
+	/**
+	 * Adresse des verbundenen Geräts
+	 */
+	protected String remoteAddress;
+
+	/**
+	 * Vom verbindenden Gerät übergebene Leitungen, solange die Instanz auf
+	 * eine Verbindung wartet.
+	 */
+	private Pipe pendingIn, pendingOut;
+
+	/**
+	 * Konstruktor mit automatisch vergebener, eindeutiger Adresse.
+	 *
+	 * @param name Name des Geräts
+	 */
+	public LoopbackConnection( String name ) {
+		this(name, nextAddress());
+	}
+
+	/**
+	 * Konstruktor mit manueller Zuweisung der Adresse. Wird von
+	 * {@link #clone()} benutzt.
+	 *
+	 * @param name Name des Geräts
+	 * @param address Adresse des Geräts
+	 */
+	public LoopbackConnection( String name, String address ) {
+		super("loop", name, address);
+	}
+
+	/**
+	 * Vergibt eine neue Adresse.
+	 *
+	 * @return
+	 */
+	private static synchronized String nextAddress() {
+		return "loop" + (nextAddress++);
+	}
+
+	public String getRemoteAddress() {
+		if( this.isConnected() ) {
+			return this.remoteAddress;
+		} else {
+			return null;
+		}
+	}
+
+	protected void closeConnection() {
+		this.remoteAddress = null;
+	}
+
+	public void connect( int timeout ) {
+		this.connectionAttempts++;
+
+		Console.dbg.println("loop: waiting ...");
+		synchronized( listeners ) {
+			this.pendingIn = null;
+			this.pendingOut = null;
+			listeners.add(this);
+
+			long end = System.currentTimeMillis() + timeout;
+			while( this.pendingIn == null ) {
+				long remaining = end - System.currentTimeMillis();
+				if( timeout > 0 && remaining <= 0 ) {
+					break;
+				}
+				try {
+					listeners.wait(timeout > 0 ? remaining : 0);
+				} catch( InterruptedException ex ) {
+					break;
+				}
+			}
+			listeners.remove(this);
+		}
+
+		if( this.pendingIn == null ) {
+			Console.dbg.println("loop: no conn req");
+		} else {
+			this.open(this.pendingIn.getInputStream(),
+					this.pendingOut.getOutputStream());
+			this.pendingIn = null;
+			this.pendingOut = null;
+
+			Console.dbg.println("loop: connected to");
+			Console.dbg.println("  " + this.getRemoteAddress());
+		}
+	}
+
+	public void connect( String identifier ) {
+		this.connectionAttempts++;
+
+		Console.dbg.println("loop: connecting ...");
+		Pipe toPeer = new Pipe(PIPE_SIZE), fromPeer = new Pipe(PIPE_SIZE);
+
+		LoopbackConnection peer = null;
+		synchronized( listeners ) {
+			for( int i = 0; i < listeners.size(); i++ ) {
+				LoopbackConnection l = listeners.get(i);
+				if( l.deviceAddress.equals(identifier)
+						|| l.deviceName.equals(identifier) ) {
+					peer = l;
+					break;
+				}
+			}
+
+			if( peer != null ) {
+				listeners.remove(peer);
+				peer.pendingIn = toPeer;
+				peer.pendingOut = fromPeer;
+				peer.remoteAddress = this.deviceAddress;
+				listeners.notifyAll();
+			}
+		}
+
+		if( peer == null ) {
+			Console.dbg.println("loop: conn failed");
+		} else {
+			this.remoteAddress = peer.deviceAddress;
+			this.open(fromPeer.getInputStream(), toPeer.getOutputStream());
+
+			Console.dbg.println("loop: connected to");
+			Console.dbg.println("  " + this.getRemoteAddress());
+		}
+	}
+
+	@Override
+	public RemoteConnection clone() {
+		return new LoopbackConnection(this.deviceName, this.deviceAddress);
+	}
+
+}
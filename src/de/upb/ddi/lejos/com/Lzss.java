@@ -0,0 +1,186 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Schnelle verlustfreie Kompression nach dem LZSS-Verfahren für den
+ * {@link MessageChannel}. Wiederholte Bytefolgen werden durch einen Verweis
+ * auf ihr letztes Vorkommen ersetzt. Gesucht wird nur über eine kleine
+ * Hash-Tabelle ohne Verkettung, sodass die Kompression mit wenig Speicher
+ * (1 KB) und in linearer Zeit auskommt.
+ * <p/>
+ * Jede Nachricht wird für sich komprimiert; es gibt keinen Zustand zwischen
+ * Nachrichten. Das Format besteht aus Gruppen von bis zu acht Elementen, denen
+ * jeweils ein Steuerbyte vorangeht. Jedes Bit des Steuerbytes, beginnend beim
+ * niederwertigsten, beschreibt ein Element:
+ * <ul>
+ * <li><code>0</code>: ein unverändertes Byte</li>
+ * <li><code>1</code>: ein Verweis aus zwei Bytes mit 12 Bit Abstand
+ * (1&ndash;4096) und 4 Bit Länge (3&ndash;18)</li>
+ * </ul>
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class Lzss {
+
+	/**
+	 * Größter Abstand eines Verweises.
+	 */
+	public static final int WINDOW_SIZE = 4096;
+
+	/**
+	 * Kürzeste Länge eines Verweises.
+	 */
+	public static final int MIN_MATCH = 3;
+
+	/**
+	 * Größte Länge eines Verweises.
+	 */
+	public static final int MAX_MATCH = 18;
+
+	/**
+	 * Anzahl der Bits des Hash-Werts
+	 */
+	private static final int HASH_BITS = 9;
+
+
+	/**
+	 * Letzte Position (plus eins) jedes Hash-Werts, <code>0</code> für leer
+	 */
+	private final char[] table = new char[1 << HASH_BITS];
+
+	/**
+	 * Berechnet den Hash-Wert der drei Bytes ab einer Position.
+	 *
+	 * @param buf
+	 * @param i
+	 * @return
+	 */
+	private static int hash( byte[] buf, int i ) {
+		int v = ((buf[i] & 0xFF) << 16) | ((buf[i + 1] & 0xFF) << 8)
+				| (buf[i + 2] & 0xFF);
+		return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * Komprimiert einen Puffer. Wird das Ergebnis nicht kürzer als
+	 * <code>max</code> Bytes, bricht die Kompression ab.
+	 *
+	 * @param src Quellpuffer
+	 * @param off Position im Quellpuffer
+	 * @param len Anzahl der Bytes, höchstens 65535
+	 * @param dst Zielpuffer
+	 * @param dstOff Position im Zielpuffer
+	 * @param max Maximale Länge des Ergebnisses
+	 * @return Länge des Ergebnisses oder <code>-1</code>, wenn es länger als
+	 *         <code>max</code> würde
+	 */
+	public int compress( byte[] src, int off, int len, byte[] dst,
+			int dstOff, int max ) {
+		for( int i = 0; i < this.table.length; i++ ) {
+			this.table[i] = 0;
+		}
+
+		int ip = off, end = off + len;
+		int op = dstOff, dend = dstOff + max;
+		int control = 0, bit = 8;
+
+		while( ip < end ) {
+			if( bit == 8 ) {
+				if( op >= dend ) {
+					return -1;
+				}
+				control = op++;
+				dst[control] = 0;
+				bit = 0;
+			}
+
+			int matchLen = 0, dist = 0;
+			if( ip + MIN_MATCH <= end ) {
+				int h = hash(src, ip);
+				int candidate = off + this.table[h] - 1;
+				this.table[h] = (char) (ip - off + 1);
+
+				dist = ip - candidate;
+				if( candidate >= off && dist <= WINDOW_SIZE ) {
+					int limit = Math.min(MAX_MATCH, end - ip);
+					while( matchLen < limit
+							&& src[candidate + matchLen] == src[ip + matchLen] ) {
+						matchLen++;
+					}
+				}
+			}
+
+			if( matchLen >= MIN_MATCH ) {
+				if( op + 2 > dend ) {
+					return -1;
+				}
+				dst[control] |= (byte) (1 << bit);
+				dst[op++] = (byte) ((dist - 1) >>> 4);
+				dst[op++] = (byte) (((dist - 1) << 4) | (matchLen - MIN_MATCH));
+
+				// Übersprungene Positionen in die Tabelle eintragen
+				for( int i = 1; i < matchLen && ip + i + MIN_MATCH <= end; i++ ) {
+					this.table[hash(src, ip + i)] = (char) (ip + i - off + 1);
+				}
+				ip += matchLen;
+			} else {
+				if( op >= dend ) {
+					return -1;
+				}
+				dst[op++] = src[ip++];
+			}
+			bit++;
+		}
+		return op - dstOff;
+	}
+
+	/**
+	 * Entpackt einen mit {@link #compress(byte[], int, int, byte[], int, int)}
+	 * komprimierten Puffer.
+	 *
+	 * @param src Quellpuffer
+	 * @param off Position im Quellpuffer
+	 * @param len Länge der komprimierten Daten
+	 * @param dst Zielpuffer
+	 * @param dstOff Position im Zielpuffer
+	 * @param max Maximale Länge des Ergebnisses
+	 * @return Länge des Ergebnisses oder <code>-1</code>, wenn die Daten
+	 *         fehlerhaft sind oder das Ergebnis länger als <code>max</code>
+	 *         würde
+	 */
+	public static int decompress( byte[] src, int off, int len, byte[] dst,
+			int dstOff, int max ) {
+		int ip = off, end = off + len;
+		int op = dstOff, dend = dstOff + max;
+
+		while( ip < end ) {
+			int control = src[ip++] & 0xFF;
+			for( int bit = 0; bit < 8 && ip < end; bit++ ) {
+				if( (control & (1 << bit)) != 0 ) {
+					if( ip + 2 > end ) {
+						return -1;
+					}
+					int b0 = src[ip++] & 0xFF, b1 = src[ip++] & 0xFF;
+					int dist = ((b0 << 4) | (b1 >>> 4)) + 1;
+					int matchLen = (b1 & 0x0F) + MIN_MATCH;
+
+					int from = op - dist;
+					if( from < dstOff || op + matchLen > dend ) {
+						return -1;
+					}
+					// Byteweise, da sich Quelle und Ziel überlappen können
+					for( int i = 0; i < matchLen; i++ ) {
+						dst[op++] = dst[from++];
+					}
+				} else {
+					if( op >= dend ) {
+						return -1;
+					}
+					dst[op++] = src[ip++];
+				}
+			}
+		}
+		return op - dstOff;
+	}
+
+}
@@ -0,0 +1,915 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Nachrichtenbasierte Kommunikation über eine beliebige
+ * {@link RemoteConnection}. Der Kanal verschickt {@link Frame Frames} mit
+ * einem festen Header aus Typ, Flags und Länge des Inhalts. Dadurch sind die
+ * Grenzen einzelner Nachrichten im Datenstrom bekannt und ein falsch
+ * gelesener Wert betrifft nur die aktuelle Nachricht statt den gesamten
+ * restlichen Strom.
+ * <p/>
+ * Jeder Frame wird mit einem einzigen Leervorgang der Verbindung verschickt
+ * und auf der Gegenseite mit einem einzigen Lesevorgang für den Inhalt
+ * empfangen.
+ * <p/>
+ * Aufbau eines Frames:
+ * <pre>
+ * +------+-------+-----------------+---------------+
+ * | Typ  | Flags | Länge (16 Bit)  | Inhalt        |
+ * +------+-------+-----------------+---------------+
+ * </pre>
+ * Die Typen <code>0xF0</code> bis <code>0xFF</code> sind für interne
+ * Steuer-Nachrichten reserviert.
+ * <p/>
+ * Senden und Empfangen dürfen aus unterschiedlichen Threads erfolgen.
+ * <p/>
+ * Mit {@link #startHeartbeat(int, int)} kann die Verbindung überwacht werden
+ * (siehe {@link Heartbeat}). Ping-Nachrichten der Gegenseite werden von
+ * {@link #receive(Frame)} immer selbstständig beantwortet. Verschickt wird
+ * der Pong vom gerade sendenden Thread oder von einem eigenen Pong-Thread,
+ * nie vom empfangenden.
+ * <p/>
+ * Mit {@link #setCompression(int)} werden größere Frames vor dem Versand mit
+ * {@link Lzss} komprimiert und mit {@link #FLAG_COMPRESSED} markiert. Der
+ * Empfänger erkennt komprimierte Frames am Flag und entpackt sie immer, auch
+ * ohne selbst zu komprimieren.
+ * <p/>
+ * Frames mit einem {@link Frame#setChannel(int) virtuellen Kanal} werden mit
+ * {@link #FLAG_CHANNEL} markiert; die Kanalnummer steht dann als erstes Byte
+ * vor dem Inhalt. Frames ohne Kanal bleiben unverändert. Verteilt werden die
+ * Kanäle vom {@link Multiplexer}.
+ * <p/>
+ * Ausgehende Frames haben eine Priorität (siehe {@link #send(Frame, int)}).
+ * Warten mehrere Threads auf das Senden, kommt der Frame mit der höchsten
+ * Priorität zuerst an die Reihe. Große Frames der Prioritäten
+ * {@link #PRIORITY_NORMAL} und {@link #PRIORITY_BULK} werden in Teilstücke
+ * von höchstens {@link #setFragmentSize(int) einstellbarer} Größe zerlegt,
+ * zwischen denen Frames höherer Priorität verschickt werden können. Ein
+ * Steuerbefehl wartet so höchstens auf ein Teilstück statt auf einen ganzen
+ * großen Frame. Der Empfänger setzt die Teilstücke wieder zusammen; dazu ist
+ * immer nur ein zerlegter Frame gleichzeitig unterwegs.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class MessageChannel {
+
+	/**
+	 * Größe des Frame-Headers in Bytes.
+	 */
+	public static final int HEADER_SIZE = 4;
+
+	/**
+	 * Abstand in Millisekunden, in dem der Pong-Thread prüft, ob die
+	 * Verbindung getrennt wurde.
+	 */
+	private static final int PONG_CHECK_INTERVAL = 1000;
+
+	/**
+	 * Maximale Länge des Inhalts eines Frames in Bytes.
+	 */
+	public static final int MAX_PAYLOAD = 0xFFFF;
+
+	/**
+	 * Größter für Anwendungen freier Nachrichtentyp.
+	 */
+	public static final int MAX_TYPE = 0xEF;
+
+	/**
+	 * Flag: Der Inhalt ist mit {@link Lzss} komprimiert.
+	 */
+	public static final int FLAG_COMPRESSED = 0x01;
+
+	/**
+	 * Flag: Vor dem Inhalt steht ein Byte mit der Nummer des virtuellen
+	 * Kanals.
+	 */
+	public static final int FLAG_CHANNEL = 0x02;
+
+	/**
+	 * Flag: Der Frame ist ein Teilstück eines größeren Frames.
+	 */
+	public static final int FLAG_FRAGMENT = 0x04;
+
+	/**
+	 * Flag: Auf das Teilstück folgen weitere Teilstücke.
+	 */
+	public static final int FLAG_MORE = 0x08;
+
+	/**
+	 * Flag: Der Frame soll nicht komprimiert werden, z.B. weil der Inhalt
+	 * bereits komprimiert ist. Wird nicht übertragen.
+	 */
+	public static final int FLAG_RAW = 0x80;
+
+	/**
+	 * Standard-Mindestlänge komprimierter Frames in Bytes.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 48;
+
+	/**
+	 * Priorität für Steuerbefehle, z.B. einen Nothalt. Wird auch für Ping und
+	 * Pong benutzt.
+	 */
+	public static final int PRIORITY_HIGH = 0;
+
+	/**
+	 * Standard-Priorität von {@link #send(Frame)}.
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+
+	/**
+	 * Priorität für Massenübertragungen. Große Frames werden in Teilstücke
+	 * zerlegt.
+	 */
+	public static final int PRIORITY_BULK = 2;
+
+	/**
+	 * Standardgröße der Teilstücke in Bytes.
+	 */
+	public static final int DEFAULT_FRAGMENT_SIZE = 256;
+
+	/**
+	 * Steuer-Nachricht: Bestätigung empfangener Frames, siehe
+	 * {@link ReliableChannel}.
+	 */
+	public static final int TYPE_ACK = 0xF0;
+
+	/**
+	 * Steuer-Nachricht: Wiederaufnahme nach einem Verbindungsabbruch, siehe
+	 * {@link ReliableChannel}.
+	 */
+	public static final int TYPE_RESUME = 0xF1;
+
+	/**
+	 * Steuer-Nachricht: Ping mit Zeitstempel, siehe {@link Heartbeat}.
+	 */
+	public static final int TYPE_PING = 0xF2;
+
+	/**
+	 * Steuer-Nachricht: Antwort auf einen Ping mit dem gleichen Inhalt.
+	 */
+	public static final int TYPE_PONG = 0xF3;
+
+	/**
+	 * Steuer-Nachricht: Zusätzliche Sendeerlaubnis für Frames, siehe
+	 * {@link CreditChannel}.
+	 */
+	public static final int TYPE_CREDIT = 0xF4;
+
+	/**
+	 * Steuer-Nachricht: Zusätzliche Sendeerlaubnis für einen virtuellen Kanal,
+	 * siehe {@link Multiplexer}.
+	 */
+	public static final int TYPE_WINDOW = 0xF5;
+
+
+	/**
+	 * Die zugrundeliegende Verbindung
+	 */
+	protected final RemoteConnection connection;
+
+	/**
+	 * Puffer für ausgehende Header, mit Platz für die Kanalnummer
+	 */
+	private final byte[] sendHeader = new byte[HEADER_SIZE + 1];
+
+	/**
+	 * Puffer für eingehende Header, mit Platz für die Kanalnummer
+	 */
+	private final byte[] receiveHeader = new byte[HEADER_SIZE + 1];
+
+	/**
+	 * Sperre für die Vergabe des Sendens
+	 */
+	private final Object sendLock = new Object();
+
+	/**
+	 * Sperre für zerlegte Frames, von denen immer nur einer unterwegs ist
+	 */
+	private final Object fragmentLock = new Object();
+
+	/**
+	 * Anzahl wartender Sender je Priorität
+	 */
+	private final int[] waiting = new int[PRIORITY_BULK + 1];
+
+	/**
+	 * Ob gerade ein Frame geschrieben wird
+	 */
+	private boolean sending = false;
+
+	/**
+	 * Maximale Größe der Teilstücke
+	 */
+	private int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+
+	/**
+	 * Sperre für das Empfangen
+	 */
+	private final Object receiveLock = new Object();
+
+	/**
+	 * Inhalt von Ping und Pong, wird nur beim Senden benutzt
+	 */
+	private final byte[] pingData = new byte[8];
+
+	/**
+	 * Ob ein Pong auf einen empfangenen Ping aussteht
+	 */
+	private boolean pongPending = false;
+
+	/**
+	 * Zeitstempel des ausstehenden Pongs
+	 */
+	private long pongTime = 0;
+
+	/**
+	 * Ob der Pong-Thread läuft
+	 */
+	private boolean ponger = false;
+
+	/**
+	 * Überwachung der Verbindung oder <code>null</code>
+	 */
+	private volatile Heartbeat heartbeat = null;
+
+	/**
+	 * Mindestlänge komprimierter Frames oder <code>0</code>, wenn nicht
+	 * komprimiert wird
+	 */
+	private int compressionThreshold = 0;
+
+	/**
+	 * Kompressor für ausgehende Frames, wird nur beim Senden benutzt
+	 */
+	private Lzss compressor = null;
+
+	/**
+	 * Puffer für komprimierte ausgehende Frames
+	 */
+	private byte[] compressed = null;
+
+	/**
+	 * Puffer für komprimierte eingehende Frames
+	 */
+	private byte[] inflated = null;
+
+	/**
+	 * Ob der zuletzt gelesene Frame zu groß war und übersprungen wurde
+	 */
+	private boolean skipped = false;
+
+	/**
+	 * Puffer für übersprungene Bytes, falls der Frame des Empfängers keinen
+	 * Platz bietet
+	 */
+	private final byte[] discard = new byte[16];
+
+	/**
+	 * Puffer für das Zusammensetzen von Teilstücken
+	 */
+	private byte[] assembly = null;
+
+	/**
+	 * Anzahl der bereits zusammengesetzten Bytes
+	 */
+	private int assembled = 0;
+
+	/**
+	 * Ob die Teilstücke nicht in den Frame passen
+	 */
+	private boolean assemblyOverflow = false;
+
+	/**
+	 * Erzeugt einen Kanal über eine Verbindung. Die Verbindung muss nicht
+	 * bereits aufgebaut sein.
+	 *
+	 * @param connection
+	 */
+	public MessageChannel( RemoteConnection connection ) {
+		this.connection = connection;
+	}
+
+	/**
+	 * @return Die zugrundeliegende Verbindung
+	 */
+	public RemoteConnection getConnection() {
+		return this.connection;
+	}
+
+	/**
+	 * Startet die Überwachung der Verbindung. Eine bereits laufende
+	 * Überwachung wird beendet.
+	 *
+	 * @param interval Abstand der Pings in Millisekunden
+	 * @param window Zeit in Millisekunden, nach der die Verbindung ohne
+	 *        eingehende Frames als tot gilt
+	 * @return Die Überwachung, die auch die gemessenen Umlaufzeiten liefert
+	 */
+	public Heartbeat startHeartbeat( int interval, int window ) {
+		this.stopHeartbeat();
+		Heartbeat hb = new Heartbeat(this, interval, window);
+		this.heartbeat = hb;
+		hb.start();
+		return hb;
+	}
+
+	/**
+	 * Beendet die Überwachung der Verbindung.
+	 */
+	public void stopHeartbeat() {
+		Heartbeat hb = this.heartbeat;
+		if( hb != null ) {
+			hb.stop();
+			this.heartbeat = null;
+		}
+	}
+
+	/**
+	 * @return Die laufende Überwachung oder <code>null</code>
+	 */
+	public Heartbeat getHeartbeat() {
+		return this.heartbeat;
+	}
+
+	/**
+	 * Übernimmt Kompression, Größe der Teilstücke und Überwachung eines
+	 * anderen Kanals, z.B. nach dem Neuaufbau einer Verbindung. Die
+	 * Überwachung des anderen Kanals wird beendet.
+	 *
+	 * @param other
+	 */
+	void adoptSettings( MessageChannel other ) {
+		int threshold, size;
+		synchronized( other.sendLock ) {
+			threshold = other.compressionThreshold;
+			size = other.fragmentSize;
+		}
+		this.setCompression(threshold);
+		this.setFragmentSize(size);
+
+		Heartbeat hb = other.heartbeat;
+		if( hb != null ) {
+			other.stopHeartbeat();
+			this.startHeartbeat(hb.getInterval(), hb.getWindow());
+		}
+	}
+
+	/**
+	 * Verschickt einen Ping mit dem aktuellen Zeitstempel.
+	 *
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	void ping() throws ComException {
+		this.acquire(PRIORITY_HIGH);
+		try {
+			Encoding.putLong(this.pingData, 0, System.nanoTime());
+			this.writeFrame(TYPE_PING, 0, 0, this.pingData, 0, 8);
+		} finally {
+			this.release();
+		}
+	}
+
+	/**
+	 * Beantwortet einen empfangenen Ping. Der Empfangs-Thread schreibt dabei
+	 * nie selbst: Ist das Senden gerade vergeben, verschickt der sendende
+	 * Thread den Pong bei {@link #release()}, sonst der Pong-Thread. Sonst
+	 * könnten sich zwei Seiten, deren Puffer beide voll sind, gegenseitig
+	 * blockieren, weil keine mehr liest.
+	 *
+	 * @param time Zeitstempel aus dem Ping
+	 */
+	private void answerPing( long time ) {
+		synchronized( this.sendLock ) {
+			this.pongTime = time;
+			this.pongPending = true;
+			if( this.sending ) {
+				return;
+			}
+
+			if( this.ponger ) {
+				this.sendLock.notifyAll();
+			} else {
+				this.ponger = true;
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						MessageChannel.this.sendPongs();
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+	}
+
+	/**
+	 * Pong-Thread: Verschickt ausstehende Pongs, solange das Senden frei ist.
+	 * Endet, sobald die Verbindung getrennt wurde.
+	 */
+	private void sendPongs() {
+		while( true ) {
+			synchronized( this.sendLock ) {
+				while( !this.pongPending || this.sending ) {
+					if( !this.connection.isConnected() ) {
+						this.ponger = false;
+						return;
+					}
+					try {
+						this.sendLock.wait(PONG_CHECK_INTERVAL);
+					} catch( InterruptedException ex ) {
+						this.ponger = false;
+						return;
+					}
+				}
+				this.sending = true;
+			}
+			// Verschickt den ausstehenden Pong
+			this.release();
+		}
+	}
+
+	/**
+	 * Schaltet die Kompression ausgehender Frames ein oder aus. Komprimiert
+	 * werden nur Frames ab der angegebenen Länge und nur, wenn das Ergebnis
+	 * tatsächlich kürzer ist; alle anderen werden unverändert verschickt.
+	 *
+	 * @param threshold Mindestlänge in Bytes, z.B.
+	 *        {@link #DEFAULT_COMPRESSION_THRESHOLD}, oder <code>0</code> zum
+	 *        Ausschalten
+	 */
+	public void setCompression( int threshold ) {
+		synchronized( this.sendLock ) {
+			this.compressionThreshold = Math.max(0, threshold);
+			if( threshold > 0 && this.compressor == null ) {
+				this.compressor = new Lzss();
+			}
+		}
+	}
+
+	/**
+	 * Stellt die maximale Größe der Teilstücke ein, in die Frames ohne
+	 * {@link #PRIORITY_HIGH} zerlegt werden. Kleinere Teilstücke
+	 * verkürzen die Wartezeit anderer Frames, kosten aber je einen Header.
+	 *
+	 * @param size Größe in Bytes, z.B. {@link #DEFAULT_FRAGMENT_SIZE}
+	 */
+	public void setFragmentSize( int size ) {
+		synchronized( this.sendLock ) {
+			this.fragmentSize = Math.max(1, Math.min(size, MAX_PAYLOAD - 1));
+		}
+	}
+
+	/**
+	 * @return Maximale Größe der Teilstücke in Bytes
+	 */
+	public int getFragmentSize() {
+		synchronized( this.sendLock ) {
+			return this.fragmentSize;
+		}
+	}
+
+	/**
+	 * Verschickt einen Frame mit der Priorität {@link #PRIORITY_NORMAL}.
+	 * Header und Inhalt eines Frames oder Teilstücks werden gemeinsam mit
+	 * einem einzigen Leervorgang übertragen.
+	 *
+	 * @param frame
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	public void send( Frame frame ) throws ComException {
+		this.send(frame, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Verschickt einen Frame mit einer Priorität. Frames ohne
+	 * {@link #PRIORITY_HIGH}, die größer als die
+	 * {@link #setFragmentSize(int) Teilstücke} sind, werden zerlegt; die
+	 * Methode kehrt erst nach dem letzten Teilstück zurück. Frames mit
+	 * {@link #PRIORITY_HIGH} werden nie zerlegt, da kein anderer Frame sie
+	 * überholen darf.
+	 *
+	 * @param frame
+	 * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} oder
+	 *        {@link #PRIORITY_BULK}
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	public void send( Frame frame, int priority ) throws ComException {
+		priority = Math.max(PRIORITY_HIGH, Math.min(priority, PRIORITY_BULK));
+		int flags = frame.flags & ~(FLAG_COMPRESSED | FLAG_CHANNEL
+				| FLAG_FRAGMENT | FLAG_MORE);
+
+		if( priority != PRIORITY_HIGH && frame.length > this.getFragmentSize() ) {
+			this.sendFragments(frame, flags, priority);
+			return;
+		}
+
+		this.acquire(priority);
+		try {
+			this.writeData(frame, 0, frame.length, flags);
+		} finally {
+			this.release();
+		}
+	}
+
+	/**
+	 * Verschickt einen Frame in Teilstücken. Vor jedem Teilstück wird das
+	 * Senden neu vergeben, sodass wartende Frames höherer Priorität
+	 * dazwischen verschickt werden.
+	 *
+	 * @param frame
+	 * @param flags
+	 * @param priority Priorität jedes Teilstücks
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	private void sendFragments( Frame frame, int flags, int priority )
+			throws ComException {
+		synchronized( this.fragmentLock ) {
+			int off = 0;
+			while( off < frame.length ) {
+				this.acquire(priority);
+				try {
+					int n = Math.min(this.fragmentSize, frame.length - off);
+					int more = (off + n < frame.length) ? FLAG_MORE : 0;
+					this.writeData(frame, off, n, flags | FLAG_FRAGMENT | more);
+					off += n;
+				} finally {
+					this.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wartet, bis das Senden frei ist und kein Sender höherer Priorität
+	 * wartet.
+	 *
+	 * @param priority
+	 * @throws ComException Falls der Thread unterbrochen wird
+	 */
+	private void acquire( int priority ) throws ComException {
+		synchronized( this.sendLock ) {
+			this.waiting[priority]++;
+			try {
+				while( this.sending || this.isHigherWaiting(priority) ) {
+					this.sendLock.wait();
+				}
+			} catch( InterruptedException ex ) {
+				throw new ComException("Interrupted", ComException.SEND);
+			} finally {
+				this.waiting[priority]--;
+			}
+			this.sending = true;
+		}
+	}
+
+	/**
+	 * Gibt das Senden frei. Ein ausstehender Pong wird vorher verschickt;
+	 * Prüfung und Freigabe geschehen unter derselben Sperre, damit kein Pong
+	 * liegen bleibt.
+	 */
+	private void release() {
+		while( true ) {
+			long time;
+			synchronized( this.sendLock ) {
+				if( !this.pongPending ) {
+					this.sending = false;
+					this.sendLock.notifyAll();
+					return;
+				}
+				this.pongPending = false;
+				time = this.pongTime;
+			}
+
+			Encoding.putLong(this.pingData, 0, time);
+			try {
+				this.writeFrame(TYPE_PONG, 0, 0, this.pingData, 0, 8);
+			} catch( ComException ex ) {
+				// Die Verbindung ist gestört, der Fehler zeigt sich beim
+				// nächsten Senden oder Empfangen
+			}
+		}
+	}
+
+	/**
+	 * Muss mit gehaltener Sende-Sperre aufgerufen werden.
+	 *
+	 * @param priority
+	 * @return <code>true</code> wenn ein Sender höherer Priorität wartet
+	 */
+	private boolean isHigherWaiting( int priority ) {
+		for( int i = PRIORITY_HIGH; i < priority; i++ ) {
+			if( this.waiting[i] > 0 ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Komprimiert einen Ausschnitt des Inhalts, falls eingestellt, und
+	 * schreibt ihn als Frame. Darf nur nach {@link #acquire(int)} aufgerufen
+	 * werden.
+	 *
+	 * @param frame
+	 * @param off Beginn des Ausschnitts
+	 * @param length Länge des Ausschnitts
+	 * @param flags
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	private void writeData( Frame frame, int off, int length, int flags )
+			throws ComException {
+		if( this.compressionThreshold > 0
+				&& length >= this.compressionThreshold
+				&& (flags & FLAG_RAW) == 0 ) {
+			if( this.compressed == null || this.compressed.length < length ) {
+				this.compressed = new byte[length];
+			}
+			int n = this.compressor.compress(frame.data, off, length,
+					this.compressed, 0, length - 1);
+			if( n > 0 ) {
+				this.writeFrame(frame.type, (flags & ~FLAG_RAW)
+						| FLAG_COMPRESSED, frame.channel, this.compressed, 0, n);
+				return;
+			}
+		}
+		this.writeFrame(frame.type, flags & ~FLAG_RAW, frame.channel,
+				frame.data, off, length);
+	}
+
+	/**
+	 * Schreibt Header und Inhalt eines Frames. Darf nur nach
+	 * {@link #acquire(int)} aufgerufen werden.
+	 *
+	 * @param type
+	 * @param flags
+	 * @param channel Virtueller Kanal oder <code>0</code>
+	 * @param data
+	 * @param off Position des Inhalts in <code>data</code>
+	 * @param length
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	protected void writeFrame( int type, int flags, int channel, byte[] data,
+			int off, int length ) throws ComException {
+		int headerSize = HEADER_SIZE;
+		if( channel != 0 ) {
+			flags |= FLAG_CHANNEL;
+			this.sendHeader[headerSize++] = (byte) channel;
+			if( length + 1 > MAX_PAYLOAD ) {
+				throw new ComException("Frame too large", ComException.SEND);
+			}
+		}
+		int wireLength = length + headerSize - HEADER_SIZE;
+		this.sendHeader[0] = (byte) type;
+		this.sendHeader[1] = (byte) flags;
+		this.sendHeader[2] = (byte) (wireLength >>> 8);
+		this.sendHeader[3] = (byte) wireLength;
+
+		this.connection.beginBatch();
+		try {
+			this.connection.sendBytes(this.sendHeader, 0, headerSize);
+			if( length > 0 ) {
+				this.connection.sendBytes(data, off, length);
+			}
+		} catch( ComException ex ) {
+			// Der Stapel muss auch nach einem Fehler geschlossen werden, z.B.
+			// bei voller Warteschlange mit QUEUE_FAIL. Sonst leert die
+			// weiterhin benutzbare Verbindung nie wieder selbst.
+			try {
+				this.connection.endBatch();
+			} catch( ComException ignored ) {
+				// Der erste Fehler wird gemeldet
+			}
+			throw ex;
+		}
+		this.connection.endBatch();
+	}
+
+	/**
+	 * Empfängt den nächsten Frame. Die Methode blockiert bis ein vollständiger
+	 * Frame eingetroffen ist.
+	 * <p/>
+	 * Ist der Inhalt größer als der übergebene Frame, wird er verworfen und
+	 * eine {@link ComException} geworfen. Der Kanal bleibt dabei synchron und
+	 * kann weiter benutzt werden.
+	 * <p/>
+	 * Ping und Pong werden hier ausgewertet und nicht zurückgegeben. Dazu muss
+	 * der Frame mindestens 8 Bytes fassen. Der Pong auf einen Ping wird nur
+	 * dann hier verschickt, wenn das Senden gerade frei ist; sonst übernimmt
+	 * das der sendende Thread. Teilstücke werden gesammelt und
+	 * erst der vollständige Frame zurückgegeben.
+	 *
+	 * @param frame Frame, in den die Nachricht gelesen wird
+	 * @return Typ der empfangenen Nachricht
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	public int receive( Frame frame ) throws ComException {
+		synchronized( this.receiveLock ) {
+			while( true ) {
+				boolean complete = this.readFrame(frame);
+
+				Heartbeat hb = this.heartbeat;
+				if( hb != null ) {
+					hb.received();
+				}
+
+				if( !complete ) {
+					continue;
+				} else if( frame.type == TYPE_PING && frame.length == 8 ) {
+					this.answerPing(Encoding.getLong(frame.data, 0));
+				} else if( frame.type == TYPE_PONG && frame.length == 8 ) {
+					if( hb != null ) {
+						hb.pong(Encoding.getLong(frame.data, 0));
+					}
+				} else {
+					return frame.type;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Liest Header und Inhalt eines Frames. Muss mit gehaltener
+	 * Empfangs-Sperre aufgerufen werden.
+	 *
+	 * @param frame
+	 * @return <code>false</code> wenn ein Teilstück gelesen wurde, auf das
+	 *         weitere folgen
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	protected boolean readFrame( Frame frame ) throws ComException {
+		this.skipped = false;
+		this.connection.receiveBytes(this.receiveHeader, 0, HEADER_SIZE);
+
+		int type = this.receiveHeader[0] & 0xFF;
+		int flags = this.receiveHeader[1] & 0xFF;
+		int length = ((this.receiveHeader[2] & 0xFF) << 8)
+				| (this.receiveHeader[3] & 0xFF);
+
+		int channel = 0;
+		if( (flags & FLAG_CHANNEL) != 0 && length > 0 ) {
+			this.connection.receiveBytes(this.receiveHeader, HEADER_SIZE, 1);
+			channel = this.receiveHeader[HEADER_SIZE] & 0xFF;
+			length--;
+		}
+		flags &= ~FLAG_CHANNEL;
+
+		if( (flags & FLAG_FRAGMENT) != 0 ) {
+			return this.readFragment(frame, type, flags, channel, length);
+		}
+
+		if( length > frame.data.length ) {
+			this.skip(frame.data, length);
+			frame.setReceived(type, flags, channel, 0);
+			throw this.tooLarge();
+		}
+
+		if( (flags & FLAG_COMPRESSED) != 0 ) {
+			this.readCompressed(frame, type, flags, channel, length);
+			return true;
+		}
+
+		if( length > 0 ) {
+			this.connection.receiveBytes(frame.data, 0, length);
+		}
+		frame.setReceived(type, flags, channel, length);
+		return true;
+	}
+
+	/**
+	 * Liest ein Teilstück und hängt es an die bisherigen an. Mit dem letzten
+	 * Teilstück wird der zusammengesetzte Inhalt in den Frame kopiert.
+	 *
+	 * @param frame
+	 * @param type
+	 * @param flags
+	 * @param channel
+	 * @param length Länge des Teilstücks
+	 * @return <code>true</code> nach dem letzten Teilstück
+	 * @throws ComException Falls ein Verbindungsfehler auftritt oder der
+	 *         zusammengesetzte Inhalt nicht in den Frame passt
+	 */
+	private boolean readFragment( Frame frame, int type, int flags,
+			int channel, int length ) throws ComException {
+		if( this.assembly == null || this.assembly.length < frame.data.length ) {
+			byte[] larger = new byte[frame.data.length];
+			if( this.assembly != null ) {
+				System.arraycopy(this.assembly, 0, larger, 0, this.assembled);
+			}
+			this.assembly = larger;
+		}
+
+		int room = frame.data.length - this.assembled;
+		if( this.assemblyOverflow ) {
+			this.skip(frame.data, length);
+		} else if( (flags & FLAG_COMPRESSED) != 0 ) {
+			if( this.inflated == null || this.inflated.length < length ) {
+				this.inflated = new byte[length];
+			}
+			this.connection.receiveBytes(this.inflated, 0, length);
+			int n = Lzss.decompress(this.inflated, 0, length, this.assembly,
+					this.assembled, room);
+			if( n < 0 ) {
+				this.assemblyOverflow = true;
+			} else {
+				this.assembled += n;
+			}
+		} else if( length > room ) {
+			this.skip(frame.data, length);
+			this.assemblyOverflow = true;
+		} else {
+			this.connection.receiveBytes(this.assembly, this.assembled, length);
+			this.assembled += length;
+		}
+
+		if( (flags & FLAG_MORE) != 0 ) {
+			return false;
+		}
+
+		// Letztes Teilstück
+		int n = this.assembled;
+		boolean overflow = this.assemblyOverflow;
+		this.assembled = 0;
+		this.assemblyOverflow = false;
+
+		flags &= ~(FLAG_FRAGMENT | FLAG_COMPRESSED);
+		if( overflow ) {
+			frame.setReceived(type, flags, channel, 0);
+			throw this.tooLarge();
+		}
+		System.arraycopy(this.assembly, 0, frame.data, 0, n);
+		frame.setReceived(type, flags, channel, n);
+		return true;
+	}
+
+	/**
+	 * Überspringt einen Inhalt, damit der Strom synchron bleibt.
+	 *
+	 * @param scratch Puffer für die verworfenen Bytes, darf leer sein
+	 * @param length Länge des Inhalts
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	private void skip( byte[] scratch, int length ) throws ComException {
+		if( scratch.length < this.discard.length ) {
+			scratch = this.discard;
+		}
+		for( int n = length; n > 0; n -= scratch.length ) {
+			this.connection.receiveBytes(scratch, 0,
+					Math.min(n, scratch.length));
+		}
+	}
+
+	/**
+	 * Liest einen komprimierten Inhalt und entpackt ihn in den Frame.
+	 *
+	 * @param frame
+	 * @param type
+	 * @param flags
+	 * @param channel
+	 * @param length Länge des komprimierten Inhalts
+	 * @throws ComException Falls ein Verbindungsfehler auftritt oder der
+	 *         entpackte Inhalt nicht in den Frame passt
+	 */
+	private void readCompressed( Frame frame, int type, int flags,
+			int channel, int length ) throws ComException {
+		if( this.inflated == null || this.inflated.length < length ) {
+			this.inflated = new byte[length];
+		}
+		this.connection.receiveBytes(this.inflated, 0, length);
+
+		int n = Lzss.decompress(this.inflated, 0, length, frame.data, 0,
+				frame.data.length);
+		if( n < 0 ) {
+			frame.setReceived(type, flags & ~FLAG_COMPRESSED, channel, 0);
+			throw this.tooLarge();
+		}
+		frame.setReceived(type, flags & ~FLAG_COMPRESSED, channel, n);
+	}
+
+	/**
+	 * Vermerkt einen übersprungenen Frame und erzeugt die zugehörige
+	 * Exception.
+	 *
+	 * @return Die zu werfende Exception
+	 */
+	private ComException tooLarge() {
+		this.skipped = true;
+		return new ComException("Frame too large", ComException.RECV);
+	}
+
+	/**
+	 * Prüft, ob der letzte Fehler von {@link #receive(Frame)} nur einen zu
+	 * großen Frame betraf. Der Kanal ist dann weiter synchron und kann
+	 * weiter benutzt werden.
+	 *
+	 * @return <code>true</code> wenn der zuletzt gelesene Frame übersprungen
+	 *         wurde
+	 */
+	boolean wasSkipped() {
+		synchronized( this.receiveLock ) {
+			return this.skipped;
+		}
+	}
+
+}
@@ -0,0 +1,326 @@
+package de.upb.ddi.lejos.com;
+
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Verteilt mehrere unabhängige {@link VirtualChannel virtuelle Kanäle} auf
+ * eine einzige Verbindung. Da die Anzahl gleichzeitiger Verbindungen eines
+ * NXT sehr begrenzt ist, können so z.B. Messwerte, Befehle und Log-Ausgaben
+ * über eine Verbindung laufen, ohne sich gegenseitig zu behindern.
+ * <p/>
+ * <pre>
+ * Multiplexer mux = new Multiplexer(channel);
+ * RpcChannel rpc = new RpcChannel(mux.open(1));
+ * SampleStream samples = new SampleStream(
+ *         mux.open(2, Multiplexer.DEFAULT_QUEUE_SIZE, false), TYPE_LIGHT, 1);
+ * mux.start();
+ * </pre>
+ * <p/>
+ * Jeder Frame trägt die Nummer seines Kanals (siehe
+ * {@link MessageChannel#FLAG_CHANNEL}). Ein eigener Thread liest alle
+ * eingehenden Frames und legt sie in der Warteschlange des zugehörigen Kanals
+ * ab. Der Thread wartet dabei nie auf einen Kanal, ein Leser, der nicht
+ * abholt, hält die übrigen Kanäle also nicht auf. Frames für nicht geöffnete
+ * Kanäle werden verworfen und mit {@link #getDropped()} gezählt.
+ * <p/>
+ * Mit {@link #open(int)} geöffnete Kanäle sind <b>blockierend</b> und haben
+ * eine eigene Flusskontrolle: Jeder Kanal erteilt der Gegenseite mit
+ * {@link MessageChannel#TYPE_WINDOW} so viele Sendeerlaubnisse, wie seine
+ * Warteschlange fasst, und meldet abgeholte Plätze zurück. Der Sender wartet,
+ * bevor die Warteschlange der Gegenseite überläuft; es geht also kein Frame
+ * verloren. Bis die Gegenseite den Kanal geöffnet hat, wartet der Sender
+ * ebenfalls. Dazu müssen beide Seiten einen Multiplexer benutzen, dessen
+ * Thread läuft.
+ * <p/>
+ * Kanäle, deren Frames verzichtbar sind, z.B. für einen {@link SampleStream},
+ * werden mit {@link #open(int, int, boolean)} ausdrücklich
+ * <b>verlustbehaftet</b> geöffnet. Die Gegenseite darf dann unbegrenzt
+ * senden; ist die Warteschlange voll, wird der Frame ohne Rückmeldung
+ * verworfen und nur mit {@link VirtualChannel#getDropped()} gezählt.
+ * <p/>
+ * Frames ohne Kanalnummer gehören zu Kanal <code>0</code>. Eine Gegenseite
+ * ohne Multiplexer kann also über Kanal <code>0</code> angesprochen werden;
+ * da sie keine Sendeerlaubnisse erteilt, ist Kanal <code>0</code> immer
+ * verlustbehaftet.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class Multiplexer implements Runnable {
+
+	/**
+	 * Anzahl möglicher Kanäle.
+	 */
+	public static final int MAX_CHANNELS = 256;
+
+	/**
+	 * Standardlänge der Warteschlange eines Kanals. Bei verlustbehafteten
+	 * Kanälen geht jeder weitere Frame verloren, bei blockierenden wartet der
+	 * Sender, solange der Leser nicht abholt.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 4;
+
+	/**
+	 * Größte Warteschlange eines Kanals und damit größte Sendeerlaubnis in
+	 * einer Nachricht
+	 */
+	static final int MAX_WINDOW = 0xFFFF;
+
+	/**
+	 * Sendeerlaubnis eines verlustbehafteten Kanals: unbegrenzt
+	 */
+	static final int UNLIMITED = 0;
+
+
+	/**
+	 * Der zugrundeliegende Kanal
+	 */
+	protected final MessageChannel channel;
+
+	/**
+	 * Größe der Frames in den Warteschlangen
+	 */
+	private final int capacity;
+
+	/**
+	 * Die geöffneten Kanäle nach Nummer
+	 */
+	private final VirtualChannel[] channels = new VirtualChannel[MAX_CHANNELS];
+
+	/**
+	 * Frame für eingehende Nachrichten, wird nur vom Empfangs-Thread benutzt
+	 */
+	private final Frame incoming;
+
+	/**
+	 * Anzahl verworfener Frames ohne geöffneten Kanal
+	 */
+	private int dropped = 0;
+
+	/**
+	 * Sendeerlaubnisse für noch nicht geöffnete Kanäle nach Nummer,
+	 * <code>-1</code> für unbegrenzt. Wird erst bei Bedarf angelegt.
+	 */
+	private int[] unclaimed = null;
+
+	/**
+	 * Fehler, mit dem der Empfangs-Thread beendet wurde
+	 */
+	private ComException failure = null;
+
+	/**
+	 * Der Empfangs-Thread
+	 */
+	private Thread thread = null;
+
+	/**
+	 * Erzeugt einen Multiplexer für Frames der
+	 * {@link Frame#DEFAULT_CAPACITY Standardgröße}.
+	 *
+	 * @param channel
+	 */
+	public Multiplexer( MessageChannel channel ) {
+		this(channel, Frame.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Erzeugt einen Multiplexer.
+	 *
+	 * @param channel
+	 * @param capacity Maximale Länge eines Frames in Bytes
+	 */
+	public Multiplexer( MessageChannel channel, int capacity ) {
+		this.channel = channel;
+		this.capacity = capacity;
+		this.incoming = new Frame(capacity);
+	}
+
+	/**
+	 * @return Der zugrundeliegende Kanal
+	 */
+	public MessageChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Öffnet einen blockierenden Kanal mit einer Warteschlange der
+	 * {@link #DEFAULT_QUEUE_SIZE Standardlänge}.
+	 *
+	 * @param id Nummer des Kanals von <code>0</code> bis <code>255</code>
+	 * @return Der Kanal
+	 */
+	public VirtualChannel open( int id ) {
+		return this.open(id, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Öffnet einen blockierenden Kanal mit Flusskontrolle. Ist der Kanal
+	 * bereits geöffnet, wird er zurückgegeben.
+	 *
+	 * @param id Nummer des Kanals von <code>0</code> bis <code>255</code>
+	 * @param queueSize Anzahl der Frames, die der Kanal zwischenspeichert
+	 * @return Der Kanal
+	 */
+	public VirtualChannel open( int id, int queueSize ) {
+		return this.open(id, queueSize, true);
+	}
+
+	/**
+	 * Öffnet einen Kanal und erteilt der Gegenseite die Sendeerlaubnis dafür.
+	 * Ist der Kanal bereits geöffnet, wird er unverändert zurückgegeben.
+	 *
+	 * @param id Nummer des Kanals von <code>0</code> bis <code>255</code>
+	 * @param queueSize Anzahl der Frames, die der Kanal zwischenspeichert
+	 * @param blocking Ob der Sender bei voller Warteschlange wartet;
+	 *        <code>false</code> öffnet einen verlustbehafteten Kanal, der
+	 *        Frames verwirft. Kanal <code>0</code> ist immer
+	 *        verlustbehaftet.
+	 * @return Der Kanal
+	 */
+	public VirtualChannel open( int id, int queueSize, boolean blocking ) {
+		id &= 0xFF;
+		VirtualChannel vc;
+		int credits = 0;
+		synchronized( this ) {
+			vc = this.channels[id];
+			if( vc != null ) {
+				return vc;
+			}
+			vc = new VirtualChannel(this, id, queueSize, this.capacity,
+					blocking);
+			if( this.failure != null ) {
+				vc.fail(this.failure);
+			}
+			if( this.unclaimed != null ) {
+				credits = this.unclaimed[id];
+				this.unclaimed[id] = 0;
+			}
+			this.channels[id] = vc;
+		}
+
+		// Bereits eingetroffene Erlaubnisse der Gegenseite übernehmen
+		if( credits < 0 ) {
+			vc.addCredits(UNLIMITED);
+		} else if( credits > 0 ) {
+			vc.addCredits(credits);
+		}
+		// Außerhalb der Sperre, damit der Empfangs-Thread nie wartet
+		vc.announce();
+		return vc;
+	}
+
+	/**
+	 * @param id Nummer des Kanals
+	 * @return Der geöffnete Kanal oder <code>null</code>
+	 */
+	public synchronized VirtualChannel get( int id ) {
+		return this.channels[id & 0xFF];
+	}
+
+	/**
+	 * Entfernt einen geschlossenen Kanal.
+	 *
+	 * @param vc
+	 */
+	synchronized void remove( VirtualChannel vc ) {
+		if( this.channels[vc.getId()] == vc ) {
+			this.channels[vc.getId()] = null;
+		}
+	}
+
+	/**
+	 * @return Anzahl verworfener Frames für nicht geöffnete Kanäle. Zu große
+	 *         Frames werden beim jeweiligen Kanal gemeldet.
+	 */
+	public synchronized int getDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * Startet den Empfangs-Thread. Die Verbindung muss dazu aufgebaut sein.
+	 * Der Thread endet, sobald die Verbindung abbricht oder getrennt wird.
+	 */
+	public synchronized void start() {
+		if( this.thread == null ) {
+			this.thread = new Thread(this);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+	}
+
+	/**
+	 * Beendet alle Kanäle mit einem Fehler.
+	 *
+	 * @param ex
+	 */
+	private synchronized void fail( ComException ex ) {
+		this.failure = ex;
+		for( int i = 0; i < MAX_CHANNELS; i++ ) {
+			if( this.channels[i] != null ) {
+				this.channels[i].fail(ex);
+			}
+		}
+	}
+
+	/**
+	 * Merkt sich eine Sendeerlaubnis für einen noch nicht geöffneten Kanal.
+	 * Muss mit gehaltener Sperre aufgerufen werden.
+	 *
+	 * @param id
+	 * @param n Anzahl der Frames oder {@link #UNLIMITED}
+	 */
+	private void keepCredits( int id, int n ) {
+		if( this.unclaimed == null ) {
+			this.unclaimed = new int[MAX_CHANNELS];
+		}
+		if( n == UNLIMITED || this.unclaimed[id] < 0 ) {
+			this.unclaimed[id] = -1;
+		} else {
+			this.unclaimed[id] += n;
+		}
+	}
+
+	public void run() {
+		Frame f = this.incoming;
+		while( true ) {
+			boolean skipped = false;
+			try {
+				this.channel.receive(f);
+			} catch( ComException ex ) {
+				if( !this.channel.wasSkipped() ) {
+					Console.dbg.println("mux: stopped");
+					this.fail(ex);
+					return;
+				}
+				// Zu großer Frame, der Kanal ist weiter synchron. Der
+				// virtuelle Kanal meldet ihn beim Abholen.
+				skipped = true;
+			}
+
+			boolean window = !skipped
+					&& f.type == MessageChannel.TYPE_WINDOW && f.length >= 2;
+			int n = window ? ((f.data[0] & 0xFF) << 8) | (f.data[1] & 0xFF)
+					: 0;
+
+			VirtualChannel vc;
+			synchronized( this ) {
+				vc = this.channels[f.channel];
+				if( vc == null ) {
+					if( window ) {
+						this.keepCredits(f.channel, n);
+					} else {
+						this.dropped++;
+					}
+					continue;
+				}
+			}
+			if( window ) {
+				vc.addCredits(n);
+			} else {
+				vc.offer(f, skipped);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Eine Datenleitung im Speicher zwischen zwei Threads. Was in den
+ * {@link #getOutputStream() Ausgabestrom} geschrieben wird, kann aus dem
+ * {@link #getInputStream() Eingabestrom} gelesen werden. Die Daten liegen in
+ * einem {@link RingBuffer} fester Größe; ist er voll, blockiert der
+ * Schreiber, ist er leer, blockiert der Leser. Wie beim
+ * {@link AsyncInputStream} wird dabei nach einigen Versuchen mit
+ * {@link Thread#yield()} geschlafen, bis die Gegenseite weckt, sodass eine
+ * ruhende Leitung keine Rechenzeit kostet.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+class Pipe {
+
+	/**
+	 * Anzahl der Versuche mit {@link Thread#yield()}, bevor ein wartender
+	 * Thread schlafen gelegt wird.
+	 */
+	private static final int SPIN_LIMIT = 8;
+
+	/**
+	 * Maximale Schlafdauer in Millisekunden, bevor erneut geprüft wird.
+	 */
+	private static final int PARK_TIMEOUT = 20;
+
+
+	/**
+	 * Puffer der Leitung
+	 */
+	private final RingBuffer ring;
+
+	/**
+	 * Ob der Leser den Eingabestrom geschlossen hat
+	 */
+	private volatile boolean readerClosed = false;
+
+	/**
+	 * Objekt, an dem Leser und Schreiber schlafen
+	 */
+	private final Object signal = new Object();
+
+	/**
+	 * Anzahl schlafender Threads
+	 */
+	private volatile int parked = 0;
+
+	/**
+	 * Eingabestrom der Leitung
+	 */
+	private final InputStream input = new InputStream() {
+
+		@Override
+		public int available() {
+			return Pipe.this.ring.available();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if( !this.await() ) {
+				return -1;
+			}
+			int b = Pipe.this.ring.read();
+			Pipe.this.wake();
+			return b;
+		}
+
+		@Override
+		public int read( byte[] dst, int off, int len ) throws IOException {
+			if( len == 0 ) {
+				return 0;
+			}
+			if( !this.await() ) {
+				return -1;
+			}
+			int n = Pipe.this.ring.read(dst, off, len);
+			Pipe.this.wake();
+			return n;
+		}
+
+		/**
+		 * Wartet bis Daten vorliegen.
+		 *
+		 * @return <code>false</code> wenn der Schreiber geschlossen hat und
+		 *         alle Daten gelesen wurden
+		 * @throws IOException Falls der Eingabestrom geschlossen wurde
+		 */
+		private boolean await() throws IOException {
+			int spins = 0;
+			while( Pipe.this.ring.available() == 0 ) {
+				if( Pipe.this.readerClosed ) {
+					throw new IOException("Stream closed");
+				}
+				if( Pipe.this.ring.isClosed() ) {
+					return (Pipe.this.ring.available() > 0);
+				}
+				if( spins++ < SPIN_LIMIT ) {
+					Thread.yield();
+				} else {
+					Pipe.this.park(false);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void close() {
+			Pipe.this.readerClosed = true;
+			Pipe.this.wake();
+		}
+	};
+
+	/**
+	 * Ausgabestrom der Leitung
+	 */
+	private final OutputStream output = new OutputStream() {
+
+		/**
+		 * Puffer für einzelne Bytes
+		 */
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write( int b ) throws IOException {
+			this.single[0] = (byte) b;
+			this.write(this.single, 0, 1);
+		}
+
+		@Override
+		public void write( byte[] src, int off, int len ) throws IOException {
+			int spins = 0;
+			while( len > 0 ) {
+				if( Pipe.this.ring.isClosed() || Pipe.this.readerClosed ) {
+					throw new IOException("Pipe closed");
+				}
+				int n = Pipe.this.ring.write(src, off, len);
+				if( n > 0 ) {
+					spins = 0;
+					Pipe.this.wake();
+				} else if( spins++ < SPIN_LIMIT ) {
+					Thread.yield();
+				} else {
+					Pipe.this.park(true);
+				}
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() {
+			Pipe.this.ring.close();
+			Pipe.this.wake();
+		}
+	};
+
+	/**
+	 * Erzeugt eine Leitung.
+	 *
+	 * @param capacity Größe des Puffers in Bytes
+	 */
+	Pipe( int capacity ) {
+		this.ring = new RingBuffer(capacity);
+	}
+
+	/**
+	 * Legt den aufrufenden Thread schlafen, solange er nicht weiterkommt.
+	 *
+	 * @param writer <code>true</code> für den Schreiber, der auf freien Platz
+	 *        wartet, <code>false</code> für den Leser, der auf Daten wartet
+	 * @throws IOException Falls der Thread unterbrochen wird
+	 */
+	private void park( boolean writer ) throws IOException {
+		synchronized( this.signal ) {
+			this.parked++;
+			try {
+				boolean blocked = writer ? (this.ring.free() == 0)
+						: (this.ring.available() == 0);
+				if( blocked && !this.ring.isClosed() && !this.readerClosed ) {
+					this.signal.wait(PARK_TIMEOUT);
+				}
+			} catch( InterruptedException ex ) {
+				throw new IOException("Interrupted");
+			} finally {
+				this.parked--;
+			}
+		}
+	}
+
+	/**
+	 * Weckt schlafende Threads nach einer Änderung am Puffer.
+	 */
+	private void wake() {
+		if( this.parked > 0 ) {
+			synchronized( this.signal ) {
+				this.signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return Der lesende Endpunkt der Leitung
+	 */
+	InputStream getInputStream() {
+		return this.input;
+	}
+
+	/**
+	 * @return Der schreibende Endpunkt der Leitung
+	 */
+	OutputStream getOutputStream() {
+		return this.output;
+	}
+
+}
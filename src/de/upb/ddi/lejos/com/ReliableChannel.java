@@ -0,0 +1,752 @@
+package de.upb.ddi.lejos.com;
+
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Zuverlässiger Nachrichtenkanal, der Verbindungsabbrüche selbstständig
+ * überbrückt. Jeder Frame erhält eine fortlaufende Nummer und bleibt in einem
+ * Puffer fester Größe, bis die Gegenseite seinen Empfang bestätigt hat. Bricht
+ * die Verbindung ab, wird sie mit wachsenden Wartezeiten neu aufgebaut; danach
+ * bestätigen beide Seiten die von der Anwendung abgeholten Frames und
+ * verschicken alle noch unbestätigten Frames erneut. Doppelt empfangene Frames
+ * werden verworfen.
+ * <p/>
+ * Die Seite, die die Verbindung aufgebaut hat, baut sie mit
+ * {@link RemoteConnection#connect(String)} neu auf; die wartende Seite wartet
+ * mit {@link RemoteConnection#connect(int)} darauf. Neue Verbindungen werden
+ * mit {@link RemoteConnection#clone()} aus der ursprünglichen erzeugt.
+ * <p/>
+ * <pre>
+ * conn.connect("NXT2");
+ * ReliableChannel rc = new ReliableChannel(conn, "NXT2");
+ * rc.start();
+ * rc.send(frame);
+ * </pre>
+ * <p/>
+ * Empfangen wird in einem eigenen Thread, der eingehende Frames in eine
+ * Warteschlange legt und Bestätigungen auswertet. Bestätigt wird, was die
+ * Anwendung mit {@link #receive(Frame)} abgeholt hat; ein Sender kann daher
+ * nie mehr Frames verschicken, als die Gegenseite aufnehmen kann. Beide Seiten
+ * müssen dieselbe Fenstergröße benutzen.
+ * <p/>
+ * Der zugrundeliegende {@link MessageChannel} ist mit {@link #getChannel()}
+ * erreichbar, z.B. um Kompression oder einen {@link Heartbeat} einzuschalten.
+ * Nach einem Neuaufbau wird ein neuer Kanal benutzt, der diese Einstellungen
+ * übernimmt. Ein Heartbeat trennt eine tote Verbindung und löst so den
+ * Neuaufbau aus.
+ * <p/>
+ * Jedem Frame wird ein Header vorangestellt:
+ * <pre>
+ * +-------------------+---------------------+---------------+
+ * | Nummer (16 Bit)   | Bestätigt (16 Bit)  | Inhalt        |
+ * +-------------------+---------------------+---------------+
+ * </pre>
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ReliableChannel implements Runnable {
+
+	/**
+	 * Standardgröße des Fensters unbestätigter Frames.
+	 */
+	public static final int DEFAULT_WINDOW = 8;
+
+	/**
+	 * Größe des Headers in Bytes.
+	 */
+	public static final int HEADER_SIZE = 4;
+
+	/**
+	 * Standardanzahl der Versuche, eine abgebrochene Verbindung neu
+	 * aufzubauen.
+	 */
+	public static final int DEFAULT_ATTEMPTS = 10;
+
+	/**
+	 * Standard-Wartezeit vor dem ersten Versuch in Millisekunden.
+	 */
+	public static final int DEFAULT_MIN_DELAY = 100;
+
+	/**
+	 * Standard-Obergrenze der Wartezeit zwischen zwei Versuchen in
+	 * Millisekunden.
+	 */
+	public static final int DEFAULT_MAX_DELAY = 5000;
+
+	/**
+	 * Maximale Wartezeit auf die Wiederaufnahme der Gegenseite nach einem
+	 * Neuaufbau in Millisekunden.
+	 */
+	public static final int RESUME_TIMEOUT = 5000;
+
+
+	/**
+	 * Vorlage für neue Verbindungen
+	 */
+	private final RemoteConnection prototype;
+
+	/**
+	 * Name oder Adresse der Gegenseite oder <code>null</code>, wenn auf
+	 * Verbindungen gewartet wird
+	 */
+	private final String peer;
+
+	/**
+	 * Die aktuelle Verbindung
+	 */
+	private volatile RemoteConnection connection;
+
+	/**
+	 * Kanal über die aktuelle Verbindung
+	 */
+	private volatile MessageChannel channel;
+
+	/**
+	 * Puffer unbestätigter Frames, Index ist die Nummer modulo Fenstergröße
+	 */
+	private final Frame[] unacked;
+
+	/**
+	 * Nummer des ältesten unbestätigten Frames
+	 */
+	private int base = 0;
+
+	/**
+	 * Nummer des nächsten zu sendenden Frames
+	 */
+	private int nextSeq = 0;
+
+	/**
+	 * Warteschlange empfangener Frames
+	 */
+	private final Frame[] received;
+
+	/**
+	 * Index des ältesten Frames in {@link #received}
+	 */
+	private int receivedStart = 0;
+
+	/**
+	 * Anzahl der Frames in {@link #received}
+	 */
+	private int receivedCount = 0;
+
+	/**
+	 * Nummer des nächsten erwarteten Frames
+	 */
+	private int expected = 0;
+
+	/**
+	 * Nummer des nächsten von der Anwendung abzuholenden Frames
+	 */
+	private int delivered = 0;
+
+	/**
+	 * Abgeholte, aber noch nicht bestätigte Frames
+	 */
+	private int unconfirmed = 0;
+
+	/**
+	 * Ob die Verbindung gerade unterbrochen ist
+	 */
+	private boolean broken = false;
+
+	/**
+	 * Ob der Kanal geschlossen wurde
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Fehler, mit dem der Kanal endgültig beendet wurde
+	 */
+	private ComException failure = null;
+
+	/**
+	 * Sperre für das Senden
+	 */
+	private final Object sendLock = new Object();
+
+	/**
+	 * Frame für Bestätigungen und Wiederaufnahme
+	 */
+	private final Frame control = new Frame(2);
+
+	/**
+	 * Frame für eingehende Nachrichten, wird nur vom Empfangs-Thread benutzt
+	 */
+	private final Frame incoming;
+
+	/**
+	 * Einstellungen für den Neuaufbau
+	 */
+	private int attempts = DEFAULT_ATTEMPTS, minDelay = DEFAULT_MIN_DELAY,
+			maxDelay = DEFAULT_MAX_DELAY;
+
+	/**
+	 * Anzahl erfolgreicher Neuaufbauten
+	 */
+	private int reconnects = 0;
+
+	/**
+	 * Der Empfangs-Thread
+	 */
+	private Thread thread = null;
+
+	/**
+	 * Erzeugt einen Kanal mit {@link #DEFAULT_WINDOW} unbestätigten Frames der
+	 * {@link Frame#DEFAULT_CAPACITY Standardgröße}.
+	 *
+	 * @param connection Die aufgebaute Verbindung
+	 * @param peer Name oder Adresse der Gegenseite für den Neuaufbau oder
+	 *        <code>null</code>, wenn auf die Gegenseite gewartet wird
+	 */
+	public ReliableChannel( RemoteConnection connection, String peer ) {
+		this(connection, peer, DEFAULT_WINDOW, Frame.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Erzeugt einen Kanal.
+	 *
+	 * @param connection Die aufgebaute Verbindung
+	 * @param peer Name oder Adresse der Gegenseite für den Neuaufbau oder
+	 *        <code>null</code>, wenn auf die Gegenseite gewartet wird
+	 * @param window Maximale Anzahl unbestätigter Frames, wird auf die nächste
+	 *        Zweierpotenz aufgerundet
+	 * @param capacity Maximale Länge eines Frames in Bytes
+	 */
+	public ReliableChannel( RemoteConnection connection, String peer,
+			int window, int capacity ) {
+		this.prototype = connection;
+		this.peer = peer;
+		this.connection = connection;
+		this.channel = new MessageChannel(connection);
+
+		// Zweierpotenz, damit die Pufferindizes beim Überlauf der
+		// 16-Bit-Nummern fortlaufend bleiben
+		int size = 1;
+		while( size < window ) {
+			size <<= 1;
+		}
+		window = size;
+
+		capacity += HEADER_SIZE;
+		this.unacked = new Frame[window];
+		this.received = new Frame[window];
+		for( int i = 0; i < window; i++ ) {
+			this.unacked[i] = new Frame(capacity);
+			this.received[i] = new Frame(capacity);
+		}
+		this.incoming = new Frame(capacity);
+	}
+
+	/**
+	 * Stellt den Neuaufbau abgebrochener Verbindungen ein. Die Wartezeit vor
+	 * jedem Versuch verdoppelt sich, beginnend bei <code>minDelay</code>, bis
+	 * <code>maxDelay</code> erreicht ist.
+	 *
+	 * @param attempts Maximale Anzahl der Versuche
+	 * @param minDelay Wartezeit vor dem ersten Versuch in Millisekunden
+	 * @param maxDelay Obergrenze der Wartezeit in Millisekunden
+	 */
+	public void setReconnect( int attempts, int minDelay, int maxDelay ) {
+		this.attempts = attempts;
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @return Die aktuelle Verbindung
+	 */
+	public RemoteConnection getConnection() {
+		return this.connection;
+	}
+
+	/**
+	 * Der Kanal wird bei jedem Neuaufbau ersetzt; Kompression, Teilstücke und
+	 * Überwachung werden dabei übernommen. Die aktuelle Überwachung liefert
+	 * daher <code>getChannel().getHeartbeat()</code>.
+	 *
+	 * @return Der Kanal über die aktuelle Verbindung
+	 */
+	public MessageChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * @return Anzahl erfolgreicher Neuaufbauten der Verbindung
+	 */
+	public synchronized int getReconnects() {
+		return this.reconnects;
+	}
+
+	/**
+	 * @return Anzahl verschickter, noch nicht bestätigter Frames
+	 */
+	public synchronized int getUnacknowledged() {
+		return (this.nextSeq - this.base) & 0xFFFF;
+	}
+
+	/**
+	 * Startet den Empfangs-Thread.
+	 */
+	public synchronized void start() {
+		if( this.thread == null ) {
+			this.thread = new Thread(this);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+	}
+
+	/**
+	 * Verschickt einen Frame. Ist das Fenster voll, wird gewartet, bis die
+	 * Gegenseite Frames bestätigt. Ist die Verbindung unterbrochen, kehrt die
+	 * Methode zurück, sobald der Frame gepuffert ist; er wird nach dem
+	 * Neuaufbau verschickt.
+	 *
+	 * @param frame Frame mit einem Typ bis {@link MessageChannel#MAX_TYPE}
+	 * @throws ComException Falls die Verbindung endgültig verloren ist, der
+	 *         Kanal geschlossen wurde oder der Frame zu groß ist
+	 */
+	public void send( Frame frame ) throws ComException {
+		if( frame.length > this.unacked[0].data.length - HEADER_SIZE ) {
+			throw new ComException("Frame too large", ComException.SEND);
+		}
+
+		while( true ) {
+			synchronized( this ) {
+				while( this.isWindowFull() ) {
+					this.checkFailure();
+					try {
+						this.wait();
+					} catch( InterruptedException ex ) {
+						throw new ComException("Interrupted", ComException.SEND);
+					}
+				}
+				this.checkFailure();
+			}
+
+			synchronized( this.sendLock ) {
+				Frame f;
+				boolean send;
+				synchronized( this ) {
+					if( this.isWindowFull() ) {
+						// Ein anderer Sender war schneller
+						continue;
+					}
+					this.checkFailure();
+
+					f = this.unacked[this.nextSeq % this.unacked.length];
+					f.reset(frame.type);
+					f.setFlags(frame.flags & MessageChannel.FLAG_RAW);
+					f.putByte(this.nextSeq >>> 8);
+					f.putByte(this.nextSeq);
+					f.putByte(this.delivered >>> 8);
+					f.putByte(this.delivered);
+					f.putBytes(frame.data, 0, frame.length);
+					this.nextSeq = (this.nextSeq + 1) & 0xFFFF;
+					send = !this.broken;
+				}
+
+				if( send ) {
+					try {
+						this.channel.send(f);
+					} catch( ComException ex ) {
+						this.interrupt();
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Empfängt den nächsten Frame. Blockiert, bis ein Frame vorliegt.
+	 *
+	 * @param frame Frame, in den die Nachricht kopiert wird
+	 * @return Typ der Nachricht
+	 * @throws ComException Falls die Verbindung endgültig verloren ist oder
+	 *         der Kanal geschlossen wurde
+	 */
+	public int receive( Frame frame ) throws ComException {
+		boolean confirm;
+		synchronized( this ) {
+			while( this.receivedCount == 0 ) {
+				this.checkFailure();
+				try {
+					this.wait();
+				} catch( InterruptedException ex ) {
+					throw new ComException("Interrupted", ComException.RECV);
+				}
+			}
+
+			Frame f = this.received[this.receivedStart];
+			frame.reset(f.type);
+			frame.putBytes(f.data, HEADER_SIZE, f.length - HEADER_SIZE);
+
+			this.receivedStart = (this.receivedStart + 1)
+					% this.received.length;
+			this.receivedCount--;
+			this.delivered = (this.delivered + 1) & 0xFFFF;
+			this.unconfirmed++;
+			this.notifyAll();
+
+			confirm = (this.unconfirmed >= (this.received.length + 1) / 2);
+		}
+
+		if( confirm ) {
+			this.sendAck();
+		}
+		return frame.type;
+	}
+
+	/**
+	 * Schließt den Kanal und trennt die Verbindung. Unbestätigte Frames gehen
+	 * verloren.
+	 */
+	public void close() {
+		this.closed = true;
+		synchronized( this ) {
+			if( this.failure == null ) {
+				this.failure = new ComException("Channel closed",
+						ComException.CONN);
+			}
+			this.notifyAll();
+		}
+		RemoteConnection conn = this.connection;
+		if( conn.isConnected() ) {
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> wenn keine weiteren Frames verschickt werden
+	 *         können, bis die Gegenseite Frames bestätigt
+	 */
+	private boolean isWindowFull() {
+		return ((this.nextSeq - this.base) & 0xFFFF) >= this.unacked.length;
+	}
+
+	/**
+	 * @throws ComException Falls der Kanal endgültig beendet wurde
+	 */
+	private void checkFailure() throws ComException {
+		if( this.failure != null ) {
+			throw this.failure;
+		}
+	}
+
+	/**
+	 * Vergleicht zwei Nummern unter Berücksichtigung des Überlaufs.
+	 *
+	 * @param a
+	 * @param b
+	 * @return Positiv wenn <code>a</code> nach <code>b</code> liegt
+	 */
+	private static int compare( int a, int b ) {
+		return (short) (a - b);
+	}
+
+	/**
+	 * @param f
+	 * @param off
+	 * @return Die 16-Bit-Zahl an der Position
+	 */
+	private static int getShort( Frame f, int off ) {
+		return ((f.data[off] & 0xFF) << 8) | (f.data[off + 1] & 0xFF);
+	}
+
+	/**
+	 * Gibt alle Frames vor der angegebenen Nummer im Puffer frei.
+	 *
+	 * @param ack Nummer des nächsten von der Gegenseite erwarteten Frames
+	 */
+	private synchronized void acknowledge( int ack ) {
+		if( compare(ack, this.base) > 0 && compare(ack, this.nextSeq) <= 0 ) {
+			this.base = ack;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Bestätigt die abgeholten Frames.
+	 */
+	private void sendAck() {
+		synchronized( this.sendLock ) {
+			int ack;
+			synchronized( this ) {
+				if( this.broken ) {
+					// Die Wiederaufnahme bestätigt alle abgeholten Frames
+					return;
+				}
+				ack = this.delivered;
+				this.unconfirmed = 0;
+			}
+
+			this.control.reset(MessageChannel.TYPE_ACK);
+			this.control.putByte(ack >>> 8);
+			this.control.putByte(ack);
+			try {
+				this.channel.send(this.control);
+			} catch( ComException ex ) {
+				this.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Markiert die Verbindung als unterbrochen und trennt sie, damit der
+	 * Empfangs-Thread den Neuaufbau beginnt.
+	 */
+	private void interrupt() {
+		synchronized( this ) {
+			if( this.broken ) {
+				return;
+			}
+			this.broken = true;
+		}
+		RemoteConnection conn = this.connection;
+		if( conn.isConnected() ) {
+			conn.disconnect();
+		}
+	}
+
+	public void run() {
+		Frame f = this.incoming;
+		while( !this.closed ) {
+			try {
+				this.channel.receive(f);
+				if( f.type == MessageChannel.TYPE_ACK && f.length >= 2 ) {
+					this.acknowledge(getShort(f, 0));
+				} else if( f.type <= MessageChannel.MAX_TYPE
+						&& f.length >= HEADER_SIZE ) {
+					this.acknowledge(getShort(f, 2));
+					this.deliver(f, getShort(f, 0));
+				}
+			} catch( ComException ex ) {
+				if( this.closed || !this.reconnect() ) {
+					break;
+				}
+			}
+		}
+
+		synchronized( this ) {
+			if( this.failure == null ) {
+				this.failure = new ComException("Connection lost",
+						ComException.CONN);
+			}
+			this.notifyAll();
+		}
+		Console.dbg.println("rel: stopped");
+	}
+
+	/**
+	 * Legt einen empfangenen Frame in die Warteschlange, falls er der
+	 * nächste erwartete ist.
+	 *
+	 * @param f
+	 * @param seq
+	 * @throws ComException Falls Frames fehlen
+	 */
+	private synchronized void deliver( Frame f, int seq ) throws ComException {
+		int d = compare(seq, this.expected);
+		if( d < 0 ) {
+			// Doppelt nach der Wiederaufnahme
+			return;
+		}
+		if( d > 0 || this.receivedCount == this.received.length ) {
+			throw new ComException("Sequence error", ComException.RECV);
+		}
+
+		this.received[(this.receivedStart + this.receivedCount)
+				% this.received.length].copyFrom(f);
+		this.receivedCount++;
+		this.expected = (this.expected + 1) & 0xFFFF;
+		this.notifyAll();
+	}
+
+	/**
+	 * Baut die Verbindung neu auf und verschickt alle unbestätigten Frames
+	 * erneut.
+	 *
+	 * @return <code>false</code> wenn alle Versuche fehlgeschlagen sind
+	 */
+	private boolean reconnect() {
+		this.interrupt();
+		Console.dbg.println("rel: reconnect");
+
+		int delay = this.minDelay;
+		for( int i = 0; i < this.attempts && !this.closed; i++ ) {
+			try {
+				Thread.sleep(delay);
+			} catch( InterruptedException ex ) {
+				return false;
+			}
+			delay = Math.min(delay * 2, this.maxDelay);
+
+			RemoteConnection conn = this.prototype.clone();
+			if( this.peer != null ) {
+				conn.connect(this.peer);
+			} else {
+				conn.connect(RemoteConnection.CONNECT_TIMEOUT);
+			}
+			if( !conn.isConnected() ) {
+				continue;
+			}
+
+			try {
+				this.resume(conn);
+				return true;
+			} catch( ComException ex ) {
+				conn.disconnect();
+			}
+		}
+
+		if( !this.closed ) {
+			Console.err.println("rel: reconn failed");
+		}
+		return false;
+	}
+
+	/**
+	 * Tauscht nach dem Neuaufbau mit der Gegenseite die Nummern der nächsten
+	 * abzuholenden Frames aus und verschickt die unbestätigten Frames erneut.
+	 * Wie bei einer normalen Bestätigung gelten nur abgeholte Frames als
+	 * bestätigt, damit die Gegenseite nicht mehr als die freien Plätze der
+	 * Warteschlange schickt. Bereits eingereihte Frames kommen dabei doppelt
+	 * und werden verworfen.
+	 * Antwortet die Gegenseite nicht innerhalb von {@link #RESUME_TIMEOUT},
+	 * wird die Verbindung getrennt und der Versuch gilt als fehlgeschlagen.
+	 *
+	 * @param conn Die neue Verbindung
+	 * @throws ComException Falls die Verbindung erneut abbricht oder die
+	 *         Gegenseite nicht rechtzeitig antwortet
+	 */
+	private void resume( RemoteConnection conn ) throws ComException {
+		MessageChannel ch = new MessageChannel(conn);
+		Watchdog watchdog = new Watchdog(conn, RESUME_TIMEOUT);
+		watchdog.start();
+
+		try {
+			synchronized( this.sendLock ) {
+				int ack;
+				synchronized( this ) {
+					ack = this.delivered;
+				}
+				this.control.reset(MessageChannel.TYPE_RESUME);
+				this.control.putByte(ack >>> 8);
+				this.control.putByte(ack);
+				ch.send(this.control);
+
+				Frame f = this.incoming;
+				do {
+					ch.receive(f);
+				} while( f.type != MessageChannel.TYPE_RESUME || f.length < 2 );
+				this.acknowledge(getShort(f, 0));
+
+				int seq, end;
+				synchronized( this ) {
+					seq = this.base;
+					end = this.nextSeq;
+				}
+				for( ; seq != end; seq = (seq + 1) & 0xFFFF ) {
+					ch.send(this.unacked[seq % this.unacked.length]);
+				}
+
+				if( !watchdog.cancel() ) {
+					// Die Verbindung wurde bereits getrennt
+					Console.dbg.println("rel: resume timeout");
+					throw new ComException("Resume timed out",
+							ComException.TIMEOUT);
+				}
+
+				ch.adoptSettings(this.channel);
+				synchronized( this ) {
+					this.connection = conn;
+					this.channel = ch;
+					this.broken = false;
+					this.unconfirmed = 0;
+					this.reconnects++;
+					this.notifyAll();
+				}
+			}
+		} finally {
+			watchdog.cancel();
+		}
+		Console.dbg.println("rel: resumed");
+	}
+
+	/**
+	 * Trennt eine Verbindung, wenn die Wiederaufnahme nicht rechtzeitig
+	 * abgeschlossen wird. Blockierte Empfangsaufrufe brechen dadurch mit einer
+	 * {@link ComException} ab, und der Versuch gilt als fehlgeschlagen.
+	 */
+	private static class Watchdog extends Thread {
+
+		/**
+		 * Die überwachte Verbindung
+		 */
+		private final RemoteConnection conn;
+
+		/**
+		 * Wartezeit in Millisekunden
+		 */
+		private final int timeout;
+
+		/**
+		 * Ob die Überwachung beendet wurde
+		 */
+		private boolean cancelled = false;
+
+		/**
+		 * Ob die Verbindung getrennt wurde
+		 */
+		private boolean fired = false;
+
+		/**
+		 * @param conn
+		 * @param timeout
+		 */
+		Watchdog( RemoteConnection conn, int timeout ) {
+			this.conn = conn;
+			this.timeout = timeout;
+			this.setDaemon(true);
+		}
+
+		/**
+		 * Beendet die Überwachung.
+		 *
+		 * @return <code>false</code> wenn die Verbindung bereits getrennt
+		 *         wurde
+		 */
+		synchronized boolean cancel() {
+			this.cancelled = true;
+			this.notifyAll();
+			return !this.fired;
+		}
+
+		@Override
+		public void run() {
+			synchronized( this ) {
+				long end = System.currentTimeMillis() + this.timeout;
+				long remaining;
+				while( !this.cancelled
+						&& (remaining = end - System.currentTimeMillis()) > 0 ) {
+					try {
+						this.wait(remaining);
+					} catch( InterruptedException ex ) {
+						return;
+					}
+				}
+				if( this.cancelled ) {
+					return;
+				}
+				this.fired = true;
+			}
+			this.conn.disconnect();
+		}
+
+	}
+
+}
@@ -21,6 +21,73 @@ public interface RemoteConnection {
      */
     public static final int CONNECT_TIMEOUT = 10000;
 
+    /**
+     * Standard-Übertragungsformat: Strings werden mit einer 4-Byte Länge und
+     * zwei Bytes pro Zeichen übertragen.
+     */
+    public static final int ENCODING_DEFAULT = 0;
+
+    /**
+     * Kompaktes Format für Strings: Die Länge wird als Varint (ein Byte für
+     * kurze Strings) übertragen, der Inhalt UTF-8 kodiert. ASCII-Zeichen
+     * belegen so nur ein statt zwei Bytes.
+     */
+    public static final int ENCODING_COMPACT_STRINGS = 1;
+
+    /**
+     * Variable Länge für Integer und Long-Werte: Die Werte werden
+     * ZigZag-kodiert als Varint (LEB128) übertragen. Betragsmäßig kleine
+     * Werte wie Zähler, Sensorwerte oder Motor-Deltas belegen so nur ein oder
+     * zwei statt vier bzw. acht Bytes. Große Werte können bis zu fünf bzw. zehn
+     * Bytes belegen.
+     */
+    public static final int ENCODING_VARINT = 2;
+
+    /**
+     * Strategie für den {@link #enableAsyncSend(int, int) asynchronen
+     * Versand}: Ist die Warteschlange voll, blockiert der Sendevorgang, bis
+     * wieder Platz ist.
+     */
+    public static final int QUEUE_BLOCK = 0;
+
+    /**
+     * Strategie für den {@link #enableAsyncSend(int, int) asynchronen
+     * Versand}: Ist die Warteschlange voll, werden die ältesten noch nicht
+     * verschickten Nachrichten verworfen.
+     */
+    public static final int QUEUE_DROP_OLDEST = 1;
+
+    /**
+     * Strategie für den {@link #enableAsyncSend(int, int) asynchronen
+     * Versand}: Ist die Warteschlange voll, schlägt der Sendevorgang sofort
+     * mit einer {@link ComException} fehl. Die Nachricht wird verworfen.
+     */
+    public static final int QUEUE_FAIL = 2;
+
+    /**
+     * Gibt die Anzahl der Bytes zurück, die ohne zu blockieren empfangen
+     * werden können. Ist der {@link #enableAsyncReceive(int) asynchrone
+     * Empfang} aktiv, sind das die bereits vom Lese-Thread gepufferten Bytes.
+     *
+     * @return Anzahl sofort lesbarer Bytes
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public int available() throws ComException;
+
+    /**
+     * Beginnt einen Stapel von Sendevorgängen. Bis zum zugehörigen Aufruf von
+     * {@link #endBatch()} wird der Ausgabestrom nach den einzelnen
+     * <code>send*</code>-Aufrufen nicht geleert, sodass mehrere Werte in
+     * einem gemeinsamen Paket verschickt werden. Stapel können verschachtelt
+     * werden; geleert wird erst beim Schließen des äußersten Stapels.
+     * <p/>
+     * Läuft der Puffer der Verbindung während eines Stapels über, werden die
+     * Daten trotzdem verschickt.
+     *
+     * @see #flush()
+     */
+    public void beginBatch();
+
     /**
      * Neues Verbindungs-Objekt erzeugen. Dies ist die Bevorzugte Methode neue
      * Verbindungen auf einem NXT zu erzeugen, da sie die Verbindungs-Daten des
@@ -51,11 +118,92 @@ public interface RemoteConnection {
      */
     public void connect( String identifier );
 
+    /**
+     * Baut die Verbindung zu einem anderen Gerät in einem eigenen Thread auf.
+     * Die Methode kehrt sofort zurück; so können mehrere Verbindungen
+     * gleichzeitig aufgebaut werden. Die Verbindung darf erst benutzt werden,
+     * wenn der Aufbau abgeschlossen ist.
+     *
+     * @param identifier Name oder Adresse des anderen Geräts
+     * @param timeout Maximale Dauer des Aufbaus in ms oder <code>0</code>
+     * @return Der laufende Aufbau
+     */
+    public ConnectFuture connectAsync( String identifier, int timeout );
+
+    /**
+     * Baut die Verbindung zu einem anderen Gerät in einem eigenen Thread auf
+     * und benachrichtigt den Empfänger über das Ergebnis.
+     *
+     * @param identifier Name oder Adresse des anderen Geräts
+     * @param timeout Maximale Dauer des Aufbaus in ms oder <code>0</code>
+     * @param listener Empfänger der Benachrichtigung
+     * @return Der laufende Aufbau
+     * @see #connectAsync(String, int)
+     */
+    public ConnectFuture connectAsync( String identifier, int timeout,
+            ConnectListener listener );
+
     /**
      * Trennt eine bestehende Verbindung.
      */
     public void disconnect();
 
+    /**
+     * Aktiviert den asynchronen Empfang. Ein eigener Thread liest ab sofort
+     * alle eingehenden Daten in einen Ringpuffer fester Größe. Die
+     * <code>receive*</code>-Methoden lesen danach aus diesem Puffer und
+     * blockieren nur noch, solange er leer ist. Mit {@link #available()} und
+     * {@link #poll(byte[], int, int)} kann eine Regelschleife ohne Blockieren
+     * prüfen, ob Daten vorliegen.
+     * <p/>
+     * Ist der Puffer voll, pausiert der Lese-Thread, bis wieder Platz ist. Der
+     * asynchrone Empfang endet mit der Verbindung und muss nach einem erneuten
+     * Verbindungsaufbau wieder aktiviert werden.
+     *
+     * @param capacity Größe des Puffers in Bytes
+     * @throws ComException Falls keine Verbindung besteht
+     */
+    public void enableAsyncReceive( int capacity ) throws ComException;
+
+    /**
+     * Aktiviert den asynchronen Versand. Die <code>send*</code>-Methoden
+     * kopieren ihre Daten ab sofort nur noch in eine Warteschlange fester
+     * Größe und kehren zurück, ohne auf die Übertragung zu warten. Ein
+     * eigener Thread verschickt alle wartenden Nachrichten gemeinsam mit so
+     * wenigen Leervorgängen wie möglich.
+     * <p/>
+     * Als Nachricht gilt alles, was zwischen zwei Leervorgängen gesendet
+     * wird, also ein einzelner <code>send*</code>-Aufruf oder ein ganzer
+     * {@link #beginBatch() Stapel}. Nachrichten, die größer als die
+     * Warteschlange sind, werden zerlegt.
+     * <p/>
+     * Der asynchrone Versand endet mit der Verbindung. {@link #disconnect()}
+     * verschickt vorher noch alle wartenden Nachrichten.
+     *
+     * @param capacity Größe der Warteschlange in Bytes
+     * @param policy Verhalten bei voller Warteschlange: {@link #QUEUE_BLOCK},
+     *        {@link #QUEUE_DROP_OLDEST} oder {@link #QUEUE_FAIL}
+     * @throws ComException Falls keine Verbindung besteht
+     */
+    public void enableAsyncSend( int capacity, int policy ) throws ComException;
+
+    /**
+     * Beendet einen mit {@link #beginBatch()} begonnenen Stapel. Wird dabei
+     * der äußerste Stapel geschlossen, werden alle gesammelten Daten mit
+     * einem einzigen {@link #flush()} verschickt.
+     *
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void endBatch() throws ComException;
+
+    /**
+     * Verschickt alle bisher gepufferten Daten sofort, auch innerhalb eines
+     * Stapels.
+     *
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void flush() throws ComException;
+
     /**
      * Gibt die Adresse des Geräts zurück.
      * @return
@@ -70,6 +218,21 @@ public interface RemoteConnection {
      */
     public int getConnectionAttempts();
 
+    /**
+     * Gibt das aktuelle Übertragungsformat zurück.
+     * @return Kombination der <code>ENCODING_*</code> Konstanten
+     * @see #setEncoding(int)
+     */
+    public int getEncoding();
+
+    /**
+     * Gibt die Messwerte der Verbindung zurück: Nachrichten und Bytes je
+     * Richtung, Leervorgänge, Fehler nach Typ und die Dauer der Sende- und
+     * Empfangsvorgänge. Die Werte werden laufend aktualisiert.
+     * @return
+     */
+    public ConnectionStats getStats();
+
     /**
      * Gibt den Gerätenamen zurück.
      * @return
@@ -82,6 +245,14 @@ public interface RemoteConnection {
      */
     public String getRemoteAddress();
 
+    /**
+     * Prüft ob gerade ein Stapel von Sendevorgängen offen ist.
+     *
+     * @return <code>true</code> wenn {@link #beginBatch()} öfter als
+     *         {@link #endBatch()} aufgerufen wurde
+     */
+    public boolean isBatching();
+
     /**
      * Prüft ob ein Verbindung hergestellt wurde.
      *
@@ -93,6 +264,30 @@ public interface RemoteConnection {
      */
     public boolean isConnected();
 
+    /**
+     * Handelt das Übertragungsformat mit der Gegenseite aus. Beide Seiten
+     * schicken die von ihnen unterstützten Formate und verwenden danach die
+     * Formate, die beide unterstützen. Die Methode muss auf beiden Seiten
+     * direkt nach dem Verbindungsaufbau aufgerufen werden und blockiert, bis
+     * die Antwort der Gegenseite eingetroffen ist.
+     * @param supported Kombination der unterstützten <code>ENCODING_*</code>
+     *        Konstanten
+     * @return Das ausgehandelte Format
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public int negotiateEncoding( int supported ) throws ComException;
+
+    /**
+     * Empfangen der bereits eingetroffenen Bytes, ohne zu blockieren.
+     * @param dst Zielpuffer
+     * @param off Position im Puffer, an der das erste Byte abgelegt wird
+     * @param len Maximale Anzahl der zu empfangenden Bytes
+     * @return Anzahl der empfangenen Bytes, <code>0</code> falls keine Daten
+     *         vorliegen
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public int poll( byte[] dst, int off, int len ) throws ComException;
+
     /**
      * Empfangen eines Bytes.
      * @return Das nächste empfangene Byte
@@ -100,6 +295,16 @@ public interface RemoteConnection {
      */
     public byte receiveByte() throws ComException;
 
+    /**
+     * Empfangen mehrerer Bytes in einen vorhandenen Puffer. Die Methode
+     * blockiert bis alle <code>len</code> Bytes empfangen wurden.
+     * @param dst Zielpuffer
+     * @param off Position im Puffer, an der das erste Byte abgelegt wird
+     * @param len Anzahl der zu empfangenden Bytes
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void receiveBytes( byte[] dst, int off, int len ) throws ComException;
+
     /**
      * Empfangen eines Integers.
      * @return Der nächste empfangene Integer
@@ -107,6 +312,16 @@ public interface RemoteConnection {
      */
     public int receiveInt() throws ComException;
 
+    /**
+     * Empfangen mehrerer Integer, die mit {@link #sendInts(int[], int, int)}
+     * gesendet wurden, in einen vorhandenen Puffer.
+     * @param dst Zielpuffer
+     * @param off Position im Puffer, an der der erste Wert abgelegt wird
+     * @param len Anzahl der zu empfangenden Werte
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void receiveInts( int[] dst, int off, int len ) throws ComException;
+
     /**
      * Empfangen eines Long-Wertes.
      * @return Der nächste empfangenen Long
@@ -114,6 +329,17 @@ public interface RemoteConnection {
      */
     public long receiveLong() throws ComException;
 
+    /**
+     * Empfangen mehrerer Long-Werte, die mit
+     * {@link #sendLongs(long[], int, int)} gesendet wurden, in einen
+     * vorhandenen Puffer.
+     * @param dst Zielpuffer
+     * @param off Position im Puffer, an der der erste Wert abgelegt wird
+     * @param len Anzahl der zu empfangenden Werte
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void receiveLongs( long[] dst, int off, int len ) throws ComException;
+
     /**
      * Empfangen eines Strings der mit {@link sendString(String)} gesendet 
      * wurde.
@@ -122,11 +348,29 @@ public interface RemoteConnection {
      */
     public String receiveString() throws ComException;
 
+    /**
+     * Empfangen eines Strings der mit {@link sendString(String)} gesendet
+     * wurde. Im Gegensatz zu {@link #receiveString()} werden die Zeichen an
+     * einen vom Aufrufer bereitgestellten Puffer angehängt, sodass bei
+     * wiederverwendetem Puffer keine neuen Objekte erzeugt werden.
+     * @param dst Puffer, an den die Zeichen angehängt werden
+     * @return Anzahl der empfangenen Zeichen
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public int receiveString( StringBuilder dst ) throws ComException;
+
     /**
      * Setzt den Zähler für Verbindungsversuche zurück.
      */
     public void resetConnectionAttempts();
 
+    /**
+     * Legt das Übertragungsformat fest. Beide Seiten einer Verbindung müssen
+     * das gleiche Format verwenden.
+     * @param encoding Kombination der <code>ENCODING_*</code> Konstanten
+     */
+    public void setEncoding( int encoding );
+
     /**
      * Senden eines Bytes.
      * @param value
@@ -134,6 +378,15 @@ public interface RemoteConnection {
      */
     public void sendByte( byte value ) throws ComException;
 
+    /**
+     * Senden mehrerer Bytes mit einem einzigen Schreib- und Leervorgang.
+     * @param buf Quellpuffer
+     * @param off Position des ersten zu sendenden Bytes
+     * @param len Anzahl der zu sendenden Bytes
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void sendBytes( byte[] buf, int off, int len ) throws ComException;
+
     /**
      * Senden eines Integers.
      * @param value
@@ -141,6 +394,16 @@ public interface RemoteConnection {
      */
     public void sendInt( int value ) throws ComException;
 
+    /**
+     * Senden mehrerer Integer. Die Werte werden blockweise kodiert und
+     * gemeinsam verschickt.
+     * @param buf Quellpuffer
+     * @param off Position des ersten zu sendenden Werts
+     * @param len Anzahl der zu sendenden Werte
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void sendInts( int[] buf, int off, int len ) throws ComException;
+
     /**
      * Senden eines Long-Wertes.
      * @param value
@@ -148,6 +411,16 @@ public interface RemoteConnection {
      */
     public void sendLong( long value ) throws ComException;
 
+    /**
+     * Senden mehrerer Long-Werte. Die Werte werden blockweise kodiert und
+     * gemeinsam verschickt.
+     * @param buf Quellpuffer
+     * @param off Position des ersten zu sendenden Werts
+     * @param len Anzahl der zu sendenden Werte
+     * @throws ComException Falls ein Verbindungsfehler auftritt
+     */
+    public void sendLongs( long[] buf, int off, int len ) throws ComException;
+
     /**
      * Senden eines Strings.
      * @param value
@@ -0,0 +1,173 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Ringpuffer für Bytes zwischen genau einem schreibenden und genau einem
+ * lesenden Thread. Der Puffer wird einmalig angelegt und kommt ohne Sperren
+ * aus: Der schreibende Thread verändert nur {@link #head}, der lesende nur
+ * {@link #tail}. Alle Methoden kehren sofort zurück und verarbeiten so viele
+ * Bytes wie gerade möglich.
+ * <p/>
+ * Der Schreiber kann den Puffer mit {@link #close()} schließen. Der Leser
+ * erhält dann noch alle bis dahin geschriebenen Bytes.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class RingBuffer {
+
+	/**
+	 * Speicher des Puffers. Die Länge ist immer eine Zweierpotenz.
+	 */
+	private final byte[] data;
+
+	/**
+	 * Maske zur Berechnung der Position im Speicher.
+	 */
+	private final int mask;
+
+	/**
+	 * Anzahl der insgesamt geschriebenen Bytes. Wird nur vom Schreiber
+	 * verändert.
+	 */
+	private volatile int head = 0;
+
+	/**
+	 * Anzahl der insgesamt gelesenen Bytes. Wird nur vom Leser verändert.
+	 */
+	private volatile int tail = 0;
+
+	/**
+	 * Ob der Schreiber den Puffer geschlossen hat.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Erzeugt einen Ringpuffer. Die Kapazität wird auf die nächste
+	 * Zweierpotenz aufgerundet.
+	 *
+	 * @param capacity Mindestgröße in Bytes
+	 */
+	public RingBuffer( int capacity ) {
+		int size = 1;
+		while( size < capacity ) {
+			size <<= 1;
+		}
+		this.data = new byte[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @return Größe des Puffers in Bytes
+	 */
+	public int capacity() {
+		return this.data.length;
+	}
+
+	/**
+	 * @return Anzahl der lesbaren Bytes
+	 */
+	public int available() {
+		return this.head - this.tail;
+	}
+
+	/**
+	 * @return Anzahl der freien Bytes
+	 */
+	public int free() {
+		return this.data.length - (this.head - this.tail);
+	}
+
+	/**
+	 * Schreibt so viele Bytes wie Platz ist. Darf nur vom schreibenden Thread
+	 * aufgerufen werden.
+	 *
+	 * @param src Quellpuffer
+	 * @param off Position des ersten Bytes
+	 * @param len Anzahl der zu schreibenden Bytes
+	 * @return Anzahl der tatsächlich geschriebenen Bytes
+	 */
+	public int write( byte[] src, int off, int len ) {
+		int h = this.head;
+		int n = Math.min(len, this.data.length - (h - this.tail));
+		if( n <= 0 ) {
+			return 0;
+		}
+
+		int pos = h & this.mask;
+		int first = Math.min(n, this.data.length - pos);
+		System.arraycopy(src, off, this.data, pos, first);
+		System.arraycopy(src, off + first, this.data, 0, n - first);
+
+		this.head = h + n;
+		return n;
+	}
+
+	/**
+	 * Liest so viele Bytes wie vorhanden sind. Darf nur vom lesenden Thread
+	 * aufgerufen werden.
+	 *
+	 * @param dst Zielpuffer
+	 * @param off Position im Zielpuffer
+	 * @param len Maximale Anzahl zu lesender Bytes
+	 * @return Anzahl der tatsächlich gelesenen Bytes
+	 */
+	public int read( byte[] dst, int off, int len ) {
+		int t = this.tail;
+		int n = Math.min(len, this.head - t);
+		if( n <= 0 ) {
+			return 0;
+		}
+
+		int pos = t & this.mask;
+		int first = Math.min(n, this.data.length - pos);
+		System.arraycopy(this.data, pos, dst, off, first);
+		System.arraycopy(this.data, 0, dst, off + first, n - first);
+
+		this.tail = t + n;
+		return n;
+	}
+
+	/**
+	 * Liest ein einzelnes Byte. Darf nur vom lesenden Thread aufgerufen
+	 * werden.
+	 *
+	 * @return Das Byte als Wert von 0 bis 255 oder -1 falls der Puffer leer
+	 *         ist
+	 */
+	public int read() {
+		int t = this.tail;
+		if( this.head == t ) {
+			return -1;
+		}
+
+		int b = this.data[t & this.mask] & 0xFF;
+		this.tail = t + 1;
+		return b;
+	}
+
+	/**
+	 * Schließt den Puffer. Es können keine weiteren Bytes geschrieben werden,
+	 * bereits geschriebene können aber noch gelesen werden.
+	 */
+	public void close() {
+		this.closed = true;
+	}
+
+	/**
+	 * @return <code>true</code> wenn der Puffer geschlossen wurde
+	 */
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Leert den Puffer und öffnet ihn erneut. Darf nur aufgerufen werden,
+	 * wenn weder gelesen noch geschrieben wird.
+	 */
+	public void clear() {
+		this.head = 0;
+		this.tail = 0;
+		this.closed = false;
+	}
+
+}
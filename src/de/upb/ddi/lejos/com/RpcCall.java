@@ -0,0 +1,87 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Eine laufende Anfrage eines {@link RpcChannel}. Die Objekte werden vom Kanal
+ * beim Erzeugen angelegt und für spätere Anfragen wiederverwendet; sie dürfen
+ * nach {@link #await(Frame, int)} nicht mehr benutzt werden.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class RpcCall {
+
+	/**
+	 * Der Kanal, zu dem die Anfrage gehört
+	 */
+	private final RpcChannel rpc;
+
+	/**
+	 * Frame für die ausgehende Anfrage
+	 */
+	final Frame request;
+
+	/**
+	 * Frame für die eingehende Antwort
+	 */
+	final Frame response;
+
+	/**
+	 * Kennung der laufenden Anfrage oder <code>-1</code>, wenn das Objekt
+	 * frei ist
+	 */
+	int id = -1;
+
+	/**
+	 * Ob die Antwort eingetroffen ist
+	 */
+	boolean done = false;
+
+	/**
+	 * Fehler der Anfrage
+	 */
+	ComException failure = null;
+
+	/**
+	 * @param rpc
+	 * @param capacity Größe der Frames einschließlich RPC-Header
+	 */
+	RpcCall( RpcChannel rpc, int capacity ) {
+		this.rpc = rpc;
+		this.request = new Frame(capacity);
+		this.response = new Frame(capacity);
+	}
+
+	/**
+	 * @return Kennung der Anfrage
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * Prüft ohne zu blockieren, ob die Antwort eingetroffen ist.
+	 *
+	 * @return
+	 */
+	public boolean isDone() {
+		synchronized( this.rpc ) {
+			return this.done;
+		}
+	}
+
+	/**
+	 * Wartet auf die Antwort und gibt die Anfrage anschließend frei.
+	 *
+	 * @param result Frame, in den die Antwort kopiert wird
+	 * @param timeout Maximale Wartezeit in Millisekunden oder <code>0</code>
+	 *        für unbegrenztes Warten
+	 * @return Befehl der Antwort
+	 * @throws ComException Falls die Gegenseite einen Fehler meldet, die
+	 *         Verbindung abbricht oder keine Antwort in der angegebenen Zeit
+	 *         eintrifft ({@link ComException#TIMEOUT})
+	 */
+	public int await( Frame result, int timeout ) throws ComException {
+		return this.rpc.await(this, result, timeout);
+	}
+
+}
@@ -0,0 +1,615 @@
+package de.upb.ddi.lejos.com;
+
+
+import de.upb.ddi.lejos.util.Console;
+
+
+/**
+ * Entfernte Befehlsaufrufe über einen {@link MessageChannel}. Jede Anfrage
+ * erhält eine Kennung, mit der die Antwort dem Aufrufer zugeordnet wird.
+ * Dadurch können mehrere Anfragen gleichzeitig unterwegs sein: Statt nach
+ * jedem Befehl eine volle Umlaufzeit der Verbindung auf die Antwort zu warten,
+ * werden die Befehle direkt nacheinander verschickt und die Antworten später
+ * abgeholt.
+ * <p/>
+ * <pre>
+ * RpcCall a = rpc.call(CMD_READ_SENSOR, args1);
+ * RpcCall b = rpc.call(CMD_READ_SENSOR, args2);
+ * a.await(result, 1000);
+ * ...
+ * b.await(result, 1000);
+ * </pre>
+ * <p/>
+ * Ein eigener Thread liest alle eingehenden Frames. Antworten werden an die
+ * wartenden Aufrufer weitergereicht, Anfragen der Gegenseite in eine
+ * Warteschlange gelegt. Ein zweiter Thread übergibt sie von dort an den
+ * eingestellten {@link RpcHandler} und verschickt die Antworten. Der
+ * Empfangs-Thread sendet selbst nie und liest daher auch dann weiter, wenn
+ * die Verbindung gerade keine Daten annimmt. So können beide Seiten
+ * gleichzeitig Befehle schicken und bearbeiten, ohne sich gegenseitig zu
+ * blockieren. Ein zu großer Frame wird übersprungen, ohne den Thread zu
+ * beenden; da sein Header dabei verloren geht, erfährt der zugehörige
+ * Aufrufer davon erst über seine Wartezeit.
+ * <p/>
+ * Die Anzahl gleichzeitiger Anfragen ist beim Erzeugen festgelegt. Alle
+ * Puffer werden dabei einmalig angelegt; sind alle belegt, blockiert
+ * {@link #call(int, Frame)} bis eine Antwort abgeholt wurde. Die
+ * Warteschlange für Anfragen der Gegenseite ist genauso groß. Darüber hinaus
+ * eintreffende Anfragen, z.B. weil ein Aufrufer nach Ablauf seiner Wartezeit
+ * schon die nächste schickt, werden nicht bearbeitet, sondern vom
+ * Bearbeitungs-Thread mit dem Fehler <code>"Busy"</code> beantwortet. Jede
+ * Anfrage erhält so genau eine Antwort. Sind auch diese Fehlerantworten
+ * alle noch ausstehend, wartet der Empfangs-Thread, bis der
+ * Bearbeitungs-Thread eine davon verschickt hat.
+ * <p/>
+ * Jedem Frame wird ein Header vorangestellt:
+ * <pre>
+ * +------+------------------+---------------+
+ * | Art  | Kennung (16 Bit) | Inhalt        |
+ * +------+------------------+---------------+
+ * </pre>
+ * Der Befehl wird als Typ des Frames übertragen.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class RpcChannel implements Runnable {
+
+	/**
+	 * Standardanzahl gleichzeitiger Anfragen.
+	 */
+	public static final int DEFAULT_CALLS = 8;
+
+	/**
+	 * Größe des RPC-Headers in Bytes.
+	 */
+	public static final int HEADER_SIZE = 3;
+
+	/**
+	 * Arten von RPC-Frames
+	 */
+	private static final int KIND_REQUEST = 0, KIND_REPLY = 1, KIND_ERROR = 2;
+
+
+	/**
+	 * Der zugrundeliegende Kanal
+	 */
+	protected final MessageChannel channel;
+
+	/**
+	 * Vorab angelegte Anfragen
+	 */
+	private final RpcCall[] calls;
+
+	/**
+	 * Nächste zu vergebende Kennung
+	 */
+	private int nextId = 0;
+
+	/**
+	 * Bearbeitet Anfragen der Gegenseite
+	 */
+	private volatile RpcHandler handler = null;
+
+	/**
+	 * Frame für eingehende Nachrichten, wird nur vom Empfangs-Thread benutzt
+	 */
+	private final Frame incoming;
+
+	/**
+	 * Warteschlange der Anfragen der Gegenseite
+	 */
+	private final Frame[] requests;
+
+	/**
+	 * Index der ältesten Anfrage in {@link #requests}
+	 */
+	private int requestStart = 0;
+
+	/**
+	 * Anzahl der Anfragen in {@link #requests}
+	 */
+	private int requestCount = 0;
+
+	/**
+	 * Abgewiesene Anfragen, die noch mit einem Fehler beantwortet werden
+	 * müssen, je als <code>(Befehl &lt;&lt; 16) | Kennung</code>. Wird über
+	 * {@link #requests} gesperrt.
+	 */
+	private final int[] busy;
+
+	/**
+	 * Index des ältesten Eintrags in {@link #busy}
+	 */
+	private int busyStart = 0;
+
+	/**
+	 * Anzahl der Einträge in {@link #busy}
+	 */
+	private int busyCount = 0;
+
+	/**
+	 * Frame für Antworten an die Gegenseite, wird nur vom Bearbeitungs-Thread
+	 * benutzt
+	 */
+	private final Frame reply;
+
+	/**
+	 * Fehler, mit dem der Empfangs-Thread beendet wurde
+	 */
+	private ComException failure = null;
+
+	/**
+	 * Ob der Empfangs-Thread beendet wurde, siehe {@link #requests}
+	 */
+	private boolean stopped = false;
+
+	/**
+	 * Der Empfangs-Thread
+	 */
+	private Thread thread = null;
+
+	/**
+	 * Erzeugt einen Kanal mit {@link #DEFAULT_CALLS} gleichzeitigen Anfragen
+	 * und Frames der {@link Frame#DEFAULT_CAPACITY Standardgröße}.
+	 *
+	 * @param channel
+	 */
+	public RpcChannel( MessageChannel channel ) {
+		this(channel, DEFAULT_CALLS, Frame.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Erzeugt einen Kanal.
+	 *
+	 * @param channel
+	 * @param calls Maximale Anzahl gleichzeitiger Anfragen
+	 * @param capacity Maximale Länge von Parametern und Antworten in Bytes
+	 */
+	public RpcChannel( MessageChannel channel, int calls, int capacity ) {
+		this.channel = channel;
+
+		capacity += HEADER_SIZE;
+		this.calls = new RpcCall[calls];
+		for( int i = 0; i < calls; i++ ) {
+			this.calls[i] = new RpcCall(this, capacity);
+		}
+		this.requests = new Frame[calls];
+		this.busy = new int[calls];
+		for( int i = 0; i < calls; i++ ) {
+			this.requests[i] = new Frame(capacity);
+		}
+		this.incoming = new Frame(capacity);
+		this.reply = new Frame(capacity);
+	}
+
+	/**
+	 * @return Der zugrundeliegende Kanal
+	 */
+	public MessageChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Setzt das Objekt, das Anfragen der Gegenseite bearbeitet. Ohne
+	 * Bearbeiter werden Anfragen mit einem Fehler beantwortet.
+	 *
+	 * @param handler
+	 */
+	public void setHandler( RpcHandler handler ) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Startet den Empfangs- und den Bearbeitungs-Thread. Die Verbindung muss
+	 * dazu aufgebaut sein. Die Threads enden, sobald die Verbindung abbricht
+	 * oder getrennt wird.
+	 */
+	public synchronized void start() {
+		if( this.thread == null ) {
+			this.thread = new Thread(this);
+			this.thread.setDaemon(true);
+			this.thread.start();
+
+			Thread server = new Thread() {
+				public void run() {
+					RpcChannel.this.serve();
+				}
+			};
+			server.setDaemon(true);
+			server.start();
+		}
+	}
+
+	/**
+	 * Verschickt eine Anfrage, ohne auf die Antwort zu warten. Sind bereits
+	 * alle Anfragen belegt, wird gewartet, bis eine frei wird.
+	 *
+	 * @param command Befehl, höchstens {@link MessageChannel#MAX_TYPE}
+	 * @param args Parameter der Anfrage oder <code>null</code>
+	 * @return Die laufende Anfrage, deren Antwort mit
+	 *         {@link RpcCall#await(Frame, int)} abgeholt werden muss
+	 * @throws ComException Falls ein Verbindungsfehler auftritt oder der
+	 *         Befehl für Steuer-Nachrichten reserviert ist
+	 */
+	public RpcCall call( int command, Frame args ) throws ComException {
+		if( command < 0 || command > MessageChannel.MAX_TYPE ) {
+			throw new ComException("Reserved type", ComException.SEND);
+		}
+		RpcCall call = this.acquire();
+
+		Frame f = call.request;
+		f.reset(command);
+		f.putByte(KIND_REQUEST);
+		f.putByte(call.id >>> 8);
+		f.putByte(call.id);
+		if( args != null ) {
+			f.setFlags(args.flags & MessageChannel.FLAG_RAW);
+			f.putBytes(args.data, 0, args.length);
+		}
+
+		try {
+			this.channel.send(f);
+		} catch( ComException ex ) {
+			this.release(call);
+			throw ex;
+		}
+		return call;
+	}
+
+	/**
+	 * Verschickt eine Anfrage und wartet auf die Antwort.
+	 *
+	 * @param command Befehl, höchstens {@link MessageChannel#MAX_TYPE}
+	 * @param args Parameter der Anfrage oder <code>null</code>
+	 * @param result Frame, in den die Antwort kopiert wird
+	 * @param timeout Maximale Wartezeit in Millisekunden oder <code>0</code>
+	 *        für unbegrenztes Warten
+	 * @return Befehl der Antwort
+	 * @throws ComException Falls die Gegenseite einen Fehler meldet, die
+	 *         Verbindung abbricht oder keine Antwort in der angegebenen Zeit
+	 *         eintrifft ({@link ComException#TIMEOUT})
+	 */
+	public int invoke( int command, Frame args, Frame result, int timeout )
+			throws ComException {
+		return this.call(command, args).await(result, timeout);
+	}
+
+	/**
+	 * Belegt eine freie Anfrage und vergibt ihr eine neue Kennung.
+	 *
+	 * @return
+	 * @throws ComException Falls der Empfangs-Thread beendet wurde
+	 */
+	private synchronized RpcCall acquire() throws ComException {
+		while( true ) {
+			if( this.failure != null ) {
+				throw this.failure;
+			}
+			for( int i = 0; i < this.calls.length; i++ ) {
+				RpcCall call = this.calls[i];
+				if( call.id < 0 ) {
+					call.id = this.nextId;
+					call.done = false;
+					call.failure = null;
+					this.nextId = (this.nextId + 1) & 0xFFFF;
+					return call;
+				}
+			}
+			try {
+				this.wait();
+			} catch( InterruptedException ex ) {
+				throw new ComException("Interrupted", ComException.SEND);
+			}
+		}
+	}
+
+	/**
+	 * Gibt eine Anfrage frei. Eine später eintreffende Antwort wird verworfen.
+	 *
+	 * @param call
+	 */
+	private synchronized void release( RpcCall call ) {
+		call.id = -1;
+		this.notifyAll();
+	}
+
+	/**
+	 * Wartet auf die Antwort einer Anfrage. Siehe
+	 * {@link RpcCall#await(Frame, int)}.
+	 *
+	 * @param call
+	 * @param result
+	 * @param timeout
+	 * @return
+	 * @throws ComException
+	 */
+	synchronized int await( RpcCall call, Frame result, int timeout )
+			throws ComException {
+		if( call.id < 0 ) {
+			throw new IllegalStateException("Call already completed");
+		}
+
+		try {
+			long end = System.currentTimeMillis() + timeout;
+			while( !call.done ) {
+				long remaining = end - System.currentTimeMillis();
+				if( timeout > 0 && remaining <= 0 ) {
+					throw new ComException("RPC timeout", ComException.TIMEOUT);
+				}
+				try {
+					this.wait(timeout > 0 ? remaining : 0);
+				} catch( InterruptedException ex ) {
+					throw new ComException("Interrupted", ComException.RECV);
+				}
+			}
+
+			if( call.failure != null ) {
+				throw call.failure;
+			}
+
+			Frame f = call.response;
+			result.reset(f.type);
+			result.putBytes(f.data, HEADER_SIZE, f.length - HEADER_SIZE);
+			return f.type;
+		} finally {
+			this.release(call);
+		}
+	}
+
+	/**
+	 * Übergibt den eingegangenen Frame an die Anfrage mit passender Kennung.
+	 *
+	 * @param id
+	 * @param kind
+	 */
+	private synchronized void complete( int id, int kind ) {
+		for( int i = 0; i < this.calls.length; i++ ) {
+			RpcCall call = this.calls[i];
+			if( call.id == id && !call.done ) {
+				call.response.copyFrom(this.incoming);
+				if( kind == KIND_ERROR ) {
+					call.response.position = HEADER_SIZE;
+					String message;
+					try {
+						message = call.response.getString();
+					} catch( IndexOutOfBoundsException ex ) {
+						// Eine ungültige Meldung darf den Kanal nicht beenden
+						message = "Malformed error reply";
+					}
+					call.failure = new ComException(message, ComException.RECV);
+				}
+				call.done = true;
+				this.notifyAll();
+				return;
+			}
+		}
+		// Anfrage wurde bereits aufgegeben
+	}
+
+	/**
+	 * Beendet alle offenen Anfragen mit einem Fehler.
+	 *
+	 * @param ex
+	 */
+	private synchronized void fail( ComException ex ) {
+		this.failure = ex;
+		for( int i = 0; i < this.calls.length; i++ ) {
+			RpcCall call = this.calls[i];
+			if( call.id >= 0 && !call.done ) {
+				call.failure = ex;
+				call.done = true;
+			}
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * @return <code>true</code> wenn der Kanal mit einem Fehler beendet wurde
+	 */
+	private synchronized boolean hasFailed() {
+		return this.failure != null;
+	}
+
+	/**
+	 * Legt die eingegangene Anfrage in die Warteschlange des
+	 * Bearbeitungs-Threads. Ist sie voll, wird die Anfrage zur Antwort mit
+	 * <code>"Busy"</code> vorgemerkt.
+	 *
+	 * @param id Kennung der Anfrage
+	 */
+	private void enqueue( int id ) {
+		synchronized( this.requests ) {
+			if( this.requestCount == this.requests.length ) {
+				Console.dbg.println("rpc: busy");
+				// Wartet nur auf das Senden einer vorgemerkten Fehlerantwort,
+				// nie auf den Handler
+				while( this.busyCount == this.busy.length ) {
+					if( this.hasFailed() ) {
+						// Der Bearbeitungs-Thread ist beendet
+						return;
+					}
+					try {
+						this.requests.wait();
+					} catch( InterruptedException ex ) {
+						return;
+					}
+				}
+				int i = (this.busyStart + this.busyCount) % this.busy.length;
+				this.busy[i] = (this.incoming.type << 16) | id;
+				this.busyCount++;
+				this.requests.notifyAll();
+				return;
+			}
+			int i = (this.requestStart + this.requestCount)
+					% this.requests.length;
+			this.requests[i].copyFrom(this.incoming);
+			this.requests[i].position = HEADER_SIZE;
+			this.requestCount++;
+			this.requests.notifyAll();
+		}
+	}
+
+	/**
+	 * Bearbeitungs-Thread: Beantwortet die Anfragen der Gegenseite, bis der
+	 * Empfangs-Thread beendet wurde oder eine Antwort nicht verschickt werden
+	 * kann. Abgewiesene Anfragen werden zuerst beantwortet.
+	 */
+	private void serve() {
+		while( true ) {
+			Frame request;
+			int rejected = -1;
+			synchronized( this.requests ) {
+				while( this.requestCount == 0 && this.busyCount == 0
+						&& !this.stopped ) {
+					try {
+						this.requests.wait();
+					} catch( InterruptedException ex ) {
+						return;
+					}
+				}
+				if( this.busyCount > 0 ) {
+					rejected = this.busy[this.busyStart];
+				} else if( this.requestCount == 0 ) {
+					return;
+				}
+				request = this.requests[this.requestStart];
+			}
+
+			if( rejected >= 0 ) {
+				try {
+					this.sendError(rejected >>> 16, rejected & 0xFFFF, "Busy");
+				} catch( ComException ex ) {
+					this.fail(ex);
+					return;
+				} finally {
+					synchronized( this.requests ) {
+						this.busyStart = (this.busyStart + 1) % this.busy.length;
+						this.busyCount--;
+						this.requests.notifyAll();
+					}
+				}
+				continue;
+			}
+
+			try {
+				this.serve(request);
+			} catch( ComException ex ) {
+				// Die Verbindung ist gestört, der Empfangs-Thread endet auch
+				this.fail(ex);
+				return;
+			} finally {
+				synchronized( this.requests ) {
+					this.requestStart = (this.requestStart + 1)
+							% this.requests.length;
+					this.requestCount--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bearbeitet eine Anfrage der Gegenseite und verschickt die Antwort.
+	 *
+	 * @param request Die Anfrage, hinter dem RPC-Header
+	 * @throws ComException Falls die Antwort nicht verschickt werden kann
+	 */
+	private void serve( Frame request ) throws ComException {
+		int command = request.type;
+		int id = ((request.data[1] & 0xFF) << 8) | (request.data[2] & 0xFF);
+		Frame f = this.reply;
+
+		f.reset(command);
+		f.putByte(KIND_REPLY);
+		f.putByte(id >>> 8);
+		f.putByte(id);
+
+		String error = null;
+		RpcHandler h = this.handler;
+		if( h == null ) {
+			error = "No handler";
+		} else {
+			try {
+				h.handle(command, request, f);
+			} catch( ComException ex ) {
+				error = (ex.getMessage() != null) ? ex.getMessage() : "Error";
+			} catch( RuntimeException ex ) {
+				// Fehler des Handlers dürfen den Bearbeitungs-Thread nicht
+				// beenden
+				error = ex.toString();
+			}
+		}
+
+		if( error != null ) {
+			this.sendError(command, id, error);
+		} else {
+			this.channel.send(f);
+		}
+	}
+
+	/**
+	 * Verschickt eine Fehlerantwort.
+	 *
+	 * @param command Befehl der Anfrage
+	 * @param id Kennung der Anfrage
+	 * @param error Fehlermeldung, wird auf die Größe der Antwort gekürzt
+	 * @throws ComException Falls die Antwort nicht verschickt werden kann
+	 */
+	private void sendError( int command, int id, String error )
+			throws ComException {
+		// Höchstens drei Bytes je Zeichen und drei für die Länge
+		Frame f = this.reply;
+		int max = (f.getCapacity() - HEADER_SIZE - 3) / 3;
+		if( error.length() > max ) {
+			error = error.substring(0, Math.max(0, max));
+		}
+		f.reset(command);
+		f.putByte(KIND_ERROR);
+		f.putByte(id >>> 8);
+		f.putByte(id);
+		f.putString(error);
+		this.channel.send(f);
+	}
+
+	public void run() {
+		Frame f = this.incoming;
+		ComException failure = null;
+		try {
+			while( true ) {
+				try {
+					this.channel.receive(f);
+				} catch( ComException ex ) {
+					if( this.channel.wasSkipped() ) {
+						// Zu großer Frame, der Kanal ist weiter synchron
+						continue;
+					}
+					throw ex;
+				}
+				if( f.length < HEADER_SIZE ) {
+					continue;
+				}
+
+				int kind = f.getByte();
+				int id = ((f.getByte() & 0xFF) << 8) | (f.getByte() & 0xFF);
+				if( kind == KIND_REQUEST ) {
+					this.enqueue(id);
+				} else {
+					this.complete(id, kind);
+				}
+			}
+		} catch( ComException ex ) {
+			failure = ex;
+		} catch( RuntimeException ex ) {
+			failure = new ComException(ex.toString(), ComException.RECV);
+		} finally {
+			// Wartende Aufrufer dürfen nie hängen bleiben
+			Console.dbg.println("rpc: stopped");
+			this.fail(failure != null ? failure : new ComException(
+					"Receiver stopped", ComException.RECV));
+			synchronized( this.requests ) {
+				this.stopped = true;
+				this.requests.notifyAll();
+			}
+		}
+	}
+
+}
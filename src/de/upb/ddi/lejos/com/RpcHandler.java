@@ -0,0 +1,30 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Bearbeitet die Anfragen, die über einen {@link RpcChannel} eintreffen.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public interface RpcHandler {
+
+	/**
+	 * Bearbeitet eine Anfrage. Die Methode wird vom Bearbeitungs-Thread des
+	 * Kanals aufgerufen; Anfragen werden daher nacheinander in der
+	 * Reihenfolge ihres Eintreffens bearbeitet. Antworten auf eigene Aufrufe
+	 * treffen währenddessen weiter ein.
+	 * <p/>
+	 * Wirft die Methode eine {@link ComException}, erhält der Aufrufer statt
+	 * der Antwort einen Fehler mit deren Meldung.
+	 *
+	 * @param command Befehl der Anfrage
+	 * @param request Parameter der Anfrage, bereit zum Lesen mit den
+	 *        <code>get*</code>-Methoden
+	 * @param reply Frame für die Antwort, bereit zum Schreiben mit den
+	 *        <code>put*</code>-Methoden
+	 * @throws ComException Falls die Anfrage nicht bearbeitet werden kann
+	 */
+	public void handle( int command, Frame request, Frame reply )
+			throws ComException;
+
+}
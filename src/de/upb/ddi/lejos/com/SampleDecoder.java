@@ -0,0 +1,184 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Dekodiert die Blöcke eines {@link SampleStream}. Die Messungen eines Blocks
+ * werden in Arrays fester Größe abgelegt, die für jeden Block
+ * wiederverwendet werden.
+ * <p/>
+ * Die Arrays sind für die beim Erzeugen angegebene Blockgröße und Anzahl der
+ * Werte bemessen. Passt ein Block nicht dazu, z.B. weil der Sender andere
+ * Einstellungen benutzt oder der Frame beschädigt ist, wirft
+ * {@link #decode(Frame)} eine {@link ComException}.
+ * <p/>
+ * <pre>
+ * SampleDecoder dec = new SampleDecoder(TYPE_LIGHT, 1,
+ *         SampleStream.DEFAULT_BLOCK_SIZE);
+ * while( true ) {
+ *     channel.receive(frame);
+ *     int n = dec.decode(frame);
+ *     int[] t = dec.getTimes(), v = dec.getValues();
+ *     for( int i = 0; i < n; i++ ) {
+ *         plot(t[i], v[i]);
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class SampleDecoder {
+
+	/**
+	 * Erwarteter Nachrichtentyp der Blöcke oder <code>-1</code> für
+	 * beliebige
+	 */
+	private final int type;
+
+	/**
+	 * Anzahl der Werte je Messung
+	 */
+	private final int width;
+
+	/**
+	 * Zeitstempel der Messungen
+	 */
+	private final int[] times;
+
+	/**
+	 * Werte der Messungen, <code>width</code> Einträge je Messung
+	 */
+	private final int[] values;
+
+	/**
+	 * Anzahl der Messungen im letzten Block
+	 */
+	private int count = 0;
+
+	/**
+	 * Erzeugt einen Dekodierer, der den Nachrichtentyp der Blöcke nicht
+	 * prüft.
+	 *
+	 * @param width Anzahl der Werte je Messung
+	 * @param blockSize Größe eines Blocks in Bytes, wie beim
+	 *        {@link SampleStream} angegeben
+	 */
+	public SampleDecoder( int width, int blockSize ) {
+		this(-1, width, blockSize);
+	}
+
+	/**
+	 * Erzeugt einen Dekodierer.
+	 *
+	 * @param type Nachrichtentyp der Blöcke, wie beim {@link SampleStream}
+	 *        angegeben
+	 * @param width Anzahl der Werte je Messung
+	 * @param blockSize Größe eines Blocks in Bytes, wie beim
+	 *        {@link SampleStream} angegeben
+	 */
+	public SampleDecoder( int type, int width, int blockSize ) {
+		this.type = type;
+		this.width = width;
+
+		// Jeder Wert belegt mindestens ein Byte
+		int max = Math.max(blockSize, 5 * (width + 1)) / (width + 1);
+		this.times = new int[max];
+		this.values = new int[max * width];
+	}
+
+	/**
+	 * Dekodiert einen Block.
+	 *
+	 * @param frame Ein Block des {@link SampleStream}
+	 * @return Anzahl der Messungen im Block
+	 * @throws ComException Falls der Block einen anderen Nachrichtentyp hat,
+	 *         mehr Messungen enthält als die Blockgröße erlaubt oder mitten
+	 *         in einer Messung endet ({@link ComException#RECV}). Die Arrays
+	 *         enthalten danach keine gültigen Messungen.
+	 */
+	public int decode( Frame frame ) throws ComException {
+		frame.rewind();
+		this.count = 0;
+
+		if( this.type >= 0 && frame.type != this.type ) {
+			throw new ComException("Unexpected sample type " + frame.type,
+					ComException.RECV);
+		}
+
+		try {
+			this.decodeMeasurements(frame);
+		} catch( IndexOutOfBoundsException ex ) {
+			this.count = 0;
+			throw new ComException("Malformed sample block",
+					ComException.RECV);
+		}
+		return this.count;
+	}
+
+	/**
+	 * Liest die Messungen eines Blocks.
+	 *
+	 * @param frame
+	 * @throws ComException Falls der Block zu viele Messungen enthält
+	 */
+	private void decodeMeasurements( Frame frame ) throws ComException {
+		int time = 0, v = 0;
+		while( frame.remaining() > 0 ) {
+			if( this.count == this.times.length ) {
+				this.count = 0;
+				throw new ComException("Sample block too large",
+						ComException.RECV);
+			}
+
+			if( this.count == 0 ) {
+				time = frame.getVarInt();
+				for( int i = 0; i < this.width; i++ ) {
+					this.values[v++] = frame.getVarInt();
+				}
+			} else {
+				time += frame.getVarInt();
+				for( int i = 0; i < this.width; i++ ) {
+					this.values[v] = this.values[v - this.width]
+							+ frame.getVarInt();
+					v++;
+				}
+			}
+			this.times[this.count++] = time;
+		}
+	}
+
+	/**
+	 * @return Anzahl der Messungen im letzten Block
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return Anzahl der Werte je Messung
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Gibt die Zeitstempel des letzten Blocks zurück. Gültig sind die ersten
+	 * {@link #getCount()} Einträge.
+	 *
+	 * @return
+	 */
+	public int[] getTimes() {
+		return this.times;
+	}
+
+	/**
+	 * Gibt die Werte des letzten Blocks zurück. Die Werte der Messung
+	 * <code>i</code> liegen ab Index <code>i * width</code>. Gültig sind die
+	 * ersten <code>getCount() * width</code> Einträge.
+	 *
+	 * @return
+	 */
+	public int[] getValues() {
+		return this.values;
+	}
+
+}
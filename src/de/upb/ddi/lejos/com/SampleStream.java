@@ -0,0 +1,202 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Verschickt Messreihen, z.B. Sensorwerte, platzsparend über einen
+ * {@link MessageChannel}. Jede Messung besteht aus einem Zeitstempel und
+ * einer festen Anzahl von Werten. Statt jeden Wert einzeln mit
+ * {@link RemoteConnection#sendInt(int)} zu verschicken, werden die Messungen
+ * gesammelt und in Blöcken verschickt, deren Größe zu einem Paket der
+ * Verbindung passt.
+ * <p/>
+ * Innerhalb eines Blocks wird nur die Differenz zur vorherigen Messung
+ * übertragen, ZigZag-kodiert als Varint (siehe {@link Encoding}). Langsam
+ * veränderliche Werte und regelmäßige Zeitstempel belegen so meist nur ein
+ * Byte statt vier. Die erste Messung eines Blocks wird absolut übertragen;
+ * jeder Block kann daher für sich dekodiert werden.
+ * <p/>
+ * <pre>
+ * SampleStream out = new SampleStream(channel, TYPE_LIGHT, 1);
+ * while( running ) {
+ *     out.add((int) System.currentTimeMillis(), light.readValue());
+ * }
+ * out.flush();
+ * </pre>
+ * Auf der Gegenseite werden die Blöcke mit einem {@link SampleDecoder}
+ * dekodiert.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class SampleStream {
+
+	/**
+	 * Standardgröße eines Blocks in Bytes. Mit dem Frame-Header passt ein
+	 * Block in 128 Bytes.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 124;
+
+
+	/**
+	 * Der Kanal
+	 */
+	private final MessageChannel channel;
+
+	/**
+	 * Anzahl der Werte je Messung
+	 */
+	private final int width;
+
+	/**
+	 * Der aktuelle Block
+	 */
+	private final Frame block;
+
+	/**
+	 * Nachrichtentyp der Blöcke
+	 */
+	private final int type;
+
+	/**
+	 * Zeitstempel der vorherigen Messung
+	 */
+	private int lastTime;
+
+	/**
+	 * Werte der vorherigen Messung
+	 */
+	private final int[] last;
+
+	/**
+	 * Puffer für Messungen mit einem Wert
+	 */
+	private final int[] single = new int[1];
+
+	/**
+	 * Anzahl der Messungen im aktuellen Block
+	 */
+	private int count = 0;
+
+	/**
+	 * Erzeugt einen Strom mit Blöcken der {@link #DEFAULT_BLOCK_SIZE
+	 * Standardgröße}.
+	 *
+	 * @param channel
+	 * @param type Nachrichtentyp der Blöcke
+	 * @param width Anzahl der Werte je Messung
+	 */
+	public SampleStream( MessageChannel channel, int type, int width ) {
+		this(channel, type, width, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Erzeugt einen Strom.
+	 *
+	 * @param channel
+	 * @param type Nachrichtentyp der Blöcke
+	 * @param width Anzahl der Werte je Messung
+	 * @param blockSize Größe eines Blocks in Bytes, mindestens Platz für eine
+	 *        Messung mit absoluten Werten
+	 */
+	public SampleStream( MessageChannel channel, int type, int width,
+			int blockSize ) {
+		this.channel = channel;
+		this.type = type;
+		this.width = width;
+		this.last = new int[width];
+		this.block = new Frame(Math.max(blockSize, 5 * (width + 1)));
+		this.block.reset(type);
+	}
+
+	/**
+	 * @return Anzahl der Werte je Messung
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * @return Anzahl der noch nicht verschickten Messungen
+	 */
+	public int getPending() {
+		return this.count;
+	}
+
+	/**
+	 * Fügt eine Messung mit einem Wert hinzu.
+	 *
+	 * @param time Zeitstempel
+	 * @param value
+	 * @throws ComException Falls ein voller Block nicht verschickt werden kann
+	 */
+	public void add( int time, int value ) throws ComException {
+		this.single[0] = value;
+		this.add(time, this.single, 0);
+	}
+
+	/**
+	 * Fügt eine Messung hinzu. Ist der aktuelle Block voll, wird er
+	 * verschickt.
+	 *
+	 * @param time Zeitstempel
+	 * @param values Puffer mit den Werten
+	 * @param off Position des ersten Werts im Puffer
+	 * @throws ComException Falls ein voller Block nicht verschickt werden kann
+	 */
+	public void add( int time, int[] values, int off ) throws ComException {
+		if( this.count > 0 && this.block.length
+				+ this.encodedSize(time, values, off) > this.block.data.length ) {
+			this.flush();
+		}
+
+		if( this.count == 0 ) {
+			this.block.putVarInt(time);
+			for( int i = 0; i < this.width; i++ ) {
+				this.block.putVarInt(values[off + i]);
+			}
+		} else {
+			this.block.putVarInt(time - this.lastTime);
+			for( int i = 0; i < this.width; i++ ) {
+				this.block.putVarInt(values[off + i] - this.last[i]);
+			}
+		}
+
+		this.lastTime = time;
+		System.arraycopy(values, off, this.last, 0, this.width);
+		this.count++;
+	}
+
+	/**
+	 * Verschickt den aktuellen Block, auch wenn er nicht voll ist.
+	 *
+	 * @throws ComException Falls ein Verbindungsfehler auftritt
+	 */
+	public void flush() throws ComException {
+		if( this.count == 0 ) {
+			return;
+		}
+		try {
+			this.channel.send(this.block);
+		} finally {
+			this.block.reset(this.type);
+			this.count = 0;
+		}
+	}
+
+	/**
+	 * Berechnet die Länge einer Messung als Differenz zur vorherigen.
+	 *
+	 * @param time
+	 * @param values
+	 * @param off
+	 * @return Länge in Bytes
+	 */
+	private int encodedSize( int time, int[] values, int off ) {
+		int size = Encoding.varIntSize(Encoding.zigzag(time - this.lastTime));
+		for( int i = 0; i < this.width; i++ ) {
+			size += Encoding.varIntSize(Encoding.zigzag(values[off + i]
+					- this.last[i]));
+		}
+		return size;
+	}
+
+}
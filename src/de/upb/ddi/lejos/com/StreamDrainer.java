@@ -0,0 +1,141 @@
+package de.upb.ddi.lejos.com;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Liest Eingabeströme in einem eigenen Thread bis zu ihrem Ende und verwirft
+ * die Daten. Wird beim Trennen einer Verbindung benutzt, um mit
+ * Zeitbegrenzung auf das Schließen der Gegenseite zu warten.
+ * <p/>
+ * Alle Verbindungen teilen sich einen Thread, der beim ersten Trennen
+ * gestartet und danach wiederverwendet wird. Die Ströme werden nacheinander
+ * ausgelesen. Endet ein Strom nicht rechtzeitig, schließt die Verbindung ihn
+ * selbst und der Thread wird für den nächsten frei. Die Wartezeit eines
+ * Stroms beginnt erst, wenn der Thread ihn übernimmt; das Warten auf vorherige
+ * Ströme ist durch deren eigene Wartezeit begrenzt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+class StreamDrainer extends Thread {
+
+	/**
+	 * Größe des Puffers für verworfene Daten
+	 */
+	private static final int CHUNK_SIZE = 32;
+
+	/**
+	 * Der gemeinsame Thread oder <code>null</code>
+	 */
+	private static StreamDrainer instance = null;
+
+
+	/**
+	 * Der gerade auszulesende Strom oder <code>null</code>
+	 */
+	private InputStream source = null;
+
+	/**
+	 * Anzahl der angenommenen Ströme
+	 */
+	private int started = 0;
+
+	/**
+	 * Anzahl der bis zum Ende ausgelesenen Ströme
+	 */
+	private int finished = 0;
+
+	private StreamDrainer() {
+		this.setDaemon(true);
+	}
+
+	/**
+	 * Liest den Strom bis zu seinem Ende und verwirft die Daten.
+	 *
+	 * @param source Der auszulesende Strom
+	 * @param timeout Maximale Wartezeit in Millisekunden
+	 * @return <code>true</code> wenn das Ende des Stroms erreicht wurde
+	 */
+	static boolean drain( InputStream source, int timeout ) {
+		StreamDrainer drainer;
+		synchronized( StreamDrainer.class ) {
+			if( instance == null ) {
+				instance = new StreamDrainer();
+				instance.start();
+			}
+			drainer = instance;
+		}
+		return drainer.await(source, timeout);
+	}
+
+	/**
+	 * Übergibt den Strom an den Thread und wartet auf sein Ende. Liest der
+	 * Thread noch einen anderen Strom, wird zuerst darauf gewartet; die
+	 * Wartezeit beginnt erst danach.
+	 *
+	 * @param source
+	 * @param timeout Maximale Wartezeit in Millisekunden, nachdem der Thread
+	 *        den Strom übernommen hat
+	 * @return <code>true</code> wenn das Ende des Stroms erreicht wurde
+	 */
+	private synchronized boolean await( InputStream source, int timeout ) {
+		try {
+			while( this.source != null ) {
+				// Der vorherige Strom wird spätestens nach seiner Wartezeit
+				// geschlossen
+				this.wait();
+			}
+
+			this.source = source;
+			int job = ++this.started;
+			this.notifyAll();
+
+			long end = System.currentTimeMillis() + timeout;
+			while( this.finished < job ) {
+				long remaining = end - System.currentTimeMillis();
+				if( remaining <= 0 ) {
+					return false;
+				}
+				this.wait(remaining);
+			}
+			return true;
+		} catch( InterruptedException ex ) {
+			return false;
+		}
+	}
+
+	@Override
+	public void run() {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		while( true ) {
+			InputStream s;
+			synchronized( this ) {
+				while( this.source == null ) {
+					try {
+						this.wait();
+					} catch( InterruptedException ex ) {
+						/* weiter warten */
+					}
+				}
+				s = this.source;
+			}
+
+			try {
+				while( s.read(chunk, 0, CHUNK_SIZE) >= 0 ) {
+					// Daten verwerfen
+				}
+			} catch( IOException ex ) {
+				/* Strom ist ebenfalls beendet */
+			}
+
+			synchronized( this ) {
+				this.source = null;
+				this.finished++;
+				this.notifyAll();
+			}
+		}
+	}
+
+}
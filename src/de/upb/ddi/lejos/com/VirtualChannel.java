@@ -0,0 +1,444 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Ein virtueller Kanal eines {@link Multiplexer}. Der Kanal verhält sich wie
+ * ein {@link MessageChannel} und kann daher überall eingesetzt werden, wo ein
+ * solcher erwartet wird, z.B. für einen {@link RpcChannel} oder einen
+ * {@link SampleStream}.
+ * <p/>
+ * Gesendete Frames erhalten die Nummer des Kanals und werden direkt über den
+ * gemeinsamen Kanal verschickt. Empfangene Frames werden vom Multiplexer in
+ * einer eigenen Warteschlange fester Länge abgelegt, aus der
+ * {@link #receive(Frame)} liest.
+ * <p/>
+ * Im Normalfall ist der Kanal {@link #isBlocking() blockierend} und hat eine
+ * eigene Flusskontrolle wie ein {@link CreditChannel}: Der Kanal erteilt der
+ * Gegenseite so viele Sendeerlaubnisse, wie seine Warteschlange Frames fasst,
+ * und meldet frei gewordene Plätze zurück, sobald die Hälfte der
+ * Warteschlange abgeholt ist. Ohne Erlaubnis wartet {@link #send(Frame)} des
+ * Senders. Die Warteschlange läuft so nie über, und der Multiplexer muss
+ * weder warten noch Frames verwerfen; ein Leser, der nicht abholt, bremst nur
+ * den Sender seines eigenen Kanals.
+ * <p/>
+ * Ein ausdrücklich <b>verlustbehaftet</b> geöffneter Kanal (siehe
+ * {@link Multiplexer#open(int, int, boolean)}) erteilt der Gegenseite
+ * unbegrenzte Erlaubnis und verwirft Frames bei voller Warteschlange ohne
+ * Rückmeldung an Sender oder Empfänger; sie werden nur mit
+ * {@link #getDropped()} gezählt. Kanal <code>0</code> ist immer
+ * verlustbehaftet, da eine Gegenseite ohne Multiplexer keine Erlaubnisse
+ * erteilt.
+ * <p/>
+ * Überwachung, Kompression und die Größe der Teilstücke betreffen die
+ * gemeinsame Verbindung und werden an den zugrundeliegenden Kanal
+ * weitergegeben.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class VirtualChannel extends MessageChannel {
+
+	/**
+	 * Der zugehörige Multiplexer
+	 */
+	private final Multiplexer mux;
+
+	/**
+	 * Nummer des Kanals
+	 */
+	private final int id;
+
+	/**
+	 * Ringpuffer der empfangenen Frames
+	 */
+	private final Frame[] queue;
+
+	/**
+	 * Markiert Einträge im Ringpuffer, deren Frame schon vom gemeinsamen
+	 * Kanal als zu groß übersprungen wurde
+	 */
+	private final boolean[] lost;
+
+	/**
+	 * Position des ältesten Frames im Ringpuffer
+	 */
+	private int head = 0;
+
+	/**
+	 * Anzahl der Frames im Ringpuffer
+	 */
+	private int count = 0;
+
+	/**
+	 * Anzahl verworfener Frames
+	 */
+	private int dropped = 0;
+
+	/**
+	 * Ob der Kanal der Gegenseite nur so viele Frames erlaubt, wie die
+	 * Warteschlange fasst, statt Frames zu verwerfen
+	 */
+	private final boolean blocking;
+
+	/**
+	 * Verbleibende Sendeerlaubnisse oder <code>-1</code> für unbegrenztes
+	 * Senden
+	 */
+	private int credits = 0;
+
+	/**
+	 * Freigewordene, der Gegenseite noch nicht gemeldete Plätze
+	 */
+	private int ungranted = 0;
+
+	/**
+	 * Frame für Sendeerlaubnisse
+	 */
+	private final Frame control = new Frame(2);
+
+	/**
+	 * Ob der zuletzt abgeholte Frame zu groß war und übersprungen wurde
+	 */
+	private boolean skipped = false;
+
+	/**
+	 * Fehler, mit dem der Kanal beendet wurde
+	 */
+	private ComException failure = null;
+
+	/**
+	 * @param mux Der zugehörige Multiplexer
+	 * @param id Nummer des Kanals
+	 * @param queueSize Länge der Warteschlange
+	 * @param capacity Größe der Frames in der Warteschlange
+	 * @param blocking Ob der Kanal eine Flusskontrolle hat; gilt nicht für
+	 *        Kanal <code>0</code>
+	 */
+	VirtualChannel( Multiplexer mux, int id, int queueSize, int capacity,
+			boolean blocking ) {
+		super(mux.getChannel().getConnection());
+		this.mux = mux;
+		this.id = id;
+		this.queue = new Frame[Math.max(1, Math.min(queueSize,
+				Multiplexer.MAX_WINDOW))];
+		this.lost = new boolean[this.queue.length];
+		for( int i = 0; i < this.queue.length; i++ ) {
+			this.queue[i] = new Frame(capacity);
+		}
+		this.blocking = blocking && id != 0;
+		if( id == 0 ) {
+			// Die Gegenseite hat eventuell keinen Multiplexer
+			this.credits = -1;
+		}
+	}
+
+	/**
+	 * @return Nummer des Kanals
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return Anzahl der empfangenen, noch nicht abgeholten Frames
+	 */
+	public synchronized int available() {
+		return this.count;
+	}
+
+	/**
+	 * @return Anzahl der wegen voller Warteschlange verworfenen Frames
+	 */
+	public synchronized int getDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * @return <code>true</code> wenn der Kanal eine Flusskontrolle hat und
+	 *         keine Frames verwirft
+	 */
+	public boolean isBlocking() {
+		return this.blocking;
+	}
+
+	/**
+	 * @return Anzahl der Frames, die ohne Warten verschickt werden können,
+	 *         oder <code>-1</code> falls die Gegenseite keine Flusskontrolle
+	 *         hat
+	 */
+	public synchronized int getCredits() {
+		return this.credits;
+	}
+
+	/**
+	 * Verschickt einen Frame über den gemeinsamen Kanal. Der Frame erhält
+	 * dabei die Nummer dieses Kanals. Ohne Sendeerlaubnis der Gegenseite
+	 * wird gewartet.
+	 */
+	@Override
+	public void send( Frame frame ) throws ComException {
+		this.send(frame, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Verschickt einen Frame mit einer Priorität über den gemeinsamen Kanal.
+	 * Der Frame erhält dabei die Nummer dieses Kanals. Ohne Sendeerlaubnis der
+	 * Gegenseite wird gewartet, bis ihr Leser Platz geschaffen hat.
+	 *
+	 * @throws ComException Falls ein Verbindungsfehler auftritt oder der Kanal
+	 *         während des Wartens geschlossen wurde
+	 */
+	@Override
+	public void send( Frame frame, int priority ) throws ComException {
+		synchronized( this ) {
+			while( this.credits == 0 ) {
+				if( this.failure != null ) {
+					throw this.failure;
+				}
+				try {
+					this.wait();
+				} catch( InterruptedException ex ) {
+					throw new ComException("Interrupted", ComException.SEND);
+				}
+			}
+			if( this.credits > 0 ) {
+				this.credits--;
+			}
+		}
+		frame.setChannel(this.id);
+		this.mux.getChannel().send(frame, priority);
+	}
+
+	/**
+	 * Holt den nächsten Frame aus der Warteschlange. Die Methode blockiert,
+	 * bis ein Frame eingetroffen ist.
+	 *
+	 * @throws ComException Falls die Verbindung abgebrochen oder der Kanal
+	 *         geschlossen wurde oder der Frame zu klein ist
+	 */
+	@Override
+	public int receive( Frame frame ) throws ComException {
+		return this.receive(frame, 0);
+	}
+
+	/**
+	 * Holt den nächsten Frame aus der Warteschlange. Wie bei
+	 * {@link MessageChannel#receive(Frame)} wird ein zu großer Frame
+	 * übersprungen; die Exception wird dann mit {@link #wasSkipped()}
+	 * erkannt und der Kanal kann weiter benutzt werden. Das gilt auch für
+	 * Frames, die schon für den gemeinsamen Kanal zu groß waren.
+	 * <p/>
+	 * Der frei gewordene Platz wird bei Bedarf als Sendeerlaubnis an die
+	 * Gegenseite gemeldet.
+	 *
+	 * @param frame Frame, in den die Nachricht kopiert wird
+	 * @param timeout Maximale Wartezeit in Millisekunden oder <code>0</code>
+	 *        für unbegrenztes Warten
+	 * @return Typ der empfangenen Nachricht
+	 * @throws ComException Falls die Verbindung abgebrochen oder der Kanal
+	 *         geschlossen wurde, die Wartezeit abgelaufen ist oder der Frame
+	 *         zu klein ist
+	 */
+	public int receive( Frame frame, int timeout ) throws ComException {
+		boolean tooLarge;
+		synchronized( this ) {
+			this.skipped = false;
+			long end = System.currentTimeMillis() + timeout;
+			while( this.count == 0 ) {
+				if( this.failure != null ) {
+					throw this.failure;
+				}
+
+				long remaining = end - System.currentTimeMillis();
+				if( timeout > 0 && remaining <= 0 ) {
+					throw new ComException("Receive timed out",
+							ComException.TIMEOUT);
+				}
+				try {
+					this.wait(timeout > 0 ? remaining : 0);
+				} catch( InterruptedException ex ) {
+					throw new ComException("Interrupted", ComException.RECV);
+				}
+			}
+
+			Frame next = this.queue[this.head];
+			tooLarge = this.lost[this.head] || next.length > frame.data.length;
+			if( !tooLarge ) {
+				frame.copyFrom(next);
+			}
+			this.head = (this.head + 1) % this.queue.length;
+			this.count--;
+			if( this.blocking ) {
+				this.ungranted++;
+			}
+			this.skipped = tooLarge;
+		}
+
+		this.grant(false);
+		if( tooLarge ) {
+			throw new ComException("Frame too large", ComException.RECV);
+		}
+		return frame.type;
+	}
+
+	/**
+	 * Erteilt der Gegenseite die anfänglichen Sendeerlaubnisse: so viele, wie
+	 * die Warteschlange fasst, oder unbegrenzt, falls der Kanal
+	 * verlustbehaftet ist. Wird vom {@link Multiplexer} beim Öffnen
+	 * aufgerufen, nie vom Empfangs-Thread.
+	 */
+	void announce() {
+		if( this.id == 0 ) {
+			return;
+		}
+		if( this.blocking ) {
+			synchronized( this ) {
+				this.ungranted = this.queue.length - this.count;
+			}
+			this.grant(true);
+		} else {
+			this.sendWindow(Multiplexer.UNLIMITED);
+		}
+	}
+
+	/**
+	 * Meldet frei gewordene Plätze als Sendeerlaubnisse an die Gegenseite.
+	 * Gesammelt wird wie beim {@link CreditChannel}, bis die Hälfte der
+	 * Warteschlange frei ist.
+	 *
+	 * @param force Ob auch weniger Plätze gemeldet werden
+	 */
+	private void grant( boolean force ) {
+		synchronized( this.control ) {
+			int n;
+			synchronized( this ) {
+				n = this.ungranted;
+				if( n == 0 || (!force && n < (this.queue.length + 1) / 2)
+						|| this.failure != null ) {
+					return;
+				}
+				this.ungranted = 0;
+			}
+			this.sendWindow(n);
+		}
+	}
+
+	/**
+	 * Verschickt eine Sendeerlaubnis für diesen Kanal.
+	 *
+	 * @param n Anzahl der Frames oder {@link Multiplexer#UNLIMITED}
+	 */
+	private void sendWindow( int n ) {
+		synchronized( this.control ) {
+			this.control.reset(MessageChannel.TYPE_WINDOW);
+			this.control.setChannel(this.id);
+			this.control.putByte(n >>> 8);
+			this.control.putByte(n);
+			try {
+				this.mux.getChannel().send(this.control,
+						MessageChannel.PRIORITY_HIGH);
+			} catch( ComException ex ) {
+				this.fail(ex);
+			}
+		}
+	}
+
+	/**
+	 * Fügt von der Gegenseite erteilte Sendeerlaubnisse hinzu.
+	 *
+	 * @param n Anzahl der Frames oder {@link Multiplexer#UNLIMITED}
+	 */
+	synchronized void addCredits( int n ) {
+		if( n == Multiplexer.UNLIMITED || this.credits < 0 ) {
+			this.credits = -1;
+		} else {
+			this.credits += n;
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Legt einen empfangenen Frame in der Warteschlange ab. Der Multiplexer
+	 * wartet dabei nie: Ist die Warteschlange voll, wird der Frame verworfen.
+	 * Bei einem {@link #isBlocking() blockierenden} Kanal geschieht das nur,
+	 * wenn die Gegenseite ihre Sendeerlaubnis überschreitet. Ein beendeter
+	 * Kanal verwirft den Frame immer.
+	 * <p/>
+	 * Ein vom gemeinsamen Kanal übersprungener Frame wird als solcher
+	 * markiert abgelegt, damit der Leser davon erfährt und sein Platz wie
+	 * jeder andere zurückgemeldet wird.
+	 *
+	 * @param frame
+	 * @param skipped Ob der Frame zu groß war und übersprungen wurde
+	 */
+	synchronized void offer( Frame frame, boolean skipped ) {
+		if( this.count == this.queue.length || this.failure != null ) {
+			this.dropped++;
+			return;
+		}
+
+		int tail = (this.head + this.count) % this.queue.length;
+		this.queue[tail].copyFrom(frame);
+		this.lost[tail] = skipped;
+		this.count++;
+		this.notifyAll();
+	}
+
+	/**
+	 * Beendet den Kanal mit einem Fehler. Bereits empfangene Frames können
+	 * noch abgeholt werden.
+	 *
+	 * @param ex
+	 */
+	synchronized void fail( ComException ex ) {
+		if( this.failure == null ) {
+			this.failure = ex;
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Schließt den Kanal. Wartende Leser und Sender erhalten eine
+	 * {@link ComException}; weitere Frames für diesen Kanal werden vom
+	 * Multiplexer verworfen.
+	 */
+	public void close() {
+		this.mux.remove(this);
+		this.fail(new ComException("Channel closed", ComException.CONN));
+	}
+
+	@Override
+	synchronized boolean wasSkipped() {
+		return this.skipped;
+	}
+
+	@Override
+	public Heartbeat startHeartbeat( int interval, int window ) {
+		return this.mux.getChannel().startHeartbeat(interval, window);
+	}
+
+	@Override
+	public void stopHeartbeat() {
+		this.mux.getChannel().stopHeartbeat();
+	}
+
+	@Override
+	public Heartbeat getHeartbeat() {
+		return this.mux.getChannel().getHeartbeat();
+	}
+
+	@Override
+	public void setCompression( int threshold ) {
+		this.mux.getChannel().setCompression(threshold);
+	}
+
+	@Override
+	public void setFragmentSize( int size ) {
+		this.mux.getChannel().setFragmentSize(size);
+	}
+
+	@Override
+	public int getFragmentSize() {
+		return this.mux.getChannel().getFragmentSize();
+	}
+
+}
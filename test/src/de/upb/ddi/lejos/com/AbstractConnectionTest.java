@@ -0,0 +1,387 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für Versand und Empfang der {@link AbstractConnection} über eine
+ * {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class AbstractConnectionTest {
+
+	private Loopback loop;
+
+	private AbstractConnection sender, receiver;
+
+	/**
+	 * Werte an den Grenzen des Wertebereichs, gefolgt von gemischten Werten
+	 */
+	private static int[] ints( int length ) {
+		int[] values = new int[length];
+		values[0] = Integer.MIN_VALUE;
+		values[1] = Integer.MAX_VALUE;
+		values[2] = 0;
+		values[3] = -1;
+		for( int i = 4; i < length; i++ ) {
+			values[i] = (i % 2 == 0 ? -1 : 1) * i * i * i;
+		}
+		return values;
+	}
+
+	/**
+	 * Werte an den Grenzen des Wertebereichs, gefolgt von gemischten Werten
+	 */
+	private static long[] longs( int length ) {
+		long[] values = new long[length];
+		values[0] = Long.MIN_VALUE;
+		values[1] = Long.MAX_VALUE;
+		values[2] = 0;
+		values[3] = -1;
+		for( int i = 4; i < length; i++ ) {
+			values[i] = (i % 2 == 0 ? -1L : 1L) << (i % 63);
+		}
+		return values;
+	}
+
+	/**
+	 * Ein String, dessen Zeichen mit zwei und drei Bytes über die Grenze
+	 * des 128 Byte großen Empfangspuffers hinweg kodiert sind
+	 */
+	private static String acrossBufferBoundary() {
+		StringBuilder sb = new StringBuilder();
+		for( int i = 0; i < 127; i++ ) {
+			sb.append('x');
+		}
+		sb.append('\u20AC');
+		for( int i = 0; i < 100; i++ ) {
+			sb.append(i % 2 == 0 ? '\u00E4' : '\u4E2D');
+		}
+		return sb.toString();
+	}
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+		this.sender = this.loop.client;
+		this.receiver = this.loop.server;
+	}
+
+	@After
+	public void disconnect() {
+		this.loop.close();
+	}
+
+	@Test
+	public void batchIsFlushedOnceWhenTheOuterBatchEnds() throws Exception {
+		int flushes = this.sender.getStats().getFlushes();
+
+		this.sender.beginBatch();
+		this.sender.beginBatch();
+		this.sender.sendInt(1);
+		this.sender.sendLong(2);
+		this.sender.sendString("drei");
+		this.sender.endBatch();
+		assertTrue(this.sender.isBatching());
+		assertEquals(flushes, this.sender.getStats().getFlushes());
+
+		this.sender.endBatch();
+		assertTrue(!this.sender.isBatching());
+		assertEquals(flushes + 1, this.sender.getStats().getFlushes());
+
+		assertEquals(1, this.receiver.receiveInt());
+		assertEquals(2, this.receiver.receiveLong());
+		assertEquals("drei", this.receiver.receiveString());
+	}
+
+	@Test
+	public void flushWorksInsideABatch() throws Exception {
+		int flushes = this.sender.getStats().getFlushes();
+
+		this.sender.beginBatch();
+		this.sender.sendByte((byte) 5);
+		this.sender.flush();
+		assertEquals(flushes + 1, this.sender.getStats().getFlushes());
+		assertEquals(5, this.receiver.receiveByte());
+
+		// Überzählige Aufrufe von endBatch() werden ignoriert
+		this.sender.endBatch();
+		this.sender.endBatch();
+		assertTrue(!this.sender.isBatching());
+		this.sender.sendInt(6);
+		assertEquals(6, this.receiver.receiveInt());
+	}
+
+	@Test
+	public void arraysRoundTripAcrossBufferBlocks() throws Exception {
+		// Mehr Werte, als in einen Block des Sendepuffers passen
+		int[] ints = ints(200);
+		this.sender.sendInts(ints, 0, ints.length);
+		int[] receivedInts = new int[ints.length];
+		this.receiver.receiveInts(receivedInts, 0, receivedInts.length);
+		assertArrayEquals(ints, receivedInts);
+
+		long[] longs = longs(100);
+		this.sender.sendLongs(longs, 0, longs.length);
+		long[] receivedLongs = new long[longs.length];
+		this.receiver.receiveLongs(receivedLongs, 0, receivedLongs.length);
+		assertArrayEquals(longs, receivedLongs);
+	}
+
+	@Test
+	public void arraysRespectOffsets() throws Exception {
+		int[] ints = ints(10);
+		this.sender.sendInts(ints, 3, 5);
+		int[] received = new int[7];
+		this.receiver.receiveInts(received, 2, 5);
+		for( int i = 0; i < 5; i++ ) {
+			assertEquals(ints[3 + i], received[2 + i]);
+		}
+		assertEquals(0, received[0]);
+		assertEquals(0, received[1]);
+
+		byte[] bytes = { 1, 2, 3, 4, 5 };
+		this.sender.sendBytes(bytes, 1, 3);
+		this.sender.sendInts(ints, 0, 0);
+		byte[] receivedBytes = new byte[4];
+		this.receiver.receiveBytes(receivedBytes, 1, 3);
+		assertArrayEquals(new byte[] { 0, 2, 3, 4 }, receivedBytes);
+		assertEquals(0, this.receiver.available());
+	}
+
+	@Test
+	public void stringsRoundTripInBothFormats() throws Exception {
+		String[] values = { "", "a", "Hallo NXT", "\u00C4\u00D6\u00DC\u00DF \u20AC",
+				acrossBufferBoundary() };
+
+		for( int encoding = 0; encoding <= 1; encoding++ ) {
+			this.sender.setEncoding(encoding);
+			this.receiver.setEncoding(encoding);
+			for( int i = 0; i < values.length; i++ ) {
+				this.sender.sendString(values[i]);
+				assertEquals(values[i], this.receiver.receiveString());
+			}
+		}
+	}
+
+	@Test
+	public void compactStringsUseOneBytePerAsciiCharacter() throws Exception {
+		this.sender.setEncoding(RemoteConnection.ENCODING_COMPACT_STRINGS);
+		this.receiver.setEncoding(RemoteConnection.ENCODING_COMPACT_STRINGS);
+
+		long before = this.sender.getStats().getBytesSent();
+		this.sender.sendString("Hallo NXT");
+		assertEquals(1 + 9, this.sender.getStats().getBytesSent() - before);
+		assertEquals("Hallo NXT", this.receiver.receiveString());
+	}
+
+	@Test
+	public void receiveStringAppendsToTheBuffer() throws Exception {
+		this.sender.setEncoding(RemoteConnection.ENCODING_COMPACT_STRINGS);
+		this.receiver.setEncoding(RemoteConnection.ENCODING_COMPACT_STRINGS);
+		String value = acrossBufferBoundary();
+
+		StringBuilder sb = new StringBuilder("> ");
+		this.sender.sendString(value);
+		this.sender.sendString("");
+		assertEquals(value.length(), this.receiver.receiveString(sb));
+		assertEquals(0, this.receiver.receiveString(sb));
+		assertEquals("> " + value, sb.toString());
+	}
+
+	@Test
+	public void malformedCompactStringsAreRejected() throws Exception {
+		this.sender.setEncoding(RemoteConnection.ENCODING_COMPACT_STRINGS);
+		this.receiver.setEncoding(RemoteConnection.ENCODING_COMPACT_STRINGS);
+
+		byte[][] invalid = { { 2, (byte) 0xE2, (byte) 0x82 },
+				{ 1, (byte) 0x82 }, { 2, (byte) 0xC3, 'a' },
+				{ 4, (byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80 } };
+		for( int i = 0; i < invalid.length; i++ ) {
+			this.sender.sendBytes(invalid[i], 0, invalid[i].length);
+			this.sender.sendInt(i);
+
+			StringBuilder sb = new StringBuilder("ok");
+			try {
+				this.receiver.receiveString(sb);
+				fail("Malformed string " + i);
+			} catch( ComException ex ) {
+				assertEquals(ComException.RECV, ex.getType());
+			}
+			assertEquals("ok", sb.toString());
+
+			// Der Strom bleibt synchron
+			assertEquals(i, this.receiver.receiveInt());
+		}
+	}
+
+	@Test
+	public void varintsRoundTripAtTheLimits() throws Exception {
+		this.sender.setEncoding(RemoteConnection.ENCODING_VARINT);
+		this.receiver.setEncoding(RemoteConnection.ENCODING_VARINT);
+
+		int[] ints = ints(200);
+		for( int i = 0; i < 8; i++ ) {
+			this.sender.sendInt(ints[i]);
+			assertEquals(ints[i], this.receiver.receiveInt());
+		}
+		long[] longs = longs(100);
+		for( int i = 0; i < 8; i++ ) {
+			this.sender.sendLong(longs[i]);
+			assertEquals(longs[i], this.receiver.receiveLong());
+		}
+
+		this.sender.sendInts(ints, 0, ints.length);
+		int[] receivedInts = new int[ints.length];
+		this.receiver.receiveInts(receivedInts, 0, receivedInts.length);
+		assertArrayEquals(ints, receivedInts);
+
+		this.sender.sendLongs(longs, 0, longs.length);
+		long[] receivedLongs = new long[longs.length];
+		this.receiver.receiveLongs(receivedLongs, 0, receivedLongs.length);
+		assertArrayEquals(longs, receivedLongs);
+	}
+
+	@Test
+	public void varintsShrinkSmallValues() throws Exception {
+		this.sender.setEncoding(RemoteConnection.ENCODING_VARINT);
+		this.receiver.setEncoding(RemoteConnection.ENCODING_VARINT);
+
+		long before = this.sender.getStats().getBytesSent();
+		this.sender.sendInt(-3);
+		this.sender.sendLong(63);
+		this.sender.sendInt(Integer.MIN_VALUE);
+		this.sender.sendLong(Long.MAX_VALUE);
+		assertEquals(1 + 1 + 5 + 10, this.sender.getStats().getBytesSent()
+				- before);
+
+		assertEquals(-3, this.receiver.receiveInt());
+		assertEquals(63, this.receiver.receiveLong());
+		assertEquals(Integer.MIN_VALUE, this.receiver.receiveInt());
+		assertEquals(Long.MAX_VALUE, this.receiver.receiveLong());
+	}
+
+	@Test
+	public void overlongVarintIsRejected() throws Exception {
+		this.sender.setEncoding(RemoteConnection.ENCODING_VARINT);
+		this.receiver.setEncoding(RemoteConnection.ENCODING_VARINT);
+
+		byte[] overlong = { (byte) 0x80, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80, (byte) 0x80, 1 };
+		this.sender.sendBytes(overlong, 0, overlong.length);
+		try {
+			this.receiver.receiveInt();
+			fail("Malformed varint");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+	}
+
+	@Test
+	public void negotiationPicksTheCommonFormats() throws Exception {
+		final int[] remote = new int[1];
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					remote[0] = AbstractConnectionTest.this.receiver
+							.negotiateEncoding(RemoteConnection.ENCODING_VARINT);
+				} catch( ComException ex ) {
+					remote[0] = -1;
+				}
+			}
+		};
+		t.start();
+
+		int local = this.sender
+				.negotiateEncoding(RemoteConnection.ENCODING_VARINT
+						| RemoteConnection.ENCODING_COMPACT_STRINGS);
+		t.join();
+		assertEquals(RemoteConnection.ENCODING_VARINT, local);
+		assertEquals(RemoteConnection.ENCODING_VARINT, remote[0]);
+		assertEquals(local, this.sender.getEncoding());
+		assertEquals(local, this.receiver.getEncoding());
+
+		// Beide Seiten benutzen danach das ausgehandelte Format
+		long before = this.sender.getStats().getBytesSent();
+		this.sender.sendInt(-1);
+		this.sender.sendString("\u00E4");
+		assertEquals(1 + 4 + 2, this.sender.getStats().getBytesSent()
+				- before);
+		assertEquals(-1, this.receiver.receiveInt());
+		assertEquals("\u00E4", this.receiver.receiveString());
+	}
+
+	@Test(timeout = 10000)
+	public void pollReturnsOnlyBufferedBytes() throws Exception {
+		this.receiver.enableAsyncReceive(256);
+		byte[] buf = new byte[64];
+		assertEquals(0, this.receiver.poll(buf, 0, buf.length));
+		assertEquals(0, this.receiver.available());
+
+		byte[] data = { 1, 2, 3, 4, 5 };
+		this.sender.sendBytes(data, 0, data.length);
+		while( this.receiver.available() < data.length ) {
+			Thread.sleep(1);
+		}
+		assertEquals(3, this.receiver.poll(buf, 10, 3));
+		assertEquals(2, this.receiver.poll(buf, 13, 60));
+		for( int i = 0; i < data.length; i++ ) {
+			assertEquals(data[i], buf[10 + i]);
+		}
+		assertEquals(0, this.receiver.poll(buf, 0, buf.length));
+	}
+
+	@Test(timeout = 10000)
+	public void asyncReceiveKeepsMoreThanTheBufferInOrder() throws Exception {
+		this.receiver.enableAsyncReceive(64);
+		final int[] ints = ints(200);
+
+		// Der Lese-Thread pausiert, solange sein Puffer voll ist
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for( int i = 0; i < 10; i++ ) {
+						AbstractConnectionTest.this.sender.sendInts(ints, 0,
+								ints.length);
+					}
+				} catch( ComException ex ) {
+					/* Fällt beim Vergleich auf */
+				}
+			}
+		};
+		t.start();
+
+		int[] received = new int[ints.length];
+		for( int i = 0; i < 10; i++ ) {
+			this.receiver.receiveInts(received, 0, received.length);
+			assertArrayEquals(ints, received);
+		}
+		t.join();
+		assertTrue(this.receiver.available() <= 0);
+	}
+
+	@Test(timeout = 10000)
+	public void asyncReceiveEndsWithTheRemoteStream() throws Exception {
+		this.receiver.enableAsyncReceive(64);
+		this.sender.sendInt(3);
+		this.sender.disconnect();
+
+		assertEquals(3, this.receiver.receiveInt());
+		try {
+			this.receiver.receiveByte();
+			fail("Stream should be closed");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+	}
+
+}
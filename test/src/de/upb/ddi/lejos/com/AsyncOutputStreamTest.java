@@ -0,0 +1,244 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für den asynchronen Versand über den {@link AsyncOutputStream} und
+ * seine Strategien bei voller Warteschlange. Die Leitung der
+ * {@link LoopbackConnection} fasst 1 KB; liest die Gegenseite nicht, blockiert
+ * der Schreib-Thread und die Warteschlange läuft voll.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class AsyncOutputStreamTest {
+
+	/**
+	 * Größe der Warteschlange
+	 */
+	private static final int CAPACITY = 64;
+
+	/**
+	 * Kennung großer Nachrichten
+	 */
+	private static final int LARGE = 0x7FFFFFFF;
+
+	/**
+	 * Länge großer Nachrichten samt Kennung
+	 */
+	private static final int LARGE_SIZE = 300;
+
+
+	private Loopback loop;
+
+	/**
+	 * Fehler des Sende-Threads
+	 */
+	private volatile Exception sendFailure;
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+	}
+
+	@After
+	public void disconnect() {
+		this.loop.close();
+	}
+
+	/**
+	 * Verschickt eine Nachricht, die mehr als viermal so groß wie die
+	 * Warteschlange ist.
+	 *
+	 * @throws ComException
+	 */
+	private void sendLarge() throws ComException {
+		byte[] data = new byte[LARGE_SIZE - 4];
+		for( int i = 0; i < data.length; i++ ) {
+			data[i] = 0x55;
+		}
+		this.loop.client.beginBatch();
+		this.loop.client.sendInt(LARGE);
+		this.loop.client.sendBytes(data, 0, data.length);
+		this.loop.client.endBatch();
+	}
+
+	/**
+	 * Liest eine große Nachricht nach ihrer Kennung und prüft den Inhalt.
+	 *
+	 * @throws ComException
+	 */
+	private void receiveLarge() throws ComException {
+		byte[] data = new byte[LARGE_SIZE - 4];
+		this.loop.server.receiveBytes(data, 0, data.length);
+		for( int i = 0; i < data.length; i++ ) {
+			if( data[i] != 0x55 ) {
+				fail("Large message incomplete at " + i);
+			}
+		}
+	}
+
+	/**
+	 * Wartet, bis die Gegenseite nichts mehr annimmt.
+	 */
+	private void awaitFullPipe() throws InterruptedException {
+		long sent;
+		do {
+			sent = this.loop.client.getStats().getBytesSent();
+			Thread.sleep(20);
+		} while( sent != this.loop.client.getStats().getBytesSent() );
+	}
+
+	@Test(timeout = 10000)
+	public void blockWaitsForSpaceAndLosesNothing() throws Exception {
+		this.loop.client.enableAsyncSend(CAPACITY, RemoteConnection.QUEUE_BLOCK);
+
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for( int i = 0; i < 1000; i++ ) {
+						AsyncOutputStreamTest.this.loop.client.sendInt(i);
+					}
+				} catch( ComException ex ) {
+					AsyncOutputStreamTest.this.sendFailure = ex;
+				}
+			}
+		};
+		t.start();
+
+		// 4000 Bytes passen nicht in Leitung und Warteschlange
+		this.awaitFullPipe();
+		assertTrue(t.isAlive());
+
+		for( int i = 0; i < 1000; i++ ) {
+			assertEquals(i, this.loop.server.receiveInt());
+		}
+		t.join();
+		assertNull(this.sendFailure);
+		assertEquals(0, this.loop.client.getStats().getDropped());
+	}
+
+	@Test(timeout = 10000)
+	public void dropOldestNeverBlocksAndKeepsTheNewest() throws Exception {
+		this.loop.client.enableAsyncSend(CAPACITY,
+				RemoteConnection.QUEUE_DROP_OLDEST);
+
+		for( int i = 0; i < 1000; i++ ) {
+			this.loop.client.sendInt(i);
+		}
+		int dropped = this.loop.client.getStats().getDropped();
+		assertTrue("dropped: " + dropped, dropped > 0);
+
+		int last = -1, received = 0;
+		while( last < 999 ) {
+			int value = this.loop.server.receiveInt();
+			assertTrue(value > last);
+			last = value;
+			received++;
+		}
+		assertEquals(1000, received + dropped);
+	}
+
+	@Test(timeout = 10000)
+	public void failRejectsNewMessagesWhenFull() throws Exception {
+		this.loop.client.enableAsyncSend(CAPACITY, RemoteConnection.QUEUE_FAIL);
+
+		int failed = 0;
+		boolean[] sent = new boolean[1000];
+		for( int i = 0; i < sent.length; i++ ) {
+			try {
+				this.loop.client.sendInt(i);
+				sent[i] = true;
+			} catch( ComException ex ) {
+				assertEquals(ComException.SEND, ex.getType());
+				failed++;
+			}
+		}
+		assertTrue("failed: " + failed, failed > 0);
+		assertEquals(failed, this.loop.client.getStats().getFailures(
+				ComException.SEND));
+
+		// Angenommene Nachrichten kommen vollständig und in Reihenfolge an
+		for( int i = 0; i < sent.length; i++ ) {
+			if( sent[i] ) {
+				assertEquals(i, this.loop.server.receiveInt());
+			}
+		}
+		assertEquals(0, this.loop.server.available());
+	}
+
+	@Test(timeout = 20000)
+	public void oversizedMessagesAreNeverDroppedInPart() throws Exception {
+		this.loop.client.enableAsyncSend(CAPACITY,
+				RemoteConnection.QUEUE_DROP_OLDEST);
+
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for( int i = 0; i < 2000; i++ ) {
+						if( i % 100 == 50 ) {
+							AsyncOutputStreamTest.this.sendLarge();
+						}
+						AsyncOutputStreamTest.this.loop.client.sendInt(i);
+					}
+				} catch( ComException ex ) {
+					AsyncOutputStreamTest.this.sendFailure = ex;
+				}
+			}
+		};
+		t.start();
+
+		// Langsames Lesen, damit kleine Nachrichten verworfen werden
+		int last = -1, large = 0, reads = 0;
+		while( last < 1999 ) {
+			int value = this.loop.server.receiveInt();
+			if( value == LARGE ) {
+				this.receiveLarge();
+				large++;
+			} else {
+				assertTrue("out of sync: " + value, value > last
+						&& value < 2000);
+				last = value;
+			}
+			if( ++reads % 50 == 0 ) {
+				Thread.sleep(1);
+			}
+		}
+		t.join();
+
+		assertNull(this.sendFailure);
+		assertEquals(20, large);
+		assertTrue(this.loop.client.getStats().getDropped() > 0);
+	}
+
+	@Test(timeout = 10000)
+	public void disconnectSendsWaitingMessages() throws Exception {
+		this.loop.client.enableAsyncSend(CAPACITY, RemoteConnection.QUEUE_BLOCK);
+		for( int i = 0; i < 50; i++ ) {
+			this.loop.client.sendInt(i);
+		}
+		this.sendLarge();
+		this.loop.client.disconnect();
+
+		for( int i = 0; i < 50; i++ ) {
+			assertEquals(i, this.loop.server.receiveInt());
+		}
+		assertEquals(LARGE, this.loop.server.receiveInt());
+		this.receiveLarge();
+		try {
+			this.loop.server.receiveByte();
+			fail("Stream should be closed");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+	}
+
+}
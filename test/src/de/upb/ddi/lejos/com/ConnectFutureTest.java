@@ -0,0 +1,210 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+/**
+ * Tests für Erfolg, Fehler und Zeitüberschreitung des asynchronen
+ * Verbindungsaufbaus mit {@link ConnectFuture} über eine
+ * {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectFutureTest {
+
+	/**
+	 * Verbindung, deren Aufbau zusätzlich wartet
+	 */
+	private static class SlowConnection extends LoopbackConnection {
+
+		final int delay;
+
+		SlowConnection( int delay ) {
+			super("slow");
+			this.delay = delay;
+		}
+
+		@Override
+		public void connect( String identifier ) {
+			try {
+				Thread.sleep(this.delay);
+			} catch( InterruptedException ex ) {
+			}
+			super.connect(identifier);
+		}
+
+		@Override
+		public RemoteConnection clone() {
+			return new SlowConnection(this.delay);
+		}
+	}
+
+	/**
+	 * Merkt sich die Benachrichtigungen und den benachrichtigenden Thread
+	 */
+	private static class Recorder implements ConnectListener {
+
+		int calls = 0;
+
+		ComException failure;
+
+		Thread thread;
+
+		public synchronized void connected( RemoteConnection connection ) {
+			this.calls++;
+			this.thread = Thread.currentThread();
+		}
+
+		public synchronized void failed( RemoteConnection connection,
+				ComException ex ) {
+			this.calls++;
+			this.failure = ex;
+			this.thread = Thread.currentThread();
+		}
+
+		/**
+		 * Wartet auf die erste Benachrichtigung. Sie kommt erst nach dem
+		 * Wecken der Wartenden.
+		 *
+		 * @return Anzahl der Benachrichtigungen
+		 */
+		int await() throws InterruptedException {
+			long end = System.currentTimeMillis() + 1000;
+			while( System.currentTimeMillis() < end ) {
+				synchronized( this ) {
+					if( this.calls > 0 ) {
+						break;
+					}
+				}
+				Thread.sleep(5);
+			}
+			synchronized( this ) {
+				return this.calls;
+			}
+		}
+	}
+
+
+	/**
+	 * Wartet in einem eigenen Thread auf eine Verbindung.
+	 *
+	 * @param conn
+	 * @return Der wartende Thread
+	 */
+	private static Thread listen( final LoopbackConnection conn ) {
+		Thread t = new Thread() {
+			public void run() {
+				conn.connect(2000);
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void connectsInTheBackground() throws Exception {
+		LoopbackConnection server = new LoopbackConnection("future");
+		Thread t = listen(server);
+		Thread.sleep(50);
+
+		Recorder recorder = new Recorder();
+		SlowConnection client = new SlowConnection(50);
+		ConnectFuture future = client.connectAsync("future", 2000, recorder);
+		assertSame(client, future.await());
+		assertTrue(future.isDone());
+		assertTrue(client.isConnected());
+
+		t.join(2000);
+		assertEquals(1, recorder.await());
+		synchronized( recorder ) {
+			assertTrue(recorder.thread != Thread.currentThread());
+		}
+		client.disconnect();
+		server.disconnect();
+	}
+
+	@Test
+	public void failureIsReported() throws Exception {
+		Recorder recorder = new Recorder();
+		ConnectFuture future = new SlowConnection(0).connectAsync("nowhere",
+				2000, recorder);
+		try {
+			future.await();
+			fail("Connection should fail");
+		} catch( ComException ex ) {
+			assertEquals(ComException.CONN, ex.getType());
+		}
+		assertEquals(1, recorder.await());
+		synchronized( recorder ) {
+			assertEquals(ComException.CONN, recorder.failure.getType());
+		}
+	}
+
+	@Test
+	public void timeoutIsReportedByTheWatchdog() throws Exception {
+		LoopbackConnection server = new LoopbackConnection("late");
+		Thread t = listen(server);
+		Thread.sleep(50);
+
+		Recorder recorder = new Recorder();
+		SlowConnection client = new SlowConnection(300);
+		long start = System.currentTimeMillis();
+		ConnectFuture future = client.connectAsync("late", 100, recorder);
+
+		// Fragt ab dem Ablauf der Zeit ständig nach; der Empfänger darf
+		// trotzdem nie von diesem Thread benachrichtigt werden
+		while( !future.isDone() ) {
+			Thread.yield();
+		}
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		try {
+			future.await();
+			fail("Connect should time out");
+		} catch( ComException ex ) {
+			assertEquals(ComException.TIMEOUT, ex.getType());
+		}
+
+		assertEquals(1, recorder.await());
+		synchronized( recorder ) {
+			assertNotNull(recorder.thread);
+			assertTrue(recorder.thread != Thread.currentThread());
+			assertEquals(ComException.TIMEOUT, recorder.failure.getType());
+		}
+
+		// Der verspätete Aufbau wird wieder getrennt
+		t.join(2000);
+		Thread.sleep(100);
+		assertTrue(!client.isConnected());
+		server.disconnect();
+	}
+
+	@Test
+	public void lateConnectWithoutListenerIsClosed() throws Exception {
+		LoopbackConnection server = new LoopbackConnection("nolistener");
+		Thread t = listen(server);
+		Thread.sleep(50);
+
+		SlowConnection client = new SlowConnection(200);
+		ConnectFuture future = client.connectAsync("nolistener", 50);
+		try {
+			future.await();
+			fail("Connect should time out");
+		} catch( ComException ex ) {
+			assertEquals(ComException.TIMEOUT, ex.getType());
+		}
+
+		t.join(2000);
+		Thread.sleep(100);
+		assertTrue(!client.isConnected());
+		server.disconnect();
+	}
+
+}
@@ -0,0 +1,209 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Lasttest für den {@link ConnectionHub}: Viele {@link SocketConnection
+ * SocketConnections} schicken gleichzeitig Frames unterschiedlicher Größe,
+ * teils komprimiert, an einen Hub, der jeden Frame zurückschickt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectionHubLoadTest {
+
+	private static final int PORT = SocketConnection.DEFAULT_PORT + 100;
+
+	private static final int CLIENTS = 64;
+
+	private static final int ROUND_TRIPS = 500;
+
+
+	private ConnectionHub hub;
+
+	private final AtomicInteger connected = new AtomicInteger(),
+			disconnected = new AtomicInteger(), frames = new AtomicInteger();
+
+	/**
+	 * Erster Fehler des Hubs oder eines Clients
+	 */
+	private final AtomicReference<String> failure =
+			new AtomicReference<String>();
+
+	@Before
+	public void startHub() throws ComException {
+		this.hub = new ConnectionHub(new HubListener() {
+			public void connected( HubPeer peer ) {
+				ConnectionHubLoadTest.this.connected.incrementAndGet();
+			}
+
+			public void received( HubPeer peer, Frame frame ) {
+				ConnectionHubLoadTest.this.frames.incrementAndGet();
+				try {
+					peer.send(frame);
+				} catch( ComException ex ) {
+					ConnectionHubLoadTest.this.fail("echo: " + ex.getMessage());
+				}
+			}
+
+			public void disconnected( HubPeer peer, ComException ex ) {
+				ConnectionHubLoadTest.this.disconnected.incrementAndGet();
+				if( ex != null ) {
+					ConnectionHubLoadTest.this.fail("disconnect: "
+							+ ex.getMessage());
+				}
+			}
+		}, 1024, 0);
+		this.hub.listen(PORT);
+		this.hub.start();
+	}
+
+	@After
+	public void stopHub() {
+		this.hub.close();
+	}
+
+	private void fail( String message ) {
+		this.failure.compareAndSet(null, message);
+	}
+
+	/**
+	 * Ein Client, der {@link #ROUND_TRIPS} Frames verschickt und jeweils auf
+	 * das Echo wartet.
+	 *
+	 * @param id
+	 */
+	private void runClient( int id ) throws ComException {
+		SocketConnection conn = new SocketConnection("c" + id, "c" + id);
+		conn.connect("localhost:" + PORT);
+		if( !conn.isConnected() ) {
+			throw new ComException("Not connected", ComException.CONN);
+		}
+
+		MessageChannel channel = new MessageChannel(conn);
+		if( id % 4 == 0 ) {
+			channel.setCompression(16);
+		}
+		if( id == 0 ) {
+			channel.startHeartbeat(20, 2000);
+		}
+
+		Frame f = new Frame(1024), r = new Frame(1024);
+		for( int i = 0; i < ROUND_TRIPS; i++ ) {
+			int type = 1 + i % 100, fill = i % 50;
+			f.reset(type);
+			f.putInt(id);
+			f.putInt(i);
+			for( int k = 0; k < fill; k++ ) {
+				f.putInt(7);
+			}
+			channel.send(f);
+
+			channel.receive(r);
+			if( r.getType() != type || r.getLength() != 8 + 4 * fill
+					|| r.getInt() != id || r.getInt() != i ) {
+				this.fail("client " + id + ": bad echo " + i);
+				break;
+			}
+		}
+		channel.stopHeartbeat();
+		conn.disconnect();
+	}
+
+	@Test(timeout = 60000)
+	public void manyClientsEchoConcurrently() throws Exception {
+		Thread[] clients = new Thread[CLIENTS];
+		for( int c = 0; c < CLIENTS; c++ ) {
+			final int id = c;
+			clients[c] = new Thread() {
+				public void run() {
+					try {
+						ConnectionHubLoadTest.this.runClient(id);
+					} catch( ComException ex ) {
+						ConnectionHubLoadTest.this.fail("client " + id + ": "
+								+ ex.getMessage());
+					}
+				}
+			};
+			clients[c].start();
+		}
+		for( int c = 0; c < CLIENTS; c++ ) {
+			clients[c].join();
+		}
+
+		// Das Trennen erreicht den Hub etwas später
+		long end = System.currentTimeMillis() + 5000;
+		while( this.hub.size() > 0 && System.currentTimeMillis() < end ) {
+			Thread.sleep(10);
+		}
+
+		assertNull(this.failure.get());
+		assertEquals(CLIENTS, this.connected.get());
+		assertEquals(CLIENTS * ROUND_TRIPS, this.frames.get());
+		assertEquals(CLIENTS, this.disconnected.get());
+		assertEquals(0, this.hub.size());
+	}
+
+	@Test(timeout = 10000)
+	public void failingListenerDoesNotStopTheHub() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		ConnectionHub hub = new ConnectionHub(new HubListener() {
+			public void connected( HubPeer peer ) {
+				// Nur die erste Verbindung scheitert
+				if( calls.incrementAndGet() == 1 ) {
+					throw new IllegalStateException("connected");
+				}
+			}
+
+			public void received( HubPeer peer, Frame frame ) {
+				try {
+					peer.send(frame);
+				} catch( ComException ex ) {
+				}
+			}
+
+			public void disconnected( HubPeer peer, ComException ex ) {
+				throw new IllegalStateException("disconnected");
+			}
+		}, 64, 0);
+		hub.listen(PORT + 1);
+		hub.start();
+		try {
+			SocketConnection first = new SocketConnection("f", "f");
+			first.connect("localhost:" + (PORT + 1));
+			// Der Hub trennt die erste Verbindung
+			try {
+				first.receiveByte();
+			} catch( ComException ex ) {
+			}
+			first.disconnect();
+
+			SocketConnection second = new SocketConnection("s", "s");
+			second.connect("localhost:" + (PORT + 1));
+			MessageChannel channel = new MessageChannel(second);
+			Frame f = new Frame(64);
+			f.reset(1);
+			f.putInt(42);
+			channel.send(f);
+			channel.receive(f);
+			assertEquals(42, f.getInt());
+			second.disconnect();
+
+			assertTrue(hub.isRunning());
+			assertEquals(2, calls.get());
+		} finally {
+			hub.close();
+		}
+	}
+
+}
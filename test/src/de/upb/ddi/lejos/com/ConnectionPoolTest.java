@@ -0,0 +1,204 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Tests für Wiederverwendung, Verdrängung und gleichzeitigen
+ * Verbindungsaufbau des {@link ConnectionPool} mit
+ * {@link LoopbackConnection LoopbackConnections}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectionPoolTest {
+
+	/**
+	 * Verbindung, die Verbindungsaufbauten zählt und beim Aufbauen und Trennen
+	 * wartet
+	 */
+	private static class SlowConnection extends LoopbackConnection {
+
+		/**
+		 * Gemeinsamer Zähler aller Kopien
+		 */
+		final int[] dials;
+
+		final int delay;
+
+		SlowConnection( int[] dials, int delay ) {
+			super("pool");
+			this.dials = dials;
+			this.delay = delay;
+		}
+
+		@Override
+		public void connect( String identifier ) {
+			synchronized( this.dials ) {
+				this.dials[0]++;
+			}
+			pause(this.delay);
+			super.connect(identifier);
+		}
+
+		@Override
+		public void disconnect() {
+			pause(this.delay);
+			super.disconnect();
+		}
+
+		@Override
+		public RemoteConnection clone() {
+			return new SlowConnection(this.dials, this.delay);
+		}
+	}
+
+
+	private static int nextPeer = 1;
+
+	private final int[] dials = new int[1];
+
+	private ConnectionPool pool;
+
+	@After
+	public void close() {
+		if( this.pool != null ) {
+			this.pool.close();
+		}
+	}
+
+	private static void pause( int millis ) {
+		try {
+			Thread.sleep(millis);
+		} catch( InterruptedException ex ) {
+		}
+	}
+
+	/**
+	 * Wartet in einem eigenen Thread auf eine Verbindung.
+	 *
+	 * @return Der Name der wartenden Seite
+	 */
+	private static String listen() {
+		final LoopbackConnection peer = new LoopbackConnection("peer"
+				+ (nextPeer++));
+		Thread t = new Thread() {
+			public void run() {
+				peer.connect(2000);
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return peer.getName();
+	}
+
+	private RemoteConnection acquire( String identifier ) throws Exception {
+		// Die wartende Seite meldet sich erst im Thread an
+		for( int i = 0; i < 100; i++ ) {
+			try {
+				return this.pool.acquire(identifier);
+			} catch( ComException ex ) {
+				if( !"Connection failed".equals(ex.getMessage()) ) {
+					throw ex;
+				}
+				Thread.sleep(10);
+			}
+		}
+		throw new ComException("Connection failed", ComException.CONN);
+	}
+
+	@Test
+	public void releasedConnectionsAreReused() throws Exception {
+		this.pool = new ConnectionPool(new SlowConnection(this.dials, 0), 2,
+				0);
+		String peer = listen();
+		RemoteConnection c = this.acquire(peer);
+		int dialed = this.dials[0];
+		this.pool.release(c);
+
+		assertSame(c, this.pool.acquire(peer));
+		assertEquals(dialed, this.dials[0]);
+		assertEquals(1, this.pool.size());
+	}
+
+	@Test
+	public void failedConnectKeepsIdleConnection() throws Exception {
+		this.pool = new ConnectionPool(new SlowConnection(this.dials, 0), 1,
+				0);
+		RemoteConnection c = this.acquire(listen());
+		this.pool.release(c);
+
+		try {
+			this.pool.acquire("nowhere");
+			fail("Connection should fail");
+		} catch( ComException ex ) {
+			assertEquals(ComException.CONN, ex.getType());
+		}
+		assertEquals(1, this.pool.size());
+		assertTrue(c.isConnected());
+
+		// Erst ein erfolgreicher Aufbau verdrängt die freie Verbindung
+		this.acquire(listen());
+		assertEquals(1, this.pool.size());
+		assertTrue(!c.isConnected());
+	}
+
+	@Test
+	public void concurrentAcquireDialsOnce() throws Exception {
+		this.pool = new ConnectionPool(new SlowConnection(this.dials, 200), 4,
+				0);
+		final ComException[] failures = new ComException[2];
+		Thread[] threads = new Thread[failures.length];
+		for( int i = 0; i < threads.length; i++ ) {
+			final int n = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						ConnectionPoolTest.this.pool.acquire("nowhere");
+					} catch( ComException ex ) {
+						failures[n] = ex;
+					}
+				}
+			};
+			threads[i].start();
+			Thread.sleep(50);
+		}
+		for( int i = 0; i < threads.length; i++ ) {
+			threads[i].join(2000);
+			assertEquals("Connection failed", failures[i].getMessage());
+		}
+		assertEquals(1, this.dials[0]);
+	}
+
+	@Test
+	public void evictionDoesNotBlockThePool() throws Exception {
+		// Trennen dauert 500 ms
+		this.pool = new ConnectionPool(new SlowConnection(this.dials, 500), 2,
+				50);
+		RemoteConnection c = this.acquire(listen());
+		this.pool.release(c);
+		Thread.sleep(100);
+
+		Thread t = new Thread() {
+			public void run() {
+				ConnectionPoolTest.this.pool.size();
+			}
+		};
+		t.start();
+		Thread.sleep(50);
+
+		long start = System.currentTimeMillis();
+		assertEquals(0, this.pool.size());
+		assertTrue(System.currentTimeMillis() - start < 200);
+
+		t.join(2000);
+		assertTrue(!c.isConnected());
+	}
+
+}
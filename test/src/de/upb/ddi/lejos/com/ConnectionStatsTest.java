@@ -0,0 +1,149 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für die Zähler der {@link ConnectionStats} über eine
+ * {@link LoopbackConnection} und die Klassen des {@link LatencyHistogram}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ConnectionStatsTest {
+
+	private Loopback loop;
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+	}
+
+	@After
+	public void disconnect() {
+		this.loop.close();
+	}
+
+	@Test
+	public void bytesAndFlushesAreCounted() throws Exception {
+		ConnectionStats sent = this.loop.client.getStats();
+		ConnectionStats received = this.loop.server.getStats();
+		sent.reset();
+		received.reset();
+
+		this.loop.client.sendInt(1);
+		this.loop.client.sendLong(2);
+		this.loop.client.beginBatch();
+		this.loop.client.sendByte((byte) 3);
+		this.loop.client.sendByte((byte) 4);
+		this.loop.client.endBatch();
+
+		assertEquals(1, this.loop.server.receiveInt());
+		assertEquals(2, this.loop.server.receiveLong());
+		assertEquals(3, this.loop.server.receiveByte());
+		assertEquals(4, this.loop.server.receiveByte());
+
+		assertEquals(4, sent.getMessagesSent());
+		assertEquals(14, sent.getBytesSent());
+		// Ein Leervorgang je Nachricht, einer für den Stapel
+		assertEquals(3, sent.getFlushes());
+		assertEquals(4, received.getMessagesReceived());
+		assertEquals(14, received.getBytesReceived());
+		assertEquals(4, sent.getSendLatency().getCount());
+		assertEquals(4, received.getReceiveLatency().getCount());
+
+		sent.reset();
+		assertEquals(0, sent.getBytesSent());
+		assertEquals(0, sent.getSendLatency().getCount());
+	}
+
+	@Test
+	public void failuresAreCountedByType() throws Exception {
+		ConnectionStats stats = this.loop.server.getStats();
+		stats.reset();
+
+		this.loop.client.disconnect();
+		try {
+			this.loop.server.receiveInt();
+			fail("Stream should be closed");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+		assertEquals(1, stats.getFailures(ComException.RECV));
+
+		this.loop.server.disconnect();
+		try {
+			this.loop.server.sendInt(1);
+			fail("Not connected");
+		} catch( ComException ex ) {
+			assertEquals(ComException.CONN, ex.getType());
+		}
+		assertEquals(1, stats.getFailures(ComException.CONN));
+		assertEquals(0, stats.getFailures(ComException.SEND));
+		assertEquals(0, stats.getFailures(-1));
+	}
+
+	@Test
+	public void concurrentUpdatesAreNotLost() throws Exception {
+		final ConnectionStats stats = new ConnectionStats();
+		Thread[] threads = new Thread[4];
+		for( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread() {
+				public void run() {
+					for( int k = 0; k < 20000; k++ ) {
+						stats.addBytesSent(3);
+						stats.addFlush();
+						stats.recordSend(System.nanoTime());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for( int i = 0; i < threads.length; i++ ) {
+			threads[i].join();
+		}
+
+		assertEquals(4 * 20000 * 3, stats.getBytesSent());
+		assertEquals(4 * 20000, stats.getFlushes());
+		assertEquals(4 * 20000, stats.getMessagesSent());
+		assertEquals(4 * 20000, stats.getSendLatency().getCount());
+	}
+
+	@Test
+	public void timesFallIntoTheirBuckets() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(0);
+		h.record(1999);
+		h.record(2000);
+		h.record(3999);
+		h.record(4000);
+		h.record(1000000000000L);
+
+		// Klasse i: unter 2^(i+1) Mikrosekunden
+		assertEquals(2, h.getBucketCount(0));
+		assertEquals(2, h.getBucketCount(1));
+		assertEquals(1, h.getBucketCount(2));
+		assertEquals(1, h.getBucketCount(LatencyHistogram.BUCKETS - 1));
+		assertEquals(6, h.getCount());
+		assertEquals(1000000000, h.getMax());
+		assertEquals(2, LatencyHistogram.getBucketLimit(0));
+		assertEquals(8, LatencyHistogram.getBucketLimit(2));
+		assertEquals(Long.MAX_VALUE,
+				LatencyHistogram.getBucketLimit(LatencyHistogram.BUCKETS - 1));
+
+		assertEquals(2, h.getPercentile(30));
+		assertEquals(4, h.getPercentile(60));
+		assertTrue(h.getPercentile(100) == h.getMax());
+
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMean());
+	}
+
+}
@@ -0,0 +1,220 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für die Verwaltung der Credits im {@link CreditChannel} über eine
+ * {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class CreditChannelTest {
+
+	/**
+	 * Länge der Warteschlange des Empfängers
+	 */
+	private static final int WINDOW = 4;
+
+
+	private Loopback loop;
+
+	private CreditChannel sender, receiver;
+
+	@Before
+	public void connect() throws Exception {
+		this.loop = new Loopback();
+		this.sender = new CreditChannel(new MessageChannel(this.loop.client),
+				2, 128);
+		this.receiver = new CreditChannel(
+				new MessageChannel(this.loop.server), WINDOW, 128);
+		this.sender.start();
+		this.receiver.start();
+		this.awaitCredits(WINDOW);
+	}
+
+	@After
+	public void disconnect() {
+		this.sender.close();
+		this.receiver.close();
+		this.loop.close();
+	}
+
+	/**
+	 * Wartet, bis der Sender die erwartete Anzahl Credits hat.
+	 *
+	 * @param n
+	 * @throws InterruptedException
+	 */
+	private void awaitCredits( int n ) throws InterruptedException {
+		long end = System.currentTimeMillis() + 2000;
+		while( this.sender.getCredits() != n
+				&& System.currentTimeMillis() < end ) {
+			Thread.sleep(2);
+		}
+		assertEquals(n, this.sender.getCredits());
+	}
+
+	/**
+	 * Wartet, bis der Empfänger die erwartete Anzahl Frames gepuffert hat.
+	 *
+	 * @param n
+	 * @throws InterruptedException
+	 */
+	private void awaitAvailable( int n ) throws InterruptedException {
+		long end = System.currentTimeMillis() + 2000;
+		while( this.receiver.available() != n
+				&& System.currentTimeMillis() < end ) {
+			Thread.sleep(2);
+		}
+		assertEquals(n, this.receiver.available());
+	}
+
+	private static Frame frame( int value ) {
+		Frame f = new Frame(16);
+		f.reset(1);
+		f.putInt(value);
+		return f;
+	}
+
+	@Test
+	public void windowLimitsUnreceivedFrames() throws Exception {
+		for( int i = 0; i < WINDOW; i++ ) {
+			assertTrue(this.sender.trySend(frame(i)));
+		}
+		assertEquals(0, this.sender.getCredits());
+		assertFalse(this.sender.trySend(frame(WINDOW)));
+		assertEquals(1, this.sender.getStalls());
+
+		this.awaitAvailable(WINDOW);
+		assertEquals(0, this.receiver.getDropped());
+	}
+
+	@Test
+	public void creditsReturnAfterHalfTheWindow() throws Exception {
+		for( int i = 0; i < WINDOW; i++ ) {
+			this.sender.send(frame(i));
+		}
+		this.awaitAvailable(WINDOW);
+
+		Frame f = new Frame(16);
+		this.receiver.receive(f);
+		assertEquals(0, f.getInt());
+		// Ein einzelner freier Platz wird noch nicht gemeldet
+		Thread.sleep(50);
+		assertEquals(0, this.sender.getCredits());
+
+		this.receiver.receive(f);
+		assertEquals(1, f.getInt());
+		this.awaitCredits(WINDOW / 2);
+	}
+
+	@Test
+	public void timedSendFailsWithoutCredits() throws Exception {
+		for( int i = 0; i < WINDOW; i++ ) {
+			this.sender.send(frame(i));
+		}
+		try {
+			this.sender.send(frame(WINDOW), 50);
+			fail("No credits left");
+		} catch( ComException ex ) {
+			assertEquals(ComException.TIMEOUT, ex.getType());
+		}
+	}
+
+	@Test
+	public void blockedSenderResumesWhenReceiverCatchesUp() throws Exception {
+		final int frames = 50;
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for( int i = 0; i < frames; i++ ) {
+						CreditChannelTest.this.sender.send(frame(i));
+					}
+				} catch( ComException ex ) {
+					// Zeigt sich beim Empfang als fehlender Frame
+				}
+			}
+		};
+		t.start();
+
+		Frame f = new Frame(16);
+		for( int i = 0; i < frames; i++ ) {
+			this.receiver.receive(f, 2000);
+			assertEquals(i, f.getInt());
+			assertTrue(this.receiver.available() <= WINDOW);
+		}
+		t.join();
+		assertEquals(0, this.receiver.getDropped());
+		assertTrue(this.sender.getStalls() > 0);
+	}
+
+	@Test
+	public void tooLargeFrameReturnsItsCredit() throws Exception {
+		Frame big = new Frame(256);
+		big.reset(1);
+		for( int i = 0; i < 200; i++ ) {
+			big.putByte(i);
+		}
+		this.sender.send(big);
+		for( int i = 0; i < WINDOW / 2 - 1; i++ ) {
+			this.sender.send(frame(i));
+		}
+
+		// Der übersprungene und der abgeholte Frame ergeben zusammen ein
+		// halbes Fenster freier Plätze
+		Frame f = new Frame(16);
+		this.receiver.receive(f);
+		this.awaitCredits(WINDOW);
+		assertEquals(1, this.receiver.getDropped());
+	}
+
+	@Test
+	public void skippedFramesReturnCreditsToAWaitingReceiver()
+			throws Exception {
+		final Frame f = new Frame(16);
+		final int[] value = { -1 };
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					CreditChannelTest.this.receiver.receive(f, 2000);
+					value[0] = f.getInt();
+				} catch( ComException ex ) {
+				}
+			}
+		};
+		reader.start();
+
+		// Das ganze Fenster wird übersprungen
+		Frame big = new Frame(256);
+		big.reset(1);
+		for( int i = 0; i < 200; i++ ) {
+			big.putByte(i);
+		}
+		for( int i = 0; i < WINDOW; i++ ) {
+			this.sender.send(big);
+		}
+
+		// Der wartende Empfänger meldet die Credits
+		this.sender.send(frame(7), 1000);
+		reader.join(2000);
+		assertEquals(7, value[0]);
+		assertEquals(WINDOW, this.receiver.getDropped());
+	}
+
+	@Test(expected = ComException.class)
+	public void reservedTypesAreRejected() throws Exception {
+		Frame f = new Frame(16);
+		f.reset(MessageChannel.TYPE_CREDIT);
+		this.sender.send(f);
+	}
+
+}
@@ -0,0 +1,81 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+/**
+ * Tests für Schreiben und Lesen von Werten in einem {@link Frame}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class FrameTest {
+
+	/**
+	 * Erzeugt einen Frame, dessen Inhalt aus den angegebenen Bytes besteht.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	private static Frame of( int... bytes ) {
+		Frame f = new Frame(bytes.length);
+		f.reset(1);
+		for( int i = 0; i < bytes.length; i++ ) {
+			f.putByte(bytes[i]);
+		}
+		return f;
+	}
+
+	@Test
+	public void valuesRoundTrip() {
+		Frame f = new Frame();
+		f.reset(1);
+		f.putInt(Integer.MIN_VALUE);
+		f.putLong(Long.MAX_VALUE);
+		f.putVarInt(-2);
+		f.putString("");
+		f.putString("aä€");
+		f.putByte(7);
+
+		f.rewind();
+		assertEquals(Integer.MIN_VALUE, f.getInt());
+		assertEquals(Long.MAX_VALUE, f.getLong());
+		assertEquals(-2, f.getVarInt());
+		assertEquals("", f.getString());
+		assertEquals("aä€", f.getString());
+		assertEquals(7, f.getByte());
+		assertEquals(0, f.remaining());
+	}
+
+	@Test
+	public void malformedStringsStayWithinTheirLength() {
+		Frame[] invalid = {
+				// Abgeschnittene Folgen mit drei und zwei Bytes
+				of(2, 0xE2, 0x82, 9), of(1, 0xC3, 9),
+				// Folgebyte ohne Startbyte, fehlendes Folgebyte
+				of(1, 0x82, 9), of(2, 0xC3, 'a', 9),
+				// Zeichen mit vier Bytes werden nicht geschrieben
+				of(4, 0xF0, 0x9F, 0x98, 0x80, 9),
+				// Länge über das Ende des Frames hinaus
+				of(3, 'a', 'b') };
+
+		for( int i = 0; i < invalid.length; i++ ) {
+			Frame f = invalid[i];
+			StringBuilder sb = new StringBuilder("ok");
+			try {
+				f.getString(sb);
+				fail("Malformed string " + i);
+			} catch( IndexOutOfBoundsException ex ) {
+				assertEquals("ok", sb.toString());
+			}
+			if( i < invalid.length - 1 ) {
+				// Der Frame steht hinter dem String
+				assertEquals(9, f.getByte());
+			}
+		}
+	}
+
+}
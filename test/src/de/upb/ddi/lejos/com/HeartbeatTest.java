@@ -0,0 +1,154 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für Umlaufzeit, Erkennung einer toten Gegenseite und das Beantworten
+ * von Pings durch den {@link MessageChannel} über eine
+ * {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class HeartbeatTest {
+
+	private static final int TYPE_DATA = 1;
+
+
+	private Loopback loop;
+
+	private MessageChannel client, server;
+
+	/**
+	 * Fehler der Lese-Threads
+	 */
+	private volatile ComException clientFailure;
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+		this.client = new MessageChannel(this.loop.client);
+		this.server = new MessageChannel(this.loop.server);
+	}
+
+	@After
+	public void disconnect() {
+		this.client.stopHeartbeat();
+		this.loop.close();
+	}
+
+	/**
+	 * Liest den Kanal in einem eigenen Thread, bis die Verbindung endet.
+	 *
+	 * @param channel
+	 * @return Der Lese-Thread
+	 */
+	private Thread read( final MessageChannel channel ) {
+		Thread t = new Thread() {
+			public void run() {
+				Frame f = new Frame(64);
+				try {
+					while( true ) {
+						channel.receive(f);
+					}
+				} catch( ComException ex ) {
+					if( channel == HeartbeatTest.this.client ) {
+						HeartbeatTest.this.clientFailure = ex;
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void roundTripTimeIsMeasured() throws Exception {
+		this.read(this.server);
+		this.read(this.client);
+		Heartbeat hb = this.client.startHeartbeat(20, 1000);
+
+		long end = System.currentTimeMillis() + 2000;
+		while( hb.getSamples() < 5 && System.currentTimeMillis() < end ) {
+			Thread.sleep(10);
+		}
+		assertTrue(hb.getSamples() >= 5);
+		assertTrue(hb.getLastRtt() >= 0);
+		assertTrue(hb.getRtt() < 1000000);
+		assertTrue(hb.getTimeout() >= 1);
+		assertTrue(hb.isAlive());
+		assertTrue(hb.getIdleTime() < 1000);
+	}
+
+	@Test
+	public void deadPeerIsDisconnected() throws Exception {
+		// Die Gegenseite liest nicht und beantwortet daher keine Pings
+		Thread reader = this.read(this.client);
+		Heartbeat hb = this.client.startHeartbeat(20, 150);
+
+		reader.join(2000);
+		assertTrue(!reader.isAlive());
+		assertTrue(!hb.isAlive());
+		assertTrue(!this.loop.client.isConnected());
+		assertTrue(this.clientFailure != null);
+		assertEquals(0, hb.getSamples());
+	}
+
+	@Test
+	public void pingIsAnsweredWithoutBlockingTheReceiver() throws Exception {
+		// Leitung zum Client fast füllen, ohne dass ein Sender wartet; für
+		// einen Pong ist danach kein Platz mehr. Als ein Stück, da jedes
+		// Teilstück einen weiteren Header kostet
+		this.server.setFragmentSize(MessageChannel.MAX_PAYLOAD);
+		Frame fill = new Frame(1010);
+		fill.reset(TYPE_DATA);
+		for( int i = 0; i < 1010; i++ ) {
+			fill.putByte(i);
+		}
+		this.server.send(fill);
+
+		final Frame received = new Frame(64);
+		final int[] type = { -1 };
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					type[0] = HeartbeatTest.this.server.receive(received);
+				} catch( ComException ex ) {
+				}
+			}
+		};
+		reader.start();
+
+		this.client.ping();
+		Frame data = new Frame(4);
+		data.reset(TYPE_DATA + 1);
+		data.putInt(7);
+		this.client.send(data);
+
+		// Der Empfangs-Thread liest trotz ausstehendem Pong weiter
+		reader.join(1000);
+		assertEquals(TYPE_DATA + 1, type[0]);
+		assertEquals(7, received.getInt());
+
+		// Der Pong folgt, sobald der Client liest
+		Heartbeat hb = this.client.startHeartbeat(10000, 10000);
+		Frame f = new Frame(1024);
+		assertEquals(TYPE_DATA, this.client.receive(f));
+		assertEquals(1010, f.getLength());
+		long end = System.currentTimeMillis() + 1000;
+		Thread ponged = this.read(this.client);
+		while( hb.getSamples() == 0 && System.currentTimeMillis() < end ) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, hb.getSamples());
+		assertTrue(ponged.isAlive());
+	}
+
+}
@@ -0,0 +1,284 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für das Zerlegen des Datenstroms in Frames durch einen
+ * {@link HubPeer}. Die Bytes werden direkt übergeben, ohne Socket; Antworten
+ * bleiben im Sendepuffer, da die Verbindung als noch im Aufbau gilt.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class HubPeerTest {
+
+	/**
+	 * Größe eingehender Frames
+	 */
+	private static final int CAPACITY = 256;
+
+
+	private HubPeer peer;
+
+	/**
+	 * Gemeldete Frames als Kopien
+	 */
+	private final ArrayList<Frame> received = new ArrayList<Frame>();
+
+	private final HubListener listener = new HubListener() {
+		public void connected( HubPeer peer ) {
+		}
+
+		public void received( HubPeer peer, Frame frame ) {
+			Frame copy = new Frame(CAPACITY);
+			copy.copyFrom(frame);
+			HubPeerTest.this.received.add(copy);
+		}
+
+		public void disconnected( HubPeer peer, ComException ex ) {
+		}
+	};
+
+	@Before
+	public void createPeer() throws ComException {
+		ConnectionHub hub = new ConnectionHub(this.listener, CAPACITY, 0);
+		this.peer = new HubPeer(hub, null, "test", CAPACITY,
+				ConnectionHub.DEFAULT_MAX_PENDING, true);
+	}
+
+	/**
+	 * Schreibt einen Frame im Format des {@link MessageChannel}.
+	 *
+	 * @param out
+	 * @param type
+	 * @param flags
+	 * @param channel Virtueller Kanal oder <code>0</code>
+	 * @param data
+	 * @param len
+	 */
+	private static void frame( ByteArrayOutputStream out, int type,
+			int flags, int channel, byte[] data, int len ) {
+		int wireLength = len;
+		if( channel != 0 ) {
+			flags |= MessageChannel.FLAG_CHANNEL;
+			wireLength++;
+		}
+		out.write(type);
+		out.write(flags);
+		out.write(wireLength >>> 8);
+		out.write(wireLength);
+		if( channel != 0 ) {
+			out.write(channel);
+		}
+		out.write(data, 0, len);
+	}
+
+	private static byte[] pattern( int length ) {
+		byte[] data = new byte[length];
+		for( int i = 0; i < length; i++ ) {
+			data[i] = (byte) (i / 5);
+		}
+		return data;
+	}
+
+	/**
+	 * Übergibt die Bytes in Stücken der angegebenen Größe.
+	 *
+	 * @param bytes
+	 * @param chunk
+	 */
+	private void feed( byte[] bytes, int chunk ) {
+		for( int off = 0; off < bytes.length; off += chunk ) {
+			this.peer.receive(ByteBuffer.wrap(bytes, off, Math.min(chunk,
+					bytes.length - off)), this.listener);
+		}
+	}
+
+	private void assertFrame( int index, int type, int channel, byte[] data,
+			int len ) {
+		Frame f = this.received.get(index);
+		assertEquals(type, f.getType());
+		assertEquals(channel, f.getChannel());
+		assertEquals(len, f.getLength());
+		for( int i = 0; i < len; i++ ) {
+			if( f.getData()[i] != data[i] ) {
+				fail("Frame " + index + " differs at " + i);
+			}
+		}
+	}
+
+	@Test
+	public void framesAreSplitAtAnyChunkSize() {
+		byte[] data = pattern(200);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, 1, 0, 0, data, 200);
+		frame(out, 2, 0, 0, data, 0);
+		frame(out, 3, 0, 9, data, 50);
+		frame(out, 4, 0, 9, data, 0);
+		byte[] bytes = out.toByteArray();
+
+		for( int chunk = 1; chunk <= bytes.length; chunk += 7 ) {
+			this.received.clear();
+			this.feed(bytes, chunk);
+
+			assertEquals(4, this.received.size());
+			this.assertFrame(0, 1, 0, data, 200);
+			this.assertFrame(1, 2, 0, data, 0);
+			this.assertFrame(2, 3, 9, data, 50);
+			this.assertFrame(3, 4, 9, data, 0);
+		}
+	}
+
+	@Test
+	public void compressedFramesAreInflated() {
+		byte[] data = pattern(200), packed = new byte[200];
+		int n = new Lzss().compress(data, 0, 200, packed, 0, 199);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, 5, MessageChannel.FLAG_COMPRESSED, 3, packed, n);
+		this.feed(out.toByteArray(), 16);
+
+		assertEquals(1, this.received.size());
+		this.assertFrame(0, 5, 3, data, 200);
+		assertEquals(0, this.received.get(0).getFlags()
+				& MessageChannel.FLAG_COMPRESSED);
+	}
+
+	@Test
+	public void fragmentsAreReassembled() {
+		byte[] data = pattern(250), part = new byte[100];
+		int fragment = MessageChannel.FLAG_FRAGMENT;
+		int more = fragment | MessageChannel.FLAG_MORE;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, 6, more, 0, data, 100);
+		// Teilstücke können komprimiert sein
+		System.arraycopy(data, 100, part, 0, 100);
+		byte[] packed = new byte[100];
+		int n = new Lzss().compress(part, 0, 100, packed, 0, 99);
+		frame(out, 6, more | MessageChannel.FLAG_COMPRESSED, 0, packed, n);
+		// Ein anderer Frame zwischen den Teilstücken
+		frame(out, 7, 0, 0, data, 4);
+		System.arraycopy(data, 200, part, 0, 50);
+		frame(out, 6, fragment, 0, part, 50);
+		this.feed(out.toByteArray(), 33);
+
+		assertEquals(2, this.received.size());
+		this.assertFrame(0, 7, 0, data, 4);
+		this.assertFrame(1, 6, 0, data, 250);
+		assertEquals(0, this.received.get(1).getFlags()
+				& (MessageChannel.FLAG_FRAGMENT | MessageChannel.FLAG_MORE));
+	}
+
+	@Test
+	public void oversizedFramesAreSkipped() {
+		byte[] data = pattern(CAPACITY + 100);
+		int more = MessageChannel.FLAG_FRAGMENT | MessageChannel.FLAG_MORE;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, 1, 0, 0, data, CAPACITY + 1);
+		// Zusammen zu groß
+		frame(out, 2, more, 0, data, 200);
+		frame(out, 2, MessageChannel.FLAG_FRAGMENT, 0, data, 100);
+		frame(out, 3, 0, 0, data, 10);
+		this.feed(out.toByteArray(), 64);
+
+		assertEquals(1, this.received.size());
+		this.assertFrame(0, 3, 0, data, 10);
+		assertEquals(2, this.peer.getStats().getDropped());
+	}
+
+	@Test
+	public void pingIsAnsweredAndNotDelivered() {
+		byte[] time = new byte[8];
+		Encoding.putLong(time, 0, 123456789L);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, MessageChannel.TYPE_PING, 0, 0, time, 8);
+		frame(out, MessageChannel.TYPE_PONG, 0, 0, time, 8);
+		this.feed(out.toByteArray(), 5);
+
+		assertEquals(0, this.received.size());
+		assertEquals(MessageChannel.HEADER_SIZE + 8, this.peer.getPending());
+	}
+
+	@Test
+	public void sendRejectsFramesAboveMaxPayload() throws Exception {
+		Frame f = new Frame(MessageChannel.MAX_PAYLOAD);
+		f.reset(1);
+		f.putBytes(new byte[MessageChannel.MAX_PAYLOAD], 0,
+				MessageChannel.MAX_PAYLOAD);
+
+		// Die Kanalnummer zählt zur Länge
+		f.setChannel(3);
+		try {
+			this.peer.send(f);
+			fail("Frame too large");
+		} catch( ComException ex ) {
+			assertEquals(ComException.SEND, ex.getType());
+		}
+		assertEquals(0, this.peer.getPending());
+
+		f.setChannel(0);
+		this.peer.send(f);
+		assertEquals(MessageChannel.HEADER_SIZE + MessageChannel.MAX_PAYLOAD,
+				this.peer.getPending());
+	}
+
+	@Test
+	public void messageChannelOutputIsParsed() throws Exception {
+		Loopback loop = new Loopback();
+		try {
+			MessageChannel channel = new MessageChannel(loop.client);
+			channel
+					.setCompression(MessageChannel.DEFAULT_COMPRESSION_THRESHOLD);
+			channel.setFragmentSize(64);
+
+			Random random = new Random(5);
+			byte[] noise = new byte[CAPACITY];
+			random.nextBytes(noise);
+			byte[] data = pattern(CAPACITY);
+
+			Frame f = new Frame(CAPACITY);
+			f.reset(1);
+			f.putBytes(data, 0, 200);
+			channel.send(f);
+			f.reset(2);
+			f.setChannel(4);
+			f.putBytes(noise, 0, 200);
+			channel.send(f, MessageChannel.PRIORITY_BULK);
+			f.reset(3);
+			f.setChannel(0);
+			f.putBytes(data, 0, CAPACITY);
+			channel.send(f, MessageChannel.PRIORITY_BULK);
+
+			byte[] bytes = new byte[(int) loop.client.getStats()
+					.getBytesSent()];
+			loop.server.receiveBytes(bytes, 0, bytes.length);
+			for( int off = 0; off < bytes.length; ) {
+				int n = Math.min(1 + random.nextInt(40), bytes.length - off);
+				this.peer.receive(ByteBuffer.wrap(bytes, off, n),
+						this.listener);
+				off += n;
+			}
+
+			assertEquals(3, this.received.size());
+			this.assertFrame(0, 1, 0, data, 200);
+			this.assertFrame(1, 2, 4, noise, 200);
+			this.assertFrame(2, 3, 0, data, CAPACITY);
+		} finally {
+			loop.close();
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package de.upb.ddi.lejos.com;
+
+
+/**
+ * Baut für die Tests ein verbundenes Paar von {@link LoopbackConnection
+ * LoopbackConnections} auf.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+final class Loopback {
+
+	/**
+	 * Maximale Wartezeit für den Verbindungsaufbau in Millisekunden
+	 */
+	private static final int CONNECT_TIMEOUT = 2000;
+
+
+	/**
+	 * Die wartende Seite
+	 */
+	final LoopbackConnection server;
+
+	/**
+	 * Die verbindende Seite
+	 */
+	final LoopbackConnection client;
+
+	/**
+	 * Verbindet zwei neue Instanzen miteinander.
+	 *
+	 * @throws InterruptedException
+	 */
+	Loopback() throws InterruptedException {
+		this.server = new LoopbackConnection("server");
+		this.client = new LoopbackConnection("client");
+
+		Thread t = new Thread() {
+			public void run() {
+				Loopback.this.server.connect(CONNECT_TIMEOUT);
+			}
+		};
+		t.start();
+
+		// Die wartende Seite meldet sich erst im Thread an
+		long end = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while( !this.client.isConnected()
+				&& System.currentTimeMillis() < end ) {
+			this.client.connect(this.server.getAddress());
+			if( !this.client.isConnected() ) {
+				Thread.sleep(10);
+			}
+		}
+		t.join(CONNECT_TIMEOUT);
+		if( !this.server.isConnected() || !this.client.isConnected() ) {
+			throw new IllegalStateException("Loopback not connected");
+		}
+	}
+
+	/**
+	 * Trennt beide Seiten.
+	 */
+	void close() {
+		this.client.disconnect();
+		this.server.disconnect();
+	}
+
+}
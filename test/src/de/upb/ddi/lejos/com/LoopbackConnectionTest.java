@@ -0,0 +1,198 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+
+/**
+ * Tests für Verbindungsaufbau, Datenleitungen und Trennen der
+ * {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class LoopbackConnectionTest {
+
+	/**
+	 * Wartet in einem eigenen Thread auf eine Verbindung.
+	 *
+	 * @param conn
+	 * @param timeout
+	 * @return Der wartende Thread
+	 */
+	private static Thread listen( final LoopbackConnection conn,
+			final int timeout ) {
+		Thread t = new Thread() {
+			public void run() {
+				conn.connect(timeout);
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void connectsByName() throws Exception {
+		LoopbackConnection server = new LoopbackConnection("byname");
+		LoopbackConnection client = new LoopbackConnection("client");
+
+		Thread t = listen(server, 2000);
+		while( !client.isConnected() ) {
+			client.connect("byname");
+			Thread.sleep(5);
+		}
+		t.join();
+
+		assertTrue(server.isConnected());
+		assertEquals(server.getAddress(), client.getRemoteAddress());
+		assertEquals(client.getAddress(), server.getRemoteAddress());
+
+		client.disconnect();
+		server.disconnect();
+		assertNull(client.getRemoteAddress());
+	}
+
+	@Test
+	public void unknownPeerAndTimeoutFail() {
+		LoopbackConnection conn = new LoopbackConnection("alone");
+		conn.connect("nobody");
+		assertTrue(!conn.isConnected());
+
+		long start = System.currentTimeMillis();
+		conn.connect(50);
+		assertTrue(!conn.isConnected());
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertEquals(2, conn.getConnectionAttempts());
+	}
+
+	@Test
+	public void dataLargerThanThePipeArrives() throws Exception {
+		final Loopback loop = new Loopback();
+		final byte[] data = new byte[10000];
+		for( int i = 0; i < data.length; i++ ) {
+			data[i] = (byte) (i * 31);
+		}
+
+		// Der Schreiber blockiert, bis der Leser Platz schafft
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					loop.client.sendBytes(data, 0, data.length);
+				} catch( ComException ex ) {
+					/* Fällt beim Vergleich auf */
+				}
+			}
+		};
+		t.start();
+
+		byte[] received = new byte[data.length];
+		loop.server.receiveBytes(received, 0, received.length);
+		t.join();
+		assertArrayEquals(data, received);
+		loop.close();
+	}
+
+	@Test
+	public void disconnectEndsTheRemoteStream() throws Exception {
+		Loopback loop = new Loopback();
+		loop.client.sendInt(42);
+		loop.client.disconnect();
+
+		// Bereits gesendete Daten gehen nicht verloren
+		assertEquals(42, loop.server.receiveInt());
+		try {
+			loop.server.receiveByte();
+			fail("Stream should be closed");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+		loop.server.disconnect();
+
+		try {
+			loop.client.sendInt(1);
+			fail("Not connected");
+		} catch( ComException ex ) {
+			assertEquals(ComException.CONN, ex.getType());
+		}
+	}
+
+	@Test
+	public void mutualDisconnectDoesNotWaitForTheTimeout() throws Exception {
+		for( int round = 0; round < 3; round++ ) {
+			final Loopback loop = new Loopback();
+			final long[] clientTime = new long[1];
+			Thread t = new Thread() {
+				public void run() {
+					long start = System.currentTimeMillis();
+					loop.client.disconnect();
+					clientTime[0] = System.currentTimeMillis() - start;
+				}
+			};
+			t.start();
+
+			long start = System.currentTimeMillis();
+			loop.server.disconnect();
+			long serverTime = System.currentTimeMillis() - start;
+			t.join(1000);
+
+			// Beide Seiten lesen das Ende des Stroms der anderen
+			assertTrue("server took " + serverTime + " ms",
+					serverTime < AbstractConnection.DISCONNECT_TIMEOUT / 2);
+			assertTrue("client took " + clientTime[0] + " ms",
+					clientTime[0] < AbstractConnection.DISCONNECT_TIMEOUT / 2);
+		}
+	}
+
+	@Test
+	public void queuedDrainGetsItsFullTimeout() throws Exception {
+		// Strom, dessen Gegenseite nie schließt: blockiert bis close()
+		final InputStream stalled = new InputStream() {
+			private boolean closed = false;
+
+			public synchronized int read() throws IOException {
+				while( !this.closed ) {
+					try {
+						this.wait();
+					} catch( InterruptedException ex ) {
+						throw new IOException("Interrupted");
+					}
+				}
+				throw new IOException("Stream closed");
+			}
+
+			public synchronized void close() {
+				this.closed = true;
+				this.notifyAll();
+			}
+		};
+		Thread t = new Thread() {
+			public void run() {
+				StreamDrainer.drain(stalled, 200);
+				try {
+					stalled.close();
+				} catch( IOException ex ) {
+				}
+			}
+		};
+		t.start();
+		Thread.sleep(20);
+
+		// Wartet auf den ersten Strom, ohne dabei die eigene Zeit zu verlieren
+		InputStream ended = new InputStream() {
+			public int read() {
+				return -1;
+			}
+		};
+		assertTrue(StreamDrainer.drain(ended, 100));
+		t.join(1000);
+	}
+
+}
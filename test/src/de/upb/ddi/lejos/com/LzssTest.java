@@ -0,0 +1,111 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * Tests für {@link Lzss}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class LzssTest {
+
+	private final Lzss lzss = new Lzss();
+
+	/**
+	 * Komprimiert und entpackt einen Puffer und vergleicht das Ergebnis.
+	 *
+	 * @param src
+	 * @return Länge der komprimierten Daten
+	 */
+	private int roundTrip( byte[] src ) {
+		byte[] packed = new byte[src.length + src.length / 8 + 16];
+		int n = this.lzss.compress(src, 0, src.length, packed, 0,
+				packed.length);
+		assertTrue("compress failed", n >= 0);
+
+		byte[] unpacked = new byte[src.length];
+		assertEquals(src.length, Lzss.decompress(packed, 0, n, unpacked, 0,
+				unpacked.length));
+		assertArrayEquals(src, unpacked);
+		return n;
+	}
+
+	@Test
+	public void emptyInput() {
+		assertEquals(0, this.roundTrip(new byte[0]));
+	}
+
+	@Test
+	public void randomInputs() {
+		Random random = new Random(1);
+		for( int i = 0; i < 500; i++ ) {
+			byte[] src = new byte[random.nextInt(3000)];
+			// Kleine Alphabete erzeugen viele Verweise
+			int alphabet = (i % 3 == 0) ? 256 : 1 + random.nextInt(6);
+			for( int j = 0; j < src.length; j++ ) {
+				src[j] = (byte) random.nextInt(alphabet);
+			}
+			this.roundTrip(src);
+		}
+	}
+
+	@Test
+	public void longRunsAndWindowEdge() {
+		byte[] src = new byte[3 * Lzss.WINDOW_SIZE];
+		for( int i = 0; i < src.length; i++ ) {
+			src[i] = (byte) (i % (Lzss.WINDOW_SIZE + 1));
+		}
+		this.roundTrip(src);
+
+		byte[] zeros = new byte[Lzss.MAX_MATCH * 100];
+		assertTrue(this.roundTrip(zeros) < zeros.length / 8);
+	}
+
+	@Test
+	public void offsetsArePreserved() {
+		byte[] src = "xxabcabcabcabcabcabcyy".getBytes();
+		byte[] packed = new byte[64];
+		int n = this.lzss.compress(src, 2, 18, packed, 5, 59);
+		assertTrue(n > 0 && n < 18);
+
+		byte[] unpacked = new byte[30];
+		assertEquals(18, Lzss.decompress(packed, 5, n, unpacked, 3, 27));
+		assertEquals("abcabcabcabcabcabc", new String(unpacked, 3, 18));
+	}
+
+	@Test
+	public void compressStopsAtLimit() {
+		byte[] src = new byte[256];
+		new Random(2).nextBytes(src);
+		byte[] packed = new byte[src.length];
+		assertEquals(-1, this.lzss.compress(src, 0, src.length, packed, 0,
+				src.length - 1));
+	}
+
+	@Test
+	public void decompressRejectsOverflowAndGarbage() {
+		byte[] src = new byte[200];
+		byte[] packed = new byte[256];
+		int n = this.lzss.compress(src, 0, src.length, packed, 0,
+				packed.length);
+
+		assertEquals(-1, Lzss.decompress(packed, 0, n, new byte[199], 0, 199));
+
+		// Verweis vor den Anfang der Ausgabe
+		byte[] bad = { 0x01, (byte) 0xFF, (byte) 0xF0 };
+		assertEquals(-1, Lzss.decompress(bad, 0, bad.length, new byte[32], 0,
+				32));
+
+		// Abgeschnittener Verweis
+		assertEquals(-1, Lzss.decompress(bad, 0, 2, new byte[32], 0, 32));
+	}
+
+}
@@ -0,0 +1,319 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für Framing, Teilstücke und Kompression des {@link MessageChannel}
+ * über eine {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class MessageChannelTest {
+
+	private Loopback loop;
+
+	private MessageChannel sender, receiver;
+
+	/**
+	 * Fehler des Sende-Threads
+	 */
+	private volatile Exception sendFailure;
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+		this.sender = new MessageChannel(this.loop.client);
+		this.receiver = new MessageChannel(this.loop.server);
+	}
+
+	@After
+	public void disconnect() {
+		this.loop.close();
+	}
+
+	/**
+	 * Verschickt einen Frame in einem eigenen Thread, da größere Frames nicht
+	 * in die Leitung der {@link LoopbackConnection} passen.
+	 *
+	 * @param frame
+	 * @param priority
+	 * @return Der Sende-Thread
+	 */
+	private Thread sendAsync( final Frame frame, final int priority ) {
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					MessageChannelTest.this.sender.send(frame, priority);
+				} catch( ComException ex ) {
+					MessageChannelTest.this.sendFailure = ex;
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	private static Frame pattern( int type, int length ) {
+		Frame f = new Frame(length);
+		f.reset(type);
+		for( int i = 0; i < length; i++ ) {
+			f.putByte(i / 7);
+		}
+		return f;
+	}
+
+	private static void assertContent( Frame expected, Frame actual ) {
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getLength(), actual.getLength());
+		for( int i = 0; i < expected.getLength(); i++ ) {
+			if( expected.getData()[i] != actual.getData()[i] ) {
+				fail("Content differs at " + i);
+			}
+		}
+	}
+
+	@Test
+	public void framesKeepTypeLengthAndOrder() throws Exception {
+		Frame f = new Frame(), r = new Frame();
+		for( int i = 0; i <= 20; i++ ) {
+			f.reset(i);
+			for( int j = 0; j < i; j++ ) {
+				f.putInt(j);
+			}
+			this.sender.send(f);
+		}
+		for( int i = 0; i <= 20; i++ ) {
+			assertEquals(i, this.receiver.receive(r));
+			assertEquals(4 * i, r.getLength());
+			for( int j = 0; j < i; j++ ) {
+				assertEquals(j, r.getInt());
+			}
+		}
+	}
+
+	@Test
+	public void channelNumberIsTransmitted() throws Exception {
+		Frame f = new Frame(), r = new Frame();
+		f.reset(3);
+		f.setChannel(42);
+		f.putInt(7);
+		this.sender.send(f);
+
+		f.reset(4);
+		f.setChannel(0);
+		this.sender.send(f);
+
+		this.receiver.receive(r);
+		assertEquals(42, r.getChannel());
+		assertEquals(4, r.getLength());
+		assertEquals(7, r.getInt());
+		assertEquals(0, r.getFlags() & MessageChannel.FLAG_CHANNEL);
+
+		assertEquals(4, this.receiver.receive(r));
+		assertEquals(0, r.getChannel());
+		assertEquals(0, r.getLength());
+	}
+
+	@Test
+	public void tooLargeFrameIsSkipped() throws Exception {
+		Frame big = pattern(1, 600), small = new Frame(100);
+		Thread t = this.sendAsync(big, MessageChannel.PRIORITY_NORMAL);
+		try {
+			this.receiver.receive(small);
+			fail("Frame should not fit");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+			assertTrue(this.receiver.wasSkipped());
+		}
+		t.join();
+
+		Frame f = new Frame();
+		f.reset(2);
+		f.putInt(99);
+		this.sender.send(f);
+		assertEquals(2, this.receiver.receive(small));
+		assertEquals(99, small.getInt());
+		assertTrue(!this.receiver.wasSkipped());
+	}
+
+	@Test(timeout = 10000)
+	public void emptyReceiveFrameSkipsWithoutHanging() throws Exception {
+		Frame f = pattern(3, 100), empty = new Frame(0);
+		this.sender.send(f);
+		f.reset(4);
+		this.sender.send(f);
+
+		try {
+			this.receiver.receive(empty);
+			fail("Frame should not fit");
+		} catch( ComException ex ) {
+			assertTrue(this.receiver.wasSkipped());
+		}
+		assertEquals(4, this.receiver.receive(empty));
+		assertEquals(0, empty.getLength());
+	}
+
+	@Test
+	public void compressedFramesAreSmallerOnTheWire() throws Exception {
+		this.sender
+				.setCompression(MessageChannel.DEFAULT_COMPRESSION_THRESHOLD);
+		Frame f = pattern(5, 900), r = new Frame(1000);
+
+		long before = this.loop.client.getStats().getBytesSent();
+		this.sender.send(f);
+		long wire = this.loop.client.getStats().getBytesSent() - before;
+
+		this.receiver.receive(r);
+		assertContent(f, r);
+		assertEquals(0, r.getFlags() & MessageChannel.FLAG_COMPRESSED);
+		assertTrue("not compressed: " + wire, wire < 900 / 2);
+	}
+
+	@Test
+	public void incompressibleAndRawFramesAreSentAsIs() throws Exception {
+		this.sender
+				.setCompression(MessageChannel.DEFAULT_COMPRESSION_THRESHOLD);
+		// Ungeteilt, damit nur ein Header hinzukommt
+		this.sender.setFragmentSize(MessageChannel.MAX_PAYLOAD);
+		Frame r = new Frame(1000);
+
+		Frame noise = new Frame(500);
+		noise.reset(6);
+		byte[] bytes = new byte[500];
+		new Random(3).nextBytes(bytes);
+		noise.putBytes(bytes, 0, bytes.length);
+
+		long before = this.loop.client.getStats().getBytesSent();
+		this.sender.send(noise);
+		this.receiver.receive(r);
+		assertContent(noise, r);
+		assertEquals(500 + MessageChannel.HEADER_SIZE, this.loop.client
+				.getStats().getBytesSent() - before);
+
+		Frame raw = pattern(7, 500);
+		raw.setFlags(MessageChannel.FLAG_RAW);
+		before = this.loop.client.getStats().getBytesSent();
+		this.sender.send(raw);
+		this.receiver.receive(r);
+		assertContent(raw, r);
+		assertEquals(500 + MessageChannel.HEADER_SIZE, this.loop.client
+				.getStats().getBytesSent() - before);
+	}
+
+	@Test
+	public void bulkFramesAreFragmentedAndReassembled() throws Exception {
+		this.sender.setFragmentSize(64);
+		Frame f = pattern(8, 3000), r = new Frame(3000);
+		f.setChannel(5);
+
+		int flushes = this.loop.client.getStats().getFlushes();
+		Thread t = this.sendAsync(f, MessageChannel.PRIORITY_BULK);
+		this.receiver.receive(r);
+		t.join();
+
+		assertContent(f, r);
+		assertEquals(5, r.getChannel());
+		assertEquals(0, r.getFlags()
+				& (MessageChannel.FLAG_FRAGMENT | MessageChannel.FLAG_MORE));
+		flushes = this.loop.client.getStats().getFlushes() - flushes;
+		assertTrue("flushes: " + flushes, flushes >= 3000 / 64);
+		assertNull(this.sendFailure);
+	}
+
+	@Test
+	public void compressedFragmentsAreReassembled() throws Exception {
+		this.sender.setFragmentSize(256);
+		this.sender
+				.setCompression(MessageChannel.DEFAULT_COMPRESSION_THRESHOLD);
+		Frame f = pattern(9, 2000), r = new Frame(2000);
+
+		Thread t = this.sendAsync(f, MessageChannel.PRIORITY_BULK);
+		this.receiver.receive(r);
+		t.join();
+		assertContent(f, r);
+	}
+
+	@Test
+	public void oversizedFragmentsKeepTheChannelInSync() throws Exception {
+		this.sender.setFragmentSize(64);
+		Frame f = pattern(10, 1000), small = new Frame(500);
+
+		Thread t = this.sendAsync(f, MessageChannel.PRIORITY_BULK);
+		try {
+			this.receiver.receive(small);
+			fail("Frame should not fit");
+		} catch( ComException ex ) {
+			assertTrue(this.receiver.wasSkipped());
+		}
+		t.join();
+
+		Frame next = pattern(11, 300);
+		this.sender.send(next, MessageChannel.PRIORITY_BULK);
+		this.receiver.receive(small);
+		assertContent(next, small);
+	}
+
+	@Test
+	public void priorityFramesOvertakeBulkTransfer() throws Exception {
+		this.sender.setFragmentSize(16);
+		Frame bulk = pattern(12, 4000);
+		Frame urgent = new Frame();
+		urgent.reset(13);
+		urgent.putInt(1);
+
+		Thread t = this.sendAsync(bulk, MessageChannel.PRIORITY_BULK);
+		// Warten, bis die Leitung voll ist und der Sender blockiert
+		while( this.loop.client.getStats().getBytesSent() < 1000 ) {
+			Thread.sleep(1);
+		}
+		Thread u = this.sendAsync(urgent, MessageChannel.PRIORITY_HIGH);
+		while( u.getState() != Thread.State.WAITING ) {
+			Thread.sleep(1);
+		}
+
+		Frame r = new Frame(4000);
+		assertEquals(13, this.receiver.receive(r));
+		assertEquals(12, this.receiver.receive(r));
+		t.join();
+		u.join();
+		assertContent(bulk, r);
+	}
+
+	@Test(timeout = 10000)
+	public void priorityFramesOvertakeLargeNormalFrame() throws Exception {
+		this.sender.setFragmentSize(16);
+		Frame large = pattern(14, 4000);
+		Frame urgent = new Frame();
+		urgent.reset(15);
+		urgent.putInt(1);
+
+		Thread t = this.sendAsync(large, MessageChannel.PRIORITY_NORMAL);
+		// Warten, bis die Leitung voll ist und der Sender blockiert
+		while( this.loop.client.getStats().getBytesSent() < 1000 ) {
+			Thread.sleep(1);
+		}
+		Thread u = this.sendAsync(urgent, MessageChannel.PRIORITY_HIGH);
+		while( u.getState() != Thread.State.WAITING ) {
+			Thread.sleep(1);
+		}
+
+		Frame r = new Frame(4000);
+		assertEquals(15, this.receiver.receive(r));
+		assertEquals(14, this.receiver.receive(r));
+		t.join();
+		u.join();
+		assertContent(large, r);
+	}
+
+}
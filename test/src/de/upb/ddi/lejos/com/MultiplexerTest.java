@@ -0,0 +1,178 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für Flusskontrolle und verlustbehaftete Kanäle des {@link Multiplexer}
+ * über eine {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class MultiplexerTest {
+
+	private static final int TYPE_DATA = 1;
+
+
+	private Loopback loop;
+
+	private Multiplexer client, server;
+
+	private final Frame frame = new Frame(64);
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+		this.client = new Multiplexer(new MessageChannel(this.loop.client), 64);
+		this.server = new Multiplexer(new MessageChannel(this.loop.server), 64);
+	}
+
+	@After
+	public void disconnect() {
+		this.loop.close();
+	}
+
+	private void send( VirtualChannel vc, int value ) throws ComException {
+		this.frame.reset(TYPE_DATA);
+		this.frame.putInt(value);
+		vc.send(this.frame);
+	}
+
+	/**
+	 * Schickt Frames mit fortlaufenden Werten in einem eigenen Thread.
+	 *
+	 * @param vc
+	 * @param count
+	 * @return Der sendende Thread
+	 */
+	private Thread sendAsync( final VirtualChannel vc, final int count ) {
+		Thread t = new Thread() {
+			public void run() {
+				Frame f = new Frame(64);
+				try {
+					for( int i = 0; i < count; i++ ) {
+						f.reset(TYPE_DATA);
+						f.putInt(i);
+						vc.send(f);
+					}
+				} catch( ComException ex ) {
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void senderWaitsForTheWindow() throws Exception {
+		this.server.start();
+		this.client.start();
+		VirtualChannel in = this.server.open(1);
+		VirtualChannel out = this.client.open(1);
+		assertTrue(in.isBlocking());
+
+		// Mehr Frames als die Warteschlange fasst, ohne abzuholen
+		int total = 5 * Multiplexer.DEFAULT_QUEUE_SIZE;
+		Thread t = this.sendAsync(out, total);
+		Thread.sleep(100);
+		assertTrue(t.isAlive());
+		assertEquals(Multiplexer.DEFAULT_QUEUE_SIZE, in.available());
+		assertEquals(0, out.getCredits());
+
+		Frame f = new Frame(64);
+		for( int i = 0; i < total; i++ ) {
+			assertEquals(TYPE_DATA, in.receive(f, 1000));
+			assertEquals(i, f.getInt());
+		}
+		t.join(1000);
+		assertEquals(0, in.getDropped());
+	}
+
+	@Test
+	public void unreadChannelDoesNotStallOthers() throws Exception {
+		this.server.start();
+		this.client.start();
+		VirtualChannel unread = this.server.open(1);
+		VirtualChannel busy = this.server.open(2);
+
+		// Kanal 1 wird nie abgeholt, sein Sender wartet
+		Thread stalled = this.sendAsync(this.client.open(1), 100);
+		Thread flowing = this.sendAsync(this.client.open(2), 100);
+
+		Frame f = new Frame(64);
+		for( int i = 0; i < 100; i++ ) {
+			assertEquals(TYPE_DATA, busy.receive(f, 1000));
+			assertEquals(i, f.getInt());
+		}
+		flowing.join(1000);
+		assertTrue(!flowing.isAlive());
+		assertTrue(stalled.isAlive());
+		assertEquals(Multiplexer.DEFAULT_QUEUE_SIZE, unread.available());
+		assertEquals(0, unread.getDropped());
+		assertEquals(0, this.server.getDropped());
+	}
+
+	@Test
+	public void lossyChannelsAreOptIn() throws Exception {
+		VirtualChannel lossy = this.server.open(2, 4, false);
+		VirtualChannel control = this.server.open(1);
+		assertTrue(!lossy.isBlocking());
+		this.server.start();
+		this.client.start();
+
+		// Die Gegenseite darf unbegrenzt senden
+		VirtualChannel out = this.client.open(2);
+		for( int i = 0; i < 20; i++ ) {
+			this.send(out, i);
+		}
+		assertEquals(-1, out.getCredits());
+		this.send(this.client.open(1), 99);
+
+		// Der nicht abgeholte Kanal hält die übrigen nicht auf
+		Frame f = new Frame(64);
+		control.receive(f);
+		assertEquals(99, f.getInt());
+		assertEquals(16, lossy.getDropped());
+		for( int i = 0; i < 4; i++ ) {
+			lossy.receive(f);
+			assertEquals(i, f.getInt());
+		}
+	}
+
+	@Test
+	public void rpcRunsOverADefaultChannel() throws Exception {
+		RpcChannel callee = new RpcChannel(this.server.open(1), 4, 64);
+		RpcChannel caller = new RpcChannel(this.client.open(1), 4, 64);
+		callee.setHandler(new RpcHandler() {
+			public void handle( int command, Frame request, Frame reply ) {
+				reply.putInt(request.getInt() + 1);
+			}
+		});
+		this.server.start();
+		this.client.start();
+		callee.start();
+		caller.start();
+
+		RpcCall[] calls = new RpcCall[4];
+		Frame result = new Frame(64);
+		for( int round = 0; round < 20; round++ ) {
+			for( int i = 0; i < calls.length; i++ ) {
+				this.frame.reset(0);
+				this.frame.putInt(round * 4 + i);
+				calls[i] = caller.call(TYPE_DATA, this.frame);
+			}
+			for( int i = 0; i < calls.length; i++ ) {
+				calls[i].await(result, 1000);
+				assertEquals(round * 4 + i + 1, result.getInt());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für die Wiederaufnahme des {@link ReliableChannel} nach
+ * Verbindungsabbrüchen über eine {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class ReliableChannelTest {
+
+	/**
+	 * Anzahl der Frames je Test, ein Vielfaches des halben Fensters, damit
+	 * am Ende alle Frames bestätigt sind
+	 */
+	private static final int FRAMES = 400;
+
+
+	private Loopback loop;
+
+	private ReliableChannel server, client;
+
+	/**
+	 * Fehler des Sende-Threads
+	 */
+	private volatile Exception sendFailure;
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+		this.server = new ReliableChannel(this.loop.server, null);
+		this.client = new ReliableChannel(this.loop.client,
+				this.loop.server.getAddress());
+		this.server.setReconnect(10, 10, 100);
+		this.client.setReconnect(10, 10, 100);
+		this.server.start();
+		this.client.start();
+	}
+
+	@After
+	public void close() {
+		this.client.close();
+		this.server.close();
+	}
+
+	/**
+	 * Verschickt {@link #FRAMES} fortlaufend nummerierte Frames in einem
+	 * eigenen Thread.
+	 *
+	 * @param dropAt Nummern, nach denen die Verbindung getrennt wird
+	 * @return Der Sende-Thread
+	 */
+	private Thread sendAll( final int... dropAt ) {
+		Thread t = new Thread() {
+			public void run() {
+				ReliableChannel rc = ReliableChannelTest.this.client;
+				Frame f = new Frame();
+				try {
+					for( int i = 0; i < FRAMES; i++ ) {
+						f.reset(1);
+						f.putInt(i);
+						rc.send(f);
+						for( int j = 0; j < dropAt.length; j++ ) {
+							if( dropAt[j] == i ) {
+								rc.getConnection().disconnect();
+							}
+						}
+					}
+				} catch( ComException ex ) {
+					ReliableChannelTest.this.sendFailure = ex;
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Empfängt alle Frames und prüft Reihenfolge und Vollständigkeit.
+	 *
+	 * @throws Exception
+	 */
+	private void receiveAll() throws Exception {
+		Frame f = new Frame();
+		for( int i = 0; i < FRAMES; i++ ) {
+			assertEquals(1, this.server.receive(f));
+			assertEquals(i, f.getInt());
+		}
+	}
+
+	/**
+	 * Wartet, bis die Frames des Clients bestätigt sind. Bestätigt wird
+	 * jeweils ein halbes Fenster; nach einer Wiederaufnahme verschiebt sich
+	 * diese Grenze, sodass am Ende einzelne Frames offen bleiben können.
+	 *
+	 * @param max Höchstzahl offener Frames
+	 * @throws InterruptedException
+	 */
+	private void awaitAcknowledged( int max ) throws InterruptedException {
+		long end = System.currentTimeMillis() + 2000;
+		while( this.client.getUnacknowledged() > max
+				&& System.currentTimeMillis() < end ) {
+			Thread.sleep(5);
+		}
+		assertTrue(this.client.getUnacknowledged() <= max);
+	}
+
+	@Test
+	public void framesArriveInOrder() throws Exception {
+		Thread t = this.sendAll();
+		this.receiveAll();
+		t.join();
+
+		assertNull(this.sendFailure);
+		assertEquals(0, this.client.getReconnects());
+		this.awaitAcknowledged(0);
+	}
+
+	@Test
+	public void resumeAfterDisconnectLosesAndDuplicatesNothing()
+			throws Exception {
+		Thread t = this.sendAll(100, 250);
+		this.receiveAll();
+		t.join();
+
+		assertNull(this.sendFailure);
+		assertTrue(this.client.getReconnects() >= 1);
+		this.awaitAcknowledged(ReliableChannel.DEFAULT_WINDOW / 2 - 1);
+	}
+
+	@Test
+	public void resumeWithFullReceiveQueueReconnectsOnce() throws Exception {
+		Thread t = this.sendAll();
+		// Das Fenster ist voll, die Anwendung hat noch nichts abgeholt
+		long end = System.currentTimeMillis() + 2000;
+		while( this.client.getUnacknowledged() < ReliableChannel.DEFAULT_WINDOW
+				&& System.currentTimeMillis() < end ) {
+			Thread.sleep(5);
+		}
+		this.client.getConnection().disconnect();
+		Thread.sleep(300);
+
+		this.receiveAll();
+		t.join();
+
+		assertNull(this.sendFailure);
+		assertEquals(1, this.client.getReconnects());
+		this.awaitAcknowledged(ReliableChannel.DEFAULT_WINDOW / 2 - 1);
+	}
+
+	@Test
+	public void repliesFlowInBothDirections() throws Exception {
+		final int[] replies = new int[1];
+		Thread reader = new Thread() {
+			public void run() {
+				ReliableChannel rc = ReliableChannelTest.this.client;
+				Frame f = new Frame();
+				try {
+					for( int i = 0; i < FRAMES; i++ ) {
+						rc.receive(f);
+						if( f.getInt() != -i ) {
+							return;
+						}
+						replies[0]++;
+					}
+				} catch( ComException ex ) {
+					ReliableChannelTest.this.sendFailure = ex;
+				}
+			}
+		};
+		reader.start();
+
+		Thread t = this.sendAll(150);
+		Frame f = new Frame();
+		for( int i = 0; i < FRAMES; i++ ) {
+			this.server.receive(f);
+			assertEquals(i, f.getInt());
+			f.reset(2);
+			f.putInt(-i);
+			this.server.send(f);
+			if( i == 300 ) {
+				this.server.getConnection().disconnect();
+			}
+		}
+		t.join();
+		reader.join(5000);
+
+		assertNull(this.sendFailure);
+		assertEquals(FRAMES, replies[0]);
+	}
+
+}
@@ -0,0 +1,105 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests für den {@link RingBuffer}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class RingBufferTest {
+
+	@Test
+	public void capacityIsRoundedUpToAPowerOfTwo() {
+		assertEquals(1, new RingBuffer(1).capacity());
+		assertEquals(64, new RingBuffer(64).capacity());
+		assertEquals(128, new RingBuffer(65).capacity());
+	}
+
+	@Test
+	public void writesAndReadsWrapAround() {
+		RingBuffer ring = new RingBuffer(8);
+		byte[] src = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, dst = new byte[10];
+
+		assertEquals(6, ring.write(src, 0, 6));
+		assertEquals(4, ring.read(dst, 0, 4));
+		// Der Rest beginnt wieder vorne im Speicher
+		assertEquals(4, ring.write(src, 6, 4));
+		assertEquals(2, ring.write(src, 0, 3));
+		assertEquals(8, ring.available());
+		assertEquals(0, ring.free());
+		assertEquals(0, ring.write(src, 0, 1));
+
+		assertEquals(5, ring.read());
+		assertEquals(7, ring.read(dst, 0, 10));
+		byte[] expected = { 6, 7, 8, 9, 10, 1, 2 };
+		for( int i = 0; i < expected.length; i++ ) {
+			assertEquals(expected[i], dst[i]);
+		}
+		assertEquals(-1, ring.read());
+		assertEquals(0, ring.read(dst, 0, 10));
+	}
+
+	@Test
+	public void closedBufferKeepsWrittenBytes() {
+		RingBuffer ring = new RingBuffer(4);
+		ring.write(new byte[] { 1, 2 }, 0, 2);
+		ring.close();
+
+		assertTrue(ring.isClosed());
+		assertEquals(1, ring.read());
+		assertEquals(2, ring.read());
+		assertEquals(-1, ring.read());
+
+		ring.clear();
+		assertTrue(!ring.isClosed());
+		assertEquals(0, ring.available());
+	}
+
+	@Test(timeout = 10000)
+	public void oneWriterAndOneReaderWithoutLocks() throws Exception {
+		final RingBuffer ring = new RingBuffer(64);
+		final int total = 1000000;
+
+		Thread writer = new Thread() {
+			public void run() {
+				byte[] buf = new byte[37];
+				int value = 0;
+				while( value < total ) {
+					int n = Math.min(buf.length, total - value);
+					for( int i = 0; i < n; i++ ) {
+						buf[i] = (byte) (value + i);
+					}
+					int off = 0;
+					while( off < n ) {
+						off += ring.write(buf, off, n - off);
+						Thread.yield();
+					}
+					value += n;
+				}
+				ring.close();
+			}
+		};
+		writer.start();
+
+		byte[] buf = new byte[29];
+		int value = 0;
+		while( !ring.isClosed() || ring.available() > 0 ) {
+			int n = ring.read(buf, 0, buf.length);
+			for( int i = 0; i < n; i++ ) {
+				assertEquals((byte) value++, buf[i]);
+			}
+			if( n == 0 ) {
+				Thread.yield();
+			}
+		}
+		writer.join();
+		assertEquals(total, value);
+	}
+
+}
@@ -0,0 +1,364 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für Aufrufe, Antworten und Fehlerfälle des {@link RpcChannel} über
+ * eine {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class RpcChannelTest {
+
+	private static final int CMD_DOUBLE = 1, CMD_FAIL = 2, CMD_SLOW = 3,
+			CMD_CRASH = 4, CMD_ECHO = 5;
+
+	/**
+	 * Größer als der Puffer einer {@link LoopbackConnection}
+	 */
+	private static final int LARGE = 1500;
+
+
+	private Loopback loop;
+
+	private RpcChannel server, client;
+
+	private final Frame args = new Frame(256), result = new Frame(256);
+
+	@Before
+	public void connect() throws Exception {
+		this.loop = new Loopback();
+		this.server = new RpcChannel(new MessageChannel(this.loop.server), 4,
+				64);
+		this.client = new RpcChannel(new MessageChannel(this.loop.client), 4,
+				256);
+		this.server.setHandler(new RpcHandler() {
+			public void handle( int command, Frame request, Frame reply )
+					throws ComException {
+				switch( command ) {
+					case CMD_FAIL:
+						throw new ComException("bad command");
+					case CMD_CRASH:
+						throw new IllegalStateException("crash");
+					case CMD_SLOW:
+						try {
+							Thread.sleep(300);
+						} catch( InterruptedException ex ) {
+						}
+						break;
+				}
+				reply.putInt(2 * request.getInt());
+			}
+		});
+		this.server.start();
+		this.client.start();
+	}
+
+	@After
+	public void disconnect() {
+		this.loop.close();
+	}
+
+	private Frame args( int value ) {
+		this.args.reset(0);
+		this.args.putInt(value);
+		return this.args;
+	}
+
+	@Test
+	public void invokeReturnsReply() throws Exception {
+		assertEquals(CMD_DOUBLE, this.client.invoke(CMD_DOUBLE, this.args(21),
+				this.result, 1000));
+		assertEquals(4, this.result.getLength());
+		assertEquals(42, this.result.getInt());
+	}
+
+	@Test
+	public void pipelinedCallsMatchTheirReplies() throws Exception {
+		RpcCall[] calls = new RpcCall[4];
+		for( int round = 0; round < 50; round++ ) {
+			for( int i = 0; i < calls.length; i++ ) {
+				calls[i] = this.client.call(CMD_DOUBLE,
+						this.args(round * 4 + i));
+			}
+			// In umgekehrter Reihenfolge abholen
+			for( int i = calls.length - 1; i >= 0; i-- ) {
+				calls[i].await(this.result, 1000);
+				assertEquals(2 * (round * 4 + i), this.result.getInt());
+			}
+		}
+	}
+
+	@Test
+	public void handlerErrorsAreReported() throws Exception {
+		try {
+			this.client.invoke(CMD_FAIL, this.args(1), this.result, 1000);
+			fail("Handler should fail");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+			assertEquals("bad command", ex.getMessage());
+		}
+
+		try {
+			this.client.invoke(CMD_CRASH, this.args(1), this.result, 1000);
+			fail("Handler should fail");
+		} catch( ComException ex ) {
+			// Die Meldung wird auf die Größe der Antwort gekürzt
+			assertEquals(ComException.RECV, ex.getType());
+			assertTrue(ex.getMessage().startsWith("java.lang."));
+		}
+
+		// Der Empfangs-Thread der Gegenseite läuft weiter
+		this.client.invoke(CMD_DOUBLE, this.args(5), this.result, 1000);
+		assertEquals(10, this.result.getInt());
+	}
+
+	@Test
+	public void missingHandlerIsReported() throws Exception {
+		this.server.setHandler(null);
+		try {
+			this.client.invoke(CMD_DOUBLE, this.args(1), this.result, 1000);
+			fail("No handler set");
+		} catch( ComException ex ) {
+			assertEquals("No handler", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void lateReplyAfterTimeoutIsDropped() throws Exception {
+		try {
+			this.client.invoke(CMD_SLOW, this.args(1), this.result, 50);
+			fail("Call should time out");
+		} catch( ComException ex ) {
+			assertEquals(ComException.TIMEOUT, ex.getType());
+		}
+
+		assertEquals(CMD_DOUBLE, this.client.invoke(CMD_DOUBLE, this.args(3),
+				this.result, 1000));
+		assertEquals(6, this.result.getInt());
+	}
+
+	@Test
+	public void tooLargeRequestDoesNotStopTheServer() throws Exception {
+		this.args.reset(0);
+		for( int i = 0; i < 40; i++ ) {
+			this.args.putInt(i);
+		}
+		try {
+			this.client.invoke(CMD_DOUBLE, this.args, this.result, 200);
+			fail("Request should be skipped");
+		} catch( ComException ex ) {
+			assertEquals(ComException.TIMEOUT, ex.getType());
+		}
+
+		this.client.invoke(CMD_DOUBLE, this.args(4), this.result, 1000);
+		assertEquals(8, this.result.getInt());
+	}
+
+	@Test
+	public void reservedCommandsAreRejected() throws Exception {
+		try {
+			this.client.call(MessageChannel.TYPE_PING, this.args(1));
+			fail("Reserved command accepted");
+		} catch( ComException ex ) {
+			assertEquals(ComException.SEND, ex.getType());
+		}
+
+		// Die abgewiesene Anfrage belegt keinen Platz
+		RpcCall[] calls = new RpcCall[4];
+		for( int i = 0; i < calls.length; i++ ) {
+			calls[i] = this.client.call(CMD_DOUBLE, this.args(i));
+		}
+		for( int i = 0; i < calls.length; i++ ) {
+			calls[i].await(this.result, 1000);
+		}
+	}
+
+	@Test
+	public void simultaneousLargeCallsDoNotDeadlock() throws Exception {
+		Loopback pair = new Loopback();
+		try {
+			final RpcChannel a = new RpcChannel(new MessageChannel(
+					pair.server), 2, LARGE + 16);
+			final RpcChannel b = new RpcChannel(new MessageChannel(
+					pair.client), 2, LARGE + 16);
+			RpcHandler echo = new RpcHandler() {
+				public void handle( int command, Frame request, Frame reply ) {
+					while( request.remaining() > 0 ) {
+						reply.putByte(request.getByte());
+					}
+				}
+			};
+			a.setHandler(echo);
+			b.setHandler(echo);
+			a.start();
+			b.start();
+
+			final ComException[] failures = new ComException[2];
+			Thread[] threads = new Thread[2];
+			for( int i = 0; i < threads.length; i++ ) {
+				final int side = i;
+				threads[i] = new Thread() {
+					public void run() {
+						Frame request = new Frame(LARGE), reply = new Frame(
+								LARGE + 16);
+						for( int k = 0; k < LARGE; k++ ) {
+							request.putByte(k + side);
+						}
+						try {
+							for( int round = 0; round < 5; round++ ) {
+								(side == 0 ? a : b).invoke(CMD_ECHO, request,
+										reply, 2000);
+								if( reply.getLength() != LARGE
+										|| reply.data[LARGE - 1] != (byte) (LARGE
+												- 1 + side) ) {
+									throw new ComException("Wrong echo");
+								}
+							}
+						} catch( ComException ex ) {
+							failures[side] = ex;
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for( int i = 0; i < threads.length; i++ ) {
+				threads[i].join(5000);
+				assertTrue("Side " + i + " blocked", !threads[i].isAlive());
+				if( failures[i] != null ) {
+					throw failures[i];
+				}
+			}
+		} finally {
+			pair.close();
+		}
+	}
+
+	@Test
+	public void malformedErrorReplyIsReported() throws Exception {
+		Loopback pair = new Loopback();
+		try {
+			MessageChannel raw = new MessageChannel(pair.server);
+			RpcChannel rpc = new RpcChannel(new MessageChannel(pair.client),
+					1, 64);
+			rpc.start();
+			RpcCall call = rpc.call(CMD_DOUBLE, this.args(1));
+
+			// Fehlerantwort, deren Meldung mitten im Zeichen abbricht
+			Frame f = new Frame(64);
+			raw.receive(f);
+			f.position = 0;
+			f.getByte();
+			int hi = f.getByte() & 0xFF, lo = f.getByte() & 0xFF;
+			f.reset(CMD_DOUBLE);
+			f.putByte(2);
+			f.putByte(hi);
+			f.putByte(lo);
+			f.putByte(1);
+			f.putByte(0xC3);
+			raw.send(f);
+
+			try {
+				call.await(this.result, 1000);
+				fail("Error reply expected");
+			} catch( ComException ex ) {
+				assertEquals(ComException.RECV, ex.getType());
+				assertEquals("Malformed error reply", ex.getMessage());
+			}
+
+			// Der Empfangs-Thread läuft weiter
+			call = rpc.call(CMD_DOUBLE, this.args(2));
+			raw.receive(f);
+			f.position = 1;
+			hi = f.getByte() & 0xFF;
+			lo = f.getByte() & 0xFF;
+			f.reset(CMD_DOUBLE);
+			f.putByte(1);
+			f.putByte(hi);
+			f.putByte(lo);
+			f.putInt(4);
+			raw.send(f);
+			call.await(this.result, 1000);
+			assertEquals(4, this.result.getInt());
+		} finally {
+			pair.close();
+		}
+	}
+
+	@Test
+	public void overflowingRequestsAreAnsweredBusy() throws Exception {
+		Loopback pair = new Loopback();
+		try {
+			// Die Gegenseite nimmt nur eine Anfrage gleichzeitig an
+			RpcChannel narrow = new RpcChannel(new MessageChannel(
+					pair.server), 1, 64);
+			RpcChannel wide = new RpcChannel(new MessageChannel(pair.client),
+					4, 64);
+			narrow.setHandler(new RpcHandler() {
+				public void handle( int command, Frame request, Frame reply ) {
+					try {
+						Thread.sleep(200);
+					} catch( InterruptedException ex ) {
+					}
+					reply.putInt(request.getInt());
+				}
+			});
+			narrow.start();
+			wide.start();
+
+			RpcCall[] calls = new RpcCall[4];
+			for( int i = 0; i < calls.length; i++ ) {
+				calls[i] = wide.call(CMD_SLOW, this.args(i));
+			}
+
+			// Jede Anfrage erhält eine Antwort, ohne das Zeitlimit zu erreichen;
+			// höchstens eine wird bearbeitet und eine wartet
+			int busy = 0;
+			for( int i = 0; i < calls.length; i++ ) {
+				try {
+					calls[i].await(this.result, 2000);
+					assertEquals(i, this.result.getInt());
+				} catch( ComException ex ) {
+					assertEquals(ComException.RECV, ex.getType());
+					assertEquals("Busy", ex.getMessage());
+					busy++;
+				}
+			}
+			assertTrue("busy: " + busy, busy >= 2);
+
+			// Danach werden Anfragen wieder bearbeitet
+			wide.invoke(CMD_DOUBLE, this.args(9), this.result, 1000);
+			assertEquals(9, this.result.getInt());
+		} finally {
+			pair.close();
+		}
+	}
+
+	@Test
+	public void disconnectFailsPendingCalls() throws Exception {
+		RpcCall call = this.client.call(CMD_SLOW, this.args(1));
+		this.loop.client.disconnect();
+		try {
+			call.await(this.result, 2000);
+			fail("Call should fail");
+		} catch( ComException ex ) {
+			assertTrue(ex.getType() != ComException.TIMEOUT);
+		}
+
+		try {
+			this.client.call(CMD_DOUBLE, this.args(1));
+			fail("Channel should be stopped");
+		} catch( ComException ex ) {
+			// erwartet
+		}
+	}
+
+}
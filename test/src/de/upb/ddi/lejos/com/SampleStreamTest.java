@@ -0,0 +1,187 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für {@link SampleStream} und {@link SampleDecoder} über eine
+ * {@link LoopbackConnection}.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class SampleStreamTest {
+
+	private static final int TYPE_SAMPLES = 7;
+
+
+	private Loopback loop;
+
+	private MessageChannel sender, receiver;
+
+	private final Frame frame = new Frame(1024);
+
+	@Before
+	public void connect() throws InterruptedException {
+		this.loop = new Loopback();
+		this.sender = new MessageChannel(this.loop.client);
+		this.receiver = new MessageChannel(this.loop.server);
+	}
+
+	@After
+	public void disconnect() {
+		this.loop.close();
+	}
+
+	/**
+	 * Verschickt Messungen und prüft, ob sie vollständig und unverändert
+	 * dekodiert werden. Es wird immer nur ein Block gesendet und empfangen,
+	 * damit die Leitung der {@link LoopbackConnection} nicht überläuft.
+	 *
+	 * @param width
+	 * @param times
+	 * @param values
+	 * @throws ComException
+	 */
+	private void roundTrip( int width, int[] times, int[] values )
+			throws ComException {
+		SampleStream out = new SampleStream(this.sender, TYPE_SAMPLES, width);
+		SampleDecoder dec = new SampleDecoder(TYPE_SAMPLES, width,
+				SampleStream.DEFAULT_BLOCK_SIZE);
+
+		int decoded = 0;
+		for( int i = 0; i <= times.length; i++ ) {
+			int pending = out.getPending();
+			if( i < times.length ) {
+				out.add(times[i], values, i * width);
+			} else {
+				out.flush();
+			}
+			if( out.getPending() > pending || pending == 0 ) {
+				continue;
+			}
+
+			// Ein Block wurde verschickt
+			this.receiver.receive(this.frame);
+			assertTrue(this.frame.getLength()
+					<= SampleStream.DEFAULT_BLOCK_SIZE);
+			int n = dec.decode(this.frame);
+			assertEquals(pending, n);
+			for( int j = 0; j < n; j++ ) {
+				assertEquals(times[decoded + j], dec.getTimes()[j]);
+				for( int k = 0; k < width; k++ ) {
+					assertEquals(values[(decoded + j) * width + k],
+							dec.getValues()[j * width + k]);
+				}
+			}
+			decoded += n;
+		}
+		assertEquals(times.length, decoded);
+	}
+
+	@Test
+	public void slowlyChangingValues() throws Exception {
+		int[] times = new int[500], values = new int[500];
+		for( int i = 0; i < times.length; i++ ) {
+			times[i] = 1000 + 10 * i;
+			values[i] = 500 + (i % 20) - 10;
+		}
+		this.roundTrip(1, times, values);
+	}
+
+	@Test
+	public void randomValuesAndExtremeDeltas() throws Exception {
+		Random random = new Random(4);
+		int width = 3;
+		int[] times = new int[300], values = new int[300 * width];
+		for( int i = 0; i < times.length; i++ ) {
+			times[i] = random.nextInt();
+			for( int k = 0; k < width; k++ ) {
+				values[i * width + k] = (i % 2 == 0) ? Integer.MIN_VALUE
+						: Integer.MAX_VALUE - random.nextInt(100);
+			}
+		}
+		this.roundTrip(width, times, values);
+	}
+
+	@Test
+	public void singleValueAndFlush() throws Exception {
+		SampleStream out = new SampleStream(this.sender, TYPE_SAMPLES, 1);
+		out.add(5, -3);
+		out.add(6, -4);
+		assertEquals(2, out.getPending());
+		out.flush();
+		assertEquals(0, out.getPending());
+		// Ein leerer Strom verschickt nichts
+		out.flush();
+
+		this.receiver.receive(this.frame);
+		SampleDecoder dec = new SampleDecoder(1, 64);
+		assertEquals(2, dec.decode(this.frame));
+		assertEquals(6, dec.getTimes()[1]);
+		assertEquals(-4, dec.getValues()[1]);
+	}
+
+	@Test
+	public void wrongTypeIsRejected() throws Exception {
+		SampleStream out = new SampleStream(this.sender, TYPE_SAMPLES + 1, 1);
+		out.add(1, 1);
+		out.flush();
+
+		this.receiver.receive(this.frame);
+		try {
+			new SampleDecoder(TYPE_SAMPLES, 1, 64).decode(this.frame);
+			fail("Type not checked");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+	}
+
+	@Test
+	public void oversizedBlockIsRejected() throws Exception {
+		SampleStream out = new SampleStream(this.sender, TYPE_SAMPLES, 1, 600);
+		for( int i = 0; i < 200; i++ ) {
+			out.add(i, 0);
+		}
+		out.flush();
+
+		this.receiver.receive(this.frame);
+		SampleDecoder dec = new SampleDecoder(TYPE_SAMPLES, 1,
+				SampleStream.DEFAULT_BLOCK_SIZE);
+		try {
+			dec.decode(this.frame);
+			fail("Block should not fit");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+		assertEquals(0, dec.getCount());
+	}
+
+	@Test
+	public void truncatedBlockIsRejected() throws Exception {
+		SampleStream out = new SampleStream(this.sender, TYPE_SAMPLES, 2);
+		out.add(1, new int[] { 1000000, 2000000 }, 0);
+		out.flush();
+
+		this.receiver.receive(this.frame);
+		// Mit drei Werten je Messung endet der Block mitten in einer Messung
+		SampleDecoder dec = new SampleDecoder(TYPE_SAMPLES, 3,
+				SampleStream.DEFAULT_BLOCK_SIZE);
+		try {
+			dec.decode(this.frame);
+			fail("Block should be incomplete");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+		assertEquals(0, dec.getCount());
+	}
+
+}
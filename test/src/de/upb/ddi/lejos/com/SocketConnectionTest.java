@@ -0,0 +1,196 @@
+package de.upb.ddi.lejos.com;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests für die {@link SocketConnection} über localhost.
+ *
+ * @author Jonas Neugebauer <jneug@mail.upb.de>
+ */
+public class SocketConnectionTest {
+
+	private static final int PORT = SocketConnection.DEFAULT_PORT + 101;
+
+
+	private SocketConnection server, client;
+
+	@Before
+	public void connect() throws Exception {
+		this.server = new SocketConnection("server", "localhost:" + PORT);
+		this.client = new SocketConnection("client", "localhost:0");
+
+		Thread t = new Thread() {
+			public void run() {
+				SocketConnectionTest.this.server.connect(2000);
+			}
+		};
+		t.start();
+
+		long end = System.currentTimeMillis() + 2000;
+		while( !this.client.isConnected()
+				&& System.currentTimeMillis() < end ) {
+			this.client.connect("localhost:" + PORT);
+			if( !this.client.isConnected() ) {
+				Thread.sleep(10);
+			}
+		}
+		t.join();
+		assertTrue(this.server.isConnected());
+		assertTrue(this.client.isConnected());
+	}
+
+	@After
+	public void disconnect() {
+		this.client.disconnect();
+		this.server.disconnect();
+	}
+
+	@Test
+	public void addressesAreParsed() {
+		assertEquals("brick", SocketConnection.parseHost("brick:1234"));
+		assertEquals(1234, SocketConnection.parsePort("brick:1234"));
+		assertEquals("brick", SocketConnection.parseHost("brick"));
+		assertEquals(SocketConnection.DEFAULT_PORT,
+				SocketConnection.parsePort("brick"));
+	}
+
+	@Test
+	public void valuesRoundTrip() throws Exception {
+		assertNotNull(this.client.getRemoteAddress());
+		assertTrue(this.client.getRemoteAddress().endsWith(":" + PORT));
+
+		this.client.sendInt(-7);
+		this.client.sendLong(Long.MAX_VALUE);
+		this.client.sendString("tcp");
+		assertEquals(-7, this.server.receiveInt());
+		assertEquals(Long.MAX_VALUE, this.server.receiveLong());
+		assertEquals("tcp", this.server.receiveString());
+
+		this.server.sendByte((byte) 9);
+		assertEquals(9, this.client.receiveByte());
+	}
+
+	/**
+	 * Füllt einen Puffer zwischen Position und Limit mit einem Muster.
+	 *
+	 * @param buf
+	 * @param seed
+	 * @return Der Puffer, zum Lesen bereit
+	 */
+	private static ByteBuffer pattern( ByteBuffer buf, int seed ) {
+		int start = buf.position();
+		for( int i = start; i < buf.limit(); i++ ) {
+			buf.put((byte) (i * 31 + seed));
+		}
+		buf.position(start);
+		return buf;
+	}
+
+	private static void assertPattern( ByteBuffer buf, int start, int seed ) {
+		assertEquals(buf.limit(), buf.position());
+		for( int i = start; i < buf.limit(); i++ ) {
+			assertEquals((byte) (i * 31 + seed), buf.get(i));
+		}
+	}
+
+	@Test
+	public void directBuffersRoundTrip() throws Exception {
+		ByteBuffer src = pattern(this.client.allocate(20000), 1);
+		ByteBuffer dst = this.server.allocate(20000);
+		assertTrue(src.isDirect());
+
+		this.client.send(src);
+		assertEquals(src.limit(), src.position());
+		this.server.receive(dst);
+		assertPattern(dst, 0, 1);
+	}
+
+	@Test
+	public void buffersKeepOrderWithStreamValues() throws Exception {
+		// Der Eingabestrom puffert beim Lesen der Zahl schon Teile des
+		// Puffers, die receive() zuerst übernehmen muss
+		ByteBuffer src = pattern(ByteBuffer.allocate(3000), 2);
+		this.client.sendInt(5);
+		this.client.send(src);
+		this.client.sendInt(6);
+
+		assertEquals(5, this.server.receiveInt());
+		ByteBuffer dst = ByteBuffer.allocateDirect(3000);
+		this.server.receive(dst);
+		assertPattern(dst, 0, 2);
+		assertEquals(6, this.server.receiveInt());
+	}
+
+	@Test
+	public void heapBufferSlicesInsideABatch() throws Exception {
+		ByteBuffer src = ByteBuffer.allocate(100);
+		src.position(10);
+		src.limit(90);
+		pattern(src, 3);
+
+		this.client.beginBatch();
+		this.client.sendByte((byte) 1);
+		this.client.send(src.slice());
+		this.client.endBatch();
+
+		assertEquals(1, this.server.receiveByte());
+		ByteBuffer dst = ByteBuffer.allocate(100);
+		dst.position(10);
+		dst.limit(90);
+		this.server.receive(dst);
+		assertPattern(dst, 10, 3);
+	}
+
+	@Test
+	public void buffersWithAsyncStreams() throws Exception {
+		this.client.enableAsyncSend(4096, RemoteConnection.QUEUE_BLOCK);
+		this.server.enableAsyncReceive(4096);
+
+		ByteBuffer src = pattern(this.client.allocate(10000), 4);
+		this.client.sendInt(8);
+		this.client.send(src);
+
+		assertEquals(8, this.server.receiveInt());
+		ByteBuffer dst = this.server.allocate(10000);
+		this.server.receive(dst);
+		assertPattern(dst, 0, 4);
+	}
+
+	@Test
+	public void truncatedBufferFails() throws Exception {
+		this.client.send(pattern(ByteBuffer.allocate(10), 5));
+		this.client.disconnect();
+		try {
+			this.server.receive(ByteBuffer.allocate(20));
+			fail("Stream should end");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+	}
+
+	@Test
+	public void disconnectEndsTheRemoteStream() throws Exception {
+		this.client.sendInt(1);
+		this.client.disconnect();
+
+		assertEquals(1, this.server.receiveInt());
+		try {
+			this.server.receiveByte();
+			fail("Stream should be closed");
+		} catch( ComException ex ) {
+			assertEquals(ComException.RECV, ex.getType());
+		}
+	}
+
+}